@@ -0,0 +1,83 @@
+package nl.topicus.bitbucket.api;
+
+import nl.topicus.bitbucket.persistence.WebhookDeadLetter;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * A webhook delivery which was given up on. The body is only included when a single dead letter is requested.
+ */
+@XmlRootElement
+public class DeadLetterModel {
+    @XmlElement
+    private Integer id;
+    @XmlElement
+    private Integer configId;
+    @XmlElement
+    private String eventType;
+    @XmlElement
+    private long createdDate;
+    @XmlElement
+    private int attempts;
+    @XmlElement
+    private String reason;
+    @XmlElement
+    private String body;
+
+    DeadLetterModel(WebhookDeadLetter deadLetter, boolean withBody) {
+        id = deadLetter.getID();
+        configId = deadLetter.getConfigurationId();
+        eventType = deadLetter.getEventType();
+        createdDate = deadLetter.getCreatedDate();
+        attempts = deadLetter.getAttempts();
+        reason = deadLetter.getReason();
+        body = withBody ? deadLetter.getBody() : null;
+    }
+
+    public DeadLetterModel() {
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public Integer getConfigId() {
+        return configId;
+    }
+
+    public String getEventType() {
+        return eventType;
+    }
+
+    /**
+     * @return the time, in milliseconds since the epoch, at which the delivery was given up on
+     */
+    public long getCreatedDate() {
+        return createdDate;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    @Override
+    public String toString() {
+        return "DeadLetterModel{" +
+                "id=" + id +
+                ", configId=" + configId +
+                ", eventType='" + eventType + '\'' +
+                ", createdDate=" + createdDate +
+                ", attempts=" + attempts +
+                ", reason='" + reason + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,63 @@
+package nl.topicus.bitbucket.api;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.List;
+
+/**
+ * A page of dead letters, laid out like the paged responses of the Bitbucket REST API.
+ */
+@XmlRootElement
+public class DeadLetterPageModel {
+    @XmlElement
+    private int start;
+    @XmlElement
+    private int limit;
+    @XmlElement
+    private int size;
+    @XmlElement
+    private boolean isLastPage;
+    @XmlElement
+    private Integer nextPageStart;
+    @XmlElement
+    private List<DeadLetterModel> values;
+
+    DeadLetterPageModel(int start, int limit, List<DeadLetterModel> values, boolean isLastPage) {
+        this.start = start;
+        this.limit = limit;
+        this.values = values;
+        this.isLastPage = isLastPage;
+        size = values.size();
+        nextPageStart = isLastPage ? null : start + size;
+    }
+
+    public DeadLetterPageModel() {
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public boolean getIsLastPage() {
+        return isLastPage;
+    }
+
+    /**
+     * @return the {@code start} of the next page, or {@code null} if this is the last page
+     */
+    public Integer getNextPageStart() {
+        return nextPageStart;
+    }
+
+    public List<DeadLetterModel> getValues() {
+        return values;
+    }
+}
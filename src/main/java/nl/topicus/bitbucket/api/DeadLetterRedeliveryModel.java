@@ -0,0 +1,28 @@
+package nl.topicus.bitbucket.api;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The outcome of a request to send dead letters again.
+ */
+@XmlRootElement
+public class DeadLetterRedeliveryModel {
+    @XmlElement
+    private int queued;
+
+    DeadLetterRedeliveryModel(int queued) {
+        this.queued = queued;
+    }
+
+    public DeadLetterRedeliveryModel() {
+    }
+
+    /**
+     * @return the number of dead letters queued to be sent again; they are sent at the redelivery rate, so this may
+     *         take a while
+     */
+    public int getQueued() {
+        return queued;
+    }
+}
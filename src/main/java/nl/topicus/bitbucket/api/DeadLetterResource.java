@@ -0,0 +1,120 @@
+package nl.topicus.bitbucket.api;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.rest.util.ResourcePatterns;
+import nl.topicus.bitbucket.delivery.DeadLetterRedeliverer;
+import nl.topicus.bitbucket.persistence.WebhookDeadLetter;
+import nl.topicus.bitbucket.persistence.WebhookDeadLetterDao;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Lists, inspects and sends again the deliveries of a repository's webhooks which were given up on.
+ */
+@Component
+@Path(ResourcePatterns.REPOSITORY_URI + "/deadletters")
+@Consumes(MediaType.APPLICATION_JSON)
+@Produces(MediaType.APPLICATION_JSON)
+public class DeadLetterResource {
+
+    static final int MAX_PAGE_SIZE = 100;
+    static final int MAX_REDELIVERY_SIZE = 1000;
+
+    private final WebhookDeadLetterDao deadLetterDao;
+    private final DeadLetterRedeliverer redeliverer;
+
+    @Autowired
+    public DeadLetterResource(WebhookDeadLetterDao deadLetterDao, DeadLetterRedeliverer redeliverer) {
+        this.deadLetterDao = deadLetterDao;
+        this.redeliverer = redeliverer;
+    }
+
+    /**
+     * @param configId only include dead letters of this webhook
+     * @param since    only include dead letters given up on at, or after, this time in milliseconds since the epoch
+     */
+    @GET
+    public DeadLetterPageModel getDeadLetters(@Context Repository repo,
+                                              @QueryParam("configId") Integer configId,
+                                              @QueryParam("since") Long since,
+                                              @QueryParam("start") @DefaultValue("0") int start,
+                                              @QueryParam("limit") @DefaultValue("25") int limit) {
+        start = Math.max(0, start);
+        limit = Math.max(1, Math.min(MAX_PAGE_SIZE, limit));
+
+        // Ask for one more than fits on the page to find out whether there is a next page
+        WebhookDeadLetter[] deadLetters = deadLetterDao.getDeadLetters(repo, configId, since, start, limit + 1);
+        List<DeadLetterModel> values = Arrays.stream(deadLetters)
+                .limit(limit)
+                .map(deadLetter -> new DeadLetterModel(deadLetter, false))
+                .collect(Collectors.toList());
+        return new DeadLetterPageModel(start, limit, values, deadLetters.length <= limit);
+    }
+
+    @Path("/{deadLetterId}")
+    @GET
+    public DeadLetterModel getDeadLetter(@Context Repository repo, @PathParam("deadLetterId") int deadLetterId) {
+        return new DeadLetterModel(getRepositoryDeadLetter(repo, deadLetterId), true);
+    }
+
+    @Path("/{deadLetterId}")
+    @DELETE
+    public void removeDeadLetter(@Context Repository repo, @PathParam("deadLetterId") int deadLetterId) {
+        deadLetterDao.deleteDeadLetters(Collections.singletonList(getRepositoryDeadLetter(repo, deadLetterId).getID()));
+    }
+
+    @Path("/{deadLetterId}/redeliver")
+    @POST
+    public DeadLetterRedeliveryModel redeliverDeadLetter(@Context Repository repo,
+                                                         @PathParam("deadLetterId") int deadLetterId) {
+        WebhookDeadLetter deadLetter = getRepositoryDeadLetter(repo, deadLetterId);
+        return new DeadLetterRedeliveryModel(redeliverer.redeliver(repo, new WebhookDeadLetter[]{deadLetter}));
+    }
+
+    /**
+     * Sends the oldest matching dead letters again, up to {@code limit} of them. Call again to continue with the
+     * next ones once these have been sent.
+     *
+     * @param configId only redeliver dead letters of this webhook
+     * @param since    only redeliver dead letters given up on at, or after, this time in milliseconds since the epoch
+     */
+    @Path("/redeliver")
+    @POST
+    public DeadLetterRedeliveryModel redeliverDeadLetters(@Context Repository repo,
+                                                          @QueryParam("configId") Integer configId,
+                                                          @QueryParam("since") Long since,
+                                                          @QueryParam("limit") @DefaultValue("1000") int limit) {
+        limit = Math.max(1, Math.min(MAX_REDELIVERY_SIZE, limit));
+
+        WebhookDeadLetter[] deadLetters = deadLetterDao.getOldestDeadLetters(repo, configId, since, limit);
+        return new DeadLetterRedeliveryModel(redeliverer.redeliver(repo, deadLetters));
+    }
+
+    private WebhookDeadLetter getRepositoryDeadLetter(Repository repo, int deadLetterId) {
+        WebhookDeadLetter deadLetter = deadLetterDao.getDeadLetter(deadLetterId);
+        if (deadLetter == null || !deadLetter.getRepositoryId().equals(repo.getId())) {
+            throw new WebApplicationException(Response.status(Response.Status.NOT_FOUND)
+                    .entity("Dead letter not found")
+                    .build());
+        }
+        return deadLetter;
+    }
+}
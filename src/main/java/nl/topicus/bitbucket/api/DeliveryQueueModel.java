@@ -0,0 +1,102 @@
+package nl.topicus.bitbucket.api;
+
+import nl.topicus.bitbucket.delivery.DeliveryLane;
+import nl.topicus.bitbucket.delivery.DeliveryQueue;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The queue of deliveries waiting for a delivery thread, shared by all webhooks on this node. The capacity applies to
+ * each lane separately. Counters are totals since the plugin was started.
+ */
+@XmlRootElement
+public class DeliveryQueueModel {
+    @XmlElement
+    private int depth;
+    @XmlElement
+    private Map<String, Integer> laneDepths;
+    @XmlElement
+    private int capacity;
+    @XmlElement
+    private String overflowPolicy;
+    @XmlElement
+    private long blocked;
+    @XmlElement
+    private long coalesced;
+    @XmlElement
+    private long dropped;
+    @XmlElement
+    private long spilled;
+
+    DeliveryQueueModel(DeliveryQueue deliveryQueue) {
+        depth = deliveryQueue.getDepth();
+        laneDepths = new LinkedHashMap<>();
+        for (DeliveryLane lane : DeliveryLane.values()) {
+            laneDepths.put(lane.name(), deliveryQueue.getDepth(lane));
+        }
+        capacity = deliveryQueue.getCapacity();
+        overflowPolicy = deliveryQueue.getPolicy().name();
+        blocked = deliveryQueue.getBlocked();
+        coalesced = deliveryQueue.getCoalesced();
+        dropped = deliveryQueue.getDropped();
+        spilled = deliveryQueue.getSpilled();
+    }
+
+    public DeliveryQueueModel() {
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the number of deliveries waiting in each lane, by the name of the lane
+     */
+    public Map<String, Integer> getLaneDepths() {
+        return laneDepths;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return {@code BLOCK}, {@code DROP_OLDEST}, {@code COALESCE} or {@code SPILL}
+     */
+    public String getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public long getBlocked() {
+        return blocked;
+    }
+
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getSpilled() {
+        return spilled;
+    }
+
+    @Override
+    public String toString() {
+        return "DeliveryQueueModel{" +
+                "depth=" + depth +
+                ", laneDepths=" + laneDepths +
+                ", capacity=" + capacity +
+                ", overflowPolicy='" + overflowPolicy + '\'' +
+                ", blocked=" + blocked +
+                ", coalesced=" + coalesced +
+                ", dropped=" + dropped +
+                ", spilled=" + spilled +
+                '}';
+    }
+}
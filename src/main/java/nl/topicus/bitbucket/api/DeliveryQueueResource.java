@@ -0,0 +1,39 @@
+package nl.topicus.bitbucket.api;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.permission.PermissionValidationService;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import nl.topicus.bitbucket.delivery.WebhookDispatcher;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+/**
+ * Shows the queue of deliveries waiting for a delivery thread on this node. The queue is shared by the webhooks of
+ * all repositories, so only system administrators may see it.
+ */
+@Component
+@Path("/queue")
+@Produces(MediaType.APPLICATION_JSON)
+public class DeliveryQueueResource {
+
+    private final PermissionValidationService permissionValidationService;
+    private final WebhookDispatcher webhookDispatcher;
+
+    @Autowired
+    public DeliveryQueueResource(@ComponentImport PermissionValidationService permissionValidationService,
+                                 WebhookDispatcher webhookDispatcher) {
+        this.permissionValidationService = permissionValidationService;
+        this.webhookDispatcher = webhookDispatcher;
+    }
+
+    @GET
+    public DeliveryQueueModel getDeliveryQueue() {
+        permissionValidationService.validateForGlobal(Permission.SYS_ADMIN);
+        return new DeliveryQueueModel(webhookDispatcher.getDeliveryQueue());
+    }
+}
@@ -1,22 +1,125 @@
 package nl.topicus.bitbucket.api;
 
+import nl.topicus.bitbucket.delivery.DeliverySettings;
 import nl.topicus.bitbucket.utils.PropertiesUtil;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.util.concurrent.TimeUnit;
+
 @Component
 public class HttpClientFactory
 {
 
+    private final DeliverySettings deliverySettings;
+
+    @Autowired
+    public HttpClientFactory(DeliverySettings deliverySettings)
+    {
+        this.deliverySettings = deliverySettings;
+    }
+
+    /**
+     * Creates a client backed by a connection pool sized from the {@link DeliverySettings}. Idle connections are
+     * evicted in the background, and connections are never kept alive for longer than the configured maximum.
+     *
+     * @param bitbucketVersion the Bitbucket version to include in the user agent
+     * @return the client
+     */
     public CloseableHttpClient create(String bitbucketVersion)
     {
-        String userAgent = String.format("Bitbucket version: %s, Post webhook plugin version: %s", bitbucketVersion, PropertiesUtil.getVersion());
+        // Supplying a connection manager bypasses the builder's own socket factories, so the system SSL settings
+        // have to be applied here to keep honouring the javax.net.ssl properties
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                RegistryBuilder.<ConnectionSocketFactory>create()
+                        .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                        .register("https", SSLConnectionSocketFactory.getSystemSocketFactory())
+                        .build());
+        connectionManager.setMaxTotal(deliverySettings.getPoolMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(deliverySettings.getPoolMaxPerRoute());
+        connectionManager.setValidateAfterInactivity(deliverySettings.getPoolValidateAfterInactivity());
+
         return HttpClientBuilder
                 .create()
                 .useSystemProperties()
-                .setUserAgent(userAgent)
+                .setUserAgent(getUserAgent(bitbucketVersion))
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(getDefaultRequestConfig())
+                .setKeepAliveStrategy(createKeepAliveStrategy(deliverySettings.getPoolKeepAlive()))
+                .evictExpiredConnections()
+                .evictIdleConnections(deliverySettings.getPoolIdleTimeout(), TimeUnit.SECONDS)
                 .build();
     }
 
+    /**
+     * @return the timeouts of requests which do not set their own, taken from the {@link DeliverySettings}, so that
+     *         the system defaults, which may wait forever, never apply
+     */
+    public RequestConfig getDefaultRequestConfig()
+    {
+        int timeout = (int) Math.min(Integer.MAX_VALUE, TimeUnit.SECONDS.toMillis(deliverySettings.getTimeout()));
+        return RequestConfig.custom()
+                .setConnectionRequestTimeout(timeout)
+                .setConnectTimeout(timeout)
+                .setSocketTimeout(timeout)
+                .build();
+    }
+
+    /**
+     * Creates a non-blocking client which sends the same user agent, and honours the same system properties and
+     * pool limits, as the clients returned by {@link #create}. The client is not started.
+     *
+     * @param bitbucketVersion the Bitbucket version to include in the user agent
+     * @param ioThreads        the number of I/O reactor threads
+     * @return the client
+     */
+    public CloseableHttpAsyncClient createAsync(String bitbucketVersion, int ioThreads)
+    {
+        return HttpAsyncClients
+                .custom()
+                .useSystemProperties()
+                .setUserAgent(getUserAgent(bitbucketVersion))
+                .setMaxConnTotal(deliverySettings.getPoolMaxTotal())
+                .setMaxConnPerRoute(deliverySettings.getPoolMaxPerRoute())
+                .setDefaultRequestConfig(getDefaultRequestConfig())
+                .setKeepAliveStrategy(createKeepAliveStrategy(deliverySettings.getPoolKeepAlive()))
+                .setDefaultIOReactorConfig(IOReactorConfig.custom()
+                        .setIoThreadCount(ioThreads)
+                        .setSoKeepAlive(true)
+                        .build())
+                .build();
+    }
+
+    /**
+     * Honours the {@code Keep-Alive} timeout sent by the host, but never keeps a connection for longer than
+     * {@code maxKeepAlive} seconds. Hosts which do not send a timeout get the maximum, rather than the indefinite
+     * keep-alive HttpClient would otherwise assume.
+     */
+    static ConnectionKeepAliveStrategy createKeepAliveStrategy(long maxKeepAlive)
+    {
+        long maxKeepAliveMillis = TimeUnit.SECONDS.toMillis(maxKeepAlive);
+        return (response, context) -> {
+            long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return keepAlive > 0 ? Math.min(keepAlive, maxKeepAliveMillis) : maxKeepAliveMillis;
+        };
+    }
+
+    private static String getUserAgent(String bitbucketVersion)
+    {
+        return String.format("Bitbucket version: %s, Post webhook plugin version: %s", bitbucketVersion, PropertiesUtil.getVersion());
+    }
+
 }
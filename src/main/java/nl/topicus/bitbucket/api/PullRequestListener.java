@@ -30,23 +30,15 @@ import com.atlassian.bitbucket.util.Version;
 import com.atlassian.event.api.EventListener;
 import com.atlassian.event.api.EventPublisher;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
-import nl.topicus.bitbucket.events.BitbucketPushEvent;
-import nl.topicus.bitbucket.events.BitbucketServerPullRequestEvent;
+import nl.topicus.bitbucket.delivery.EventCoalescer;
+import nl.topicus.bitbucket.delivery.WebhookDispatcher;
 import nl.topicus.bitbucket.events.BuildStatusEvent;
-import nl.topicus.bitbucket.events.Event;
 import nl.topicus.bitbucket.events.EventType;
-import nl.topicus.bitbucket.events.Events;
+import nl.topicus.bitbucket.events.StreamingPullRequestEvent;
+import nl.topicus.bitbucket.events.StreamingPushEvent;
 import nl.topicus.bitbucket.model.Models;
-import nl.topicus.bitbucket.persistence.WebHookConfiguration;
 import nl.topicus.bitbucket.persistence.WebHookConfigurationDao;
-import org.apache.http.Header;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.message.BasicHeader;
-import org.codehaus.jackson.map.ObjectMapper;
+import nl.topicus.bitbucket.persistence.WebhookDeadLetterDao;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.DisposableBean;
@@ -55,44 +47,55 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
-import java.net.URI;
-import java.util.concurrent.ExecutorService;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
 
 @Component
 public class PullRequestListener implements DisposableBean, InitializingBean
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(PullRequestListener.class);
 
+    /**
+     * Events which only matter for the state they leave the pull request in, so that a newer one makes any older
+     * one which has not been sent yet redundant.
+     */
+    private static final Set<EventType> COALESCED_EVENT_TYPES =
+            EnumSet.of(EventType.PULL_REQUEST_RESCOPED, EventType.PULL_REQUEST_UPDATED);
+
     private final ApplicationPropertiesService applicationPropertiesService;
     private final EventPublisher eventPublisher;
-    private final ExecutorService executorService;
-    private final CloseableHttpClient httpClient;
+    private final EventCoalescer eventCoalescer;
     private final NavBuilder navBuilder;
     private final ScmService scmService;
     private final CommitIndex commitIndex;
     private final WebHookConfigurationDao webHookConfigurationDao;
+    private final WebhookDeadLetterDao webhookDeadLetterDao;
+    private final WebhookDispatcher webhookDispatcher;
     private final boolean useCanMerge;
 
     @Autowired
     public PullRequestListener(@ComponentImport ApplicationPropertiesService applicationPropertiesService,
                                @ComponentImport EventPublisher eventPublisher,
-                               @ComponentImport ExecutorService executorService,
-                               HttpClientFactory httpClientFactory,
+                               EventCoalescer eventCoalescer,
                                @ComponentImport NavBuilder navBuilder,
                                @ComponentImport ScmService scmService,
                                @ComponentImport CommitIndex commitIndex,
-                               WebHookConfigurationDao webHookConfigurationDao)
+                               WebHookConfigurationDao webHookConfigurationDao,
+                               WebhookDeadLetterDao webhookDeadLetterDao,
+                               WebhookDispatcher webhookDispatcher)
     {
         this.applicationPropertiesService = applicationPropertiesService;
         this.eventPublisher = eventPublisher;
-        this.executorService = executorService;
+        this.eventCoalescer = eventCoalescer;
         this.navBuilder = navBuilder;
         this.scmService = scmService;
         this.commitIndex = commitIndex;
         this.webHookConfigurationDao = webHookConfigurationDao;
-        String bitbucketVersion = applicationPropertiesService.getBuildVersion();
-        useCanMerge = new Version(bitbucketVersion).compareTo(new Version(4, 10)) < 0;
-        httpClient = httpClientFactory.create(bitbucketVersion);
+        this.webhookDeadLetterDao = webhookDeadLetterDao;
+        this.webhookDispatcher = webhookDispatcher;
+        useCanMerge = new Version(applicationPropertiesService.getBuildVersion()).compareTo(new Version(4, 10)) < 0;
     }
 
     @Override
@@ -111,15 +114,6 @@ public class PullRequestListener implements DisposableBean, InitializingBean
     public void destroy()
     {
         eventPublisher.unregister(this);
-
-        try
-        {
-            httpClient.close();
-        }
-        catch (IOException e)
-        {
-            LOGGER.warn("Failed to close HttpClient; it will be abandoned", e);
-        }
     }
 
     @EventListener
@@ -176,7 +170,7 @@ public class PullRequestListener implements DisposableBean, InitializingBean
     }
 
     /**
-     * Delete configurations for any webhooks associated with the repository.
+     * Delete configurations, and dead letters, for any webhooks associated with the repository.
      * <p>
      * Even if the repository was "recreated", it would have a new ID, which means the old configurations would still
      * not be reused.
@@ -194,15 +188,24 @@ public class PullRequestListener implements DisposableBean, InitializingBean
         // going to be rolled back anyway
         if (!event.isCanceled()) {
             webHookConfigurationDao.deleteWebhookConfigurations(event.getRepository());
+            webhookDeadLetterDao.deleteDeadLetters(event.getRepository());
         }
     }
 
     @EventListener
     public void onRepositoryRefsChanged(RepositoryRefsChangedEvent event)
     {
-        executorService.submit(() -> {
-            BitbucketPushEvent pushEvent = Events.createPushEvent(event, applicationPropertiesService);
-            sendEvents(pushEvent, event.getRepository(), chooseRefsChangedEvent(event));
+        EventType eventType = chooseRefsChangedEvent(event);
+        if (!webHookConfigurationDao.hasSubscribers(event.getRepository(), eventType))
+        {
+            return;
+        }
+
+        Repository repository = event.getRepository();
+        eventCoalescer.submit(eventCoalescer.getKey(repository.getId(), null), null, () -> {
+            // Written straight from the ref changes, which can be thousands, rather than copied into models first
+            StreamingPushEvent pushEvent = new StreamingPushEvent(event, applicationPropertiesService);
+            webhookDispatcher.dispatch(pushEvent, repository, eventType);
         });
     }
 
@@ -224,17 +227,27 @@ public class PullRequestListener implements DisposableBean, InitializingBean
             return;
         }
 
-        executorService.submit(() -> {
-            BuildStatusEvent buildStatusEvent = new BuildStatusEvent();
-            buildStatusEvent.setCommit(commitId);
-            buildStatusEvent.setStatus(buildState.toString());
-            buildStatusEvent.setUrl(url);
+        List<Repository> repositories = new ArrayList<>();
+        for (Repository repo : commit.getRepositories()) {
+            if (webHookConfigurationDao.hasSubscribers(repo, EventType.BUILD_STATUS)) {
+                repositories.add(repo);
+            }
+        }
+        if (repositories.isEmpty()) {
+            return;
+        }
 
-            for (Repository repo : commit.getRepositories()) {
+        // Each repository keeps its own order, so each of them gets its own task
+        for (Repository repo : repositories) {
+            eventCoalescer.submit(eventCoalescer.getKey(repo.getId(), null), null, () -> {
+                BuildStatusEvent buildStatusEvent = new BuildStatusEvent();
+                buildStatusEvent.setCommit(commitId);
+                buildStatusEvent.setStatus(buildState.toString());
+                buildStatusEvent.setUrl(url);
                 buildStatusEvent.setRepository(Models.createRepository(repo, applicationPropertiesService));
-                sendEvents(buildStatusEvent, repo, EventType.BUILD_STATUS);
-            }
-        });
+                webhookDispatcher.dispatch(buildStatusEvent, repo, EventType.BUILD_STATUS);
+            });
+        }
     }
 
     private static EventType chooseRefsChangedEvent(RepositoryRefsChangedEvent event)
@@ -261,7 +274,13 @@ public class PullRequestListener implements DisposableBean, InitializingBean
 
     private void sendPullRequestEvent(PullRequestEvent event, EventType eventType, boolean updateRefs)
     {
-        executorService.submit(() -> {
+        // Checked before anything else, as the mergeability check runs a git command
+        if (!webHookConfigurationDao.hasSubscribers(event.getPullRequest().getToRef().getRepository(), eventType))
+        {
+            return;
+        }
+
+        Runnable task = () -> {
             PullRequest pullRequest = event.getPullRequest();
             if (updateRefs && pullRequest.isOpen())
             {
@@ -292,68 +311,22 @@ public class PullRequestListener implements DisposableBean, InitializingBean
             Repository repository = pullRequest.getToRef().getRepository();
             String prUrl = navBuilder.repo(repository).pullRequest(pullRequest.getId()).buildAbsolute();
 
-            BitbucketServerPullRequestEvent pullRequestEvent =
-                    Events.createPullrequestEvent(event, applicationPropertiesService);
-            pullRequestEvent.getPullrequest().setLink(prUrl);
+            StreamingPullRequestEvent pullRequestEvent =
+                    new StreamingPullRequestEvent(event, prUrl, applicationPropertiesService);
 
-            sendEvents(pullRequestEvent, repository, eventType);
-        });
-    }
-
-    private void sendEvents(Object event, Repository repo, EventType eventType)
-    {
-        String body;
-        try
-        {
-            body = new ObjectMapper().writeValueAsString(event);
-        }
-        catch (IOException e)
-        {
-            LOGGER.error("[repo: {}]| Failed to marshal {} payload to JSON. The event will be discarded",
-                    repo, eventType);
-            return;
-        }
+            webhookDispatcher.dispatch(pullRequestEvent, repository, eventType);
+        };
 
-        HttpPost post = new HttpPost();
-        post.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
-        post.setHeaders(new Header[]{
-                new BasicHeader("X-Event-Key", eventType.getHeaderValue()),
-                new BasicHeader("X-Bitbucket-Type", "server")
-        });
-
-        for (WebHookConfiguration webHookConfiguration : webHookConfigurationDao.getEnabledWebHookConfigurations(repo, eventType))
-        {
-            post.setURI(URI.create(webHookConfiguration.getURL()));
-            PushEventService pushEventService = new PushEventService(webHookConfiguration);
-
-            if(event instanceof Event && pushEventService.isValidEvent((Event) event, webHookConfiguration))
-            {
-                try (CloseableHttpResponse response = httpClient.execute(post))
-                {
-                    int statusCode = response.getStatusLine().getStatusCode();
-                    if (statusCode >= 400)
-                    {
-                        LOGGER.error(
-                                "[repo: {}]| Something went wrong while posting (response code:{}) the following body to webhook: [{}({})] \n{}",
-                                repo,
-                                statusCode,
-                                webHookConfiguration.getTitle(),
-                                webHookConfiguration.getURL(),
-                                body);
-                    }
-                }
-                catch (IOException e)
-                {
-                    LOGGER.error(
-                            "[repo: {}]| Something went wrong while posting the following body to webhook: [{}({})] \n{}",
-                            repo,
-                            webHookConfiguration.getTitle(),
-                            webHookConfiguration.getURL(),
-                            body,
-                            e);
-                }
-            }
-        }
+        // Ordered here, on the event thread, so that a slow mergeability check cannot let a later event for the
+        // pull request be written to the outbox first. Coalescing skips both the mergeability check and the
+        // deliveries for events which are superseded in time. The webhooks are not known yet here, and one may only
+        // subscribe to one of the coalesced types, so only events of the same type replace each other; the
+        // deliveries of updates and rescopes to a webhook which takes both supersede each other in its mailbox
+        PullRequest pullRequest = event.getPullRequest();
+        int repositoryId = pullRequest.getToRef().getRepository().getId();
+        String coalescingKey = COALESCED_EVENT_TYPES.contains(eventType) ?
+                repositoryId + ":" + pullRequest.getId() + ":" + eventType : null;
+        eventCoalescer.submit(eventCoalescer.getKey(repositoryId, pullRequest.getId()), coalescingKey, task);
     }
 
 }
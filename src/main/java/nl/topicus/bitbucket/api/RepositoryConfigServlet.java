@@ -153,16 +153,31 @@ public class RepositoryConfigServlet extends HttpServlet
 		boolean isPrCreated = "on".equalsIgnoreCase(req.getParameter("isPrCreated"));
 		boolean isPrCommented = "on".equalsIgnoreCase(req.getParameter("isPrCommented"));
 		boolean isBuildStatus = "on".equalsIgnoreCase(req.getParameter("isBuildStatus"));
+		boolean isBatchDelivery = "on".equalsIgnoreCase(req.getParameter("isBatchDelivery"));
+		int maxAttempts = getIntParameter(req, "maxAttempts", WebHookConfiguration.DEFAULT_MAX_ATTEMPTS, 1);
+		int rateLimit = getIntParameter(req, "rateLimit", 0, 0);
+		int rateBurst = getIntParameter(req, "rateBurst", WebHookConfiguration.DEFAULT_RATE_BURST, 1);
+		int connectTimeout = getIntParameter(req, "connectTimeout", 0, 0);
+		int socketTimeout = getIntParameter(req, "socketTimeout", 0, 0);
+		int deadline = getIntParameter(req, "deadline", 0, 0);
 
 		WebHookConfiguration webHookConfiguration = webHookConfigurationDao
 				.createOrUpdateWebHookConfiguration(repository, id, title, url, committersToIgnore, branchesToIgnore, enabled,
 						isTagCreated, isBranchDeleted, isBranchCreated, isRepoPush, isPrDeclined, isPrRescoped,
-						isPrMerged, isPrReopened, isPrUpdated, isPrCreated, isPrCommented, isBuildStatus);
+						isPrMerged, isPrReopened, isPrUpdated, isPrCreated, isPrCommented, isBuildStatus, maxAttempts,
+						rateLimit, rateBurst, isBatchDelivery, connectTimeout, socketTimeout, deadline);
 		if (webHookConfiguration == null)
 		{
 			webHookConfiguration = new DummyWebHookConfiguration(repository.getId(), title, url, committersToIgnore, branchesToIgnore, enabled,
 					isTagCreated, isBranchDeleted, isBranchCreated, isRepoPush, isPrDeclined, isPrRescoped,
 					isPrMerged, isPrReopened, isPrUpdated, isPrCreated, isPrCommented, isBuildStatus);
+			webHookConfiguration.setMaxAttempts(maxAttempts);
+			webHookConfiguration.setRateLimit(rateLimit);
+			webHookConfiguration.setRateBurst(rateBurst);
+			webHookConfiguration.setBatchDelivery(isBatchDelivery);
+			webHookConfiguration.setConnectTimeout(connectTimeout);
+			webHookConfiguration.setSocketTimeout(socketTimeout);
+			webHookConfiguration.setDeadline(deadline);
 			String template = "nl.topicus.templates.edit";
 			render(resp, template, ImmutableMap.<String, Object>builder().put("repository", repository).put("configuration", webHookConfiguration).build());
 		}
@@ -174,6 +189,26 @@ public class RepositoryConfigServlet extends HttpServlet
 		}
 	}
 
+	/**
+	 * @return the value of the parameter, or {@code defaultValue} if it is missing or not a number
+	 */
+	private static int getIntParameter(HttpServletRequest req, String name, int defaultValue, int minimum)
+	{
+		String value = req.getParameter(name);
+		if (StringUtils.isBlank(value))
+		{
+			return defaultValue;
+		}
+		try
+		{
+			return Math.max(minimum, Integer.parseInt(value.trim()));
+		}
+		catch (NumberFormatException e)
+		{
+			return defaultValue;
+		}
+	}
+
 	public static URI getFullURL(HttpServletRequest request) throws ServletException
 	{
 		StringBuffer requestURL = request.getRequestURL();
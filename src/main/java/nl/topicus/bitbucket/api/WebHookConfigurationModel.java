@@ -19,6 +19,20 @@ public class WebHookConfigurationModel {
     private String branchesToIgnore;
     @XmlElement
     private boolean enabled;
+    @XmlElement
+    private Integer maxAttempts;
+    @XmlElement
+    private Integer rateLimit;
+    @XmlElement
+    private Integer rateBurst;
+    @XmlElement
+    private Boolean batchDelivery;
+    @XmlElement
+    private Integer connectTimeout;
+    @XmlElement
+    private Integer socketTimeout;
+    @XmlElement
+    private Integer deadline;
 
     WebHookConfigurationModel(WebHookConfiguration webHookConfiguration) {
         id = webHookConfiguration.getID();
@@ -27,6 +41,13 @@ public class WebHookConfigurationModel {
         committersToIgnore = webHookConfiguration.getCommittersToIgnore();
         branchesToIgnore = webHookConfiguration.getBranchesToIgnore();
         enabled = webHookConfiguration.isEnabled();
+        maxAttempts = webHookConfiguration.getMaxAttempts();
+        rateLimit = webHookConfiguration.getRateLimit();
+        rateBurst = webHookConfiguration.getRateBurst();
+        batchDelivery = webHookConfiguration.isBatchDelivery();
+        connectTimeout = webHookConfiguration.getConnectTimeout();
+        socketTimeout = webHookConfiguration.getSocketTimeout();
+        deadline = webHookConfiguration.getDeadline();
     }
 
     public WebHookConfigurationModel() {
@@ -84,6 +105,85 @@ public class WebHookConfigurationModel {
         this.enabled = enabled;
     }
 
+    /**
+     * @return how often an event is sent, including retries, or {@code null} to keep the current setting
+     */
+    public Integer getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(Integer maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @return the maximum number of events sent per minute, 0 for no limit, or {@code null} to keep the current setting
+     */
+    public Integer getRateLimit() {
+        return rateLimit;
+    }
+
+    public void setRateLimit(Integer rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    /**
+     * @return the number of events which may be sent at once, or {@code null} to keep the current setting
+     */
+    public Integer getRateBurst() {
+        return rateBurst;
+    }
+
+    public void setRateBurst(Integer rateBurst) {
+        this.rateBurst = rateBurst;
+    }
+
+    /**
+     * @return whether events are sent together, as a JSON array, or {@code null} to keep the current setting
+     */
+    public Boolean getBatchDelivery() {
+        return batchDelivery;
+    }
+
+    public void setBatchDelivery(Boolean batchDelivery) {
+        this.batchDelivery = batchDelivery;
+    }
+
+    /**
+     * @return the number of seconds to wait for a connection, 0 for the default, or {@code null} to keep the current
+     *         setting
+     */
+    public Integer getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(Integer connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * @return the number of seconds to wait for data, 0 for the default, or {@code null} to keep the current setting
+     */
+    public Integer getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    public void setSocketTimeout(Integer socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    /**
+     * @return the number of seconds a request may take in total, 0 for the default, or {@code null} to keep the
+     *         current setting
+     */
+    public Integer getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(Integer deadline) {
+        this.deadline = deadline;
+    }
+
     @Override
     public String toString() {
         return "WebHookConfigurationModel{" +
@@ -92,6 +192,13 @@ public class WebHookConfigurationModel {
                 ", committersToIgnore='" + committersToIgnore + '\'' +
                 ", branchesToIgnore='" + branchesToIgnore + '\'' +
                 ", enabled=" + enabled +
+                ", maxAttempts=" + maxAttempts +
+                ", rateLimit=" + rateLimit +
+                ", rateBurst=" + rateBurst +
+                ", batchDelivery=" + batchDelivery +
+                ", connectTimeout=" + connectTimeout +
+                ", socketTimeout=" + socketTimeout +
+                ", deadline=" + deadline +
                 '}';
     }
 }
@@ -0,0 +1,108 @@
+package nl.topicus.bitbucket.api;
+
+import nl.topicus.bitbucket.delivery.CircuitBreaker;
+import nl.topicus.bitbucket.delivery.CircuitBreakers;
+import nl.topicus.bitbucket.delivery.ConcurrencyLimit;
+import nl.topicus.bitbucket.persistence.WebHookConfiguration;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The delivery health of a webhook, as seen by this node.
+ */
+@XmlRootElement
+public class WebHookStatusModel {
+    @XmlElement
+    private Integer id;
+    @XmlElement
+    private String host;
+    @XmlElement
+    private String circuitState;
+    @XmlElement
+    private int consecutiveFailures;
+    @XmlElement
+    private long circuitOpenMillis;
+    @XmlElement
+    private int concurrencyLimit;
+    @XmlElement
+    private int inFlight;
+    @XmlElement
+    private int waiting;
+
+    WebHookStatusModel(WebHookConfiguration webHookConfiguration, CircuitBreaker circuitBreaker,
+                       ConcurrencyLimit concurrencyLimit) {
+        id = webHookConfiguration.getID();
+        host = CircuitBreakers.getHost(webHookConfiguration.getURL());
+        circuitState = circuitBreaker.getState().name();
+        consecutiveFailures = circuitBreaker.getFailures();
+        circuitOpenMillis = circuitBreaker.getRemainingOpenTime(System.currentTimeMillis());
+        this.concurrencyLimit = concurrencyLimit.getLimit();
+        inFlight = concurrencyLimit.getInFlight();
+        waiting = concurrencyLimit.getWaiting();
+    }
+
+    public WebHookStatusModel() {
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return {@code CLOSED}, {@code OPEN} or {@code HALF_OPEN}
+     */
+    public String getCircuitState() {
+        return circuitState;
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * @return the number of milliseconds until deliveries to the host are let through again, or 0 if they are
+     */
+    public long getCircuitOpenMillis() {
+        return circuitOpenMillis;
+    }
+
+    /**
+     * @return the number of deliveries which may currently be in flight to the host at the same time
+     */
+    public int getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    /**
+     * @return the number of deliveries in flight to the host
+     */
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return the number of deliveries waiting for the number in flight to drop below the concurrency limit
+     */
+    public int getWaiting() {
+        return waiting;
+    }
+
+    @Override
+    public String toString() {
+        return "WebHookStatusModel{" +
+                "id=" + id +
+                ", host='" + host + '\'' +
+                ", circuitState='" + circuitState + '\'' +
+                ", consecutiveFailures=" + consecutiveFailures +
+                ", circuitOpenMillis=" + circuitOpenMillis +
+                ", concurrencyLimit=" + concurrencyLimit +
+                ", inFlight=" + inFlight +
+                ", waiting=" + waiting +
+                '}';
+    }
+}
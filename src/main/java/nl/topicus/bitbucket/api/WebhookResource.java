@@ -2,6 +2,8 @@ package nl.topicus.bitbucket.api;
 
 import com.atlassian.bitbucket.repository.Repository;
 import com.atlassian.bitbucket.rest.util.ResourcePatterns;
+import nl.topicus.bitbucket.delivery.CircuitBreakers;
+import nl.topicus.bitbucket.delivery.ConcurrencyLimits;
 import nl.topicus.bitbucket.persistence.WebHookConfiguration;
 import nl.topicus.bitbucket.persistence.WebHookConfigurationDao;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -29,10 +31,15 @@ import java.util.stream.Collectors;
 @Produces(MediaType.APPLICATION_JSON)
 public class WebhookResource {
 
+    private final CircuitBreakers circuitBreakers;
+    private final ConcurrencyLimits concurrencyLimits;
     private final WebHookConfigurationDao webHookConfigurationDao;
 
     @Autowired
-    public WebhookResource(WebHookConfigurationDao webHookConfigurationDao) {
+    public WebhookResource(CircuitBreakers circuitBreakers, ConcurrencyLimits concurrencyLimits,
+                           WebHookConfigurationDao webHookConfigurationDao) {
+        this.circuitBreakers = circuitBreakers;
+        this.concurrencyLimits = concurrencyLimits;
         this.webHookConfigurationDao = webHookConfigurationDao;
     }
 
@@ -69,11 +76,32 @@ public class WebhookResource {
         }
     }
 
+    @Path("/{configId}/status")
+    @GET
+    public WebHookStatusModel getWebhookStatus(@Context Repository repo, @PathParam("configId") String configId) {
+        WebHookConfiguration webHookConfiguration = webHookConfigurationDao.getWebHookConfiguration(configId);
+        if (webHookConfiguration == null || !webHookConfiguration.getRepositoryId().equals(repo.getId())) {
+            throw new WebApplicationException(Response.status(Response.Status.NOT_FOUND)
+                    .entity("Webhook not found")
+                    .build());
+        }
+        return new WebHookStatusModel(webHookConfiguration, circuitBreakers.get(webHookConfiguration.getURL()),
+                concurrencyLimits.get(webHookConfiguration.getURL()));
+    }
+
     private WebHookConfigurationModel createOrUpdateWebhook(Repository repo, String configId,
                                                             WebHookConfigurationModel updatedWebhook) {
         WebHookConfiguration createdWebhook = webHookConfigurationDao.createOrUpdateWebHookConfiguration(
-                repo, configId, updatedWebhook.getTitle(), updatedWebhook.getUrl(), updatedWebhook.getCommittersToIgnore(), updatedWebhook.getBranchesToIgnore(), updatedWebhook.isEnabled());
+                repo, configId, updatedWebhook.getTitle(), updatedWebhook.getUrl(), updatedWebhook.getCommittersToIgnore(), updatedWebhook.getBranchesToIgnore(), updatedWebhook.isEnabled(),
+                atLeast(1, updatedWebhook.getMaxAttempts()), atLeast(0, updatedWebhook.getRateLimit()),
+                atLeast(1, updatedWebhook.getRateBurst()), updatedWebhook.getBatchDelivery(),
+                atLeast(0, updatedWebhook.getConnectTimeout()), atLeast(0, updatedWebhook.getSocketTimeout()),
+                atLeast(0, updatedWebhook.getDeadline()));
 
         return new WebHookConfigurationModel(createdWebhook);
     }
+
+    private static Integer atLeast(int minimum, Integer value) {
+        return value == null ? null : Math.max(minimum, value);
+    }
 }
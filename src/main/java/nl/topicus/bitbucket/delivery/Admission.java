@@ -0,0 +1,21 @@
+package nl.topicus.bitbucket.delivery;
+
+/**
+ * Whether a {@link ConcurrencyLimit} lets a request through, or {@link DeliveryMailboxes} let a delivery go ahead.
+ */
+public enum Admission
+{
+    /**
+     * The request has a place within the limit, and may be sent now.
+     */
+    SEND,
+    /**
+     * The request waits in line, and is handed out once a place frees up.
+     */
+    WAIT,
+    /**
+     * The line is full, or, for a delivery, an earlier one of its key was spilled; the request neither has a place
+     * nor waits for one.
+     */
+    REJECT
+}
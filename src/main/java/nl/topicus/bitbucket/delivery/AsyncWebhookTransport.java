@@ -0,0 +1,129 @@
+package nl.topicus.bitbucket.delivery;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends requests on a non-blocking client. {@link #send} returns as soon as the request has been handed to the
+ * client's I/O reactor, and the future completes on one of the reactor's threads.
+ */
+public class AsyncWebhookTransport implements WebhookTransport
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncWebhookTransport.class);
+
+    private final CloseableHttpAsyncClient httpClient;
+    private final long shutdownTimeout;
+    private final Object lock = new Object();
+
+    private int inFlight;
+
+    /**
+     * @param httpClient      the client to send requests with; it is started if it is not running yet
+     * @param shutdownTimeout the number of seconds {@link #close} waits for in-flight requests
+     */
+    public AsyncWebhookTransport(CloseableHttpAsyncClient httpClient, long shutdownTimeout)
+    {
+        this.httpClient = httpClient;
+        this.shutdownTimeout = shutdownTimeout;
+        if (!httpClient.isRunning())
+        {
+            httpClient.start();
+        }
+    }
+
+    @Override
+    public CompletableFuture<HttpResponse> send(HttpUriRequest request)
+    {
+        CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+        synchronized (lock)
+        {
+            ++inFlight;
+        }
+        future.whenComplete((response, error) -> {
+            synchronized (lock)
+            {
+                if (--inFlight == 0)
+                {
+                    lock.notifyAll();
+                }
+            }
+        });
+
+        try
+        {
+            Future<HttpResponse> execution = httpClient.execute(request, new FutureCallback<HttpResponse>()
+            {
+                @Override
+                public void completed(HttpResponse response)
+                {
+                    future.complete(response);
+                }
+
+                @Override
+                public void failed(Exception e)
+                {
+                    future.completeExceptionally(e);
+                }
+
+                @Override
+                public void cancelled()
+                {
+                    future.completeExceptionally(new CancellationException("The request was cancelled"));
+                }
+            });
+            if (request instanceof HttpExecutionAware)
+            {
+                // The client does not hook itself up to the request, so aborting the request would not stop it
+                ((HttpExecutionAware) request).setCancellable(() -> execution.cancel(true));
+            }
+        }
+        catch (RuntimeException e)
+        {
+            // Thrown when the client has already been shut down
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Waits for in-flight requests to complete, up to the configured timeout, and then closes the client.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(shutdownTimeout);
+        synchronized (lock)
+        {
+            long remaining;
+            while (inFlight > 0 && (remaining = deadline - System.nanoTime()) > 0)
+            {
+                try
+                {
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (inFlight > 0)
+            {
+                LOGGER.warn("{} webhook requests were still in flight after {} seconds; they will be aborted",
+                        inFlight, shutdownTimeout);
+            }
+        }
+        httpClient.close();
+    }
+}
@@ -0,0 +1,45 @@
+package nl.topicus.bitbucket.delivery;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends requests on the calling thread; the returned future is always complete.
+ */
+public class BlockingWebhookTransport implements WebhookTransport
+{
+    private final CloseableHttpClient httpClient;
+
+    public BlockingWebhookTransport(CloseableHttpClient httpClient)
+    {
+        this.httpClient = httpClient;
+    }
+
+    @Override
+    public CompletableFuture<HttpResponse> send(HttpUriRequest request)
+    {
+        CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+        try (CloseableHttpResponse response = httpClient.execute(request))
+        {
+            EntityUtils.consumeQuietly(response.getEntity());
+            future.complete(response);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        httpClient.close();
+    }
+}
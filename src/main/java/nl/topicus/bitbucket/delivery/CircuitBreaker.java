@@ -0,0 +1,130 @@
+package nl.topicus.bitbucket.delivery;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stops deliveries to a host which keeps failing, so that they no longer tie up delivery threads until they time out.
+ * <p>
+ * After {@code failureThreshold} consecutive failures the circuit opens and deliveries fail fast. Once the open
+ * duration has passed, a single delivery is let through as a probe: if it succeeds the circuit closes again, if it
+ * fails the circuit stays open for another period.
+ * <p>
+ * The state is an immutable snapshot swapped with compare-and-set, so checking the circuit never blocks.
+ */
+public class CircuitBreaker
+{
+    private final long openDuration;
+    private final int failureThreshold;
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(Snapshot.CLOSED);
+
+    /**
+     * @param failureThreshold the number of consecutive failures which opens the circuit
+     * @param openDuration     the number of milliseconds the circuit stays open before a probe is sent
+     */
+    public CircuitBreaker(int failureThreshold, long openDuration)
+    {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * Checks whether a delivery may be sent. When this returns {@code true} the outcome of the delivery must be
+     * reported through {@link #onSuccess} or {@link #onFailure}.
+     *
+     * @param now the current time
+     * @return {@code true} if the delivery may be sent, or {@code false} if it should fail fast
+     */
+    public boolean tryAcquire(long now)
+    {
+        while (true)
+        {
+            Snapshot current = snapshot.get();
+            if (current.state == CircuitState.CLOSED)
+            {
+                return true;
+            }
+            // While half-open, the probe's deadline doubles as a timeout, in case its outcome is never reported
+            if (now < current.until)
+            {
+                return false;
+            }
+            if (snapshot.compareAndSet(current,
+                    new Snapshot(CircuitState.HALF_OPEN, current.failures, now + openDuration)))
+            {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Records a successful delivery, which closes the circuit.
+     */
+    public void onSuccess()
+    {
+        snapshot.set(Snapshot.CLOSED);
+    }
+
+    /**
+     * Records a failed delivery.
+     *
+     * @param now the current time
+     * @return {@code true} if this failure opened the circuit
+     */
+    public boolean onFailure(long now)
+    {
+        while (true)
+        {
+            Snapshot current = snapshot.get();
+            int failures = current.failures == Integer.MAX_VALUE ? current.failures : current.failures + 1;
+            Snapshot next = current.state == CircuitState.CLOSED && failures < failureThreshold ?
+                    new Snapshot(CircuitState.CLOSED, failures, 0L) :
+                    new Snapshot(CircuitState.OPEN, failures, now + openDuration);
+            if (snapshot.compareAndSet(current, next))
+            {
+                return next.state == CircuitState.OPEN && current.state != CircuitState.OPEN;
+            }
+        }
+    }
+
+    /**
+     * @return the number of consecutive failed deliveries
+     */
+    public int getFailures()
+    {
+        return snapshot.get().failures;
+    }
+
+    /**
+     * @param now the current time
+     * @return the number of milliseconds until the next delivery may be sent, or 0 if it may be sent now
+     */
+    public long getRemainingOpenTime(long now)
+    {
+        Snapshot current = snapshot.get();
+        return current.state == CircuitState.CLOSED ? 0L : Math.max(0L, current.until - now);
+    }
+
+    /**
+     * @return the current state
+     */
+    public CircuitState getState()
+    {
+        return snapshot.get().state;
+    }
+
+    private static final class Snapshot
+    {
+        static final Snapshot CLOSED = new Snapshot(CircuitState.CLOSED, 0, 0L);
+
+        final int failures;
+        final CircuitState state;
+        final long until;
+
+        Snapshot(CircuitState state, int failures, long until)
+        {
+            this.failures = failures;
+            this.state = state;
+            this.until = until;
+        }
+    }
+}
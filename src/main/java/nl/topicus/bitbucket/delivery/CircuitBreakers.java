@@ -0,0 +1,68 @@
+package nl.topicus.bitbucket.delivery;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.net.URI;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link CircuitBreaker} of every webhook host.
+ * <p>
+ * Circuits are kept per host rather than per webhook: when a host is down, every webhook of every repository which
+ * points at it is affected, so they should all fail fast together.
+ */
+@Component
+public class CircuitBreakers
+{
+    private final ConcurrentMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+    private final int failureThreshold;
+    private final long openDuration;
+
+    @Autowired
+    public CircuitBreakers(DeliverySettings settings)
+    {
+        this(settings.getCircuitFailureThreshold(), TimeUnit.SECONDS.toMillis(settings.getCircuitOpenDuration()));
+    }
+
+    CircuitBreakers(int failureThreshold, long openDuration)
+    {
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * @param url the URL of a webhook
+     * @return the circuit breaker of the URL's host
+     */
+    public CircuitBreaker get(String url)
+    {
+        return circuitBreakers.computeIfAbsent(getHost(url), host -> new CircuitBreaker(failureThreshold, openDuration));
+    }
+
+    /**
+     * @param url the URL of a webhook
+     * @return the scheme, host and port the URL points at, which identify its circuit
+     */
+    public static String getHost(String url)
+    {
+        try
+        {
+            URI uri = URI.create(url);
+            if (uri.getHost() != null)
+            {
+                String scheme = uri.getScheme() == null ? "http" : uri.getScheme().toLowerCase(Locale.ROOT);
+                int port = uri.getPort() != -1 ? uri.getPort() : "https".equals(scheme) ? 443 : 80;
+                return scheme + "://" + uri.getHost().toLowerCase(Locale.ROOT) + ":" + port;
+            }
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Fall back to the URL itself
+        }
+        return url;
+    }
+}
@@ -0,0 +1,25 @@
+package nl.topicus.bitbucket.delivery;
+
+import java.io.IOException;
+
+/**
+ * Fails a delivery without sending it, because the circuit for its host is open.
+ */
+public class CircuitOpenException extends IOException
+{
+    private final long remainingOpenTime;
+
+    public CircuitOpenException(String host, long remainingOpenTime)
+    {
+        super("The circuit for " + host + " is open; deliveries resume in " + remainingOpenTime + " ms");
+        this.remainingOpenTime = remainingOpenTime;
+    }
+
+    /**
+     * @return the number of milliseconds until the circuit lets a delivery through again
+     */
+    public long getRemainingOpenTime()
+    {
+        return remainingOpenTime;
+    }
+}
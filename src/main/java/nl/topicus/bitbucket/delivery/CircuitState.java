@@ -0,0 +1,20 @@
+package nl.topicus.bitbucket.delivery;
+
+/**
+ * The state of a {@link CircuitBreaker}.
+ */
+public enum CircuitState
+{
+    /**
+     * Deliveries are sent as usual.
+     */
+    CLOSED,
+    /**
+     * The host has failed repeatedly; deliveries fail fast without being sent.
+     */
+    OPEN,
+    /**
+     * The host has been failing, and a single probe delivery is being sent to find out whether it has recovered.
+     */
+    HALF_OPEN
+}
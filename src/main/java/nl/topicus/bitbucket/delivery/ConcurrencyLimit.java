@@ -0,0 +1,161 @@
+package nl.topicus.bitbucket.delivery;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Limits the number of requests in flight to a host, adapting the limit to how the host responds.
+ * <p>
+ * The limit follows AIMD: every request which completes in good time, while the limit is actually being used, adds
+ * {@code 1 / limit}, so the limit grows by about one per round of requests. A response which takes more than
+ * {@link #LATENCY_TOLERANCE} times the host's baseline latency cuts the limit by {@link #LATENCY_BACKOFF}, and a
+ * request which fails, times out or is told to back off by {@link #FAILURE_BACKOFF}. The baseline is the lowest
+ * latency seen, drifting slowly towards higher latencies so that it can follow a host which gets slower for good.
+ * <p>
+ * Requests over the limit wait in line, in memory, and are handed out as requests complete. The line is bounded, so
+ * a host which stops responding cannot make requests pile up on the heap; what does not fit is rejected, for the
+ * caller to leave in the {@link WebhookOutbox}.
+ */
+public class ConcurrencyLimit
+{
+    static final double FAILURE_BACKOFF = 0.5;
+    static final double LATENCY_BACKOFF = 0.9;
+    static final double LATENCY_TOLERANCE = 2.0;
+
+    private static final double BASELINE_DRIFT = 0.01;
+
+    private final int maxLimit;
+    private final int maxWaiting;
+    private final Queue<Runnable> waiting = new ArrayDeque<>();
+
+    private double baseline = Double.NaN;
+    private int inFlight;
+    private double limit;
+
+    /**
+     * @param initialLimit the limit to start with
+     * @param maxLimit     the limit never grows beyond this
+     * @param maxWaiting   the maximum number of requests waiting in line
+     */
+    public ConcurrencyLimit(int initialLimit, int maxLimit, int maxWaiting)
+    {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.maxWaiting = Math.max(0, maxWaiting);
+
+        limit = Math.max(1, Math.min(this.maxLimit, initialLimit));
+    }
+
+    /**
+     * Takes a place for a request, or puts the request in line if the limit is reached and the line is not full.
+     * Every place which is taken, now or later, must be given back through {@link #onSuccess}, {@link #onFailure} or
+     * {@link #release}.
+     *
+     * @param request sends the request once it is its turn, if it cannot be sent now
+     * @return {@link Admission#SEND} if the request may be sent now, {@link Admission#WAIT} if it waits in line, or
+     *         {@link Admission#REJECT} if the line is full
+     */
+    public synchronized Admission tryAcquire(Runnable request)
+    {
+        if (inFlight < (int) limit)
+        {
+            inFlight++;
+            return Admission.SEND;
+        }
+        if (waiting.size() >= maxWaiting)
+        {
+            return Admission.REJECT;
+        }
+        waiting.add(request);
+        return Admission.WAIT;
+    }
+
+    /**
+     * Gives back the place of a request which got a response in time.
+     *
+     * @param latency the number of milliseconds it took to get the response
+     * @return the next request in line, which has taken the place, or {@code null} if none is waiting
+     */
+    public synchronized Runnable onSuccess(long latency)
+    {
+        if (Double.isNaN(baseline) || latency < baseline)
+        {
+            baseline = latency;
+        }
+        else
+        {
+            baseline += (latency - baseline) * BASELINE_DRIFT;
+        }
+
+        if (latency > baseline * LATENCY_TOLERANCE)
+        {
+            decrease(LATENCY_BACKOFF);
+        }
+        else if (inFlight * 2 >= (int) limit)
+        {
+            // Only grow while the limit is being used, so that a quiet host does not build up a limit it never tried
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+        return next();
+    }
+
+    /**
+     * Gives back the place of a request which failed, timed out or was told to back off.
+     *
+     * @return the next request in line, which has taken the place, or {@code null} if none is waiting
+     */
+    public synchronized Runnable onFailure()
+    {
+        decrease(FAILURE_BACKOFF);
+        return next();
+    }
+
+    /**
+     * Gives back the place of a request which was never sent, without changing the limit.
+     *
+     * @return the next request in line, which has taken the place, or {@code null} if none is waiting
+     */
+    public synchronized Runnable release()
+    {
+        return next();
+    }
+
+    /**
+     * @return the number of requests which may currently be in flight at the same time
+     */
+    public synchronized int getLimit()
+    {
+        return (int) limit;
+    }
+
+    /**
+     * @return the number of requests in flight
+     */
+    public synchronized int getInFlight()
+    {
+        return inFlight;
+    }
+
+    /**
+     * @return the number of requests waiting in line
+     */
+    public synchronized int getWaiting()
+    {
+        return waiting.size();
+    }
+
+    private void decrease(double backoff)
+    {
+        limit = Math.max(1.0, limit * backoff);
+    }
+
+    private Runnable next()
+    {
+        inFlight--;
+        if (inFlight < (int) limit && !waiting.isEmpty())
+        {
+            inFlight++;
+            return waiting.poll();
+        }
+        return null;
+    }
+}
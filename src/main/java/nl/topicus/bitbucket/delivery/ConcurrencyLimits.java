@@ -0,0 +1,46 @@
+package nl.topicus.bitbucket.delivery;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The {@link ConcurrencyLimit} of every webhook host.
+ * <p>
+ * Like circuits, limits are kept per host: it is the host which gets overloaded, by the webhooks of every repository
+ * pointing at it together.
+ */
+@Component
+public class ConcurrencyLimits
+{
+    private final int initialLimit;
+    private final ConcurrentMap<String, ConcurrencyLimit> limits = new ConcurrentHashMap<>();
+    private final int maxLimit;
+    private final int maxWaiting;
+
+    @Autowired
+    public ConcurrencyLimits(DeliverySettings settings)
+    {
+        this(settings.getConcurrencyInitialLimit(), settings.getConcurrencyMaxLimit(),
+                settings.getConcurrencyMaxWaiting());
+    }
+
+    ConcurrencyLimits(int initialLimit, int maxLimit, int maxWaiting)
+    {
+        this.initialLimit = initialLimit;
+        this.maxLimit = maxLimit;
+        this.maxWaiting = maxWaiting;
+    }
+
+    /**
+     * @param url the URL of a webhook
+     * @return the concurrency limit of the URL's host
+     */
+    public ConcurrencyLimit get(String url)
+    {
+        return limits.computeIfAbsent(CircuitBreakers.getHost(url),
+                host -> new ConcurrencyLimit(initialLimit, maxLimit, maxWaiting));
+    }
+}
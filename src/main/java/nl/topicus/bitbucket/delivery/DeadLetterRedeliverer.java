@@ -0,0 +1,135 @@
+package nl.topicus.bitbucket.delivery;
+
+import com.atlassian.bitbucket.repository.Repository;
+import nl.topicus.bitbucket.events.EventType;
+import nl.topicus.bitbucket.persistence.WebHookConfiguration;
+import nl.topicus.bitbucket.persistence.WebHookConfigurationDao;
+import nl.topicus.bitbucket.persistence.WebhookDeadLetter;
+import nl.topicus.bitbucket.persistence.WebhookDeadLetterDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends {@link WebhookDeadLetter dead letters} again, once whatever made their webhook fail has been fixed.
+ * <p>
+ * Redelivered dead letters go through the {@link WebhookOutbox} like any new event, so they are retried, and given
+ * up on again, as usual. They are released at the rate of a single {@link RateLimiter} shared by all repositories,
+ * so that replaying the backlog of an outage does not flood a webhook which has only just recovered, or crowd out
+ * new events.
+ */
+@Component
+public class DeadLetterRedeliverer
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeadLetterRedeliverer.class);
+
+    private final WebhookDeadLetterDao deadLetterDao;
+    private final DeliveryExecutor deliveryExecutor;
+    private final DeliveryScheduler deliveryScheduler;
+    private final WebhookOutbox outbox;
+    private final RateLimiter rateLimiter;
+    private final WebHookConfigurationDao webHookConfigurationDao;
+
+    @Autowired
+    public DeadLetterRedeliverer(WebhookDeadLetterDao deadLetterDao,
+                                 DeliveryExecutor deliveryExecutor,
+                                 DeliveryScheduler deliveryScheduler,
+                                 DeliverySettings settings,
+                                 WebHookConfigurationDao webHookConfigurationDao,
+                                 WebhookOutbox outbox)
+    {
+        this.deadLetterDao = deadLetterDao;
+        this.deliveryExecutor = deliveryExecutor;
+        this.deliveryScheduler = deliveryScheduler;
+        this.webHookConfigurationDao = webHookConfigurationDao;
+        this.outbox = outbox;
+
+        rateLimiter = new RateLimiter(settings.getRedeliveryRate(), settings.getRedeliveryBurst());
+    }
+
+    /**
+     * Queues the dead letters to be sent again. Each dead letter is read, body and all, and deleted when its turn
+     * comes, just before it is handed to the outbox, so a dead letter which is queued twice is still only sent once,
+     * and a large batch does not hold all of its bodies while it waits.
+     *
+     * @param repo        the repository the dead letters belong to
+     * @param deadLetters the dead letters to send
+     * @return the number of dead letters queued; dead letters whose webhook has been deleted or disabled since are
+     *         skipped, and kept
+     */
+    public int redeliver(Repository repo, WebhookDeadLetter[] deadLetters)
+    {
+        int queued = 0;
+        long now = System.nanoTime();
+        for (WebhookDeadLetter deadLetter : deadLetters)
+        {
+            EventType eventType = getEventType(repo, deadLetter);
+            WebHookConfiguration configuration = eventType == null ? null : getConfiguration(repo, deadLetter);
+            if (configuration == null)
+            {
+                continue;
+            }
+
+            int id = deadLetter.getID();
+            long delay = TimeUnit.NANOSECONDS.toMillis(rateLimiter.reserve(now) + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+            if (!deliveryScheduler.schedule(() -> release(id, repo, configuration, eventType), delay))
+            {
+                break;
+            }
+            queued++;
+        }
+        return queued;
+    }
+
+    private void release(int id, Repository repo, WebHookConfiguration configuration, EventType eventType)
+    {
+        try
+        {
+            // A follow-up is never discarded because the executor is busy, unlike new work
+            deliveryExecutor.executeFollowUp(() -> {
+                WebhookDeadLetter deadLetter = deadLetterDao.getDeadLetterWithBody(id);
+                if (deadLetter != null && deadLetterDao.deleteDeadLetters(Collections.singletonList(id)) > 0)
+                {
+                    outbox.add(new WebhookDelivery(repo, configuration, eventType,
+                            new EventPayload(deadLetter.getBody()), deadLetter.getCoalescingKey(),
+                            deadLetter.getPullRequestId()));
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            LOGGER.info("[repo: {}]| Webhook delivery is shutting down; dead letter {} is kept", repo, id);
+        }
+    }
+
+    private EventType getEventType(Repository repo, WebhookDeadLetter deadLetter)
+    {
+        try
+        {
+            return EventType.valueOf(deadLetter.getEventType());
+        }
+        catch (IllegalArgumentException e)
+        {
+            LOGGER.warn("[repo: {}]| Cannot redeliver dead letter {} with unknown event type {}", repo,
+                    deadLetter.getID(), deadLetter.getEventType());
+            return null;
+        }
+    }
+
+    private WebHookConfiguration getConfiguration(Repository repo, WebhookDeadLetter deadLetter)
+    {
+        WebHookConfiguration configuration = webHookConfigurationDao.getWebHookConfiguration(
+                String.valueOf(deadLetter.getConfigurationId()));
+        if (configuration == null || !configuration.isEnabled() ||
+                !configuration.getRepositoryId().equals(repo.getId()))
+        {
+            return null;
+        }
+        return configuration;
+    }
+}
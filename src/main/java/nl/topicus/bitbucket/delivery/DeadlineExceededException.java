@@ -0,0 +1,14 @@
+package nl.topicus.bitbucket.delivery;
+
+import java.io.IOException;
+
+/**
+ * Fails a delivery which was aborted because it did not complete within its deadline.
+ */
+public class DeadlineExceededException extends IOException
+{
+    public DeadlineExceededException(String host, long deadline)
+    {
+        super("The request to " + host + " did not complete within " + deadline + " ms");
+    }
+}
@@ -0,0 +1,118 @@
+package nl.topicus.bitbucket.delivery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * Collects deliveries to webhooks which accept batches, so that they can be sent in a single request.
+ * <p>
+ * Deliveries are grouped by webhook and by the {@link nl.topicus.bitbucket.events.EventType#getHeaderValue() event
+ * key} they are sent with, since a request only carries one. A batch is passed on once it is full, or once the window
+ * which started with its first delivery has passed, whichever comes first.
+ */
+public class DeliveryBatcher
+{
+    private final ConcurrentMap<String, Batch> batches = new ConcurrentHashMap<>();
+    private final DeliveryScheduler scheduler;
+    private final Consumer<List<WebhookDelivery>> sink;
+    private final int size;
+    private final long window;
+
+    /**
+     * @param scheduler the scheduler used to close batches once their window has passed
+     * @param size      the maximum number of deliveries in a batch
+     * @param window    the number of milliseconds a batch collects deliveries for
+     * @param sink      receives each closed batch, which should be sent; it is called from the scheduler thread
+     *                  when a window passes, and should therefore hand the batch off rather than send it itself
+     */
+    public DeliveryBatcher(DeliveryScheduler scheduler, int size, long window, Consumer<List<WebhookDelivery>> sink)
+    {
+        this.scheduler = scheduler;
+        this.sink = sink;
+        this.size = size;
+        this.window = window;
+    }
+
+    /**
+     * Adds a delivery to the open batch for its webhook and event key, opening a new batch if there is none.
+     *
+     * @param delivery the delivery to add
+     */
+    public void add(WebhookDelivery delivery)
+    {
+        String key = delivery.getConfiguration().getID() + ":" + delivery.getEventType().getHeaderValue();
+        while (true)
+        {
+            Batch batch = batches.computeIfAbsent(key, Batch::new);
+            List<WebhookDelivery> full;
+            boolean first;
+            synchronized (batch)
+            {
+                if (batch.closed)
+                {
+                    // Lost a race with the batch being passed on; the next one is opened on the next pass
+                    continue;
+                }
+                batch.deliveries.add(delivery);
+                first = batch.deliveries.size() == 1;
+                full = batch.deliveries.size() >= size ? close(batch) : null;
+            }
+
+            if (full != null)
+            {
+                sink.accept(full);
+            }
+            else if (first && !scheduler.schedule(() -> flush(batch), window))
+            {
+                // Shutting down; do not hold on to deliveries nobody will come back for
+                flush(batch);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Passes on every open batch straight away.
+     */
+    public void flushAll()
+    {
+        batches.values().forEach(this::flush);
+    }
+
+    private void flush(Batch batch)
+    {
+        List<WebhookDelivery> deliveries;
+        synchronized (batch)
+        {
+            if (batch.closed)
+            {
+                return;
+            }
+            deliveries = close(batch);
+        }
+        sink.accept(deliveries);
+    }
+
+    private List<WebhookDelivery> close(Batch batch)
+    {
+        batch.closed = true;
+        batches.remove(batch.key, batch);
+        return batch.deliveries;
+    }
+
+    private static class Batch
+    {
+        private final List<WebhookDelivery> deliveries = new ArrayList<>();
+        private final String key;
+
+        private boolean closed;
+
+        private Batch(String key)
+        {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package nl.topicus.bitbucket.delivery;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plugin-owned worker pool for webhook work.
+ * <p>
+ * Webhooks used to be delivered on the {@code ExecutorService} shared with Bitbucket itself, which meant slow
+ * webhook endpoints could starve Bitbucket's own asynchronous work. This executor has its own threads and a bounded
+ * queue, so webhook traffic only ever competes with other webhook traffic.
+ * <p>
+ * Only new work counts towards the queue size, and is subject to the {@link RejectionPolicy}. Work which continues
+ * something already accepted, such as a request which waited for its turn, is submitted through
+ * {@link #executeFollowUp}: it is always queued, as dropping it would strand whatever it was to continue. There is
+ * never more of it than there is accepted work, so it does not need a bound of its own.
+ */
+@Component
+public class DeliveryExecutor implements Executor, DisposableBean
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeliveryExecutor.class);
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final int queueSize;
+    private final long shutdownTimeout;
+
+    @Autowired
+    public DeliveryExecutor(DeliverySettings settings)
+    {
+        this(settings.getThreads(), settings.getQueueSize(), settings.getRejectionPolicy(),
+                settings.getShutdownTimeout());
+    }
+
+    DeliveryExecutor(int threads, int queueSize, RejectionPolicy rejectionPolicy, long shutdownTimeout)
+    {
+        this.queueSize = queueSize;
+        this.shutdownTimeout = shutdownTimeout;
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new TaskQueue(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("webhooks-delivery-%d").build(),
+                createRejectionHandler(rejectionPolicy));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues new work, or applies the {@link RejectionPolicy} if the queue is full. Once the executor is shut down,
+     * the task is discarded.
+     */
+    @Override
+    public void execute(Runnable task)
+    {
+        executor.execute(new NewTask(task));
+    }
+
+    /**
+     * Queues work which continues something already accepted. It is never rejected because the queue is full, nor
+     * run on the calling thread, which may be an I/O thread.
+     *
+     * @throws RejectedExecutionException if the executor has been shut down
+     */
+    public void executeFollowUp(Runnable task)
+    {
+        executor.execute(() -> run(task));
+    }
+
+    @Override
+    public void destroy()
+    {
+        shutdown();
+    }
+
+    /**
+     * Stops accepting new tasks and waits for the queued ones to be processed. Tasks which are still queued after
+     * the configured timeout are discarded. Calling this more than once is harmless.
+     */
+    public void shutdown()
+    {
+        if (executor.isShutdown())
+        {
+            return;
+        }
+
+        executor.shutdown();
+        try
+        {
+            if (executor.awaitTermination(shutdownTimeout, TimeUnit.SECONDS))
+            {
+                return;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        List<Runnable> abandoned = executor.shutdownNow();
+        LOGGER.warn("Webhook delivery did not drain within {} seconds; {} queued tasks were discarded",
+                shutdownTimeout, abandoned.size());
+    }
+
+    private static RejectedExecutionHandler createRejectionHandler(RejectionPolicy rejectionPolicy)
+    {
+        RejectedExecutionHandler handler;
+        if (rejectionPolicy == RejectionPolicy.DISCARD_OLDEST)
+        {
+            handler = (task, executor) -> {
+                LOGGER.warn("Webhook delivery queue is full; discarding the oldest queued task");
+                discardOldest(executor);
+                executor.execute(task);
+            };
+        }
+        else
+        {
+            handler = (task, executor) -> {
+                LOGGER.warn("Webhook delivery queue is full ({} tasks waiting); the event will not be delivered",
+                        executor.getQueue().size());
+                ((NewTask) task).discarded();
+            };
+        }
+        return (task, executor) -> {
+            if (!(task instanceof NewTask))
+            {
+                // Follow-ups are only rejected once the executor is shut down
+                throw new RejectedExecutionException("Webhook delivery has been shut down");
+            }
+            if (executor.isShutdown())
+            {
+                LOGGER.info("Webhook delivery has been shut down; the event will not be delivered");
+                ((NewTask) task).discarded();
+                return;
+            }
+            handler.rejectedExecution(task, executor);
+        };
+    }
+
+    /**
+     * Removes the oldest queued new task; follow-ups are never discarded.
+     */
+    private static void discardOldest(ThreadPoolExecutor executor)
+    {
+        for (Runnable task : executor.getQueue())
+        {
+            if (task instanceof NewTask && executor.remove(task))
+            {
+                ((NewTask) task).discarded();
+                return;
+            }
+        }
+    }
+
+    private static void run(Runnable task)
+    {
+        try
+        {
+            task.run();
+        }
+        catch (RuntimeException e)
+        {
+            LOGGER.error("Unexpected failure while processing webhooks", e);
+        }
+    }
+
+    /**
+     * New work, which counts towards the queue size while it is queued.
+     */
+    private final class NewTask implements Runnable
+    {
+        private final Runnable task;
+
+        private volatile boolean counted;
+
+        private NewTask(Runnable task)
+        {
+            this.task = task;
+        }
+
+        @Override
+        public void run()
+        {
+            uncount();
+            DeliveryExecutor.run(task);
+        }
+
+        private void discarded()
+        {
+            if (task instanceof Discardable)
+            {
+                ((Discardable) task).discarded();
+            }
+        }
+
+        private boolean count()
+        {
+            if (queued.incrementAndGet() > queueSize)
+            {
+                queued.decrementAndGet();
+                return false;
+            }
+            counted = true;
+            return true;
+        }
+
+        private void uncount()
+        {
+            if (counted)
+            {
+                counted = false;
+                queued.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * New work which something else waits for, and so has to be told when it is discarded rather than run.
+     */
+    interface Discardable extends Runnable
+    {
+        void discarded();
+    }
+
+    /**
+     * Holds at most {@code queueSize} new tasks, and any number of follow-ups.
+     */
+    private static final class TaskQueue extends LinkedBlockingQueue<Runnable>
+    {
+        @Override
+        public boolean offer(Runnable task)
+        {
+            return (!(task instanceof NewTask) || ((NewTask) task).count()) && super.offer(task);
+        }
+
+        @Override
+        public boolean remove(Object task)
+        {
+            if (!super.remove(task))
+            {
+                return false;
+            }
+            if (task instanceof NewTask)
+            {
+                ((NewTask) task).uncount();
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package nl.topicus.bitbucket.delivery;
+
+import nl.topicus.bitbucket.events.EventType;
+
+/**
+ * The lanes of the {@link DeliveryQueue}. Each lane is served in proportion to its weight, so events someone is
+ * waiting for are not held up behind a bulk update of refs.
+ */
+public enum DeliveryLane
+{
+    /**
+     * Pull request and build status events, which usually have a person or a build waiting on them.
+     */
+    INTERACTIVE(8),
+    /**
+     * Pushes, and branches being created or deleted.
+     */
+    PUSH(2),
+    /**
+     * Tags being created, which tend to come in bulk, for instance when a repository is migrated.
+     */
+    TAG(1);
+
+    private final int defaultWeight;
+
+    DeliveryLane(int defaultWeight)
+    {
+        this.defaultWeight = defaultWeight;
+    }
+
+    public int getDefaultWeight()
+    {
+        return defaultWeight;
+    }
+
+    public static DeliveryLane forEventType(EventType eventType)
+    {
+        switch (eventType)
+        {
+            case REPO_PUSH:
+            case BRANCH_CREATED:
+            case BRANCH_DELETED:
+                return PUSH;
+            case TAG_CREATED:
+                return TAG;
+            default:
+                return INTERACTIVE;
+        }
+    }
+}
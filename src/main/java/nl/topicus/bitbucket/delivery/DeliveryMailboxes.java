@@ -0,0 +1,276 @@
+package nl.topicus.bitbucket.delivery;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Sends the deliveries with the same key one after the other, while deliveries with different keys are sent in
+ * parallel.
+ * <p>
+ * Every key with a delivery in progress has a mailbox, holding the delivery being sent and those waiting behind it.
+ * Deliveries are submitted in the order they were written to the {@link WebhookOutbox}, by its single writer thread,
+ * before they are queued, so the mailbox decides the order rather than whichever delivery thread gets to it first. A
+ * delivery holds its mailbox until it is settled: delivered, or given up on. Retries keep holding it, so a later
+ * delivery cannot overtake an earlier one which is waiting to be retried.
+ * <p>
+ * A delivery which is spilled, and left in the outbox to be resumed later, takes the deliveries waiting behind it
+ * with it. Later deliveries of its key follow it into the outbox, and resumed ones are only let through in the order
+ * they were written, until all of them are back. At most {@code capacity} deliveries wait in a mailbox; the rest are
+ * spilled the same way. Mailboxes are only updated through the atomic operations of a {@link ConcurrentHashMap},
+ * which lock a single bin, so there is no lock shared by all keys.
+ * <p>
+ * Deliveries which have to be sent in order never wait in the {@link DeliveryQueue} together, so they cannot be
+ * coalesced there. When coalescing, a delivery which has to wait in its mailbox replaces a waiting delivery it
+ * supersedes instead. The replaced delivery is taken out of the line, and the new one joins at the back, so it does
+ * not overtake any of the deliveries in between.
+ */
+public class DeliveryMailboxes
+{
+    private final int capacity;
+    private final Function<WebhookDelivery, Object> keys;
+    private final ConcurrentMap<Object, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final long resumeTimeout;
+    private final Consumer<WebhookDelivery> superseded;
+
+    /**
+     * @param keys          gives the key of a delivery, or {@code null} for a delivery which may be sent at any time
+     * @param capacity      the maximum number of deliveries waiting in each mailbox
+     * @param resumeTimeout the number of milliseconds after which a spilled delivery which has not been resumed is
+     *                      no longer waited for, as it was resumed by another node, or discarded
+     */
+    public DeliveryMailboxes(Function<WebhookDelivery, Object> keys, int capacity, long resumeTimeout)
+    {
+        this(keys, capacity, resumeTimeout, null);
+    }
+
+    /**
+     * @param keys          gives the key of a delivery, or {@code null} for a delivery which may be sent at any time
+     * @param capacity      the maximum number of deliveries waiting in each mailbox
+     * @param resumeTimeout the number of milliseconds after which a spilled delivery which has not been resumed is
+     *                      no longer waited for, as it was resumed by another node, or discarded
+     * @param superseded    is told about a waiting delivery which was replaced by a newer one, or {@code null} to
+     *                      never replace waiting deliveries
+     */
+    public DeliveryMailboxes(Function<WebhookDelivery, Object> keys, int capacity, long resumeTimeout,
+                             Consumer<WebhookDelivery> superseded)
+    {
+        this.capacity = Math.max(1, capacity);
+        this.keys = keys;
+        this.resumeTimeout = resumeTimeout;
+        this.superseded = superseded;
+    }
+
+    /**
+     * Puts the delivery in the mailbox of its key. Deliveries must be submitted in the order they were written to
+     * the outbox.
+     *
+     * @param delivery the delivery to send
+     * @return {@link Admission#SEND} if the delivery may be sent now; {@link Admission#WAIT} if it waits for an
+     *         earlier delivery, possibly in place of one it supersedes, and will be returned by {@link #settled} once
+     *         that is done; or
+     *         {@link Admission#REJECT} if it has to be spilled, as an earlier delivery of its key was
+     */
+    public Admission submit(WebhookDelivery delivery)
+    {
+        Object key = keys.apply(delivery);
+        if (key == null)
+        {
+            return Admission.SEND;
+        }
+
+        long now = System.currentTimeMillis();
+        Admission[] admission = new Admission[1];
+        WebhookDelivery[] replaced = new WebhookDelivery[1];
+        mailboxes.compute(key, (k, mailbox) -> {
+            if (mailbox == null)
+            {
+                admission[0] = Admission.SEND;
+                return new Mailbox(delivery);
+            }
+
+            mailbox.forgetSpilled(now);
+            if (!mailbox.spilled.isEmpty())
+            {
+                // Only the earliest delivery left in the outbox may go; anything later waits there for it. Resumed
+                // deliveries come back in the order they were written, but not necessarily all at once
+                Integer id = delivery.getOutboxId();
+                Integer first = mailbox.spilled.firstKey();
+                if (!delivery.isRecovered() || id == null || id > first)
+                {
+                    admission[0] = mailbox.reject(delivery, now);
+                    return mailbox;
+                }
+                mailbox.spilled.remove(id);
+            }
+
+            if (mailbox.current == null)
+            {
+                mailbox.current = delivery;
+                admission[0] = Admission.SEND;
+                return mailbox;
+            }
+
+            replaced[0] = superseded == null ? null : mailbox.removeSuperseded(delivery);
+            if (replaced[0] == null && mailbox.waiting.size() >= capacity)
+            {
+                admission[0] = mailbox.reject(delivery, now);
+            }
+            else
+            {
+                mailbox.waiting.add(delivery);
+                admission[0] = Admission.WAIT;
+            }
+            return mailbox;
+        });
+
+        if (replaced[0] != null)
+        {
+            superseded.accept(replaced[0]);
+        }
+        return admission[0];
+    }
+
+    /**
+     * Releases the mailbox held by the delivery, if it holds one, to the next delivery waiting in it.
+     *
+     * @param delivery a delivery which was delivered, or given up on
+     * @return the next delivery of the same key, which may now be sent, or {@code null} if none is waiting
+     */
+    public WebhookDelivery settled(WebhookDelivery delivery)
+    {
+        Object key = keys.apply(delivery);
+        if (key == null)
+        {
+            return null;
+        }
+
+        WebhookDelivery[] next = new WebhookDelivery[1];
+        mailboxes.computeIfPresent(key, (k, mailbox) -> {
+            // A delivery which was dropped before it was sent never held the mailbox
+            if (mailbox.current != delivery)
+            {
+                return mailbox;
+            }
+            mailbox.current = mailbox.waiting.poll();
+            next[0] = mailbox.current;
+            return mailbox.isEmpty() ? null : mailbox;
+        });
+        return next[0];
+    }
+
+    /**
+     * Releases the mailbox held by a delivery which was left in the outbox, without letting the deliveries waiting
+     * behind it go ahead. Until the delivery is resumed, later deliveries of its key are rejected by {@link #submit}.
+     *
+     * @param delivery a delivery which was spilled
+     * @return the deliveries which were waiting behind it, in order, which have to be spilled as well
+     */
+    public List<WebhookDelivery> spilled(WebhookDelivery delivery)
+    {
+        Object key = keys.apply(delivery);
+        if (key == null)
+        {
+            return Collections.emptyList();
+        }
+
+        long now = System.currentTimeMillis();
+        List<WebhookDelivery> held = new ArrayList<>();
+        mailboxes.computeIfPresent(key, (k, mailbox) -> {
+            // Deliveries waiting behind another one are spilled along with it, and have been accounted for
+            if (mailbox.current != delivery)
+            {
+                return mailbox;
+            }
+            mailbox.current = null;
+            mailbox.reject(delivery, now);
+            for (WebhookDelivery waiting : mailbox.waiting)
+            {
+                mailbox.reject(waiting, now);
+                held.add(waiting);
+            }
+            mailbox.waiting.clear();
+            return mailbox.isEmpty() ? null : mailbox;
+        });
+        return held;
+    }
+
+    /**
+     * @return the number of keys with a delivery in progress, or left in the outbox
+     */
+    public int size()
+    {
+        return mailboxes.size();
+    }
+
+    private class Mailbox
+    {
+        /**
+         * The outbox IDs of the deliveries of the key which were spilled and have not been resumed yet, with the time
+         * after which each of them is no longer waited for.
+         */
+        private final TreeMap<Integer, Long> spilled = new TreeMap<>();
+        private final Queue<WebhookDelivery> waiting = new ArrayDeque<>();
+
+        private WebhookDelivery current;
+
+        private Mailbox(WebhookDelivery current)
+        {
+            this.current = current;
+        }
+
+        private boolean isEmpty()
+        {
+            return current == null && spilled.isEmpty();
+        }
+
+        private void forgetSpilled(long now)
+        {
+            while (!spilled.isEmpty() && spilled.firstEntry().getValue() <= now)
+            {
+                spilled.pollFirstEntry();
+            }
+        }
+
+        /**
+         * Takes the waiting delivery which is superseded by the new one out of the line.
+         *
+         * @return the superseded delivery, or {@code null} if none is waiting
+         */
+        private WebhookDelivery removeSuperseded(WebhookDelivery delivery)
+        {
+            for (Iterator<WebhookDelivery> it = waiting.iterator(); it.hasNext(); )
+            {
+                WebhookDelivery queued = it.next();
+                if (queued.isSupersededBy(delivery))
+                {
+                    it.remove();
+                    return queued;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Keeps track of a delivery of the key leaving for the outbox, so that later ones follow it there.
+         */
+        private Admission reject(WebhookDelivery delivery, long now)
+        {
+            // A delivery which was never written to the outbox cannot be spilled, so there is nothing to wait for
+            Integer id = delivery.getOutboxId();
+            if (id != null)
+            {
+                spilled.put(id, now + resumeTimeout);
+            }
+            return Admission.REJECT;
+        }
+    }
+}
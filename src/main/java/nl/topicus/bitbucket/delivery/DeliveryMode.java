@@ -0,0 +1,17 @@
+package nl.topicus.bitbucket.delivery;
+
+/**
+ * How webhook requests are sent.
+ */
+public enum DeliveryMode
+{
+    /**
+     * Each request occupies a delivery thread until its response has been read.
+     */
+    BLOCKING,
+    /**
+     * Requests are handed to a non-blocking client whose I/O reactor threads multiplex every connection, so a
+     * handful of threads can keep many deliveries in flight.
+     */
+    ASYNC
+}
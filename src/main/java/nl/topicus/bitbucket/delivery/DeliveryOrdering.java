@@ -0,0 +1,22 @@
+package nl.topicus.bitbucket.delivery;
+
+/**
+ * Which deliveries to the same webhook are sent one after the other, in the order they were written to the
+ * {@link WebhookOutbox}, rather than in parallel.
+ */
+public enum DeliveryOrdering
+{
+    /**
+     * Deliveries are sent in parallel, so a later event may reach the webhook first.
+     */
+    NONE,
+    /**
+     * Deliveries about the same pull request are sent in order; other deliveries of the same repository are sent in
+     * order as well, but independently of those about pull requests.
+     */
+    PULL_REQUEST,
+    /**
+     * All deliveries of the same repository are sent in order.
+     */
+    REPOSITORY
+}
@@ -0,0 +1,507 @@
+package nl.topicus.bitbucket.delivery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Bounds the number of deliveries waiting in memory for a delivery thread, and decides which of them goes next.
+ * <p>
+ * Deliveries are queued in the {@link DeliveryLane} of their event type, in the order they arrive. Each delivery
+ * adds a task to the executor, which takes the next delivery from the lanes in proportion to their weights, using
+ * smooth weighted round robin; a lane without waiting deliveries is skipped. Within a lane, the repositories (or
+ * projects, see {@link FairnessKey}) with waiting deliveries take turns by deficit round robin: in its turn each may
+ * have deliveries sent until their bodies add up to the quantum, and what it has left is carried over to its next
+ * turn while it has deliveries waiting. A repository with many, or large, events so gets its share of the delivery
+ * threads, but cannot starve the others.
+ * <p>
+ * Once {@code capacity} deliveries are waiting in a lane, the {@link OverflowPolicy} decides what happens to the next
+ * one, so a webhook which stops responding cannot make deliveries pile up on the heap, and a flood in one lane does
+ * not crowd out the others. Since every delivery has already been written to the {@link WebhookOutbox}, a delivery
+ * which does not fit can always be spilled: it is left on disk, to be picked up again later by the outbox recovery.
+ * <p>
+ * Deliveries are added by the outbox writer thread, which must never wait: every webhook's events are written to the
+ * outbox by it. Under {@link OverflowPolicy#BLOCK} a delivery therefore waits for room in a line of its own, of at
+ * most {@code capacity} deliveries per lane, rather than on the thread which added it. Room which is made goes to the
+ * deliveries in that line first, in the order they came.
+ */
+public class DeliveryQueue
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeliveryQueue.class);
+
+    private final long blockTimeout;
+    private final AtomicLong blocked = new AtomicLong();
+    private final int capacity;
+    private final AtomicLong coalesced = new AtomicLong();
+    private final Consumer<WebhookDelivery> deliverer;
+    private final Consumer<WebhookDelivery> dropper;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Executor executor;
+    private final FairnessKey fairnessKey;
+    private final WebhookOutbox outbox;
+    private final Map<DeliveryLane, Lane> lanes = new EnumMap<>(DeliveryLane.class);
+    private final OverflowPolicy policy;
+    private final int quantum;
+    private final AtomicLong spilled = new AtomicLong();
+    private final Consumer<WebhookDelivery> spiller;
+
+    /**
+     * @param executor     runs the deliveries; it must not discard tasks, as a delivery waits for its task while
+     *                     holding a place in the capacity, but may reject them by throwing a
+     *                     {@link RejectedExecutionException}
+     * @param outbox       holds the deliveries which are spilled
+     * @param capacity     the maximum number of deliveries waiting for a delivery thread, in each lane
+     * @param weights      the weight of each lane
+     * @param fairnessKey  what takes turns within a lane
+     * @param quantum      the number of bytes of event bodies sent in a turn
+     * @param policy       what to do with a delivery once {@code capacity} are waiting in its lane
+     * @param blockTimeout the number of milliseconds a delivery may wait for room under {@link OverflowPolicy#BLOCK}
+     * @param deliverer    sends a delivery, called on the executor
+     * @param dropper      gives up on a delivery which is dropped
+     * @param spiller      is told about a delivery once it has been left in the outbox
+     */
+    public DeliveryQueue(Executor executor, WebhookOutbox outbox, int capacity, Map<DeliveryLane, Integer> weights,
+                         FairnessKey fairnessKey, int quantum, OverflowPolicy policy, long blockTimeout,
+                         Consumer<WebhookDelivery> deliverer, Consumer<WebhookDelivery> dropper,
+                         Consumer<WebhookDelivery> spiller)
+    {
+        this.blockTimeout = blockTimeout;
+        this.capacity = capacity;
+        this.deliverer = deliverer;
+        this.dropper = dropper;
+        this.executor = executor;
+        this.fairnessKey = fairnessKey;
+        this.outbox = outbox;
+        this.policy = policy;
+        this.quantum = Math.max(1, quantum);
+        this.spiller = spiller;
+
+        for (DeliveryLane lane : DeliveryLane.values())
+        {
+            lanes.put(lane, new Lane(capacity, Math.max(1, weights.getOrDefault(lane, lane.getDefaultWeight()))));
+        }
+    }
+
+    /**
+     * Queues a delivery to be sent, unless the queue is full and the overflow policy decides otherwise.
+     *
+     * @param delivery the delivery to queue
+     */
+    public void add(WebhookDelivery delivery)
+    {
+        Lane lane = lanes.get(DeliveryLane.forEventType(delivery.getEventType()));
+        if (lane.permits.tryAcquire())
+        {
+            enqueue(lane, delivery);
+            return;
+        }
+
+        switch (policy)
+        {
+            case BLOCK:
+                if (block(lane, delivery))
+                {
+                    blocked.incrementAndGet();
+                    return;
+                }
+                break;
+            case DROP_OLDEST:
+                WebhookDelivery oldest = replace(lane, queued ->
+                        queued.getConfiguration().getID() == delivery.getConfiguration().getID(), delivery);
+                if (oldest != null)
+                {
+                    dropped.incrementAndGet();
+                    LOGGER.warn("[repo: {}]| Webhook delivery queue is full; dropped the oldest delivery queued for " +
+                            "webhook [{}]", oldest.getRepository(), oldest.getConfiguration().getTitle());
+                    dropper.accept(oldest);
+                    return;
+                }
+                break;
+            case COALESCE:
+                WebhookDelivery superseded = replace(lane, queued -> queued.isSupersededBy(delivery), delivery);
+                if (superseded != null)
+                {
+                    coalesced(superseded);
+                    return;
+                }
+                break;
+        }
+        spill(delivery);
+    }
+
+    /**
+     * @return the number of deliveries waiting for a delivery thread
+     */
+    public int getDepth()
+    {
+        int depth = 0;
+        for (DeliveryLane lane : DeliveryLane.values())
+        {
+            depth += getDepth(lane);
+        }
+        return depth;
+    }
+
+    /**
+     * @return the number of deliveries waiting for a delivery thread in the lane
+     */
+    public int getDepth(DeliveryLane lane)
+    {
+        return capacity - lanes.get(lane).permits.availablePermits();
+    }
+
+    /**
+     * @return the number of deliveries which may wait in each lane
+     */
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public OverflowPolicy getPolicy()
+    {
+        return policy;
+    }
+
+    /**
+     * @return the number of deliveries which had to wait for room, since the plugin started
+     */
+    public long getBlocked()
+    {
+        return blocked.get();
+    }
+
+    /**
+     * @return the number of deliveries replaced by a newer one, since the plugin started
+     */
+    public long getCoalesced()
+    {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of deliveries given up on to make room, since the plugin started
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of deliveries left in the outbox for lack of room, since the plugin started
+     */
+    public long getSpilled()
+    {
+        return spilled.get();
+    }
+
+    private void deliverNext()
+    {
+        WebhookDelivery delivery = pollNext();
+        if (policy == OverflowPolicy.BLOCK)
+        {
+            lanes.values().forEach(this::unblock);
+        }
+        if (delivery != null)
+        {
+            deliverer.accept(delivery);
+        }
+    }
+
+    /**
+     * Lets the delivery wait for room in the lane, unless too many are waiting already.
+     *
+     * @return {@code false} if the delivery cannot wait
+     */
+    private boolean block(Lane lane, WebhookDelivery delivery)
+    {
+        synchronized (this)
+        {
+            if (lane.blocked.size() >= capacity)
+            {
+                return false;
+            }
+            lane.blocked.addLast(new Blocked(delivery, System.currentTimeMillis() + blockTimeout));
+        }
+        // Room may have been made before the delivery started waiting, and nothing else would hand it over
+        unblock(lane);
+        return true;
+    }
+
+    /**
+     * Hands the room there is in the lane to the deliveries waiting for it, and spills those which waited too long.
+     */
+    private void unblock(Lane lane)
+    {
+        while (true)
+        {
+            Blocked next;
+            boolean expired;
+            synchronized (this)
+            {
+                next = lane.blocked.peekFirst();
+                if (next == null)
+                {
+                    return;
+                }
+                expired = next.deadline < System.currentTimeMillis();
+                if (!expired && !lane.permits.tryAcquire())
+                {
+                    return;
+                }
+                lane.blocked.pollFirst();
+            }
+
+            if (expired)
+            {
+                spill(next.delivery);
+            }
+            else
+            {
+                enqueue(lane, next.delivery);
+            }
+        }
+    }
+
+    private void enqueue(Lane lane, WebhookDelivery delivery)
+    {
+        synchronized (this)
+        {
+            Object key = getFlowKey(delivery);
+            Flow flow = lane.flows.get(key);
+            if (flow == null)
+            {
+                // A repository which had nothing waiting joins at the back, with a full quantum for its first turn
+                flow = new Flow(key);
+                flow.deficit = quantum;
+                lane.flows.put(key, flow);
+                lane.active.addLast(flow);
+            }
+            flow.queue.addLast(delivery);
+        }
+
+        // Outside the lock, as the executor may take its time, or even run the task right away
+        try
+        {
+            executor.execute(this::deliverNext);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // Every waiting delivery needs a task, so one has to go. If another task took this delivery meanwhile,
+            // the next one in line is left without a task instead
+            WebhookDelivery orphan = remove(lane, delivery) ? delivery : pollNext();
+            if (orphan != null)
+            {
+                spill(orphan);
+            }
+        }
+    }
+
+    private synchronized WebhookDelivery pollNext()
+    {
+        // Smooth weighted round robin: every waiting lane earns its weight, the lane with the most credit goes next
+        // and pays for it with the total weight of the waiting lanes. Over time each lane is served in proportion
+        // to its weight, with the turns of the heavier lanes spread out rather than bunched together
+        Lane next = null;
+        int totalWeight = 0;
+        for (Lane lane : lanes.values())
+        {
+            if (lane.active.isEmpty())
+            {
+                continue;
+            }
+            lane.credit += lane.weight;
+            totalWeight += lane.weight;
+            if (next == null || lane.credit > next.credit)
+            {
+                next = lane;
+            }
+        }
+        if (next == null)
+        {
+            return null;
+        }
+
+        next.credit -= totalWeight;
+        WebhookDelivery delivery = pollFlow(next);
+        next.permits.release();
+        return delivery;
+    }
+
+    private WebhookDelivery pollFlow(Lane lane)
+    {
+        // Deficit round robin: the repository at the front keeps its turn while it has enough left for its next
+        // delivery. Otherwise its turn is over and it moves to the back, earning another quantum for its next turn
+        Flow flow = lane.active.peekFirst();
+        while (flow.deficit < getCost(flow.queue.peekFirst()))
+        {
+            flow.deficit += quantum;
+            lane.active.addLast(lane.active.pollFirst());
+            flow = lane.active.peekFirst();
+        }
+
+        WebhookDelivery delivery = flow.queue.pollFirst();
+        flow.deficit -= getCost(delivery);
+        if (flow.queue.isEmpty())
+        {
+            // Nothing carries over for a repository which has nothing waiting
+            lane.active.pollFirst();
+            lane.flows.remove(flow.key);
+        }
+        return delivery;
+    }
+
+    /**
+     * Takes a delivery which is still waiting out of the lane, giving back its place.
+     *
+     * @return {@code false} if the delivery was not waiting in the lane
+     */
+    private synchronized boolean remove(Lane lane, WebhookDelivery delivery)
+    {
+        Flow flow = lane.flows.get(getFlowKey(delivery));
+        if (flow == null || !flow.queue.removeLastOccurrence(delivery))
+        {
+            return false;
+        }
+        if (flow.queue.isEmpty())
+        {
+            lane.active.remove(flow);
+            lane.flows.remove(flow.key);
+        }
+        lane.permits.release();
+        return true;
+    }
+
+    private Object getFlowKey(WebhookDelivery delivery)
+    {
+        if (fairnessKey == FairnessKey.PROJECT)
+        {
+            return delivery.getRepository().getProject().getKey();
+        }
+        return delivery.getRepository().getId();
+    }
+
+    private static int getCost(WebhookDelivery delivery)
+    {
+        return Math.max(1, delivery.getPayload().getLength());
+    }
+
+    /**
+     * Swaps the oldest delivery of the repository in the lane matching the predicate for the new one, which takes
+     * over its place in the capacity and its task on the executor.
+     *
+     * @return the replaced delivery, or {@code null} if none matched
+     */
+    private synchronized WebhookDelivery replace(Lane lane, Predicate<WebhookDelivery> predicate,
+                                                 WebhookDelivery delivery)
+    {
+        // Both are sent to the same webhook, so they belong to the same repository
+        Flow flow = lane.flows.get(getFlowKey(delivery));
+        if (flow == null)
+        {
+            return null;
+        }
+        for (WebhookDelivery queued : flow.queue)
+        {
+            if (predicate.test(queued))
+            {
+                flow.queue.remove(queued);
+                flow.queue.addLast(delivery);
+                return queued;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Settles a delivery which was replaced by a newer one before it was sent, here or while it waited for an earlier
+     * delivery of its key.
+     */
+    void coalesced(WebhookDelivery delivery)
+    {
+        coalesced.incrementAndGet();
+        outbox.delivered(delivery);
+    }
+
+    /**
+     * Leaves a delivery which there is no room for in memory in the outbox, or gives up on it if it never made it
+     * into the outbox. This is also used for deliveries which no longer fit after they left the queue.
+     */
+    void spill(WebhookDelivery delivery)
+    {
+        if (outbox.spill(delivery))
+        {
+            spilled.incrementAndGet();
+            LOGGER.debug("[repo: {}]| No room for the webhook delivery; left it in the outbox",
+                    delivery.getRepository());
+            spiller.accept(delivery);
+            return;
+        }
+
+        // The delivery never made it into the outbox, so there is nowhere to spill it to
+        dropped.incrementAndGet();
+        LOGGER.warn("[repo: {}]| No room for the webhook delivery; dropped a delivery to webhook [{}]",
+                delivery.getRepository(), delivery.getConfiguration().getTitle());
+        dropper.accept(delivery);
+    }
+
+    private static class Lane
+    {
+        private final Deque<Flow> active = new ArrayDeque<>();
+        private final Deque<Blocked> blocked = new ArrayDeque<>();
+        private final Map<Object, Flow> flows = new HashMap<>();
+        private final Semaphore permits;
+        private final int weight;
+
+        private int credit;
+
+        private Lane(int capacity, int weight)
+        {
+            this.weight = weight;
+
+            permits = new Semaphore(capacity);
+        }
+    }
+
+    /**
+     * A delivery waiting for room in its lane under {@link OverflowPolicy#BLOCK}.
+     */
+    private static class Blocked
+    {
+        private final long deadline;
+        private final WebhookDelivery delivery;
+
+        private Blocked(WebhookDelivery delivery, long deadline)
+        {
+            this.deadline = deadline;
+            this.delivery = delivery;
+        }
+    }
+
+    /**
+     * The deliveries of a single repository, or project, waiting in a lane.
+     */
+    private static class Flow
+    {
+        private final Object key;
+        private final Deque<WebhookDelivery> queue = new ArrayDeque<>();
+
+        private long deficit;
+
+        private Flow(Object key)
+        {
+            this.key = key;
+        }
+    }
+}
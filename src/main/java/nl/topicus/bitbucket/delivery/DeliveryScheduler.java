@@ -0,0 +1,98 @@
+package nl.topicus.bitbucket.delivery;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds webhook work which has to wait, such as deliveries waiting to be retried.
+ * <p>
+ * Waiting tasks sit in a single delay queue instead of each occupying a sleeping thread. One timer thread hands them
+ * on when they are due, so it must only ever be given short tasks, like resubmitting a delivery to the
+ * {@link DeliveryExecutor}.
+ */
+@Component
+public class DeliveryScheduler implements DisposableBean
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeliveryScheduler.class);
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    public DeliveryScheduler()
+    {
+        executor = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("webhooks-scheduler-%d").build());
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @param task  the task to run
+     * @param delay the number of milliseconds to wait before running it
+     * @return {@code true} if the task was scheduled, or {@code false} if the scheduler has been shut down
+     */
+    public boolean schedule(Runnable task, long delay)
+    {
+        return scheduleCancellable(task, delay) != null;
+    }
+
+    /**
+     * Like {@link #schedule}, for a task which may no longer be needed by the time it is due. A cancelled task is
+     * removed from the queue straight away, so it no longer holds on to what it refers to.
+     *
+     * @param task  the task to run
+     * @param delay the number of milliseconds to wait before running it
+     * @return the future to cancel the task with, or {@code null} if the scheduler has been shut down
+     */
+    public Future<?> scheduleCancellable(Runnable task, long delay)
+    {
+        try
+        {
+            return executor.schedule(() -> {
+                try
+                {
+                    task.run();
+                }
+                catch (RuntimeException e)
+                {
+                    LOGGER.error("Unexpected failure while processing webhooks", e);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e)
+        {
+            return null;
+        }
+    }
+
+    @Override
+    public void destroy()
+    {
+        shutdown();
+    }
+
+    /**
+     * Discards all waiting tasks. Calling this more than once is harmless.
+     */
+    public void shutdown()
+    {
+        if (executor.isShutdown())
+        {
+            return;
+        }
+
+        List<Runnable> discarded = executor.shutdownNow();
+        if (!discarded.isEmpty())
+        {
+            LOGGER.info("Discarded {} scheduled webhook tasks on shutdown", discarded.size());
+        }
+    }
+}
@@ -0,0 +1,413 @@
+package nl.topicus.bitbucket.delivery;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Locale;
+
+/**
+ * Delivery tuning for the plugin, read from {@code bitbucket.properties}.
+ * <p>
+ * All keys are prefixed with {@code plugin.webhooks.}; when a key is not set the default documented on its getter
+ * is used.
+ */
+@Component
+public class DeliverySettings
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeliverySettings.class);
+
+    static final String KEY_THREADS = "plugin.webhooks.delivery.threads";
+    static final String KEY_QUEUE_SIZE = "plugin.webhooks.delivery.queue.size";
+    static final String KEY_REJECTION_POLICY = "plugin.webhooks.delivery.rejection.policy";
+    static final String KEY_SHUTDOWN_TIMEOUT = "plugin.webhooks.delivery.shutdown.timeout";
+    static final String KEY_TIMEOUT = "plugin.webhooks.delivery.timeout";
+    static final String KEY_DEADLINE = "plugin.webhooks.delivery.deadline";
+    static final String KEY_MODE = "plugin.webhooks.delivery.mode";
+    static final String KEY_IO_THREADS = "plugin.webhooks.delivery.io.threads";
+    static final String KEY_BACKLOG_SIZE = "plugin.webhooks.delivery.backlog.size";
+    static final String KEY_OVERFLOW_POLICY = "plugin.webhooks.delivery.overflow.policy";
+    static final String KEY_BLOCK_TIMEOUT = "plugin.webhooks.delivery.block.timeout";
+    static final String KEY_LANE_WEIGHT = "plugin.webhooks.delivery.lane.%s.weight";
+    static final String KEY_ORDERING = "plugin.webhooks.delivery.ordering";
+    static final String KEY_FAIRNESS_KEY = "plugin.webhooks.delivery.fairness.key";
+    static final String KEY_FAIRNESS_QUANTUM = "plugin.webhooks.delivery.fairness.quantum";
+    static final String KEY_POOL_MAX_TOTAL = "plugin.webhooks.delivery.pool.max.total";
+    static final String KEY_POOL_MAX_PER_ROUTE = "plugin.webhooks.delivery.pool.max.per.route";
+    static final String KEY_POOL_IDLE_TIMEOUT = "plugin.webhooks.delivery.pool.idle.timeout";
+    static final String KEY_POOL_KEEP_ALIVE = "plugin.webhooks.delivery.pool.keep.alive";
+    static final String KEY_POOL_VALIDATE_AFTER_INACTIVITY = "plugin.webhooks.delivery.pool.validate.after.inactivity";
+    static final String KEY_OUTBOX_BATCH_SIZE = "plugin.webhooks.outbox.batch.size";
+    static final String KEY_OUTBOX_LEASE = "plugin.webhooks.outbox.lease";
+    static final String KEY_OUTBOX_RECOVERY_INTERVAL = "plugin.webhooks.outbox.recovery.interval";
+    static final String KEY_CONFIG_RECONCILE_INTERVAL = "plugin.webhooks.config.reconcile.interval";
+    static final String KEY_RETRY_INITIAL_DELAY = "plugin.webhooks.retry.initial.delay";
+    static final String KEY_RETRY_MAX_DELAY = "plugin.webhooks.retry.max.delay";
+    static final String KEY_CIRCUIT_FAILURE_THRESHOLD = "plugin.webhooks.circuit.failure.threshold";
+    static final String KEY_CIRCUIT_OPEN_DURATION = "plugin.webhooks.circuit.open.duration";
+    static final String KEY_CONCURRENCY_INITIAL_LIMIT = "plugin.webhooks.concurrency.initial.limit";
+    static final String KEY_CONCURRENCY_MAX_LIMIT = "plugin.webhooks.concurrency.max.limit";
+    static final String KEY_CONCURRENCY_MAX_WAITING = "plugin.webhooks.concurrency.max.waiting";
+    static final String KEY_HOST_RATE_LIMIT = "plugin.webhooks.host.rate.limit";
+    static final String KEY_HOST_RATE_BURST = "plugin.webhooks.host.rate.burst";
+    static final String KEY_BATCH_SIZE = "plugin.webhooks.batch.size";
+    static final String KEY_BATCH_WINDOW = "plugin.webhooks.batch.window";
+    static final String KEY_COALESCE_WINDOW = "plugin.webhooks.coalesce.window";
+    static final String KEY_REDELIVERY_RATE = "plugin.webhooks.redelivery.rate";
+    static final String KEY_REDELIVERY_BURST = "plugin.webhooks.redelivery.burst";
+
+    private final ApplicationPropertiesService propertiesService;
+
+    @Autowired
+    public DeliverySettings(@ComponentImport ApplicationPropertiesService propertiesService)
+    {
+        this.propertiesService = propertiesService;
+    }
+
+    /**
+     * @return the number of worker threads delivering webhooks, 4 by default
+     */
+    public int getThreads()
+    {
+        return Math.max(1, propertiesService.getPluginProperty(KEY_THREADS, 4));
+    }
+
+    /**
+     * @return the number of tasks which may wait for a worker thread, 1000 by default
+     */
+    public int getQueueSize()
+    {
+        return Math.max(1, propertiesService.getPluginProperty(KEY_QUEUE_SIZE, 1000));
+    }
+
+    /**
+     * @return what to do with tasks when the queue is full, {@link RejectionPolicy#DISCARD} by default
+     */
+    public RejectionPolicy getRejectionPolicy()
+    {
+        return getEnum(KEY_REJECTION_POLICY, RejectionPolicy.class, RejectionPolicy.DISCARD);
+    }
+
+    /**
+     * @return the number of seconds to wait for queued tasks to drain when the plugin stops, 30 by default
+     */
+    public long getShutdownTimeout()
+    {
+        return Math.max(0L, propertiesService.getPluginProperty(KEY_SHUTDOWN_TIMEOUT, 30L));
+    }
+
+    /**
+     * @return the number of seconds a single delivery may take to connect, and to wait for data, 30 by default;
+     *         webhooks may set their own
+     */
+    public long getTimeout()
+    {
+        return Math.max(1L, propertiesService.getPluginProperty(KEY_TIMEOUT, 30L));
+    }
+
+    /**
+     * @return the number of seconds a single delivery may take in total, however slowly the response comes in, 60 by
+     *         default; webhooks may set their own
+     */
+    public long getDeadline()
+    {
+        return Math.max(1L, propertiesService.getPluginProperty(KEY_DEADLINE, 60L));
+    }
+
+    /**
+     * @return how requests are sent, {@link DeliveryMode#BLOCKING} by default
+     */
+    public DeliveryMode getDeliveryMode()
+    {
+        return getEnum(KEY_MODE, DeliveryMode.class, DeliveryMode.BLOCKING);
+    }
+
+    /**
+     * @return the number of I/O reactor threads used in {@link DeliveryMode#ASYNC} mode, 2 by default
+     */
+    public int getIoThreads()
+    {
+        return Math.max(1, propertiesService.getPluginProperty(KEY_IO_THREADS, 2));
+    }
+
+    /**
+     * @return the number of deliveries which may wait in memory for a delivery thread in each {@link DeliveryLane},
+     *         250 by default. Their tasks are bounded by this, rather than by the {@link #getQueueSize() queue size}.
+     *         As many may wait in memory behind an earlier delivery which must reach the same webhook first
+     */
+    public int getBacklogSize()
+    {
+        return Math.max(1, propertiesService.getPluginProperty(KEY_BACKLOG_SIZE, 250));
+    }
+
+    /**
+     * @return what to do with deliveries once the backlog is full, {@link OverflowPolicy#SPILL} by default
+     */
+    public OverflowPolicy getOverflowPolicy()
+    {
+        return getEnum(KEY_OVERFLOW_POLICY, OverflowPolicy.class, OverflowPolicy.SPILL);
+    }
+
+    /**
+     * @return the number of milliseconds a delivery may wait for room in the backlog under
+     *         {@link OverflowPolicy#BLOCK}, 1000 by default
+     */
+    public long getBlockTimeout()
+    {
+        return Math.max(0L, propertiesService.getPluginProperty(KEY_BLOCK_TIMEOUT, 1000L));
+    }
+
+    /**
+     * @return how many deliveries are taken from the lane for every one taken from a lane of weight 1, when
+     *         deliveries are waiting in several lanes; the defaults are documented on {@link DeliveryLane}
+     */
+    public int getLaneWeight(DeliveryLane lane)
+    {
+        String key = String.format(KEY_LANE_WEIGHT, lane.name().toLowerCase(Locale.ENGLISH));
+        return Math.max(1, propertiesService.getPluginProperty(key, lane.getDefaultWeight()));
+    }
+
+    /**
+     * @return which deliveries to the same webhook are sent in order, {@link DeliveryOrdering#PULL_REQUEST} by default
+     */
+    public DeliveryOrdering getDeliveryOrdering()
+    {
+        return getEnum(KEY_ORDERING, DeliveryOrdering.class, DeliveryOrdering.PULL_REQUEST);
+    }
+
+    /**
+     * @return what the delivery threads are shared fairly between, {@link FairnessKey#REPOSITORY} by default
+     */
+    public FairnessKey getFairnessKey()
+    {
+        return getEnum(KEY_FAIRNESS_KEY, FairnessKey.class, FairnessKey.REPOSITORY);
+    }
+
+    /**
+     * @return the number of bytes of event bodies a repository, or project, may have delivered in its turn
+     *         before the next one gets a turn, 16384 by default
+     */
+    public int getFairnessQuantum()
+    {
+        return Math.max(1, propertiesService.getPluginProperty(KEY_FAIRNESS_QUANTUM, 16384));
+    }
+
+    /**
+     * @return the maximum number of pooled connections across all webhook hosts, 50 by default
+     */
+    public int getPoolMaxTotal()
+    {
+        return Math.max(1, propertiesService.getPluginProperty(KEY_POOL_MAX_TOTAL, 50));
+    }
+
+    /**
+     * @return the maximum number of pooled connections to a single webhook host, 10 by default
+     */
+    public int getPoolMaxPerRoute()
+    {
+        return Math.max(1, propertiesService.getPluginProperty(KEY_POOL_MAX_PER_ROUTE, 10));
+    }
+
+    /**
+     * @return the number of seconds a pooled connection may sit unused before it is closed, 30 by default
+     */
+    public long getPoolIdleTimeout()
+    {
+        return Math.max(1L, propertiesService.getPluginProperty(KEY_POOL_IDLE_TIMEOUT, 30L));
+    }
+
+    /**
+     * @return the maximum number of seconds a connection is kept alive for reuse, even when the host allows longer,
+     *         60 by default
+     */
+    public long getPoolKeepAlive()
+    {
+        return Math.max(1L, propertiesService.getPluginProperty(KEY_POOL_KEEP_ALIVE, 60L));
+    }
+
+    /**
+     * @return the number of milliseconds after which an idle pooled connection is checked for staleness before it
+     *         is reused, 2000 by default
+     */
+    public int getPoolValidateAfterInactivity()
+    {
+        return Math.max(0, propertiesService.getPluginProperty(KEY_POOL_VALIDATE_AFTER_INACTIVITY, 2000));
+    }
+
+    /**
+     * @return the maximum number of outbox rows written, or claimed, in a single transaction, 100 by default
+     */
+    public int getOutboxBatchSize()
+    {
+        return Math.max(1, propertiesService.getPluginProperty(KEY_OUTBOX_BATCH_SIZE, 100));
+    }
+
+    /**
+     * @return the number of seconds a node owns the outbox rows it is delivering; rows which are still there once
+     *         this has passed are picked up again by any node, 300 by default
+     */
+    public long getOutboxLease()
+    {
+        return Math.max(1L, propertiesService.getPluginProperty(KEY_OUTBOX_LEASE, 300L));
+    }
+
+    /**
+     * @return the number of seconds between scans of the outbox for abandoned rows, 60 by default
+     */
+    public long getOutboxRecoveryInterval()
+    {
+        return Math.max(1L, propertiesService.getPluginProperty(KEY_OUTBOX_RECOVERY_INTERVAL, 60L));
+    }
+
+    /**
+     * @return the number of seconds between reads of all webhook configurations, to pick up changes made to the
+     *         database other than through this node, 300 by default
+     */
+    public long getConfigReconcileInterval()
+    {
+        return Math.max(1L, propertiesService.getPluginProperty(KEY_CONFIG_RECONCILE_INTERVAL, 300L));
+    }
+
+    /**
+     * @return the number of seconds to wait before the first retry of a failed delivery, 10 by default; the delay
+     *         doubles with each further attempt
+     */
+    public long getRetryInitialDelay()
+    {
+        return Math.max(1L, propertiesService.getPluginProperty(KEY_RETRY_INITIAL_DELAY, 10L));
+    }
+
+    /**
+     * @return the maximum number of seconds to wait between two attempts of a delivery, 600 by default
+     */
+    public long getRetryMaxDelay()
+    {
+        return Math.max(1L, propertiesService.getPluginProperty(KEY_RETRY_MAX_DELAY, 600L));
+    }
+
+    /**
+     * @return the number of consecutive failed deliveries to a host after which its deliveries fail fast, 5 by
+     *         default
+     */
+    public int getCircuitFailureThreshold()
+    {
+        return Math.max(1, propertiesService.getPluginProperty(KEY_CIRCUIT_FAILURE_THRESHOLD, 5));
+    }
+
+    /**
+     * @return the number of seconds deliveries to a failing host fail fast before a probe is sent, 60 by default
+     */
+    public long getCircuitOpenDuration()
+    {
+        return Math.max(1L, propertiesService.getPluginProperty(KEY_CIRCUIT_OPEN_DURATION, 60L));
+    }
+
+    /**
+     * @return the number of deliveries which may be in flight to a host at the same time before its limit has
+     *         adapted to how it responds, 4 by default
+     */
+    public int getConcurrencyInitialLimit()
+    {
+        return Math.max(1, propertiesService.getPluginProperty(KEY_CONCURRENCY_INITIAL_LIMIT, 4));
+    }
+
+    /**
+     * @return the number of deliveries which may be in flight to a host at the same time, however well it responds;
+     *         the {@link #getPoolMaxPerRoute() pool size per host} by default
+     */
+    public int getConcurrencyMaxLimit()
+    {
+        return Math.max(1, propertiesService.getPluginProperty(KEY_CONCURRENCY_MAX_LIMIT, getPoolMaxPerRoute()));
+    }
+
+    /**
+     * @return the number of deliveries which may wait in memory for a place within the concurrency limit of a host;
+     *         further deliveries are left in the outbox. The {@link #getBacklogSize() backlog size} by default
+     */
+    public int getConcurrencyMaxWaiting()
+    {
+        return Math.max(0, propertiesService.getPluginProperty(KEY_CONCURRENCY_MAX_WAITING, getBacklogSize()));
+    }
+
+    /**
+     * @return the maximum number of deliveries per minute to any single host, across all webhooks pointing at it, or
+     *         0 for no limit, which is the default
+     */
+    public int getHostRateLimit()
+    {
+        return Math.max(0, propertiesService.getPluginProperty(KEY_HOST_RATE_LIMIT, 0));
+    }
+
+    /**
+     * @return the number of deliveries which may be sent to a single host at once before the host rate limit
+     *         applies, 20 by default
+     */
+    public int getHostRateBurst()
+    {
+        return Math.max(1, propertiesService.getPluginProperty(KEY_HOST_RATE_BURST, 20));
+    }
+
+    /**
+     * @return the maximum number of events sent together to a webhook which accepts batches, 50 by default
+     */
+    public int getBatchSize()
+    {
+        return Math.max(1, propertiesService.getPluginProperty(KEY_BATCH_SIZE, 50));
+    }
+
+    /**
+     * @return the number of milliseconds events are collected for a webhook which accepts batches, counting from the
+     *         first event of a batch, 1000 by default
+     */
+    public long getBatchWindow()
+    {
+        return Math.max(0L, propertiesService.getPluginProperty(KEY_BATCH_WINDOW, 1000L));
+    }
+
+    /**
+     * @return the number of milliseconds pull request update and rescope events are held back, so that newer events
+     *         for the same pull request can replace them, or 0 to send every event, which is the default
+     */
+    public long getCoalesceWindow()
+    {
+        return Math.max(0L, propertiesService.getPluginProperty(KEY_COALESCE_WINDOW, 0L));
+    }
+
+    /**
+     * @return the maximum number of dead letters sent again per minute, across all webhooks, 60 by default
+     */
+    public int getRedeliveryRate()
+    {
+        return Math.max(1, propertiesService.getPluginProperty(KEY_REDELIVERY_RATE, 60));
+    }
+
+    /**
+     * @return the number of dead letters which may be sent again at once before the redelivery rate applies, 10 by
+     *         default
+     */
+    public int getRedeliveryBurst()
+    {
+        return Math.max(1, propertiesService.getPluginProperty(KEY_REDELIVERY_BURST, 10));
+    }
+
+    private <E extends Enum<E>> E getEnum(String key, Class<E> type, E defaultValue)
+    {
+        String value = propertiesService.getPluginProperty(key);
+        if (value == null || value.trim().isEmpty())
+        {
+            return defaultValue;
+        }
+        try
+        {
+            return Enum.valueOf(type, value.trim().toUpperCase(Locale.ENGLISH));
+        }
+        catch (IllegalArgumentException e)
+        {
+            LOGGER.warn("Unsupported value '{}' for {}; using {}", value, key, defaultValue);
+            return defaultValue;
+        }
+    }
+}
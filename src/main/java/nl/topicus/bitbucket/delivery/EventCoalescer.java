@@ -0,0 +1,344 @@
+package nl.topicus.bitbucket.delivery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the work for events with the same key one after the other, in the order the events were submitted, and holds
+ * back the work for some events for a short while, so that it can be replaced by the work for a newer event.
+ * <p>
+ * Events are submitted on the thread which raised them, before any of their work runs in parallel. The work for an
+ * event which takes a while, like checking whether a pull request can be merged, therefore cannot be overtaken by the
+ * work for a later event with the same key, and the deliveries of both are written to the {@link WebhookOutbox} in
+ * the order the events were raised. The {@link DeliveryMailboxes} then send them in that order.
+ * <p>
+ * Work with a coalescing key waits for the window, which starts when it is submitted rather than being extended by
+ * every newer event, so a steady stream of events still gets its latest state through at least once per window. Only
+ * the most recent work submitted with the same coalescing key during the window runs, unless work for another event
+ * with the same key was submitted in between; replacing the earlier work would then let the newer event overtake that
+ * one. Work submitted after it waits for it. A window of 0 turns coalescing off, and runs every task in turn.
+ * <p>
+ * The first task of a key which has nothing in progress is new work for the executor, which may discard it when it
+ * is full. The tasks after it continue what was accepted, on the same thread, so they are not discarded along the
+ * way.
+ * <p>
+ * The work runs on the {@link DeliveryExecutor} and hands its deliveries to the {@link WebhookDispatcher}, which shuts
+ * the executor down when it is destroyed. The coalescer is therefore destroyed before the dispatcher, and waits for the
+ * work it still held back to finish.
+ */
+@Component
+@DependsOn("webhookDispatcher")
+public class EventCoalescer implements DisposableBean
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventCoalescer.class);
+
+    private final Executor executor;
+    private final Executor followUpExecutor;
+    private final DeliveryOrdering ordering;
+    private final DeliveryScheduler scheduler;
+    private final Object drained = new Object();
+    private final ConcurrentMap<Object, Sequence> sequences = new ConcurrentHashMap<>();
+    private final long shutdownTimeout;
+    private final long window;
+
+    @Autowired
+    public EventCoalescer(DeliveryExecutor deliveryExecutor, DeliveryScheduler deliveryScheduler,
+                          DeliverySettings settings)
+    {
+        this(deliveryExecutor, deliveryExecutor::executeFollowUp, deliveryScheduler, settings.getCoalesceWindow(),
+                settings.getDeliveryOrdering(), settings.getShutdownTimeout());
+    }
+
+    /**
+     * @param shutdownTimeout the number of seconds {@link #destroy()} waits for the work which is still held back
+     */
+    EventCoalescer(Executor executor, Executor followUpExecutor, DeliveryScheduler scheduler, long window,
+                   DeliveryOrdering ordering, long shutdownTimeout)
+    {
+        this.executor = executor;
+        this.followUpExecutor = followUpExecutor;
+        this.ordering = ordering;
+        this.scheduler = scheduler;
+        this.shutdownTimeout = shutdownTimeout;
+        this.window = window;
+    }
+
+    /**
+     * @param repositoryId  the ID of the repository the event happened in
+     * @param pullRequestId the ID of the pull request the event is about, or {@code null}
+     * @return the key of the events whose work must run in the order they were raised, as decided by the
+     *         {@link DeliveryOrdering}, or {@code null} if the work may run at any time
+     */
+    public Object getKey(int repositoryId, Long pullRequestId)
+    {
+        if (ordering == DeliveryOrdering.NONE)
+        {
+            return null;
+        }
+        if (ordering == DeliveryOrdering.PULL_REQUEST && pullRequestId != null)
+        {
+            return repositoryId + ":" + pullRequestId;
+        }
+        return repositoryId;
+    }
+
+    /**
+     * Runs the task on the executor once the work submitted before it with the same key is done, and, if it has a
+     * coalescing key, once its window has passed, unless a newer task with the same coalescing key replaces it in
+     * the meantime.
+     *
+     * @param key           orders the work, as returned by {@link #getKey}, or {@code null} if it may run at any time
+     * @param coalescingKey identifies the events which replace each other, or {@code null} if the work always runs
+     * @param task          the work for the event
+     */
+    public void submit(Object key, Object coalescingKey, Runnable task)
+    {
+        boolean coalesced = coalescingKey != null && window > 0L;
+        // Without an order to keep, work which is coalesced still has to be held back by its own key
+        Object sequenceKey = key != null ? key : (coalesced ? coalescingKey : null);
+        if (sequenceKey == null)
+        {
+            executor.execute(task);
+            return;
+        }
+
+        Step[] added = new Step[1];
+        boolean[] start = new boolean[1];
+        sequences.compute(sequenceKey, (k, sequence) -> {
+            if (sequence == null)
+            {
+                sequence = new Sequence();
+            }
+            Step last = sequence.steps.peekLast();
+            if (coalesced && last != null && !last.started && coalescingKey.equals(last.coalescingKey))
+            {
+                last.task = task;
+                return sequence;
+            }
+
+            added[0] = new Step(coalesced ? coalescingKey : null, task);
+            sequence.steps.addLast(added[0]);
+            start[0] = sequence.startIfReady();
+            return sequence;
+        });
+
+        if (added[0] == null)
+        {
+            LOGGER.debug("Coalesced webhook event for {} into a newer one", coalescingKey);
+        }
+        else if (!added[0].ready && !scheduler.schedule(() -> ready(sequenceKey, added[0]), window))
+        {
+            ready(sequenceKey, added[0]);
+        }
+        if (start[0])
+        {
+            start(sequenceKey);
+        }
+    }
+
+    /**
+     * Runs all work which is still held back straight away, rather than dropping it with the scheduler, and waits for
+     * it to finish while the executor and dispatcher can still take it.
+     */
+    @Override
+    public void destroy()
+    {
+        for (Object key : sequences.keySet())
+        {
+            boolean[] start = new boolean[1];
+            sequences.computeIfPresent(key, (k, sequence) -> {
+                sequence.steps.forEach(step -> step.ready = true);
+                start[0] = sequence.startIfReady();
+                return sequence;
+            });
+            if (start[0])
+            {
+                start(key);
+            }
+        }
+        awaitDrained();
+    }
+
+    private void awaitDrained()
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(shutdownTimeout);
+        synchronized (drained)
+        {
+            while (!sequences.isEmpty())
+            {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0L)
+                {
+                    LOGGER.warn("Webhook events for {} keys were not processed within {} seconds, and may be lost",
+                            sequences.size(), shutdownTimeout);
+                    return;
+                }
+                try
+                {
+                    TimeUnit.NANOSECONDS.timedWait(drained, remaining);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void ready(Object key, Step step)
+    {
+        boolean[] start = new boolean[1];
+        sequences.computeIfPresent(key, (k, sequence) -> {
+            step.ready = true;
+            start[0] = sequence.startIfReady();
+            return sequence;
+        });
+        if (start[0])
+        {
+            start(key);
+        }
+    }
+
+    private void start(Object key)
+    {
+        executor.execute(new Runner(key));
+    }
+
+    private void startNext(Object key)
+    {
+        try
+        {
+            followUpExecutor.execute(new Runner(key));
+        }
+        catch (RejectedExecutionException e)
+        {
+            LOGGER.info("Webhook delivery is shutting down; later events for {} will not be delivered", key);
+        }
+    }
+
+    /**
+     * Moves on from the first step of the sequence, which was run or discarded.
+     *
+     * @return whether the next step is ready and now has to be run by the caller
+     */
+    private boolean next(Object key)
+    {
+        boolean[] start = new boolean[1];
+        sequences.computeIfPresent(key, (k, sequence) -> {
+            sequence.steps.pollFirst();
+            sequence.running = false;
+            start[0] = sequence.startIfReady();
+            return sequence.steps.isEmpty() ? null : sequence;
+        });
+        if (sequences.isEmpty())
+        {
+            synchronized (drained)
+            {
+                drained.notifyAll();
+            }
+        }
+        return start[0];
+    }
+
+    /**
+     * The work for the events with the same key, in the order they were submitted.
+     */
+    private static class Sequence
+    {
+        private final Deque<Step> steps = new ArrayDeque<>();
+
+        /**
+         * Whether the first step has been handed to the executor.
+         */
+        private boolean running;
+
+        private boolean startIfReady()
+        {
+            if (running || steps.isEmpty() || !steps.peekFirst().ready)
+            {
+                return false;
+            }
+            running = true;
+            return true;
+        }
+    }
+
+    private static class Step
+    {
+        private final Object coalescingKey;
+
+        private boolean ready;
+        private boolean started;
+        private Runnable task;
+
+        private Step(Object coalescingKey, Runnable task)
+        {
+            this.coalescingKey = coalescingKey;
+            this.ready = coalescingKey == null;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Runs the first step of a sequence, and then the steps after it for as long as they are ready.
+     */
+    private class Runner implements DeliveryExecutor.Discardable
+    {
+        private final Object key;
+
+        private Runner(Object key)
+        {
+            this.key = key;
+        }
+
+        @Override
+        public void run()
+        {
+            // Later steps which are ready are run straight away, so that they cannot be lost or discarded between
+            // steps, not even while the executor shuts down
+            do
+            {
+                Runnable[] task = new Runnable[1];
+                sequences.computeIfPresent(key, (k, sequence) -> {
+                    Step step = sequence.steps.peekFirst();
+                    step.started = true;
+                    task[0] = step.task;
+                    return sequence;
+                });
+
+                try
+                {
+                    task[0].run();
+                }
+                catch (RuntimeException e)
+                {
+                    LOGGER.error("Unexpected failure while processing webhooks", e);
+                }
+            }
+            while (next(key));
+        }
+
+        @Override
+        public void discarded()
+        {
+            // The executor already said why; later work for the key must not wait for this forever
+            if (next(key))
+            {
+                startNext(key);
+            }
+        }
+    }
+}
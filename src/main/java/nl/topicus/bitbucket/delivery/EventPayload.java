@@ -0,0 +1,56 @@
+package nl.topicus.bitbucket.delivery;
+
+import java.nio.charset.StandardCharsets;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * The JSON body of an event, shared by every delivery of the event.
+ * <p>
+ * An event is written once, straight to UTF-8, and the same bytes are sent to every webhook it is delivered to, so
+ * neither writing nor encoding the body is repeated for each of them. Only the bytes are kept: deliveries can wait
+ * in memory for a long time, and keeping a decoded copy as well would take up about three times the space. The text
+ * is decoded each time it is asked for, which only happens when a delivery is written to the database. The bytes may
+ * not be modified once the payload is created.
+ */
+public final class EventPayload
+{
+    private final byte[] bytes;
+
+    /**
+     * @param bytes the body encoded as UTF-8, which is used as is rather than copied
+     */
+    public EventPayload(byte[] bytes)
+    {
+        this.bytes = requireNonNull(bytes, "bytes");
+    }
+
+    public EventPayload(String text)
+    {
+        this(requireNonNull(text, "text").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the body encoded as UTF-8, which must not be modified
+     */
+    public byte[] getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * @return the number of bytes in the body
+     */
+    public int getLength()
+    {
+        return bytes.length;
+    }
+
+    /**
+     * @return the body decoded from UTF-8; a new string on every call, which is not kept
+     */
+    public String getText()
+    {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
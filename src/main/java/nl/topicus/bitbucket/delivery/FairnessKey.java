@@ -0,0 +1,16 @@
+package nl.topicus.bitbucket.delivery;
+
+/**
+ * What the {@link DeliveryQueue} shares the delivery threads fairly between, within each {@link DeliveryLane}.
+ */
+public enum FairnessKey
+{
+    /**
+     * Every repository gets its turn, so a busy repository cannot hold up the webhooks of the others.
+     */
+    REPOSITORY,
+    /**
+     * Every project gets its turn; repositories in the same project share it.
+     */
+    PROJECT
+}
@@ -0,0 +1,31 @@
+package nl.topicus.bitbucket.delivery;
+
+/**
+ * What the {@link DeliveryQueue} does with a delivery when it is full.
+ */
+public enum OverflowPolicy
+{
+    /**
+     * Let the delivery wait a little while for room, and spill it if none comes. The delivery waits in the queue,
+     * not on the thread handing it over. Once as many deliveries are waiting for room as fit in the queue, the
+     * delivery is spilled straight away.
+     */
+    BLOCK,
+    /**
+     * Give up on the oldest delivery queued for the same webhook to make room, keeping it as a dead letter. If none
+     * is queued for that webhook, the delivery is spilled.
+     */
+    DROP_OLDEST,
+    /**
+     * Replace a queued delivery which is superseded by the new one, such as an older update of the same pull request
+     * or build status. Deliveries which do not supersede anything are spilled. Deliveries which wait for an earlier
+     * one of their {@link DeliveryOrdering} key are not queued yet; they replace a superseded delivery waiting for the
+     * same key straight away, whether the queue is full or not.
+     */
+    COALESCE,
+    /**
+     * Leave the delivery in the {@link WebhookOutbox}, on disk, to be picked up again by the outbox recovery once it
+     * next runs.
+     */
+    SPILL
+}
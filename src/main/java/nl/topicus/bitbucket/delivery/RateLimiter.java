@@ -0,0 +1,62 @@
+package nl.topicus.bitbucket.delivery;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket which lets {@code burst} requests through at once, and after that one request per
+ * {@code 1 / rate}.
+ * <p>
+ * Rather than rejecting requests over the limit, each request reserves the next free slot and is told how long to
+ * wait for it, so excess requests queue up behind each other instead of being fired at once. The bucket is kept as
+ * a single theoretical arrival time, following the generic cell rate algorithm, which is updated with
+ * compare-and-set.
+ */
+public class RateLimiter
+{
+    private final int burst;
+    private final long interval;
+    private final int perMinute;
+    private final AtomicLong theoreticalArrival = new AtomicLong(Long.MIN_VALUE);
+    private final long tolerance;
+
+    /**
+     * @param perMinute the sustained number of requests per minute
+     * @param burst     the number of requests which may be sent at once
+     */
+    public RateLimiter(int perMinute, int burst)
+    {
+        this.perMinute = Math.max(1, perMinute);
+        this.burst = Math.max(1, burst);
+
+        interval = TimeUnit.MINUTES.toNanos(1) / this.perMinute;
+        tolerance = (this.burst - 1) * interval;
+    }
+
+    /**
+     * Reserves the next free slot.
+     *
+     * @param now the current {@link System#nanoTime() time}, in nanoseconds
+     * @return the number of nanoseconds to wait before the reserved slot starts, or 0 to go straight away
+     */
+    public long reserve(long now)
+    {
+        while (true)
+        {
+            long current = theoreticalArrival.get();
+            long arrival = Math.max(current, now);
+            if (theoreticalArrival.compareAndSet(current, arrival + interval))
+            {
+                return Math.max(0L, arrival - tolerance - now);
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if this bucket was created with the given limits
+     */
+    public boolean hasLimits(int perMinute, int burst)
+    {
+        return this.perMinute == perMinute && this.burst == burst;
+    }
+}
@@ -0,0 +1,69 @@
+package nl.topicus.bitbucket.delivery;
+
+import nl.topicus.bitbucket.persistence.WebHookConfiguration;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link RateLimiter rate limits} deliveries have to respect: the limit configured on each webhook, and the
+ * limit which applies to every host.
+ */
+@Component
+public class RateLimiters
+{
+    private final ConcurrentMap<Integer, RateLimiter> configurationLimiters = new ConcurrentHashMap<>();
+    private final int hostBurst;
+    private final ConcurrentMap<String, RateLimiter> hostLimiters = new ConcurrentHashMap<>();
+    private final int hostLimit;
+
+    @Autowired
+    public RateLimiters(DeliverySettings settings)
+    {
+        this(settings.getHostRateLimit(), settings.getHostRateBurst());
+    }
+
+    RateLimiters(int hostLimit, int hostBurst)
+    {
+        this.hostBurst = hostBurst;
+        this.hostLimit = hostLimit;
+    }
+
+    /**
+     * Reserves a slot for one delivery to the webhook, under both its own limit and the limit of its host.
+     *
+     * @param configuration the webhook
+     * @param now           the current {@link System#nanoTime() time}, in nanoseconds
+     * @return the number of milliseconds to wait before sending the delivery, or 0 to send it straight away
+     */
+    public long reserve(WebHookConfiguration configuration, long now)
+    {
+        long delay = 0L;
+
+        int limit = configuration.getRateLimit();
+        if (limit > 0)
+        {
+            int burst = configuration.getRateBurst();
+            RateLimiter limiter = configurationLimiters.get(configuration.getID());
+            if (limiter == null || !limiter.hasLimits(limit, burst))
+            {
+                // The limits were changed, or this is the first delivery to the webhook
+                limiter = configurationLimiters.compute(configuration.getID(), (id, existing) ->
+                        existing != null && existing.hasLimits(limit, burst) ? existing : new RateLimiter(limit, burst));
+            }
+            delay = limiter.reserve(now);
+        }
+        if (hostLimit > 0)
+        {
+            RateLimiter limiter = hostLimiters.computeIfAbsent(CircuitBreakers.getHost(configuration.getURL()),
+                    host -> new RateLimiter(hostLimit, hostBurst));
+            delay = Math.max(delay, limiter.reserve(now));
+        }
+
+        // Round up, so the delivery never goes before its slot
+        return (delay + TimeUnit.MILLISECONDS.toNanos(1) - 1) / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
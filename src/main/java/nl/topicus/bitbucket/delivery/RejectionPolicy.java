@@ -0,0 +1,17 @@
+package nl.topicus.bitbucket.delivery;
+
+/**
+ * What the {@link DeliveryExecutor} does with a task when its queue is full. Tasks are never run on the thread which
+ * submitted them, as that is usually one of Bitbucket's event threads, which must not wait for webhooks.
+ */
+public enum RejectionPolicy
+{
+    /**
+     * Log and discard the task which could not be queued.
+     */
+    DISCARD,
+    /**
+     * Discard the oldest queued task to make room for the new one.
+     */
+    DISCARD_OLDEST
+}
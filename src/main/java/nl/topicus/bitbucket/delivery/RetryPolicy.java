@@ -0,0 +1,112 @@
+package nl.topicus.bitbucket.delivery;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.utils.DateUtils;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether, and after how long, a failed delivery is attempted again.
+ * <p>
+ * Only failures which may go away by themselves are retried: connection problems and timeouts, {@code 408},
+ * {@code 429} and server errors. The delay doubles with every attempt up to a maximum, and is jittered so deliveries
+ * which failed together do not all come back at the same moment. A {@code Retry-After} header on a {@code 429} or
+ * {@code 503} response is honoured, up to the same maximum.
+ */
+public class RetryPolicy
+{
+    /**
+     * Returned by {@link #getRetryDelay} when the delivery should not be attempted again.
+     */
+    public static final long NO_RETRY = -1L;
+
+    private final long initialDelay;
+    private final long maxDelay;
+
+    /**
+     * @param initialDelay the delay before the first retry, in milliseconds
+     * @param maxDelay     the maximum delay between two attempts, in milliseconds
+     */
+    public RetryPolicy(long initialDelay, long maxDelay)
+    {
+        this.initialDelay = initialDelay;
+        this.maxDelay = Math.max(initialDelay, maxDelay);
+    }
+
+    public RetryPolicy(DeliverySettings settings)
+    {
+        this(TimeUnit.SECONDS.toMillis(settings.getRetryInitialDelay()),
+                TimeUnit.SECONDS.toMillis(settings.getRetryMaxDelay()));
+    }
+
+    /**
+     * @param attempt     the attempt which failed, starting at 1
+     * @param maxAttempts the maximum number of attempts for the delivery
+     * @param response    the response to the failed attempt, or {@code null} if there was none
+     * @param error       the error the attempt failed with, or {@code null} if a response was received
+     * @return the number of milliseconds to wait before the next attempt, or {@link #NO_RETRY}
+     */
+    public long getRetryDelay(int attempt, int maxAttempts, HttpResponse response, Throwable error)
+    {
+        if (attempt >= maxAttempts || !isRetryable(response, error))
+        {
+            return NO_RETRY;
+        }
+        return Math.max(getBackoff(attempt), Math.min(getRetryAfter(response), maxDelay));
+    }
+
+    private long getBackoff(int attempt)
+    {
+        // Equal jitter: at least half of the exponential delay, so retries still back off, plus a random share
+        long delay = attempt > 30 ? maxDelay : Math.min(maxDelay, initialDelay << (attempt - 1));
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+    }
+
+    private static boolean isRetryable(HttpResponse response, Throwable error)
+    {
+        if (response == null)
+        {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            return cause instanceof IOException;
+        }
+
+        int statusCode = response.getStatusLine().getStatusCode();
+        return statusCode == HttpStatus.SC_REQUEST_TIMEOUT || statusCode == 429 ||
+                statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+    }
+
+    /**
+     * @return the delay requested by a {@code Retry-After} header, in milliseconds, or 0 if there is none
+     */
+    private static long getRetryAfter(HttpResponse response)
+    {
+        if (response == null)
+        {
+            return 0L;
+        }
+        int statusCode = response.getStatusLine().getStatusCode();
+        Header header = response.getFirstHeader("Retry-After");
+        if (header == null || (statusCode != 429 && statusCode != HttpStatus.SC_SERVICE_UNAVAILABLE))
+        {
+            return 0L;
+        }
+
+        String value = header.getValue().trim();
+        try
+        {
+            return Math.max(0L, TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+        }
+        catch (NumberFormatException e)
+        {
+            Date date = DateUtils.parseDate(value);
+            return date == null ? 0L : Math.max(0L, date.getTime() - System.currentTimeMillis());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package nl.topicus.bitbucket.delivery;
+
+import nl.topicus.bitbucket.persistence.WebHookConfigurationDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically has the {@link WebHookConfigurationDao} read all enabled configurations again, so changes which did
+ * not go through it, such as those made on another node, reach the configurations it keeps in memory.
+ * <p>
+ * The first run starts right away, so the configurations are in memory before events arrive and event listeners
+ * never have to read them. The {@link DeliveryScheduler} only keeps time; the reading itself is done on the
+ * {@link DeliveryExecutor}. A run which is rejected because the executor is busy is simply skipped, as the next one
+ * is already scheduled.
+ */
+@Component
+public class WebHookConfigurationReconciler implements DisposableBean, InitializingBean
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(WebHookConfigurationReconciler.class);
+
+    private final DeliveryExecutor deliveryExecutor;
+    private final DeliveryScheduler deliveryScheduler;
+    private final long interval;
+    private final WebHookConfigurationDao webHookConfigurationDao;
+
+    private volatile boolean closed;
+
+    @Autowired
+    public WebHookConfigurationReconciler(DeliveryExecutor deliveryExecutor, DeliveryScheduler deliveryScheduler,
+                                          DeliverySettings settings, WebHookConfigurationDao webHookConfigurationDao)
+    {
+        this.deliveryExecutor = deliveryExecutor;
+        this.deliveryScheduler = deliveryScheduler;
+        this.webHookConfigurationDao = webHookConfigurationDao;
+
+        interval = TimeUnit.SECONDS.toMillis(settings.getConfigReconcileInterval());
+    }
+
+    @Override
+    public void afterPropertiesSet()
+    {
+        tick();
+    }
+
+    @Override
+    public void destroy()
+    {
+        closed = true;
+    }
+
+    private void reconcile()
+    {
+        try
+        {
+            webHookConfigurationDao.reconcile();
+        }
+        catch (RuntimeException e)
+        {
+            LOGGER.warn("Failed to read the webhook configurations again; trying again in {} ms", interval, e);
+        }
+    }
+
+    private void tick()
+    {
+        if (closed)
+        {
+            return;
+        }
+        // Scheduled first, so a rejected run cannot stop the ones after it
+        deliveryScheduler.schedule(this::tick, interval);
+        deliveryExecutor.execute(this::reconcile);
+    }
+}
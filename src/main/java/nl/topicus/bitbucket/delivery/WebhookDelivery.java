@@ -0,0 +1,168 @@
+package nl.topicus.bitbucket.delivery;
+
+import com.atlassian.bitbucket.repository.Repository;
+import nl.topicus.bitbucket.events.EventType;
+import nl.topicus.bitbucket.persistence.WebHookConfiguration;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A single event body on its way to a single webhook configuration.
+ */
+public class WebhookDelivery
+{
+    /**
+     * The events which only tell the state a pull request is in, so that a newer one of either type supersedes an
+     * older one.
+     */
+    static final Set<EventType> PULL_REQUEST_STATE_TYPES =
+            EnumSet.of(EventType.PULL_REQUEST_RESCOPED, EventType.PULL_REQUEST_UPDATED);
+
+    private final Repository repository;
+    private final WebHookConfiguration configuration;
+    private final EventType eventType;
+    private final EventPayload payload;
+    private final String coalescingKey;
+    private final String pullRequestId;
+
+    private volatile int attempt = 1;
+    private volatile Integer outboxId;
+    private volatile boolean recovered;
+
+    public WebhookDelivery(Repository repository, WebHookConfiguration configuration, EventType eventType, String body)
+    {
+        this(repository, configuration, eventType, new EventPayload(body), null, null);
+    }
+
+    /**
+     * @param coalescingKey identifies what the event is about, such as a pull request, so that a newer delivery with
+     *                      the same key, for the same webhook and event type, supersedes this one; or {@code null} if
+     *                      every event of the type matters. Updates and rescopes of a pull request supersede each
+     *                      other, as both only tell the state it is in
+     */
+    public WebhookDelivery(Repository repository, WebHookConfiguration configuration, EventType eventType, String body,
+                           String coalescingKey)
+    {
+        this(repository, configuration, eventType, new EventPayload(body), coalescingKey, null);
+    }
+
+    /**
+     * @param payload       the body, which may be shared with the deliveries of the same event to other webhooks
+     * @param coalescingKey see {@link #WebhookDelivery(Repository, WebHookConfiguration, EventType, String, String)}
+     * @param pullRequestId the ID of the pull request the event is about, or {@code null} if it is not about one
+     */
+    public WebhookDelivery(Repository repository, WebHookConfiguration configuration, EventType eventType,
+                           EventPayload payload, String coalescingKey, String pullRequestId)
+    {
+        this.coalescingKey = coalescingKey;
+        this.pullRequestId = pullRequestId;
+        this.repository = requireNonNull(repository, "repository");
+        this.configuration = requireNonNull(configuration, "configuration");
+        this.eventType = requireNonNull(eventType, "eventType");
+        this.payload = requireNonNull(payload, "payload");
+    }
+
+    public Repository getRepository()
+    {
+        return repository;
+    }
+
+    public WebHookConfiguration getConfiguration()
+    {
+        return configuration;
+    }
+
+    public EventType getEventType()
+    {
+        return eventType;
+    }
+
+    public String getBody()
+    {
+        return payload.getText();
+    }
+
+    public EventPayload getPayload()
+    {
+        return payload;
+    }
+
+    /**
+     * @return what the event is about, or {@code null} if every event of the type matters
+     * @see #isSupersededBy
+     */
+    public String getCoalescingKey()
+    {
+        return coalescingKey;
+    }
+
+    /**
+     * @return the ID of the pull request the event is about, or {@code null} if it is not about one
+     */
+    public String getPullRequestId()
+    {
+        return pullRequestId;
+    }
+
+    /**
+     * @return whether this delivery is made redundant by the other, newer one
+     */
+    public boolean isSupersededBy(WebhookDelivery other)
+    {
+        return coalescingKey != null && coalescingKey.equals(other.coalescingKey) &&
+                configuration.getID() == other.configuration.getID() &&
+                (eventType == other.eventType || PULL_REQUEST_STATE_TYPES.contains(eventType) &&
+                        PULL_REQUEST_STATE_TYPES.contains(other.eventType));
+    }
+
+    /**
+     * @return the number of the attempt currently being made, starting at 1
+     */
+    public int getAttempt()
+    {
+        return attempt;
+    }
+
+    void nextAttempt()
+    {
+        attempt++;
+    }
+
+    /**
+     * Continues from the attempt a delivery resumed from the outbox had reached before it was abandoned.
+     */
+    void setAttempt(int attempt)
+    {
+        this.attempt = attempt;
+    }
+
+    /**
+     * @return the ID of the {@link nl.topicus.bitbucket.persistence.WebhookOutboxEntry outbox entry} backing this
+     *         delivery, or {@code null} if it was never written to the outbox
+     */
+    public Integer getOutboxId()
+    {
+        return outboxId;
+    }
+
+    void setOutboxId(Integer outboxId)
+    {
+        this.outboxId = outboxId;
+    }
+
+    /**
+     * @return {@code true} if this delivery was resumed from the outbox, rather than written to it by this node
+     */
+    public boolean isRecovered()
+    {
+        return recovered;
+    }
+
+    void setRecovered()
+    {
+        recovered = true;
+    }
+}
@@ -0,0 +1,716 @@
+package nl.topicus.bitbucket.delivery;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import nl.topicus.bitbucket.api.HttpClientFactory;
+import nl.topicus.bitbucket.events.BitbucketServerPullRequestEvent;
+import nl.topicus.bitbucket.events.BuildStatusEvent;
+import nl.topicus.bitbucket.events.Event;
+import nl.topicus.bitbucket.events.EventSerializer;
+import nl.topicus.bitbucket.events.EventType;
+import nl.topicus.bitbucket.events.StreamingPullRequestEvent;
+import nl.topicus.bitbucket.persistence.WebHookConfiguration;
+import nl.topicus.bitbucket.persistence.WebHookConfigurationDao;
+import nl.topicus.bitbucket.persistence.WebhookDeadLetter;
+import nl.topicus.bitbucket.persistence.WebhookDeadLetterDao;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends an event to every webhook configured for it.
+ * <p>
+ * Each matching configuration is delivered as a separate task on the {@link DeliveryExecutor}, after waiting its turn
+ * in the bounded {@link DeliveryQueue}, with its own timeouts, so a slow endpoint only delays its own deliveries rather
+ * than every other webhook of the repository. Depending on the {@link DeliveryMode}, requests are either sent on the
+ * delivery thread or handed off to a non-blocking client. The number of requests in flight to a host is kept within its
+ * {@link ConcurrencyLimit}, which adapts to the latency and failures of the host. Deliveries which must reach a webhook
+ * in order, as decided by the {@link DeliveryOrdering}, take their place in {@link DeliveryMailboxes} before they are
+ * queued, and wait there for the previous one to be settled. Deliveries which fail are retried as decided by the
+ * {@link RetryPolicy}, waiting on the {@link DeliveryScheduler} rather than on a delivery thread. Requests which do not
+ * complete within their deadline are aborted, however slowly their response is still coming in. Deliveries to a host
+ * whose {@link CircuitBreaker} is open fail fast, and are retried once the circuit lets them through again. Deliveries
+ * over a {@link RateLimiters rate limit} wait on the scheduler for their turn. Deliveries to webhooks which accept
+ * batches are collected by the {@link DeliveryBatcher} and sent together, as a JSON array. Deliveries which are given
+ * up on are kept as {@link WebhookDeadLetter dead letters}, so they can be sent again later.
+ */
+@Component
+public class WebhookDispatcher implements DisposableBean, InitializingBean
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(WebhookDispatcher.class);
+
+    private final DeliveryBatcher batcher;
+    private final CircuitBreakers circuitBreakers;
+    private final ConcurrencyLimits concurrencyLimits;
+    private final WebhookDeadLetterDao deadLetterDao;
+    private final long deadline;
+    private final DeliveryExecutor deliveryExecutor;
+    private final DeliveryMailboxes deliveryMailboxes;
+    private final DeliveryQueue deliveryQueue;
+    private final DeliveryScheduler deliveryScheduler;
+    private final EventSerializer eventSerializer;
+    private final WebhookOutbox outbox;
+    private final RateLimiters rateLimiters;
+    private final RequestConfig requestConfig;
+    private final RetryPolicy retryPolicy;
+    private final WebhookTransport transport;
+    private final WebHookConfigurationDao webHookConfigurationDao;
+
+    @Autowired
+    public WebhookDispatcher(@ComponentImport ApplicationPropertiesService applicationPropertiesService,
+                             CircuitBreakers circuitBreakers,
+                             ConcurrencyLimits concurrencyLimits,
+                             WebhookDeadLetterDao deadLetterDao,
+                             DeliveryExecutor deliveryExecutor,
+                             DeliveryScheduler deliveryScheduler,
+                             DeliverySettings deliverySettings,
+                             EventSerializer eventSerializer,
+                             HttpClientFactory httpClientFactory,
+                             RateLimiters rateLimiters,
+                             WebHookConfigurationDao webHookConfigurationDao,
+                             WebhookOutbox outbox)
+    {
+        this(circuitBreakers, concurrencyLimits, deadLetterDao, deliveryExecutor, deliveryScheduler, deliverySettings,
+                eventSerializer, rateLimiters, webHookConfigurationDao, outbox,
+                createTransport(applicationPropertiesService, deliverySettings, httpClientFactory),
+                httpClientFactory.getDefaultRequestConfig());
+    }
+
+    WebhookDispatcher(CircuitBreakers circuitBreakers,
+                      ConcurrencyLimits concurrencyLimits,
+                      WebhookDeadLetterDao deadLetterDao,
+                      DeliveryExecutor deliveryExecutor,
+                      DeliveryScheduler deliveryScheduler,
+                      DeliverySettings deliverySettings,
+                      EventSerializer eventSerializer,
+                      RateLimiters rateLimiters,
+                      WebHookConfigurationDao webHookConfigurationDao,
+                      WebhookOutbox outbox,
+                      WebhookTransport transport,
+                      RequestConfig requestConfig)
+    {
+        this.circuitBreakers = circuitBreakers;
+        this.concurrencyLimits = concurrencyLimits;
+        this.deadLetterDao = deadLetterDao;
+        this.deliveryExecutor = deliveryExecutor;
+        this.deliveryScheduler = deliveryScheduler;
+        this.eventSerializer = eventSerializer;
+        this.webHookConfigurationDao = webHookConfigurationDao;
+        this.outbox = outbox;
+        this.rateLimiters = rateLimiters;
+        this.requestConfig = requestConfig;
+        this.transport = transport;
+
+        deadline = TimeUnit.SECONDS.toMillis(deliverySettings.getDeadline());
+        retryPolicy = new RetryPolicy(deliverySettings);
+        batcher = new DeliveryBatcher(deliveryScheduler, deliverySettings.getBatchSize(),
+                deliverySettings.getBatchWindow(), batch -> deliveryExecutor.executeFollowUp(() -> post(batch)));
+
+        Map<DeliveryLane, Integer> laneWeights = new EnumMap<>(DeliveryLane.class);
+        for (DeliveryLane lane : DeliveryLane.values())
+        {
+            laneWeights.put(lane, deliverySettings.getLaneWeight(lane));
+        }
+        // Each delivery waiting in the queue has a task on the executor, which must not be discarded; the queue bounds
+        // how many there are
+        OverflowPolicy overflowPolicy = deliverySettings.getOverflowPolicy();
+        deliveryQueue = new DeliveryQueue(deliveryExecutor::executeFollowUp, outbox, deliverySettings.getBacklogSize(),
+                laneWeights, deliverySettings.getFairnessKey(), deliverySettings.getFairnessQuantum(),
+                overflowPolicy, deliverySettings.getBlockTimeout(), this::deliver,
+                delivery -> giveUp(delivery, "dropped: the delivery queue was full", null), this::spilled);
+        DeliveryOrdering ordering = deliverySettings.getDeliveryOrdering();
+        // A spilled delivery is resumed within two recovery intervals, unless there is a large backlog to go through;
+        // after a lease on top of that, it has been resumed by another node, or discarded
+        deliveryMailboxes = new DeliveryMailboxes(delivery -> getOrderingKey(delivery, ordering),
+                deliverySettings.getBacklogSize(), TimeUnit.SECONDS.toMillis(
+                        2 * deliverySettings.getOutboxRecoveryInterval() + deliverySettings.getOutboxLease()),
+                overflowPolicy == OverflowPolicy.COALESCE ? deliveryQueue::coalesced : null);
+    }
+
+    /**
+     * Starts the outbox once the dispatcher is fully constructed, as its writer thread calls back into it straight
+     * away.
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        outbox.start(this::admit);
+    }
+
+    /**
+     * @return the transport for the {@link DeliveryMode} of the settings
+     */
+    private static WebhookTransport createTransport(ApplicationPropertiesService applicationPropertiesService,
+                                                    DeliverySettings deliverySettings,
+                                                    HttpClientFactory httpClientFactory)
+    {
+        String bitbucketVersion = applicationPropertiesService.getBuildVersion();
+        if (deliverySettings.getDeliveryMode() == DeliveryMode.ASYNC)
+        {
+            return new AsyncWebhookTransport(
+                    httpClientFactory.createAsync(bitbucketVersion, deliverySettings.getIoThreads()),
+                    deliverySettings.getShutdownTimeout());
+        }
+        return new BlockingWebhookTransport(httpClientFactory.create(bitbucketVersion));
+    }
+
+    @Override
+    public void destroy()
+    {
+        // Let queued deliveries finish before the client they use is closed, and only then settle the outbox.
+        // Retries which are still waiting stay in the outbox, to be resumed on start up. Open batches are sent
+        // rather than waiting out their window
+        outbox.stop();
+        deliveryScheduler.shutdown();
+        batcher.flushAll();
+        deliveryExecutor.shutdown();
+
+        try
+        {
+            transport.close();
+        }
+        catch (IOException e)
+        {
+            LOGGER.warn("Failed to close HttpClient; it will be abandoned", e);
+        }
+        outbox.close();
+    }
+
+    /**
+     * Queues a delivery for each enabled configuration of the repository which subscribes to the event type and does
+     * not ignore the event. The event is only marshalled if there is at least one. Deliveries are written to the
+     * {@link WebhookOutbox} before they are sent, so they are resumed if they are interrupted. This method does not
+     * wait for the deliveries to be written or completed.
+     *
+     * @param event     the event to send
+     * @param repo      the repository the event happened in
+     * @param eventType the type of the event
+     */
+    public void dispatch(Object event, Repository repo, EventType eventType)
+    {
+        if (!(event instanceof Event))
+        {
+            return;
+        }
+        // The recipients come first, so that an event which every webhook filters out is never written
+        List<WebHookConfiguration> recipients = webHookConfigurationDao.getRecipients(repo, eventType, (Event) event);
+        if (recipients.isEmpty())
+        {
+            return;
+        }
+
+        // Written once, and shared by the deliveries to all webhooks rather than copied for each of them
+        EventPayload payload;
+        try
+        {
+            payload = new EventPayload(eventSerializer.serialize(event));
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("[repo: {}]| Failed to marshal {} payload to JSON. The event will be discarded",
+                    repo, eventType);
+            return;
+        }
+
+        for (WebHookConfiguration webHookConfiguration : recipients)
+        {
+            WebhookDelivery delivery = new WebhookDelivery(repo, webHookConfiguration, eventType, payload,
+                    getCoalescingKey(event, repo, eventType), getPullRequestId(event));
+            outbox.add(delivery);
+        }
+    }
+
+    /**
+     * @return the queue of deliveries waiting for a delivery thread on this node
+     */
+    public DeliveryQueue getDeliveryQueue()
+    {
+        return deliveryQueue;
+    }
+
+    /**
+     * Takes the place of a delivery in its mailbox, in the order the deliveries were written to the outbox, and
+     * queues it if it may be sent now. This is called on the outbox writer thread.
+     */
+    private void admit(WebhookDelivery delivery)
+    {
+        switch (deliveryMailboxes.submit(delivery))
+        {
+            case SEND:
+                deliveryQueue.add(delivery);
+                break;
+            case REJECT:
+                deliveryQueue.spill(delivery);
+                break;
+            default:
+                // Handed out by settled(), once the delivery before it is done
+                break;
+        }
+    }
+
+    private void deliver(WebhookDelivery delivery)
+    {
+        if (delivery.getConfiguration().isBatchDelivery())
+        {
+            batcher.add(delivery);
+        }
+        else
+        {
+            post(Collections.singletonList(delivery));
+        }
+    }
+
+    /**
+     * Sends the deliveries, which are all for the same webhook and event key, in a single request. They are
+     * completed, or retried, together.
+     */
+    private void post(List<WebhookDelivery> deliveries)
+    {
+        WebhookDelivery first = deliveries.get(0);
+        HttpPost post;
+        try
+        {
+            post = new HttpPost(URI.create(first.getConfiguration().getURL()));
+        }
+        catch (IllegalArgumentException e)
+        {
+            onComplete(deliveries, null, e);
+            return;
+        }
+        post.setConfig(getRequestConfig(first.getConfiguration()));
+        post.setEntity(new ByteArrayEntity(getBody(deliveries), ContentType.APPLICATION_JSON));
+        post.setHeaders(new Header[]{
+                new BasicHeader("X-Event-Key", first.getEventType().getHeaderValue()),
+                new BasicHeader("X-Bitbucket-Type", "server")
+        });
+
+        long delay = rateLimiters.reserve(first.getConfiguration(), System.nanoTime());
+        if (delay > 0L)
+        {
+            deliveries.forEach(delivery -> outbox.deferred(delivery, delay));
+            if (!deliveryScheduler.schedule(() -> deliveryExecutor.executeFollowUp(() -> send(deliveries, post)), delay))
+            {
+                LOGGER.info("[repo: {}]| Webhook delivery is shutting down; the delivery will be resumed on start up",
+                        first.getRepository());
+            }
+            return;
+        }
+        send(deliveries, post);
+    }
+
+    private void send(List<WebhookDelivery> deliveries, HttpPost post)
+    {
+        ConcurrencyLimit concurrencyLimit = concurrencyLimits.get(deliveries.get(0).getConfiguration().getURL());
+        switch (concurrencyLimit.tryAcquire(() -> sendWithinLimit(deliveries, post, concurrencyLimit)))
+        {
+            case SEND:
+                sendWithinLimit(deliveries, post, concurrencyLimit);
+                break;
+            case REJECT:
+                // Too many requests are waiting for the host already; these wait in the outbox instead of in memory
+                deliveries.forEach(deliveryQueue::spill);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void sendWithinLimit(List<WebhookDelivery> deliveries, HttpPost post, ConcurrencyLimit concurrencyLimit)
+    {
+        String url = deliveries.get(0).getConfiguration().getURL();
+        CircuitBreaker circuitBreaker = circuitBreakers.get(url);
+        long now = System.currentTimeMillis();
+        if (!circuitBreaker.tryAcquire(now))
+        {
+            sendNext(concurrencyLimit, concurrencyLimit.release());
+            CircuitOpenException error =
+                    new CircuitOpenException(CircuitBreakers.getHost(url), circuitBreaker.getRemainingOpenTime(now));
+            onComplete(deliveries, null, error);
+            return;
+        }
+
+        // The socket timeout only applies to each read on its own, so a response which trickles in could otherwise
+        // take forever. Aborting the request fails it, like any other request which did not get a response
+        long requestDeadline = getDeadline(deliveries.get(0).getConfiguration());
+        AtomicBoolean expired = new AtomicBoolean();
+        Future<?> deadlineTask = deliveryScheduler.scheduleCancellable(() -> {
+            expired.set(true);
+            post.abort();
+        }, requestDeadline);
+
+        long start = System.nanoTime();
+        transport.send(post).whenComplete((response, sendError) -> {
+            // Otherwise the request and its body would be kept until the deadline, long after they are needed
+            if (deadlineTask != null)
+            {
+                deadlineTask.cancel(false);
+            }
+            Throwable error = sendError != null && expired.get() ?
+                    new DeadlineExceededException(CircuitBreakers.getHost(url), requestDeadline) : sendError;
+            if (error != null || response.getStatusLine().getStatusCode() >= 500)
+            {
+                if (circuitBreaker.onFailure(System.currentTimeMillis()))
+                {
+                    LOGGER.warn("Webhooks to {} failed {} times in a row; deliveries to it will fail fast for a while",
+                            CircuitBreakers.getHost(url), circuitBreaker.getFailures());
+                }
+            }
+            else
+            {
+                circuitBreaker.onSuccess();
+            }
+            if (error != null || response.getStatusLine().getStatusCode() >= 500 ||
+                    response.getStatusLine().getStatusCode() == 429)
+            {
+                sendNext(concurrencyLimit, concurrencyLimit.onFailure());
+            }
+            else
+            {
+                sendNext(concurrencyLimit, concurrencyLimit.onSuccess(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+            }
+            onComplete(deliveries, response, error);
+        });
+    }
+
+    /**
+     * Sends the request which was waiting for a place within the concurrency limit, if any. This may be called on
+     * an I/O thread, so the request is sent from a delivery thread. It already holds its place, so it must not be
+     * dropped; only once delivery is shutting down is the place given back, and the deliveries of the request are
+     * left in the outbox to be resumed on start up.
+     */
+    private void sendNext(ConcurrencyLimit concurrencyLimit, Runnable request)
+    {
+        while (request != null)
+        {
+            try
+            {
+                deliveryExecutor.executeFollowUp(request);
+                return;
+            }
+            catch (RejectedExecutionException e)
+            {
+                request = concurrencyLimit.release();
+            }
+        }
+    }
+
+    /**
+     * Completes the deliveries which were sent in a single request. If the request failed, they are retried together,
+     * as the same request, rather than each on its own. Otherwise they would be batched again with newer deliveries,
+     * and a delivery which the webhook keeps failing on would take those down with it. A batch is given up on once
+     * the delivery in it with the most attempts has run out of them.
+     */
+    private void onComplete(List<WebhookDelivery> deliveries, HttpResponse response, Throwable error)
+    {
+        if (error == null && response.getStatusLine().getStatusCode() < 400)
+        {
+            for (WebhookDelivery delivery : deliveries)
+            {
+                outbox.delivered(delivery);
+                settled(delivery);
+            }
+            return;
+        }
+
+        WebhookDelivery first = deliveries.get(0);
+        if (error instanceof CircuitOpenException)
+        {
+            // The deliveries were never sent, so they wait for the circuit without using up an attempt. Otherwise a
+            // long outage would give up on deliveries which were not even tried
+            long delay = ((CircuitOpenException) error).getRemainingOpenTime();
+            LOGGER.debug("[repo: {}]| Webhook [{}({})] is unavailable; sending attempt {} in {} ms",
+                    first.getRepository(),
+                    first.getConfiguration().getTitle(),
+                    first.getConfiguration().getURL(),
+                    first.getAttempt(),
+                    delay);
+            defer(deliveries, delay);
+            return;
+        }
+
+        String reason = error != null ? error.toString() : "response code:" + response.getStatusLine().getStatusCode();
+        int attempt = 0;
+        for (WebhookDelivery delivery : deliveries)
+        {
+            attempt = Math.max(attempt, delivery.getAttempt());
+        }
+        long delay = retryPolicy.getRetryDelay(attempt, first.getConfiguration().getMaxAttempts(), response, error);
+        if (delay != RetryPolicy.NO_RETRY)
+        {
+            retry(deliveries, attempt, delay, reason);
+            return;
+        }
+
+        // This may be called on an I/O thread, which must not wait for the database
+        deliveryExecutor.executeFollowUp(() -> deliveries.forEach(delivery -> giveUp(delivery, reason, error)));
+    }
+
+    private void giveUp(WebhookDelivery delivery, String reason, Throwable error)
+    {
+        Repository repo = delivery.getRepository();
+        WebHookConfiguration webHookConfiguration = delivery.getConfiguration();
+
+        WebhookDeadLetter deadLetter;
+        try
+        {
+            deadLetter = deadLetterDao.createDeadLetter(delivery, reason);
+        }
+        catch (RuntimeException e)
+        {
+            LOGGER.warn("[repo: {}]| Failed to keep the failed delivery as a dead letter", repo, e);
+            deadLetter = null;
+        }
+        outbox.delivered(delivery);
+        settled(delivery);
+
+        if (deadLetter != null)
+        {
+            LOGGER.error("[repo: {}]| Gave up posting to webhook [{}({})] after {} attempts ({}); it was kept as " +
+                            "dead letter {}",
+                    repo,
+                    webHookConfiguration.getTitle(),
+                    webHookConfiguration.getURL(),
+                    delivery.getAttempt(),
+                    reason,
+                    deadLetter.getID(),
+                    error);
+            return;
+        }
+
+        // The body may be megabytes, so it is only logged in full when asked for
+        if (error != null)
+        {
+            LOGGER.error("[repo: {}]| Something went wrong while posting a body of {} bytes to webhook: [{}({})]",
+                    repo,
+                    delivery.getPayload().getLength(),
+                    webHookConfiguration.getTitle(),
+                    webHookConfiguration.getURL(),
+                    error);
+        }
+        else
+        {
+            LOGGER.error("[repo: {}]| Something went wrong while posting ({}) a body of {} bytes to webhook: [{}({})]",
+                    repo,
+                    reason,
+                    delivery.getPayload().getLength(),
+                    webHookConfiguration.getTitle(),
+                    webHookConfiguration.getURL());
+        }
+        if (LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("[repo: {}]| Body given up on for webhook [{}]: \n{}", repo,
+                    webHookConfiguration.getTitle(), delivery.getBody());
+        }
+    }
+
+    /**
+     * @return the timeouts of the webhook, where it sets its own, or the defaults
+     */
+    private RequestConfig getRequestConfig(WebHookConfiguration configuration)
+    {
+        if (configuration.getConnectTimeout() <= 0 && configuration.getSocketTimeout() <= 0)
+        {
+            return requestConfig;
+        }
+
+        RequestConfig.Builder builder = RequestConfig.copy(requestConfig);
+        if (configuration.getConnectTimeout() > 0)
+        {
+            builder.setConnectTimeout(toMillis(configuration.getConnectTimeout()));
+        }
+        if (configuration.getSocketTimeout() > 0)
+        {
+            builder.setSocketTimeout(toMillis(configuration.getSocketTimeout()));
+        }
+        return builder.build();
+    }
+
+    private static int toMillis(int seconds)
+    {
+        return (int) Math.min(Integer.MAX_VALUE, TimeUnit.SECONDS.toMillis(seconds));
+    }
+
+    /**
+     * @return the number of milliseconds a request to the webhook may take in total
+     */
+    private long getDeadline(WebHookConfiguration configuration)
+    {
+        return configuration.getDeadline() > 0 ? TimeUnit.SECONDS.toMillis(configuration.getDeadline()) : deadline;
+    }
+
+    /**
+     * Lets the next delivery which had to wait for this one to be settled go.
+     */
+    private void settled(WebhookDelivery delivery)
+    {
+        WebhookDelivery next = deliveryMailboxes.settled(delivery);
+        if (next == null)
+        {
+            return;
+        }
+
+        // This may be called on an I/O thread. The next delivery already holds its mailbox, so it is not queued
+        // again, where it could be dropped
+        try
+        {
+            deliveryExecutor.executeFollowUp(() -> deliver(next));
+        }
+        catch (RejectedExecutionException e)
+        {
+            LOGGER.info("[repo: {}]| Webhook delivery is shutting down; the delivery will be resumed on start up",
+                    next.getRepository());
+        }
+    }
+
+    /**
+     * Sends the deliveries which were waiting behind a delivery which was left in the outbox after it, so that they
+     * are resumed in order.
+     */
+    private void spilled(WebhookDelivery delivery)
+    {
+        deliveryMailboxes.spilled(delivery).forEach(deliveryQueue::spill);
+    }
+
+    /**
+     * @return the key of the deliveries which must be sent in order with this one, or {@code null} if it may be sent
+     *         at any time
+     */
+    private static Object getOrderingKey(WebhookDelivery delivery, DeliveryOrdering ordering)
+    {
+        // A batch keeps its deliveries in order by itself; waiting for each of them would only make batches smaller
+        if (ordering == DeliveryOrdering.NONE || delivery.getConfiguration().isBatchDelivery())
+        {
+            return null;
+        }
+        // A webhook belongs to a single repository, so its ID covers both
+        int configId = delivery.getConfiguration().getID();
+        if (ordering == DeliveryOrdering.PULL_REQUEST && delivery.getPullRequestId() != null)
+        {
+            return configId + ":" + delivery.getPullRequestId();
+        }
+        return configId;
+    }
+
+    /**
+     * @return the ID of the pull request the event is about, or {@code null}
+     */
+    private static String getPullRequestId(Object event)
+    {
+        if (event instanceof StreamingPullRequestEvent)
+        {
+            return ((StreamingPullRequestEvent) event).getPullRequestId();
+        }
+        if (event instanceof BitbucketServerPullRequestEvent)
+        {
+            return ((BitbucketServerPullRequestEvent) event).getPullrequest().getId();
+        }
+        return null;
+    }
+
+    /**
+     * @return what the event is about, for events of which only the latest state matters, or {@code null}. Together
+     *         with the webhook, which the delivery already has, this decides which deliveries supersede each other
+     */
+    private static String getCoalescingKey(Object event, Repository repo, EventType eventType)
+    {
+        if (WebhookDelivery.PULL_REQUEST_STATE_TYPES.contains(eventType))
+        {
+            // Without the event type, so that an update and a rescope of the same pull request supersede each other
+            String pullRequestId = getPullRequestId(event);
+            return pullRequestId == null ? null : repo.getId() + ":" + pullRequestId;
+        }
+        if (event instanceof BuildStatusEvent)
+        {
+            // A commit can have a status for each of its builds, which are told apart by their URL
+            BuildStatusEvent buildStatusEvent = (BuildStatusEvent) event;
+            return buildStatusEvent.getCommit() + " " + buildStatusEvent.getUrl();
+        }
+        return null;
+    }
+
+    /**
+     * @return the body of the single delivery, or the bodies of all deliveries as a JSON array if the webhook
+     *         accepts batches, even if there is only one. The body of a single delivery is not copied, so it must
+     *         not be modified
+     */
+    private static byte[] getBody(List<WebhookDelivery> deliveries)
+    {
+        if (!deliveries.get(0).getConfiguration().isBatchDelivery())
+        {
+            return deliveries.get(0).getPayload().getBytes();
+        }
+
+        int length = deliveries.size() + 1;
+        for (WebhookDelivery delivery : deliveries)
+        {
+            length += delivery.getPayload().getLength();
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream(length);
+        body.write('[');
+        for (int i = 0; i < deliveries.size(); i++)
+        {
+            if (i > 0)
+            {
+                body.write(',');
+            }
+            byte[] bytes = deliveries.get(i).getPayload().getBytes();
+            body.write(bytes, 0, bytes.length);
+        }
+        body.write(']');
+        return body.toByteArray();
+    }
+
+    private void retry(List<WebhookDelivery> deliveries, int attempt, long delay, String reason)
+    {
+        WebhookDelivery first = deliveries.get(0);
+        LOGGER.warn("[repo: {}]| Attempt {} to post {} {} to webhook [{}({})] failed ({}); retrying in {} ms",
+                first.getRepository(),
+                attempt,
+                deliveries.size(),
+                deliveries.size() == 1 ? "delivery" : "deliveries",
+                first.getConfiguration().getTitle(),
+                first.getConfiguration().getURL(),
+                reason,
+                delay);
+
+        deliveries.forEach(WebhookDelivery::nextAttempt);
+        defer(deliveries, delay);
+    }
+
+    /**
+     * Sends the deliveries again, in the same request, once the delay has passed. They do not go through the
+     * {@link DeliveryBatcher} again.
+     */
+    private void defer(List<WebhookDelivery> deliveries, long delay)
+    {
+        deliveries.forEach(delivery -> outbox.deferred(delivery, delay));
+        if (!deliveryScheduler.schedule(() -> deliveryExecutor.executeFollowUp(() -> post(deliveries)), delay))
+        {
+            LOGGER.info("[repo: {}]| Webhook delivery is shutting down; the retry will be resumed on start up",
+                    deliveries.get(0).getRepository());
+        }
+    }
+}
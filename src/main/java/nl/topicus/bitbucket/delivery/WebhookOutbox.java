@@ -0,0 +1,487 @@
+package nl.topicus.bitbucket.delivery;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.util.UncheckedOperation;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import nl.topicus.bitbucket.events.EventType;
+import nl.topicus.bitbucket.persistence.WebHookConfiguration;
+import nl.topicus.bitbucket.persistence.WebHookConfigurationDao;
+import nl.topicus.bitbucket.persistence.WebhookOutboxDao;
+import nl.topicus.bitbucket.persistence.WebhookOutboxEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Keeps a durable record of every delivery which has been accepted but not yet completed.
+ * <p>
+ * Deliveries are handed to a single writer thread, which inserts everything that queued up while it was busy in one
+ * transaction. The cost of a commit is therefore shared by all events arriving in the meantime, rather than paid by
+ * each of them on the event thread. A delivery is only passed on to be sent once it is in the outbox, and completed
+ * deliveries are deleted in bulk by the same thread.
+ * <p>
+ * Each row is claimed for a limited time by the node which wrote it, and the claim is renewed for as long as the
+ * delivery is in progress. The writer periodically claims rows whose claim has expired, left behind by a restart, a
+ * plugin reload or a cluster node going away, and sends them again, continuing from the attempt they had reached.
+ * Delivery is therefore at-least-once.
+ */
+@Component
+public class WebhookOutbox
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(WebhookOutbox.class);
+
+    /**
+     * How long, in milliseconds, the writer waits for new deliveries before it deletes completed ones anyway.
+     */
+    private static final long POLL_INTERVAL = 1000L;
+
+    private final int batchSize;
+    /**
+     * The claim expiry of each delivery in progress, by entry ID.
+     */
+    private final Map<Integer, Long> inFlight = new ConcurrentHashMap<>();
+    private final long lease;
+    private final WebhookOutboxDao outboxDao;
+    private final Map<Integer, Integer> pendingAttempts = new ConcurrentHashMap<>();
+    private final BlockingQueue<Integer> pendingDeletes = new LinkedBlockingQueue<>();
+    private final Map<Integer, Long> pendingExtensions = new ConcurrentHashMap<>();
+    private final BlockingQueue<WebhookDelivery> pendingWrites = new LinkedBlockingQueue<>();
+    private final long recoveryInterval;
+    private final RepositoryService repositoryService;
+    private final SecurityService securityService;
+    private final long shutdownTimeout;
+    private final WebHookConfigurationDao webHookConfigurationDao;
+
+    private volatile boolean closed;
+    private volatile Consumer<WebhookDelivery> sink;
+    private Thread writer;
+
+    @Autowired
+    public WebhookOutbox(@ComponentImport RepositoryService repositoryService,
+                         @ComponentImport SecurityService securityService,
+                         DeliverySettings settings,
+                         WebHookConfigurationDao webHookConfigurationDao,
+                         WebhookOutboxDao outboxDao)
+    {
+        this.repositoryService = repositoryService;
+        this.securityService = securityService;
+        this.webHookConfigurationDao = webHookConfigurationDao;
+        this.outboxDao = outboxDao;
+
+        batchSize = settings.getOutboxBatchSize();
+        lease = TimeUnit.SECONDS.toMillis(settings.getOutboxLease());
+        recoveryInterval = TimeUnit.SECONDS.toMillis(settings.getOutboxRecoveryInterval());
+        shutdownTimeout = TimeUnit.SECONDS.toMillis(settings.getShutdownTimeout());
+    }
+
+    /**
+     * Starts the writer thread, which also begins resuming any deliveries abandoned in the outbox.
+     *
+     * @param sink receives each delivery once it has been written, or resumed, and should send it
+     */
+    public synchronized void start(Consumer<WebhookDelivery> sink)
+    {
+        if (writer != null)
+        {
+            throw new IllegalStateException("The webhook outbox has already been started");
+        }
+
+        this.sink = sink;
+        writer = new Thread(this::run, "webhooks-outbox");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a delivery to be written to the outbox. It is passed on to the sink once the write has completed.
+     *
+     * @param delivery the delivery to write
+     */
+    public void add(WebhookDelivery delivery)
+    {
+        if (closed)
+        {
+            sink.accept(delivery);
+        }
+        else
+        {
+            pendingWrites.add(delivery);
+        }
+    }
+
+    /**
+     * Marks a delivery as completed, whether it succeeded or not, so that its row is deleted.
+     *
+     * @param delivery the completed delivery
+     */
+    public void delivered(WebhookDelivery delivery)
+    {
+        Integer id = delivery.getOutboxId();
+        if (id != null && inFlight.remove(id) != null)
+        {
+            pendingDeletes.add(id);
+        }
+    }
+
+    /**
+     * Keeps the claim on a delivery which has to wait before it is sent, for instance to be retried, so that no
+     * other node resumes it while it waits. The attempt it has reached is recorded along with the claim.
+     *
+     * @param delivery the waiting delivery
+     * @param delay    the number of milliseconds until the delivery is sent
+     */
+    public void deferred(WebhookDelivery delivery, long delay)
+    {
+        Integer id = delivery.getOutboxId();
+        if (id != null && inFlight.containsKey(id))
+        {
+            // Recorded before the extension, so that the attempt is written along with it
+            pendingAttempts.put(id, delivery.getAttempt());
+            pendingExtensions.put(id, System.currentTimeMillis() + delay + lease);
+        }
+    }
+
+    /**
+     * Gives up this node's claim on a delivery without completing it, leaving it in the outbox so that the recovery
+     * resumes it, on any node, once it next runs after the recovery interval has passed.
+     *
+     * @param delivery the delivery to leave in the outbox
+     * @return {@code true} if the delivery was left in the outbox, or {@code false} if it was never written to it
+     */
+    public boolean spill(WebhookDelivery delivery)
+    {
+        Integer id = delivery.getOutboxId();
+        if (id == null || inFlight.remove(id) == null)
+        {
+            return false;
+        }
+        // Rather than releasing the claim straight away, keep it until the next recovery is due, so the delivery
+        // is not claimed again while the queue is still full
+        pendingExtensions.put(id, System.currentTimeMillis() + recoveryInterval);
+        return true;
+    }
+
+    /**
+     * Writes the deliveries which are still queued, passes them on to the sink and stops the writer thread. Anything
+     * added afterwards is passed on to the sink directly, without being written.
+     * <p>
+     * If the writer does not finish in time it is interrupted, and the deliveries it has not written yet are passed
+     * on to the sink here, unwritten. Should the writer still not stop, they are left to it: passing them on from two
+     * threads at once would let them overtake each other.
+     */
+    public void stop()
+    {
+        closed = true;
+
+        Thread thread;
+        synchronized (this)
+        {
+            thread = writer;
+        }
+        if (thread == null)
+        {
+            return;
+        }
+
+        if (!join(thread))
+        {
+            thread.interrupt();
+            if (!join(thread))
+            {
+                LOGGER.warn("The webhook outbox writer did not stop within {} ms; {} deliveries are left to it",
+                        shutdownTimeout, pendingWrites.size());
+                return;
+            }
+        }
+
+        List<WebhookDelivery> unwritten = new ArrayList<>();
+        pendingWrites.drainTo(unwritten);
+        unwritten.forEach(sink);
+    }
+
+    /**
+     * Deletes the rows of completed deliveries, and releases the claim on the rows of deliveries which have not
+     * completed so they are resumed as soon as the plugin starts again. This should be called once no more
+     * deliveries are in progress.
+     */
+    public void close()
+    {
+        deletePending();
+        // Writes the attempts reached, before the claims of the deliveries still in progress are released below
+        extendPending();
+
+        if (!inFlight.isEmpty())
+        {
+            List<Integer> undelivered = new ArrayList<>(inFlight.keySet());
+            try
+            {
+                outboxDao.releaseEntries(undelivered);
+                LOGGER.info("{} webhook deliveries were left in the outbox, and will be resumed on start up",
+                        undelivered.size());
+            }
+            catch (RuntimeException e)
+            {
+                LOGGER.warn("Failed to release {} webhook deliveries in the outbox; they will be resumed once their " +
+                        "claim expires", undelivered.size(), e);
+            }
+            inFlight.clear();
+        }
+    }
+
+    private void run()
+    {
+        long nextRecovery = 0L;
+        while (!closed || !pendingWrites.isEmpty())
+        {
+            List<WebhookDelivery> batch = new ArrayList<>(batchSize);
+            try
+            {
+                WebhookDelivery first = pendingWrites.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first != null)
+                {
+                    batch.add(first);
+                    pendingWrites.drainTo(batch, batchSize - 1);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+
+            if (!batch.isEmpty())
+            {
+                write(batch);
+            }
+            deletePending();
+            renewClaims();
+            extendPending();
+
+            if (!closed && System.currentTimeMillis() >= nextRecovery)
+            {
+                // Keep claiming full chunks on consecutive passes, in between writes, until the backlog is cleared
+                nextRecovery = recover() ? 0L : System.currentTimeMillis() + recoveryInterval;
+            }
+        }
+    }
+
+    /**
+     * @return whether the thread has stopped within the shutdown timeout
+     */
+    private boolean join(Thread thread)
+    {
+        try
+        {
+            thread.join(shutdownTimeout);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        return !thread.isAlive();
+    }
+
+    private void write(List<WebhookDelivery> batch)
+    {
+        try
+        {
+            long claimExpiry = System.currentTimeMillis() + lease;
+            WebhookOutboxEntry[] entries = outboxDao.createEntries(batch, claimExpiry);
+            for (int i = 0; i < entries.length; i++)
+            {
+                Integer id = entries[i].getID();
+                inFlight.put(id, claimExpiry);
+                batch.get(i).setOutboxId(id);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            LOGGER.error("Failed to write {} webhook deliveries to the outbox; they will be sent, but will not be " +
+                    "resumed if delivery is interrupted", batch.size(), e);
+        }
+        batch.forEach(sink);
+    }
+
+    private void deletePending()
+    {
+        List<Integer> ids = new ArrayList<>();
+        pendingDeletes.drainTo(ids);
+        if (ids.isEmpty())
+        {
+            return;
+        }
+
+        try
+        {
+            outboxDao.deleteEntries(ids);
+        }
+        catch (RuntimeException e)
+        {
+            LOGGER.warn("Failed to delete {} completed webhook deliveries from the outbox; they will be sent again " +
+                    "once their claim expires", ids.size(), e);
+        }
+    }
+
+    /**
+     * Queues the renewal of the claims of deliveries in progress which would otherwise expire within half a lease,
+     * such as those waiting in a long queue, so that they are not resumed while they are still being sent.
+     */
+    private void renewClaims()
+    {
+        long renewBefore = System.currentTimeMillis() + lease / 2;
+        for (Map.Entry<Integer, Long> claim : inFlight.entrySet())
+        {
+            if (claim.getValue() < renewBefore)
+            {
+                pendingExtensions.putIfAbsent(claim.getKey(), System.currentTimeMillis() + lease);
+            }
+        }
+    }
+
+    private void extendPending()
+    {
+        if (pendingExtensions.isEmpty())
+        {
+            return;
+        }
+
+        Map<Integer, Long> claimExpiries = new HashMap<>();
+        Map<Integer, Integer> attempts = new HashMap<>();
+        for (Integer id : pendingExtensions.keySet())
+        {
+            Long claimExpiry = pendingExtensions.remove(id);
+            if (claimExpiry != null)
+            {
+                claimExpiries.put(id, claimExpiry);
+                Integer attempt = pendingAttempts.remove(id);
+                if (attempt != null)
+                {
+                    attempts.put(id, attempt);
+                }
+            }
+        }
+
+        try
+        {
+            outboxDao.extendClaims(claimExpiries, attempts);
+            claimExpiries.forEach(inFlight::replace);
+        }
+        catch (RuntimeException e)
+        {
+            LOGGER.warn("Failed to extend the claim on {} webhook deliveries in progress; they may be resumed " +
+                    "by another node in the meantime", claimExpiries.size(), e);
+        }
+    }
+
+    /**
+     * Claims and resumes a chunk of abandoned deliveries.
+     *
+     * @return {@code true} if a full chunk was claimed, meaning there may be more
+     */
+    private boolean recover()
+    {
+        long now = System.currentTimeMillis();
+        long claimExpiry = now + lease;
+        WebhookOutboxEntry[] entries;
+        try
+        {
+            entries = outboxDao.claimEntries(now, claimExpiry, batchSize);
+        }
+        catch (RuntimeException e)
+        {
+            LOGGER.warn("Failed to claim abandoned webhook deliveries from the outbox", e);
+            return false;
+        }
+
+        if (entries.length > 0)
+        {
+            LOGGER.info("Resuming {} webhook deliveries from the outbox", entries.length);
+        }
+        for (WebhookOutboxEntry entry : entries)
+        {
+            Integer id = entry.getID();
+            if (inFlight.replace(id, claimExpiry) != null)
+            {
+                // Still being sent by this node, but its claim could not be renewed in time. Claiming it again has
+                // renewed it, and sending it again would deliver it twice
+                continue;
+            }
+
+            WebhookDelivery delivery;
+            try
+            {
+                delivery = restore(entry);
+            }
+            catch (RuntimeException e)
+            {
+                LOGGER.warn("Failed to resume webhook delivery {} from the outbox; it will be retried once its " +
+                        "claim expires", id, e);
+                continue;
+            }
+
+            if (delivery == null)
+            {
+                pendingDeletes.add(id);
+            }
+            else
+            {
+                inFlight.put(id, claimExpiry);
+                delivery.setOutboxId(id);
+                delivery.setRecovered();
+                sink.accept(delivery);
+            }
+        }
+        return entries.length == batchSize;
+    }
+
+    /**
+     * @return the delivery described by the entry, or {@code null} if its repository or configuration no longer
+     *         exists, or the configuration has been disabled
+     */
+    private WebhookDelivery restore(WebhookOutboxEntry entry)
+    {
+        EventType eventType;
+        try
+        {
+            eventType = EventType.valueOf(entry.getEventType());
+        }
+        catch (IllegalArgumentException e)
+        {
+            LOGGER.warn("Discarding webhook delivery {} with unknown event type {}", entry.getID(), entry.getEventType());
+            return null;
+        }
+
+        WebHookConfiguration configuration = webHookConfigurationDao.getWebHookConfiguration(
+                String.valueOf(entry.getConfigurationId()));
+        if (configuration == null || !configuration.isEnabled() ||
+                !configuration.getRepositoryId().equals(entry.getRepositoryId()))
+        {
+            return null;
+        }
+
+        Repository repository = securityService.withPermission(Permission.REPO_READ, "Resuming webhook deliveries")
+                .call((UncheckedOperation<Repository>) () -> repositoryService.getById(entry.getRepositoryId()));
+        if (repository == null)
+        {
+            return null;
+        }
+
+        WebhookDelivery delivery = new WebhookDelivery(repository, configuration, eventType,
+                new EventPayload(entry.getBody()), entry.getCoalescingKey(), entry.getPullRequestId());
+        delivery.setAttempt(entry.getAttempt());
+        return delivery;
+    }
+}
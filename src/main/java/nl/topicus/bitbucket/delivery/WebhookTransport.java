@@ -0,0 +1,22 @@
+package nl.topicus.bitbucket.delivery;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends webhook requests over HTTP.
+ */
+public interface WebhookTransport extends Closeable
+{
+    /**
+     * Sends the request. The returned future completes with the response once it has been received and its
+     * entity consumed, or exceptionally if the request could not be sent.
+     *
+     * @param request the request to send
+     * @return the response
+     */
+    CompletableFuture<HttpResponse> send(HttpUriRequest request);
+}
@@ -112,16 +112,23 @@ public class BitbucketPushChange
         }
 
         public void setType(RefType type)
+        {
+            this.type = getTypeName(type);
+        }
+
+        /**
+         * @return the name of a standard ref type, such as {@code branch}, or {@code null} for any other type
+         */
+        public static String getTypeName(RefType type)
         {
             for (StandardRefType t : StandardRefType.values())
             {
                 if (t.equals(type))
                 {
-                    this.type = t.name().toLowerCase(Locale.ENGLISH);
-                    return;
+                    return t.name().toLowerCase(Locale.ENGLISH);
                 }
             }
-            this.type = null;
+            return null;
         }
 
         public static class Target
@@ -0,0 +1,83 @@
+package nl.topicus.bitbucket.events;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectWriter;
+import org.codehaus.jackson.util.ByteArrayBuilder;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Turns events into the JSON bodies sent to webhooks.
+ * <p>
+ * Building the serializers of an event class means introspecting the class and all classes it refers to, which costs
+ * far more than writing the event itself. A single mapper is therefore shared, with an {@link ObjectWriter} per event
+ * class; the writers of the events this plugin sends are built, and their serializers cached, when the plugin
+ * starts. Mappers and writers are thread-safe once configured, so the writers are used concurrently by all threads.
+ * <p>
+ * Events are written straight to UTF-8 bytes, rather than to a string which would have to be encoded again for every
+ * webhook it is sent to. Each thread writes into a buffer of its own, which is reset after every event, so only the
+ * final copy of the bytes is allocated per event; the buffer keeps a single block of at most 256 KB in between. A
+ * {@link StreamingEvent} writes itself to a generator of the same mapper.
+ */
+@Component
+public class EventSerializer
+{
+    private static final Class<?>[] EVENT_CLASSES = {
+            BitbucketPushEvent.class,
+            BitbucketServerPullRequestEvent.class,
+            BuildStatusEvent.class
+    };
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final ThreadLocal<ByteArrayBuilder> buffers = ThreadLocal.withInitial(ByteArrayBuilder::new);
+    private final ConcurrentMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+
+    public EventSerializer()
+    {
+        for (Class<?> eventClass : EVENT_CLASSES)
+        {
+            writers.put(eventClass, createWriter(eventClass));
+        }
+    }
+
+    /**
+     * @param event the event to write
+     * @return the event as JSON, encoded as UTF-8
+     * @throws IOException if the event cannot be written as JSON
+     */
+    public byte[] serialize(Object event) throws IOException
+    {
+        ByteArrayBuilder buffer = buffers.get();
+        try
+        {
+            if (event instanceof StreamingEvent)
+            {
+                try (JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator(buffer, JsonEncoding.UTF8))
+                {
+                    ((StreamingEvent) event).writeTo(generator);
+                }
+            }
+            else
+            {
+                writers.computeIfAbsent(event.getClass(), this::createWriter).writeValue(buffer, event);
+            }
+            return buffer.toByteArray();
+        }
+        finally
+        {
+            buffer.reset();
+        }
+    }
+
+    private ObjectWriter createWriter(Class<?> eventClass)
+    {
+        // Looking the serializer up builds it, and caches it in the mapper for every writer created from it
+        mapper.canSerialize(eventClass);
+        return mapper.writerWithType(eventClass);
+    }
+}
@@ -1,6 +1,9 @@
 package nl.topicus.bitbucket.events;
 
+import nl.topicus.bitbucket.persistence.WebHookConfiguration;
+
 import javax.annotation.Nonnull;
+import java.util.EnumSet;
 
 import static java.util.Objects.requireNonNull;
 import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_BRANCH_CREATED;
@@ -48,4 +51,52 @@ public enum EventType {
     public String getQueryColumn() {
         return queryColumn;
     }
+
+    /**
+     * @return the event types the configuration subscribes to, whether or not it is enabled
+     */
+    @Nonnull
+    public static EnumSet<EventType> getSubscriptions(WebHookConfiguration configuration) {
+        EnumSet<EventType> subscriptions = EnumSet.noneOf(EventType.class);
+        for (EventType eventType : values()) {
+            if (eventType.isSubscribed(configuration)) {
+                subscriptions.add(eventType);
+            }
+        }
+        return subscriptions;
+    }
+
+    /**
+     * @return whether the configuration subscribes to events of this type, whether or not it is enabled
+     */
+    public boolean isSubscribed(WebHookConfiguration configuration) {
+        switch (this) {
+            case PULL_REQUEST_CREATED:
+                return configuration.isPrCreated();
+            case PULL_REQUEST_UPDATED:
+                return configuration.isPrUpdated();
+            case PULL_REQUEST_RESCOPED:
+                return configuration.isPrRescoped();
+            case PULL_REQUEST_REOPENED:
+                return configuration.isPrReopened();
+            case PULL_REQUEST_MERGED:
+                return configuration.isPrMerged();
+            case PULL_REQUEST_DECLINED:
+                return configuration.isPrDeclined();
+            case PULL_REQUEST_COMMENT:
+                return configuration.isPrCommented();
+            case BUILD_STATUS:
+                return configuration.isBuildStatus();
+            case REPO_PUSH:
+                return configuration.isRepoPush();
+            case TAG_CREATED:
+                return configuration.isTagCreated();
+            case BRANCH_CREATED:
+                return configuration.isBranchCreated();
+            case BRANCH_DELETED:
+                return configuration.isBranchDeleted();
+            default:
+                return false;
+        }
+    }
 }
@@ -0,0 +1,18 @@
+package nl.topicus.bitbucket.events;
+
+import org.codehaus.jackson.JsonGenerator;
+
+import java.io.IOException;
+
+/**
+ * An event which writes its own JSON, straight from the Bitbucket objects it wraps, rather than being mapped by
+ * Jackson from a model built for it first.
+ */
+public interface StreamingEvent extends Event
+{
+    /**
+     * @param generator the generator to write the event to, as a single JSON object
+     * @throws IOException if the event cannot be written
+     */
+    void writeTo(JsonGenerator generator) throws IOException;
+}
@@ -0,0 +1,57 @@
+package nl.topicus.bitbucket.events;
+
+import com.atlassian.bitbucket.event.pull.PullRequestCommentEvent;
+import com.atlassian.bitbucket.event.pull.PullRequestEvent;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import nl.topicus.bitbucket.model.ModelWriter;
+import org.codehaus.jackson.JsonGenerator;
+
+import java.io.IOException;
+
+/**
+ * A pull request event, written as the same JSON as the {@link BitbucketServerPullRequestEvent} created for it by
+ * {@link Events#createPullrequestEvent}, but straight from the pull request.
+ */
+public class StreamingPullRequestEvent implements StreamingEvent
+{
+    private final ApplicationPropertiesService appPropSvc;
+    private final PullRequestEvent event;
+    private final String link;
+
+    /**
+     * @param link the URL of the pull request
+     */
+    public StreamingPullRequestEvent(PullRequestEvent event, String link, ApplicationPropertiesService appPropSvc)
+    {
+        this.appPropSvc = appPropSvc;
+        this.event = event;
+        this.link = link;
+    }
+
+    public String getPullRequestId()
+    {
+        return String.valueOf(event.getPullRequest().getId());
+    }
+
+    @Override
+    public void writeTo(JsonGenerator generator) throws IOException
+    {
+        generator.writeStartObject();
+        generator.writeFieldName("actor");
+        ModelWriter.writeActor(generator, event.getUser());
+        generator.writeFieldName("pullrequest");
+        ModelWriter.writePullrequest(generator, event.getPullRequest(), link, appPropSvc);
+        generator.writeFieldName("repository");
+        ModelWriter.writeRepository(generator, event.getPullRequest().getToRef().getRepository(), appPropSvc);
+        // The model leaves out an empty comment, as it does every empty property
+        if (event instanceof PullRequestCommentEvent)
+        {
+            String comment = ((PullRequestCommentEvent) event).getComment().getText();
+            if (comment != null && !comment.isEmpty())
+            {
+                generator.writeStringField("comment", comment);
+            }
+        }
+        generator.writeEndObject();
+    }
+}
@@ -0,0 +1,79 @@
+package nl.topicus.bitbucket.events;
+
+import com.atlassian.bitbucket.event.repository.RepositoryRefsChangedEvent;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.RefChangeType;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import nl.topicus.bitbucket.model.ModelWriter;
+import org.codehaus.jackson.JsonGenerator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A push, written as the same JSON as the {@link BitbucketPushEvent} created for it by
+ * {@link Events#createPushEvent}, but straight from its ref changes. A push can change thousands of refs, which
+ * would otherwise all be copied into models first, only to be thrown away once they are written.
+ */
+public class StreamingPushEvent implements StreamingEvent, Ignorable
+{
+    private final ApplicationPropertiesService appPropSvc;
+    private final RepositoryRefsChangedEvent event;
+
+    private List<String> branches;
+
+    public StreamingPushEvent(RepositoryRefsChangedEvent event, ApplicationPropertiesService appPropSvc)
+    {
+        this.appPropSvc = appPropSvc;
+        this.event = event;
+    }
+
+    @Override
+    public Optional<String> getUsername()
+    {
+        return Optional.ofNullable(event.getUser() == null ? null : event.getUser().getName());
+    }
+
+    /**
+     * @return the names of the refs which were created or updated, like {@link BitbucketPushEvent#getBranches()}
+     */
+    @Override
+    public List<String> getBranches()
+    {
+        // Asked for by every webhook of the repository, so only collected once
+        if (branches == null)
+        {
+            List<String> names = new ArrayList<>();
+            for (RefChange change : event.getRefChanges())
+            {
+                if (change.getType() == RefChangeType.ADD || change.getType() == RefChangeType.UPDATE)
+                {
+                    names.add(change.getRef().getDisplayId());
+                }
+            }
+            branches = names;
+        }
+        return branches;
+    }
+
+    @Override
+    public void writeTo(JsonGenerator generator) throws IOException
+    {
+        generator.writeStartObject();
+        generator.writeFieldName("actor");
+        ModelWriter.writeActor(generator, event.getUser());
+        generator.writeFieldName("repository");
+        ModelWriter.writeRepository(generator, event.getRepository(), appPropSvc);
+        generator.writeObjectFieldStart("push");
+        generator.writeArrayFieldStart("changes");
+        for (RefChange change : event.getRefChanges())
+        {
+            ModelWriter.writeChange(generator, change);
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.writeEndObject();
+    }
+}
@@ -0,0 +1,179 @@
+package nl.topicus.bitbucket.model;
+
+import com.atlassian.bitbucket.project.Project;
+import com.atlassian.bitbucket.pull.PullRequest;
+import com.atlassian.bitbucket.pull.PullRequestRef;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.bitbucket.user.ApplicationUser;
+import nl.topicus.bitbucket.events.BitbucketPushChange;
+import org.codehaus.jackson.JsonGenerator;
+
+import java.io.IOException;
+
+/**
+ * Writes the JSON of the models created by {@link Models} straight from the Bitbucket objects, without creating the
+ * models first. Each method writes the same properties Jackson writes for the model, with the same values, so a
+ * webhook receives the same JSON either way.
+ */
+public final class ModelWriter
+{
+    private ModelWriter()
+    {
+    }
+
+    /**
+     * @see Models#createRepository(Repository, ApplicationPropertiesService)
+     */
+    public static void writeRepository(JsonGenerator generator, Repository repository,
+                                       ApplicationPropertiesService appPropSvc) throws IOException
+    {
+        Project project = repository.getProject();
+        generator.writeStartObject();
+        generator.writeStringField("scmId", repository.getScmId());
+        generator.writeFieldName("project");
+        writeProject(generator, project);
+        generator.writeStringField("slug", repository.getSlug());
+        String url = Models.getRepositoryUrl(repository, appPropSvc);
+        if (url == null)
+        {
+            generator.writeNullField("links");
+        }
+        else
+        {
+            generator.writeObjectFieldStart("links");
+            generator.writeArrayFieldStart("self");
+            generator.writeStartObject();
+            generator.writeStringField("href", url);
+            generator.writeEndObject();
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        generator.writeStringField("fullName", project.getKey() + "/" + repository.getSlug());
+        generator.writeFieldName("owner");
+        writeOwner(generator, project.getKey(), project.getKey());
+        generator.writeStringField("ownerName", project.getKey());
+        generator.writeBooleanField("public", repository.isPublic());
+        generator.writeEndObject();
+    }
+
+    /**
+     * @see Models#createProject(Project)
+     */
+    public static void writeProject(JsonGenerator generator, Project project) throws IOException
+    {
+        generator.writeStartObject();
+        generator.writeStringField("key", project.getKey());
+        generator.writeStringField("name", project.getName());
+        generator.writeEndObject();
+    }
+
+    /**
+     * @param link the URL of the pull request, or {@code null}
+     * @see Models#createPullrequest(PullRequest, ApplicationPropertiesService)
+     */
+    public static void writePullrequest(JsonGenerator generator, PullRequest pullRequest, String link,
+                                        ApplicationPropertiesService appPropSvc) throws IOException
+    {
+        generator.writeStartObject();
+        generator.writeStringField("id", String.valueOf(pullRequest.getId()));
+        generator.writeStringField("title", pullRequest.getTitle());
+        generator.writeStringField("link", link);
+        generator.writeStringField("authorLogin", pullRequest.getAuthor().getUser().getDisplayName());
+        generator.writeFieldName("fromRef");
+        writeSource(generator, pullRequest.getFromRef(), appPropSvc);
+        generator.writeFieldName("toRef");
+        writeSource(generator, pullRequest.getToRef(), appPropSvc);
+        generator.writeEndObject();
+    }
+
+    /**
+     * @see Models#createSource(PullRequestRef, ApplicationPropertiesService)
+     */
+    public static void writeSource(JsonGenerator generator, PullRequestRef pullRequestRef,
+                                   ApplicationPropertiesService appPropSvc) throws IOException
+    {
+        generator.writeStartObject();
+        generator.writeFieldName("repository");
+        writeRepository(generator, pullRequestRef.getRepository(), appPropSvc);
+        generator.writeObjectFieldStart("branch");
+        generator.writeStringField("rawNode", pullRequestRef.getLatestCommit());
+        generator.writeStringField("name", pullRequestRef.getDisplayId());
+        generator.writeEndObject();
+        generator.writeObjectFieldStart("commit");
+        generator.writeNullField("message");
+        generator.writeNullField("date");
+        generator.writeStringField("hash", pullRequestRef.getLatestCommit());
+        generator.writeNumberField("authorTimestamp", 0L);
+        generator.writeEndObject();
+        generator.writeEndObject();
+    }
+
+    /**
+     * @see Models#createActor(ApplicationUser)
+     */
+    public static void writeActor(JsonGenerator generator, ApplicationUser user) throws IOException
+    {
+        writeOwner(generator, user.getName(), user.getDisplayName());
+    }
+
+    /**
+     * @see Models#createChange(RefChange)
+     */
+    public static void writeChange(JsonGenerator generator, RefChange change) throws IOException
+    {
+        generator.writeStartObject();
+        switch (change.getType())
+        {
+            case ADD:
+                generator.writeBooleanField("created", true);
+                generator.writeBooleanField("closed", false);
+                generator.writeFieldName("new");
+                writeState(generator, change, change.getToHash());
+                generator.writeNullField("old");
+                break;
+            case DELETE:
+                generator.writeBooleanField("created", false);
+                generator.writeBooleanField("closed", true);
+                generator.writeNullField("new");
+                generator.writeFieldName("old");
+                writeState(generator, change, change.getFromHash());
+                break;
+            case UPDATE:
+                generator.writeBooleanField("created", false);
+                generator.writeBooleanField("closed", false);
+                generator.writeFieldName("new");
+                writeState(generator, change, change.getToHash());
+                generator.writeFieldName("old");
+                writeState(generator, change, change.getFromHash());
+                break;
+            default:
+                generator.writeBooleanField("created", false);
+                generator.writeBooleanField("closed", false);
+                generator.writeNullField("new");
+                generator.writeNullField("old");
+        }
+        generator.writeEndObject();
+    }
+
+    private static void writeOwner(JsonGenerator generator, String username, String displayName) throws IOException
+    {
+        generator.writeStartObject();
+        generator.writeStringField("username", username);
+        generator.writeStringField("displayName", displayName);
+        generator.writeEndObject();
+    }
+
+    private static void writeState(JsonGenerator generator, RefChange change, String hash) throws IOException
+    {
+        generator.writeStartObject();
+        generator.writeStringField("type", BitbucketPushChange.State.getTypeName(change.getRef().getType()));
+        generator.writeStringField("name", change.getRef().getDisplayId());
+        generator.writeObjectFieldStart("target");
+        generator.writeStringField("type", "commit");
+        generator.writeStringField("hash", hash);
+        generator.writeEndObject();
+        generator.writeEndObject();
+    }
+}
@@ -34,32 +34,43 @@ public final class Models
         repoType.setPublic(repository.isPublic());
         repoType.setScmId(repository.getScmId());
         repoType.setSlug(repository.getSlug());
-        URI baseUrl = appPropSvc.getBaseUrl();
-        if (baseUrl != null)
+        String url = getRepositoryUrl(repository, appPropSvc);
+        if (url != null)
         {
-            String url = repository.getProject().accept(new AbstractProjectVisitor<String>()
-            {
-                @Override
-                public String visit(@Nonnull PersonalProject project)
-                {
-                    return String.format("%s/users/%s/repos/%s/browse", baseUrl,
-                            project.getOwner().getSlug(), repository.getSlug());
-                }
-
-                @Override
-                public String visit(@Nonnull Project project)
-                {
-                    return String.format("%s/projects/%s/repos/%s/browse", baseUrl,
-                            project.getKey(), repository.getSlug());
-                }
-            });
-
             repoType.setLinks(Collections.singletonMap("self",
                     Collections.singletonList(new BitbucketServerRepository.Link(url))));
         }
         return repoType;
     }
 
+    /**
+     * @return the URL to browse the repository, or {@code null} if the base URL of the server is not known
+     */
+    public static String getRepositoryUrl(Repository repository, ApplicationPropertiesService appPropSvc)
+    {
+        URI baseUrl = appPropSvc.getBaseUrl();
+        if (baseUrl == null)
+        {
+            return null;
+        }
+        return repository.getProject().accept(new AbstractProjectVisitor<String>()
+        {
+            @Override
+            public String visit(@Nonnull PersonalProject project)
+            {
+                return String.format("%s/users/%s/repos/%s/browse", baseUrl,
+                        project.getOwner().getSlug(), repository.getSlug());
+            }
+
+            @Override
+            public String visit(@Nonnull Project project)
+            {
+                return String.format("%s/projects/%s/repos/%s/browse", baseUrl,
+                        project.getKey(), repository.getSlug());
+            }
+        });
+    }
+
     public static BitbucketServerProject createProject(Project project)
     {
         BitbucketServerProject serverProject = new BitbucketServerProject();
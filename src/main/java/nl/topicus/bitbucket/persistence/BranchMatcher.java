@@ -0,0 +1,186 @@
+package nl.topicus.bitbucket.persistence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Finds which of the configurations of a repository ignore every branch of a push, using the branches to ignore of
+ * all of them at once.
+ * <p>
+ * Configurations which share a pattern share its matching, so each distinct pattern is tried once per branch. Most
+ * patterns are a branch name, such as {@code master}, or a prefix of one, such as {@code release/.*}. Those are kept
+ * in a trie, which matches all of them in a single walk over the branch name. Any other pattern is matched with its
+ * compiled {@link Pattern}, and only while it has matched every branch before it.
+ */
+final class BranchMatcher {
+
+    private static final String META_CHARACTERS = "\\^$.|?*+()[]{}";
+
+    private final Node root = new Node();
+    private final int patternCount;
+    private final int[] patternIds;
+    private final int[] regexIds;
+    private final Pattern[] regexes;
+
+    /**
+     * @param filters the filters of the configurations, whose positions are those returned by {@link #getIgnoringAll}
+     */
+    BranchMatcher(WebHookFilter[] filters) {
+        Map<String, List<Integer>> positionsByRegex = new LinkedHashMap<>();
+        Map<String, Pattern> compiled = new HashMap<>();
+        for (int position = 0; position < filters.length; position++) {
+            Pattern pattern = filters[position].getBranchesToIgnore();
+            if (pattern != null) {
+                positionsByRegex.computeIfAbsent(pattern.pattern(), key -> new ArrayList<>()).add(position);
+                compiled.putIfAbsent(pattern.pattern(), pattern);
+            }
+        }
+
+        patternCount = positionsByRegex.size();
+        patternIds = new int[filters.length];
+        Arrays.fill(patternIds, -1);
+        List<Integer> otherIds = new ArrayList<>();
+        List<Pattern> others = new ArrayList<>();
+        int id = 0;
+        for (Map.Entry<String, List<Integer>> entry : positionsByRegex.entrySet()) {
+            for (int position : entry.getValue()) {
+                patternIds[position] = id;
+            }
+            if (!addToTrie(entry.getKey(), id)) {
+                otherIds.add(id);
+                others.add(compiled.get(entry.getKey()));
+            }
+            id++;
+        }
+        regexIds = new int[otherIds.size()];
+        for (int i = 0; i < regexIds.length; i++) {
+            regexIds[i] = otherIds.get(i);
+        }
+        regexes = others.toArray(new Pattern[0]);
+    }
+
+    /**
+     * @param branches  the branches changed by the event
+     * @param positions the positions of the configurations to check
+     * @return the positions of the configurations, out of those checked, which ignore all of the branches. None do
+     *         when there are no branches
+     */
+    BitSet getIgnoringAll(List<String> branches, int[] positions) {
+        BitSet ignoring = new BitSet();
+        if (patternCount == 0 || branches.isEmpty()) {
+            return ignoring;
+        }
+
+        // The patterns which matched every branch so far, starting with those of the configurations to check
+        BitSet candidates = new BitSet(patternCount);
+        for (int position : positions) {
+            if (patternIds[position] >= 0) {
+                candidates.set(patternIds[position]);
+            }
+        }
+        BitSet matched = new BitSet(patternCount);
+        for (String branch : branches) {
+            if (candidates.isEmpty()) {
+                return ignoring;
+            }
+            matched.clear();
+            match(branch, candidates, matched);
+            candidates.and(matched);
+        }
+
+        for (int position : positions) {
+            if (patternIds[position] >= 0 && candidates.get(patternIds[position])) {
+                ignoring.set(position);
+            }
+        }
+        return ignoring;
+    }
+
+    /**
+     * Adds the pattern to the trie, if it only matches a branch name or the branch names starting with a prefix.
+     *
+     * @return {@code false} if the pattern has to be matched as a regular expression
+     */
+    private boolean addToTrie(String regex, int id) {
+        // Patterns are matched against the whole branch name, so anchors do not change what they match
+        int start = regex.startsWith("^") ? 1 : 0;
+        int end = regex.endsWith("$") && regex.length() > start ? regex.length() - 1 : regex.length();
+        boolean prefix = end - start >= 2 && regex.startsWith(".*", end - 2);
+        if (prefix) {
+            end -= 2;
+        }
+        for (int i = start; i < end; i++) {
+            if (META_CHARACTERS.indexOf(regex.charAt(i)) >= 0) {
+                return false;
+            }
+        }
+
+        Node node = root;
+        for (int i = start; i < end; i++) {
+            node = node.children.computeIfAbsent(regex.charAt(i), key -> new Node());
+        }
+        if (prefix) {
+            node.prefixIds = append(node.prefixIds, id);
+        } else {
+            node.exactIds = append(node.exactIds, id);
+        }
+        return true;
+    }
+
+    private void match(String branch, BitSet candidates, BitSet matched) {
+        // Without DOTALL, .* does not match line terminators, so a prefix only matches if none follow it
+        int lastLineTerminator = -1;
+        for (int i = branch.length() - 1; i >= 0 && lastLineTerminator < 0; i--) {
+            if (isLineTerminator(branch.charAt(i))) {
+                lastLineTerminator = i;
+            }
+        }
+
+        Node node = root;
+        for (int depth = 0; node != null; depth++) {
+            if (lastLineTerminator < depth) {
+                set(matched, node.prefixIds);
+            }
+            if (depth == branch.length()) {
+                set(matched, node.exactIds);
+                break;
+            }
+            node = node.children.get(branch.charAt(depth));
+        }
+
+        for (int i = 0; i < regexes.length; i++) {
+            if (candidates.get(regexIds[i]) && regexes[i].matcher(branch).matches()) {
+                matched.set(regexIds[i]);
+            }
+        }
+    }
+
+    private static int[] append(int[] ids, int id) {
+        int[] appended = Arrays.copyOf(ids, ids.length + 1);
+        appended[ids.length] = id;
+        return appended;
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static void set(BitSet bits, int[] ids) {
+        for (int id : ids) {
+            bits.set(id);
+        }
+    }
+
+    private static final class Node {
+
+        private final Map<Character, Node> children = new HashMap<>();
+        private int[] exactIds = new int[0];
+        private int[] prefixIds = new int[0];
+    }
+}
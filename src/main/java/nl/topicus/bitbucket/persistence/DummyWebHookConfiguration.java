@@ -26,6 +26,13 @@ public class DummyWebHookConfiguration implements WebHookConfiguration
 	private boolean isPrCreated;
 	private boolean isPrCommented;
 	private boolean isBuildStatus;
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private int rateLimit;
+	private int rateBurst = DEFAULT_RATE_BURST;
+	private boolean isBatchDelivery;
+	private int connectTimeout;
+	private int socketTimeout;
+	private int deadline;
 
 	public DummyWebHookConfiguration(int repoId, String title, String url, String committersToIgnore,
 									 String branchesToIgnore, boolean enabled, boolean isTagCreated,
@@ -142,6 +149,90 @@ public class DummyWebHookConfiguration implements WebHookConfiguration
 		isBuildStatus = buildStatus;
 	}
 
+	@Override
+	public int getMaxAttempts()
+	{
+		return maxAttempts;
+	}
+
+	@Override
+	public void setMaxAttempts(int maxAttempts)
+	{
+		this.maxAttempts = maxAttempts;
+	}
+
+	@Override
+	public int getRateLimit()
+	{
+		return rateLimit;
+	}
+
+	@Override
+	public void setRateLimit(int rateLimit)
+	{
+		this.rateLimit = rateLimit;
+	}
+
+	@Override
+	public int getRateBurst()
+	{
+		return rateBurst;
+	}
+
+	@Override
+	public void setRateBurst(int rateBurst)
+	{
+		this.rateBurst = rateBurst;
+	}
+
+	@Override
+	public boolean isBatchDelivery()
+	{
+		return isBatchDelivery;
+	}
+
+	@Override
+	public void setBatchDelivery(boolean batchDelivery)
+	{
+		isBatchDelivery = batchDelivery;
+	}
+
+	@Override
+	public int getConnectTimeout()
+	{
+		return connectTimeout;
+	}
+
+	@Override
+	public void setConnectTimeout(int connectTimeout)
+	{
+		this.connectTimeout = connectTimeout;
+	}
+
+	@Override
+	public int getSocketTimeout()
+	{
+		return socketTimeout;
+	}
+
+	@Override
+	public void setSocketTimeout(int socketTimeout)
+	{
+		this.socketTimeout = socketTimeout;
+	}
+
+	@Override
+	public int getDeadline()
+	{
+		return deadline;
+	}
+
+	@Override
+	public void setDeadline(int deadline)
+	{
+		this.deadline = deadline;
+	}
+
 	@Override
 	public boolean isBranchDeleted()
 	{
@@ -0,0 +1,103 @@
+package nl.topicus.bitbucket.persistence;
+
+import nl.topicus.bitbucket.events.Event;
+import nl.topicus.bitbucket.events.EventType;
+import nl.topicus.bitbucket.events.Ignorable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * The enabled configurations of a repository, indexed by the event types they subscribe to.
+ * <p>
+ * The subscriptions of each configuration are read once, into an {@link EnumSet}, when the index is built, as is its
+ * {@link WebHookFilter}. Finding the configurations for an event is then a lookup in an array per event type, which
+ * is shared by every event and so must not be modified. The branches to ignore of all configurations are matched
+ * together, by a single {@link BranchMatcher}.
+ */
+final class SubscriptionIndex {
+
+    static final SubscriptionIndex EMPTY = new SubscriptionIndex(new WebHookConfiguration[0]);
+
+    private final BranchMatcher branchMatcher;
+    private final WebHookConfiguration[][] byEventType;
+    private final WebHookConfiguration[] configurations;
+    private final WebHookFilter[] filters;
+    private final int[][] positionsByEventType;
+
+    /**
+     * @param configurations the enabled configurations of the repository, in the order in which they should be
+     *                       returned
+     */
+    SubscriptionIndex(WebHookConfiguration[] configurations) {
+        this.configurations = configurations;
+
+        EventType[] eventTypes = EventType.values();
+        List<EnumSet<EventType>> subscriptions = new ArrayList<>(configurations.length);
+        int[] counts = new int[eventTypes.length];
+        for (WebHookConfiguration configuration : configurations) {
+            EnumSet<EventType> subscribed = EventType.getSubscriptions(configuration);
+            for (EventType eventType : subscribed) {
+                counts[eventType.ordinal()]++;
+            }
+            subscriptions.add(subscribed);
+        }
+
+        filters = new WebHookFilter[configurations.length];
+        for (int i = 0; i < configurations.length; i++) {
+            filters[i] = new WebHookFilter(configurations[i]);
+        }
+        branchMatcher = new BranchMatcher(filters);
+
+        byEventType = new WebHookConfiguration[eventTypes.length][];
+        positionsByEventType = new int[eventTypes.length][];
+        for (EventType eventType : eventTypes) {
+            WebHookConfiguration[] targets = new WebHookConfiguration[counts[eventType.ordinal()]];
+            int[] positions = new int[targets.length];
+            int next = 0;
+            for (int i = 0; i < configurations.length; i++) {
+                if (subscriptions.get(i).contains(eventType)) {
+                    positions[next] = i;
+                    targets[next++] = configurations[i];
+                }
+            }
+            byEventType[eventType.ordinal()] = targets;
+            positionsByEventType[eventType.ordinal()] = positions;
+        }
+    }
+
+    /**
+     * @return the configurations subscribed to the event type, which must not be modified
+     */
+    WebHookConfiguration[] get(EventType eventType) {
+        return byEventType[eventType.ordinal()];
+    }
+
+    /**
+     * @return the configurations subscribed to the event type which do not ignore the event, in the same order as
+     *         {@link #get}
+     */
+    List<WebHookConfiguration> getRecipients(EventType eventType, Event event) {
+        int[] positions = positionsByEventType[eventType.ordinal()];
+        if (positions.length == 0) {
+            return Collections.emptyList();
+        }
+        if (!(event instanceof Ignorable)) {
+            return Collections.unmodifiableList(Arrays.asList(byEventType[eventType.ordinal()]));
+        }
+
+        Ignorable ignorable = (Ignorable) event;
+        BitSet ignoringAllBranches = branchMatcher.getIgnoringAll(ignorable.getBranches(), positions);
+        List<WebHookConfiguration> recipients = new ArrayList<>(positions.length);
+        for (int position : positions) {
+            if (filters[position].accepts(ignorable, ignoringAllBranches.get(position))) {
+                recipients.add(configurations[position]);
+            }
+        }
+        return recipients;
+    }
+}
@@ -32,6 +32,16 @@ public interface WebHookConfiguration extends Entity
 	String COLUMN_IGNORED_COMMITERS = "COMMITTERS_TO_IGNORE";
 	String COLUMN_IGNORED_BRANCHES = "BRANCHES_TO_IGNORE";
 	String COLUMN_BUILD_STATUS = "BUILD_STATUS";
+	String COLUMN_MAX_ATTEMPTS = "MAX_ATTEMPTS";
+	String COLUMN_RATE_LIMIT = "RATE_LIMIT";
+	String COLUMN_RATE_BURST = "RATE_BURST";
+	String COLUMN_BATCH_DELIVERY = "BATCH_DELIVERY";
+	String COLUMN_CONNECT_TIMEOUT = "CONNECT_TIMEOUT";
+	String COLUMN_SOCKET_TIMEOUT = "SOCKET_TIMEOUT";
+	String COLUMN_DEADLINE = "DEADLINE";
+
+	int DEFAULT_MAX_ATTEMPTS = 5;
+	int DEFAULT_RATE_BURST = 10;
 
 	@Accessor(COLUMN_TITLE)
 	@NotNull
@@ -170,4 +180,82 @@ public interface WebHookConfiguration extends Entity
 
 	@Mutator(COLUMN_BUILD_STATUS)
 	void setBuildStatus(boolean isBuildStatus);
+
+	/**
+	 * @return how often an event is sent to this webhook, including retries, before it is given up on
+	 */
+	@NotNull
+	@Default("5")
+	@Accessor(COLUMN_MAX_ATTEMPTS)
+	int getMaxAttempts();
+
+	@Mutator(COLUMN_MAX_ATTEMPTS)
+	void setMaxAttempts(int maxAttempts);
+
+	/**
+	 * @return the maximum number of events sent to this webhook per minute, or 0 if there is no limit
+	 */
+	@NotNull
+	@Default("0")
+	@Accessor(COLUMN_RATE_LIMIT)
+	int getRateLimit();
+
+	@Mutator(COLUMN_RATE_LIMIT)
+	void setRateLimit(int rateLimit);
+
+	/**
+	 * @return the number of events which may be sent to this webhook at once, before the rate limit applies
+	 */
+	@NotNull
+	@Default("10")
+	@Accessor(COLUMN_RATE_BURST)
+	int getRateBurst();
+
+	@Mutator(COLUMN_RATE_BURST)
+	void setRateBurst(int rateBurst);
+
+	/**
+	 * @return whether events for this webhook are collected for a short while and sent together, as a JSON array
+	 */
+	@NotNull
+	@Default("false")
+	@Accessor(COLUMN_BATCH_DELIVERY)
+	boolean isBatchDelivery();
+
+	@Mutator(COLUMN_BATCH_DELIVERY)
+	void setBatchDelivery(boolean isBatchDelivery);
+
+	/**
+	 * @return the number of seconds to wait for a connection to this webhook, or 0 to use the node's default
+	 */
+	@NotNull
+	@Default("0")
+	@Accessor(COLUMN_CONNECT_TIMEOUT)
+	int getConnectTimeout();
+
+	@Mutator(COLUMN_CONNECT_TIMEOUT)
+	void setConnectTimeout(int connectTimeout);
+
+	/**
+	 * @return the number of seconds to wait for data from this webhook, or 0 to use the node's default
+	 */
+	@NotNull
+	@Default("0")
+	@Accessor(COLUMN_SOCKET_TIMEOUT)
+	int getSocketTimeout();
+
+	@Mutator(COLUMN_SOCKET_TIMEOUT)
+	void setSocketTimeout(int socketTimeout);
+
+	/**
+	 * @return the number of seconds a single request to this webhook may take in total, however slowly the response
+	 *         trickles in, or 0 to use the node's default
+	 */
+	@NotNull
+	@Default("0")
+	@Accessor(COLUMN_DEADLINE)
+	int getDeadline();
+
+	@Mutator(COLUMN_DEADLINE)
+	void setDeadline(int deadline);
 }
@@ -5,16 +5,29 @@ import com.atlassian.bitbucket.repository.Repository;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
 import com.google.common.collect.ImmutableMap;
 import net.java.ao.Query;
+import nl.topicus.bitbucket.events.Event;
 import nl.topicus.bitbucket.events.EventType;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_BATCH_DELIVERY;
 import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_BRANCH_CREATED;
 import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_BRANCH_DELETED;
 import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_BUILD_STATUS;
+import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_CONNECT_TIMEOUT;
+import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_DEADLINE;
 import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_ENABLED;
 import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_IGNORED_BRANCHES;
 import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_IGNORED_COMMITERS;
+import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_MAX_ATTEMPTS;
 import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_PR_COMMENTED;
 import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_PR_CREATED;
 import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_PR_DECLINED;
@@ -22,15 +35,34 @@ import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_PR_ME
 import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_PR_REOPENED;
 import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_PR_RESCOPED;
 import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_PR_UPDATED;
+import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_RATE_BURST;
+import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_RATE_LIMIT;
 import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_REPO_ID;
 import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_REPO_PUSH;
+import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_SOCKET_TIMEOUT;
 import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_TAG_CREATED;
 import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_TITLE;
 import static nl.topicus.bitbucket.persistence.WebHookConfiguration.COLUMN_URL;
+import static nl.topicus.bitbucket.persistence.WebHookConfiguration.DEFAULT_MAX_ATTEMPTS;
+import static nl.topicus.bitbucket.persistence.WebHookConfiguration.DEFAULT_RATE_BURST;
 
+/**
+ * Reads and writes webhook configurations.
+ * <p>
+ * The enabled configurations are looked up for every event, while most repositories have none and the others rarely
+ * change theirs. They are therefore kept in memory, per repository, as a {@link SubscriptionIndex} of the
+ * configurations subscribed to each event type. The index holds {@link WebHookConfigurationSnapshot snapshots}
+ * rather than the entities, so that a configuration which is being updated is not seen half-written. The index is
+ * dropped once a write to a configuration of the repository through this DAO has been committed, and read again when
+ * it is next needed; dropping it any earlier would let a concurrent lookup read the rows from before the write, and
+ * keep them. Changes made to the database in any other way, such as on another node of a cluster, are picked up by
+ * {@link #reconcile()}.
+ */
 @Component
 public class WebHookConfigurationDao {
     private final ActiveObjects activeObjects;
+    private final ConcurrentMap<Integer, SubscriptionIndex> enabledConfigurations = new ConcurrentHashMap<>();
+    private final AtomicLong invalidations = new AtomicLong();
 
     @Autowired
     public WebHookConfigurationDao(@ComponentImport ActiveObjects activeObjects) {
@@ -43,11 +75,60 @@ public class WebHookConfigurationDao {
                 .order(COLUMN_TITLE));
     }
 
+    /**
+     * @return the enabled configurations of the repository which subscribe to the event type, ordered by title. The
+     *         array is shared, and must not be modified
+     */
     public WebHookConfiguration[] getEnabledWebHookConfigurations(Repository repo, EventType eventType) {
-        return activeObjects.find(WebHookConfiguration.class, Query.select()
-                .where(COLUMN_REPO_ID + " = ? AND " + COLUMN_ENABLED + " = ? AND " + eventType.getQueryColumn() + " = ?",
-                        repo.getId(), true, true)
-                .order(COLUMN_TITLE));
+        return getSubscriptionIndex(repo.getId()).get(eventType);
+    }
+
+    /**
+     * @return the enabled configurations of the repository which subscribe to the event type and do not ignore the
+     *         event, ordered by title
+     */
+    public List<WebHookConfiguration> getRecipients(Repository repo, EventType eventType, Event event) {
+        return getSubscriptionIndex(repo.getId()).getRecipients(eventType, event);
+    }
+
+    /**
+     * Checks, without building the event, whether it would be sent anywhere. This is an array lookup which takes no
+     * locks, and never reads the database, so it is safe to call from an event listener. When the configurations of
+     * the repository are not in memory yet, it answers {@code true}, and they are read when the event is dispatched.
+     *
+     * @return {@code false} if no enabled configuration of the repository subscribes to the event type
+     */
+    public boolean hasSubscribers(Repository repo, EventType eventType) {
+        SubscriptionIndex index = enabledConfigurations.get(repo.getId());
+        return index == null || index.get(eventType).length > 0;
+    }
+
+    /**
+     * Reads all enabled configurations again, to pick up changes which were not made through this DAO. The indexes
+     * of the repositories which have enabled configurations are replaced or added, and those of the other
+     * repositories are emptied.
+     */
+    public void reconcile() {
+        long invalidation = invalidations.get();
+        Map<Integer, List<WebHookConfiguration>> byRepository = new HashMap<>();
+        for (WebHookConfiguration configuration : activeObjects.find(WebHookConfiguration.class, Query.select()
+                .where(COLUMN_ENABLED + " = ?", true)
+                .order(COLUMN_TITLE))) {
+            byRepository.computeIfAbsent(configuration.getRepositoryId(), key -> new ArrayList<>()).add(configuration);
+        }
+        for (Integer repositoryId : enabledConfigurations.keySet()) {
+            if (!byRepository.containsKey(repositoryId)) {
+                enabledConfigurations.replace(repositoryId, SubscriptionIndex.EMPTY);
+            }
+        }
+        for (Map.Entry<Integer, List<WebHookConfiguration>> entry : byRepository.entrySet()) {
+            enabledConfigurations.put(entry.getKey(),
+                    new SubscriptionIndex(snapshot(entry.getValue().toArray(new WebHookConfiguration[0]))));
+        }
+        if (invalidations.get() != invalidation) {
+            // A configuration was written while reading, so some of the indexes may already be out of date
+            enabledConfigurations.clear();
+        }
     }
 
     public WebHookConfiguration getWebHookConfiguration(String id) {
@@ -55,19 +136,59 @@ public class WebHookConfigurationDao {
     }
 
     public int deleteWebhookConfigurations(Repository repo) {
-        return activeObjects.deleteWithSQL(WebHookConfiguration.class, COLUMN_REPO_ID + " = ?", repo.getId());
+        int deleted = activeObjects.executeInTransaction(() ->
+                activeObjects.deleteWithSQL(WebHookConfiguration.class, COLUMN_REPO_ID + " = ?", repo.getId()));
+        invalidate(repo.getId());
+        return deleted;
     }
 
     public void deleteWebhookConfiguration(WebHookConfiguration webHookConfiguration) {
-        activeObjects.delete(webHookConfiguration);
+        Integer repositoryId = webHookConfiguration.getRepositoryId();
+        activeObjects.executeInTransaction(() -> {
+            activeObjects.delete(webHookConfiguration);
+            return null;
+        });
+        invalidate(repositoryId);
     }
 
     public WebHookConfiguration createOrUpdateWebHookConfiguration(Repository rep, String id, String title, String url,
                                                                    String committersToIgnore, String branchesToIgnore, boolean enabled) {
+        return createOrUpdateWebHookConfiguration(rep, id, title, url, committersToIgnore, branchesToIgnore, enabled,
+                null, null, null);
+    }
+
+    /**
+     * Creates or updates a configuration with the given timeouts. A timeout which is {@code null} keeps the value
+     * stored for the configuration, or is 0, for the default, when the configuration is created.
+     */
+    public WebHookConfiguration createOrUpdateWebHookConfiguration(Repository rep, String id, String title, String url,
+                                                                   String committersToIgnore, String branchesToIgnore, boolean enabled,
+                                                                   Integer connectTimeout, Integer socketTimeout, Integer deadline) {
+        return createOrUpdateWebHookConfiguration(rep, id, title, url, committersToIgnore, branchesToIgnore, enabled,
+                null, null, null, null, connectTimeout, socketTimeout, deadline);
+    }
+
+    /**
+     * Creates or updates a configuration with the given delivery settings. A setting which is {@code null} keeps the
+     * value stored for the configuration, or gets its default when the configuration is created.
+     */
+    public WebHookConfiguration createOrUpdateWebHookConfiguration(Repository rep, String id, String title, String url,
+                                                                   String committersToIgnore, String branchesToIgnore, boolean enabled,
+                                                                   Integer maxAttempts, Integer rateLimit, Integer rateBurst,
+                                                                   Boolean isBatchDelivery, Integer connectTimeout,
+                                                                   Integer socketTimeout, Integer deadline) {
+        WebHookConfiguration existing = getWebHookConfiguration(rep, id);
         return createOrUpdateWebHookConfiguration(rep, id, title, url, committersToIgnore, branchesToIgnore, enabled,
                 false, true, true, true, true,
                 true, true, true, true, true,
-                false, false
+                false, false,
+                maxAttempts != null ? maxAttempts : existing != null ? existing.getMaxAttempts() : DEFAULT_MAX_ATTEMPTS,
+                rateLimit != null ? rateLimit : existing != null ? existing.getRateLimit() : 0,
+                rateBurst != null ? rateBurst : existing != null ? existing.getRateBurst() : DEFAULT_RATE_BURST,
+                isBatchDelivery != null ? isBatchDelivery : existing != null && existing.isBatchDelivery(),
+                connectTimeout != null ? connectTimeout : existing != null ? existing.getConnectTimeout() : 0,
+                socketTimeout != null ? socketTimeout : existing != null ? existing.getSocketTimeout() : 0,
+                deadline != null ? deadline : existing != null ? existing.getDeadline() : 0
         );
     }
 
@@ -76,52 +197,120 @@ public class WebHookConfigurationDao {
                                                                    boolean isBranchDeleted, boolean isBranchCreated, boolean isRepoPush,
                                                                    boolean isPrDeclined, boolean isPrRescoped, boolean isPrMerged,
                                                                    boolean isPrReopened, boolean isPrUpdated, boolean isPrCreated,
-                                                                   boolean isPrCommented, boolean isBuildStatus) {
+                                                                   boolean isPrCommented, boolean isBuildStatus, int maxAttempts,
+                                                                   int rateLimit, int rateBurst, boolean isBatchDelivery,
+                                                                   int connectTimeout, int socketTimeout, int deadline) {
+        String ignoredCommitters = committersToIgnore == null ? "" : committersToIgnore;
+        String ignoredBranches = branchesToIgnore == null ? "" : branchesToIgnore;
+        WebHookConfiguration result = activeObjects.executeInTransaction(() -> {
+            WebHookConfiguration webHookConfiguration = getWebHookConfiguration(rep, id);
+            if (webHookConfiguration == null) {
+                webHookConfiguration = activeObjects.create(WebHookConfiguration.class,
+                        ImmutableMap.<String, Object>builder()
+                            .put(COLUMN_BRANCH_CREATED, isBranchCreated)
+                            .put(COLUMN_BRANCH_DELETED, isBranchDeleted)
+                            .put(COLUMN_ENABLED, enabled)
+                            .put(COLUMN_PR_CREATED, isPrCreated)
+                            .put(COLUMN_PR_DECLINED, isPrDeclined)
+                            .put(COLUMN_PR_MERGED, isPrMerged)
+                            .put(COLUMN_PR_REOPENED, isPrReopened)
+                            .put(COLUMN_PR_RESCOPED, isPrRescoped)
+                            .put(COLUMN_PR_UPDATED, isPrUpdated)
+                            .put(COLUMN_PR_COMMENTED, isPrCommented)
+                            .put(COLUMN_REPO_ID, rep.getId())
+                            .put(COLUMN_REPO_PUSH, isRepoPush)
+                            .put(COLUMN_TAG_CREATED, isTagCreated)
+                            .put(COLUMN_TITLE, title)
+                            .put(COLUMN_URL, url)
+                            .put(COLUMN_IGNORED_COMMITERS, ignoredCommitters)
+                            .put(COLUMN_IGNORED_BRANCHES, ignoredBranches)
+                            .put(COLUMN_BUILD_STATUS, isBuildStatus)
+                            .put(COLUMN_MAX_ATTEMPTS, maxAttempts)
+                            .put(COLUMN_RATE_LIMIT, rateLimit)
+                            .put(COLUMN_RATE_BURST, rateBurst)
+                            .put(COLUMN_BATCH_DELIVERY, isBatchDelivery)
+                            .put(COLUMN_CONNECT_TIMEOUT, connectTimeout)
+                            .put(COLUMN_SOCKET_TIMEOUT, socketTimeout)
+                            .put(COLUMN_DEADLINE, deadline)
+                            .build());
+            } else {
+                webHookConfiguration.setBranchCreated(isBranchCreated);
+                webHookConfiguration.setBranchDeleted(isBranchDeleted);
+                webHookConfiguration.setEnabled(enabled);
+                webHookConfiguration.setPrCreated(isPrCreated);
+                webHookConfiguration.setPrDeclined(isPrDeclined);
+                webHookConfiguration.setPrMerged(isPrMerged);
+                webHookConfiguration.setPrReopened(isPrReopened);
+                webHookConfiguration.setPrRescoped(isPrRescoped);
+                webHookConfiguration.setPrUpdated(isPrUpdated);
+                webHookConfiguration.setPrCommented(isPrCommented);
+                webHookConfiguration.setRepoPush(isRepoPush);
+                webHookConfiguration.setTagCreated(isTagCreated);
+                webHookConfiguration.setTitle(title);
+                webHookConfiguration.setURL(url);
+                webHookConfiguration.setCommittersToIgnore(ignoredCommitters);
+                webHookConfiguration.setBranchesToIgnore(ignoredBranches);
+                webHookConfiguration.setBuildStatus(isBuildStatus);
+                webHookConfiguration.setMaxAttempts(maxAttempts);
+                webHookConfiguration.setRateLimit(rateLimit);
+                webHookConfiguration.setRateBurst(rateBurst);
+                webHookConfiguration.setBatchDelivery(isBatchDelivery);
+                webHookConfiguration.setConnectTimeout(connectTimeout);
+                webHookConfiguration.setSocketTimeout(socketTimeout);
+                webHookConfiguration.setDeadline(deadline);
+                webHookConfiguration.save();
+            }
+            return webHookConfiguration;
+        });
+
+        invalidate(rep.getId());
+        return result;
+    }
+
+    /**
+     * @return the configuration with the id, or {@code null} if there is none or it belongs to another repository
+     */
+    private WebHookConfiguration getWebHookConfiguration(Repository rep, String id) {
         WebHookConfiguration webHookConfiguration = id == null ? null : getWebHookConfiguration(id);
-        committersToIgnore = committersToIgnore == null ? "" : committersToIgnore;
-        branchesToIgnore = branchesToIgnore == null ? "" : branchesToIgnore;
-        if (webHookConfiguration == null || !webHookConfiguration.getRepositoryId().equals(rep.getId())) {
-            webHookConfiguration = activeObjects.create(WebHookConfiguration.class, ImmutableMap.<String, Object>builder()
-                    .put(COLUMN_BRANCH_CREATED, isBranchCreated)
-                    .put(COLUMN_BRANCH_DELETED, isBranchDeleted)
-                    .put(COLUMN_ENABLED, enabled)
-                    .put(COLUMN_PR_CREATED, isPrCreated)
-                    .put(COLUMN_PR_DECLINED, isPrDeclined)
-                    .put(COLUMN_PR_MERGED, isPrMerged)
-                    .put(COLUMN_PR_REOPENED, isPrReopened)
-                    .put(COLUMN_PR_RESCOPED, isPrRescoped)
-                    .put(COLUMN_PR_UPDATED, isPrUpdated)
-                    .put(COLUMN_PR_COMMENTED, isPrCommented)
-                    .put(COLUMN_REPO_ID, rep.getId())
-                    .put(COLUMN_REPO_PUSH, isRepoPush)
-                    .put(COLUMN_TAG_CREATED, isTagCreated)
-                    .put(COLUMN_TITLE, title)
-                    .put(COLUMN_URL, url)
-                    .put(COLUMN_IGNORED_COMMITERS, committersToIgnore)
-                    .put(COLUMN_IGNORED_BRANCHES, branchesToIgnore)
-                    .put(COLUMN_BUILD_STATUS, isBuildStatus)
-                    .build());
-        } else {
-            webHookConfiguration.setBranchCreated(isBranchCreated);
-            webHookConfiguration.setBranchDeleted(isBranchDeleted);
-            webHookConfiguration.setEnabled(enabled);
-            webHookConfiguration.setPrCreated(isPrCreated);
-            webHookConfiguration.setPrDeclined(isPrDeclined);
-            webHookConfiguration.setPrMerged(isPrMerged);
-            webHookConfiguration.setPrReopened(isPrReopened);
-            webHookConfiguration.setPrRescoped(isPrRescoped);
-            webHookConfiguration.setPrUpdated(isPrUpdated);
-            webHookConfiguration.setPrCommented(isPrCommented);
-            webHookConfiguration.setRepoPush(isRepoPush);
-            webHookConfiguration.setTagCreated(isTagCreated);
-            webHookConfiguration.setTitle(title);
-            webHookConfiguration.setURL(url);
-            webHookConfiguration.setCommittersToIgnore(committersToIgnore);
-            webHookConfiguration.setBranchesToIgnore(branchesToIgnore);
-            webHookConfiguration.setBuildStatus(isBuildStatus);
-            webHookConfiguration.save();
+        return webHookConfiguration == null || !webHookConfiguration.getRepositoryId().equals(rep.getId()) ? null :
+                webHookConfiguration;
+    }
+
+    private SubscriptionIndex getSubscriptionIndex(int repositoryId) {
+        SubscriptionIndex index = enabledConfigurations.get(repositoryId);
+        if (index != null) {
+            return index;
+        }
+
+        long invalidation = invalidations.get();
+        WebHookConfiguration[] configurations = activeObjects.find(WebHookConfiguration.class, Query.select()
+                .where(COLUMN_REPO_ID + " = ? AND " + COLUMN_ENABLED + " = ?", repositoryId, true)
+                .order(COLUMN_TITLE));
+        index = configurations.length == 0 ? SubscriptionIndex.EMPTY : new SubscriptionIndex(snapshot(configurations));
+        enabledConfigurations.put(repositoryId, index);
+        if (invalidations.get() != invalidation) {
+            // A configuration was written while reading, so what was read may already be out of date
+            enabledConfigurations.remove(repositoryId, index);
         }
+        return index;
+    }
+
+    private static WebHookConfiguration[] snapshot(WebHookConfiguration[] configurations) {
+        WebHookConfiguration[] snapshots = new WebHookConfiguration[configurations.length];
+        for (int i = 0; i < configurations.length; i++) {
+            snapshots[i] = new WebHookConfigurationSnapshot(configurations[i]);
+        }
+        return snapshots;
+    }
 
-        return webHookConfiguration;
+    /**
+     * Drops the index of the repository, once a write to one of its configurations has been committed. A lookup which
+     * started reading before then sees that an invalidation happened in the meantime, and does not keep what it read.
+     * A write within a transaction of the caller is only committed with it, so the index of the repository may then
+     * be read again before, until it is next reconciled.
+     */
+    private void invalidate(int repositoryId) {
+        invalidations.incrementAndGet();
+        enabledConfigurations.remove(repositoryId);
     }
 }
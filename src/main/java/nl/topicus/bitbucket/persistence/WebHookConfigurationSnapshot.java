@@ -0,0 +1,359 @@
+package nl.topicus.bitbucket.persistence;
+
+import net.java.ao.EntityManager;
+import net.java.ao.RawEntity;
+
+import java.beans.PropertyChangeListener;
+
+/**
+ * A copy of a {@link WebHookConfiguration}, taken when it is read, which cannot be changed. The configurations kept in
+ * memory by {@link WebHookConfigurationDao} are snapshots, so that they are safe to share between threads, and are not
+ * changed by writes to the entity they were read from until the DAO reads them again.
+ */
+final class WebHookConfigurationSnapshot implements WebHookConfiguration {
+    private final int id;
+    private final boolean batchDelivery;
+    private final boolean branchCreated;
+    private final boolean branchDeleted;
+    private final String branchesToIgnore;
+    private final boolean buildStatus;
+    private final String committersToIgnore;
+    private final int connectTimeout;
+    private final int deadline;
+    private final boolean enabled;
+    private final int maxAttempts;
+    private final boolean prCommented;
+    private final boolean prCreated;
+    private final boolean prDeclined;
+    private final boolean prMerged;
+    private final boolean prReopened;
+    private final boolean prRescoped;
+    private final boolean prUpdated;
+    private final int rateBurst;
+    private final int rateLimit;
+    private final boolean repoPush;
+    private final Integer repositoryId;
+    private final int socketTimeout;
+    private final boolean tagCreated;
+    private final String title;
+    private final String url;
+
+    WebHookConfigurationSnapshot(WebHookConfiguration configuration) {
+        id = configuration.getID();
+        title = configuration.getTitle();
+        url = configuration.getURL();
+        committersToIgnore = configuration.getCommittersToIgnore();
+        branchesToIgnore = configuration.getBranchesToIgnore();
+        repositoryId = configuration.getRepositoryId();
+        enabled = configuration.isEnabled();
+        prCreated = configuration.isPrCreated();
+        prUpdated = configuration.isPrUpdated();
+        prReopened = configuration.isPrReopened();
+        prMerged = configuration.isPrMerged();
+        prRescoped = configuration.isPrRescoped();
+        prDeclined = configuration.isPrDeclined();
+        prCommented = configuration.isPrCommented();
+        repoPush = configuration.isRepoPush();
+        branchCreated = configuration.isBranchCreated();
+        branchDeleted = configuration.isBranchDeleted();
+        tagCreated = configuration.isTagCreated();
+        buildStatus = configuration.isBuildStatus();
+        maxAttempts = configuration.getMaxAttempts();
+        rateLimit = configuration.getRateLimit();
+        rateBurst = configuration.getRateBurst();
+        batchDelivery = configuration.isBatchDelivery();
+        connectTimeout = configuration.getConnectTimeout();
+        socketTimeout = configuration.getSocketTimeout();
+        deadline = configuration.getDeadline();
+    }
+
+    @Override
+    public int getID() {
+        return id;
+    }
+
+    @Override
+    public String getTitle() {
+        return title;
+    }
+
+    @Override
+    public void setTitle(String title) {
+        throw readOnly();
+    }
+
+    @Override
+    public String getURL() {
+        return url;
+    }
+
+    @Override
+    public void setURL(String URL) {
+        throw readOnly();
+    }
+
+    @Override
+    public String getCommittersToIgnore() {
+        return committersToIgnore;
+    }
+
+    @Override
+    public void setCommittersToIgnore(String committersToIgnore) {
+        throw readOnly();
+    }
+
+    @Override
+    public String getBranchesToIgnore() {
+        return branchesToIgnore;
+    }
+
+    @Override
+    public void setBranchesToIgnore(String branchesToIgnore) {
+        throw readOnly();
+    }
+
+    @Override
+    public Integer getRepositoryId() {
+        return repositoryId;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean isEnabled) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean isPrCreated() {
+        return prCreated;
+    }
+
+    @Override
+    public void setPrCreated(boolean isPrCreated) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean isPrUpdated() {
+        return prUpdated;
+    }
+
+    @Override
+    public void setPrUpdated(boolean isPrUpdated) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean isPrReopened() {
+        return prReopened;
+    }
+
+    @Override
+    public void setPrReopened(boolean isPrReopened) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean isPrMerged() {
+        return prMerged;
+    }
+
+    @Override
+    public void setPrMerged(boolean isPrMerged) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean isPrRescoped() {
+        return prRescoped;
+    }
+
+    @Override
+    public void setPrRescoped(boolean isPrRescoped) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean isPrDeclined() {
+        return prDeclined;
+    }
+
+    @Override
+    public void setPrDeclined(boolean isPrDeclined) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean isPrCommented() {
+        return prCommented;
+    }
+
+    @Override
+    public void setPrCommented(boolean prCommented) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean isRepoPush() {
+        return repoPush;
+    }
+
+    @Override
+    public void setRepoPush(boolean isRepoPush) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean isBranchCreated() {
+        return branchCreated;
+    }
+
+    @Override
+    public void setBranchCreated(boolean isBranchCreated) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean isBranchDeleted() {
+        return branchDeleted;
+    }
+
+    @Override
+    public void setBranchDeleted(boolean isBranchDeleted) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean isTagCreated() {
+        return tagCreated;
+    }
+
+    @Override
+    public void setTagCreated(boolean isTagCreated) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean isBuildStatus() {
+        return buildStatus;
+    }
+
+    @Override
+    public void setBuildStatus(boolean isBuildStatus) {
+        throw readOnly();
+    }
+
+    @Override
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    @Override
+    public void setMaxAttempts(int maxAttempts) {
+        throw readOnly();
+    }
+
+    @Override
+    public int getRateLimit() {
+        return rateLimit;
+    }
+
+    @Override
+    public void setRateLimit(int rateLimit) {
+        throw readOnly();
+    }
+
+    @Override
+    public int getRateBurst() {
+        return rateBurst;
+    }
+
+    @Override
+    public void setRateBurst(int rateBurst) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean isBatchDelivery() {
+        return batchDelivery;
+    }
+
+    @Override
+    public void setBatchDelivery(boolean isBatchDelivery) {
+        throw readOnly();
+    }
+
+    @Override
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    @Override
+    public void setConnectTimeout(int connectTimeout) {
+        throw readOnly();
+    }
+
+    @Override
+    public int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    @Override
+    public void setSocketTimeout(int socketTimeout) {
+        throw readOnly();
+    }
+
+    @Override
+    public int getDeadline() {
+        return deadline;
+    }
+
+    @Override
+    public void setDeadline(int deadline) {
+        throw readOnly();
+    }
+
+    @Override
+    public void init() {
+        throw readOnly();
+    }
+
+    @Override
+    public void save() {
+        throw readOnly();
+    }
+
+    @Override
+    public EntityManager getEntityManager() {
+        throw readOnly();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <X extends RawEntity<Integer>> Class<X> getEntityType() {
+        return (Class<X>) (Class<?>) WebHookConfiguration.class;
+    }
+
+    @Override
+    public void addPropertyChangeListener(PropertyChangeListener propertyChangeListener) {
+        throw readOnly();
+    }
+
+    @Override
+    public void removePropertyChangeListener(PropertyChangeListener propertyChangeListener) {
+        throw readOnly();
+    }
+
+    @Override
+    public String toString() {
+        return "WebHookConfiguration {ID = " + id + "}";
+    }
+
+    private UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException("Webhook configuration " + id + " is a read-only snapshot");
+    }
+}
@@ -0,0 +1,123 @@
+package nl.topicus.bitbucket.persistence;
+
+import nl.topicus.bitbucket.events.Event;
+import nl.topicus.bitbucket.events.Ignorable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The committers and branches a webhook configuration ignores, parsed once rather than for every event.
+ * <p>
+ * Filters are built along with the {@link SubscriptionIndex} of the repository, so they are rebuilt whenever the
+ * configuration changes.
+ */
+public final class WebHookFilter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WebHookFilter.class);
+
+    private final Pattern branchesToIgnore;
+    private final Set<String> committersToIgnore;
+    private final WebHookConfiguration configuration;
+
+    public WebHookFilter(WebHookConfiguration configuration) {
+        this.configuration = configuration;
+
+        branchesToIgnore = compileBranchesToIgnore(configuration);
+        committersToIgnore = configuration.getCommittersToIgnore() == null ? Collections.emptySet() :
+                new HashSet<>(Arrays.asList(configuration.getCommittersToIgnore().split("\\s?,\\s?")));
+    }
+
+    /**
+     * @return {@code false} if the event is ignored because of who made it, or because of all the branches it changed
+     */
+    public boolean accepts(Event event) {
+        if (!(event instanceof Ignorable)) {
+            return true;
+        }
+        Ignorable ignorable = (Ignorable) event;
+        return !ignoredByCommitters(ignorable) && !ignoredByBranch(ignorable, ignoresAll(ignorable.getBranches()));
+    }
+
+    public WebHookConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * Like {@link #accepts(Event)}, for when a {@link BranchMatcher} has already found whether every branch of the
+     * event is ignored.
+     */
+    boolean accepts(Ignorable event, boolean allBranchesIgnored) {
+        return !ignoredByCommitters(event) && !ignoredByBranch(event, allBranchesIgnored);
+    }
+
+    /**
+     * @return the compiled branches to ignore, or {@code null} if no branches are ignored
+     */
+    Pattern getBranchesToIgnore() {
+        return branchesToIgnore;
+    }
+
+    private boolean ignoredByCommitters(Ignorable event) {
+        Optional<String> username = event.getUsername();
+        if (username.isPresent() && committersToIgnore.contains(username.get())) {
+            LOGGER.debug(
+                    "[repo: {}]| The push event by user {} is ignored because the username is listed as a commit to ignore: [{}({})-committersToIgnore:{}]",
+                    configuration.getRepositoryId(),
+                    username,
+                    configuration.getTitle(),
+                    configuration.getURL(),
+                    configuration.getCommittersToIgnore());
+            return true;
+        }
+        return false;
+    }
+
+    private boolean ignoredByBranch(Ignorable event, boolean allBranchesIgnored) {
+        if (allBranchesIgnored) {
+            LOGGER.debug(
+                    "[repo: {}]| This push event contains changes on branches {} it will be ignored because all branches are listed as branches to ignore: [{}({})-branchesToIgnore:{}]",
+                    configuration.getRepositoryId(),
+                    event.getBranches(),
+                    configuration.getTitle(),
+                    configuration.getURL(),
+                    configuration.getBranchesToIgnore());
+        }
+        return allBranchesIgnored;
+    }
+
+    private boolean ignoresAll(List<String> branches) {
+        if (branchesToIgnore == null || branches.isEmpty()) {
+            return false;
+        }
+        for (String branch : branches) {
+            if (!branchesToIgnore.matcher(branch).matches()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Pattern compileBranchesToIgnore(WebHookConfiguration configuration) {
+        if (configuration.getBranchesToIgnore() == null) {
+            return null;
+        }
+        try {
+            return Pattern.compile(configuration.getBranchesToIgnore());
+        } catch (PatternSyntaxException e) {
+            LOGGER.warn("[repo: {}]| The branches to ignore of {}({}) are not a valid regular expression, so no branches are ignored: {}",
+                    configuration.getRepositoryId(),
+                    configuration.getTitle(),
+                    configuration.getURL(),
+                    e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package nl.topicus.bitbucket.persistence;
+
+import net.java.ao.Accessor;
+import net.java.ao.Entity;
+import net.java.ao.Preload;
+import net.java.ao.schema.Indexed;
+import net.java.ao.schema.NotNull;
+import net.java.ao.schema.StringLength;
+import net.java.ao.schema.Table;
+
+/**
+ * A webhook delivery which was given up on, kept so that it can be inspected and sent again once the webhook has
+ * been fixed.
+ * <p>
+ * The body is not preloaded, so that listing dead letters does not read it; it is read when it is asked for.
+ */
+@Table("WHDeadLetter")
+@Preload({WebhookDeadLetter.COLUMN_ATTEMPTS, WebhookDeadLetter.COLUMN_COALESCING_KEY,
+		WebhookDeadLetter.COLUMN_CONFIG_ID, WebhookDeadLetter.COLUMN_CREATED_DATE, WebhookDeadLetter.COLUMN_EVENT_TYPE,
+		WebhookDeadLetter.COLUMN_PULL_REQUEST_ID, WebhookDeadLetter.COLUMN_REASON, WebhookDeadLetter.COLUMN_REPO_ID})
+public interface WebhookDeadLetter extends Entity
+{
+	String COLUMN_ATTEMPTS = "ATTEMPTS";
+	String COLUMN_BODY = "BODY";
+	String COLUMN_COALESCING_KEY = "COALESCING_KEY";
+	String COLUMN_CONFIG_ID = "CONFIG_ID";
+	String COLUMN_CREATED_DATE = "CREATED_DATE";
+	String COLUMN_EVENT_TYPE = "EVENT_TYPE";
+	String COLUMN_PULL_REQUEST_ID = "PULL_REQUEST_ID";
+	String COLUMN_REASON = "REASON";
+	String COLUMN_REPO_ID = "REPO_ID";
+
+	@Accessor(COLUMN_REPO_ID)
+	@Indexed
+	@NotNull
+	Integer getRepositoryId();
+
+	@Accessor(COLUMN_CONFIG_ID)
+	@Indexed
+	@NotNull
+	Integer getConfigurationId();
+
+	@Accessor(COLUMN_EVENT_TYPE)
+	@NotNull
+	String getEventType();
+
+	@Accessor(COLUMN_BODY)
+	@NotNull
+	@StringLength(StringLength.UNLIMITED)
+	String getBody();
+
+	/**
+	 * @return the time, in milliseconds since the epoch, at which the delivery was given up on
+	 */
+	@Accessor(COLUMN_CREATED_DATE)
+	@Indexed
+	@NotNull
+	long getCreatedDate();
+
+	@Accessor(COLUMN_ATTEMPTS)
+	@NotNull
+	int getAttempts();
+
+	/**
+	 * @return the key of the deliveries which replace each other, so that a redelivery can be replaced by a newer
+	 *         event, or {@code null}
+	 */
+	@Accessor(COLUMN_COALESCING_KEY)
+	String getCoalescingKey();
+
+	/**
+	 * @return the ID of the pull request the delivery is about, which keeps a redelivery in order with the other
+	 *         deliveries for it, or {@code null}
+	 */
+	@Accessor(COLUMN_PULL_REQUEST_ID)
+	String getPullRequestId();
+
+	/**
+	 * @return the error or response code of the last attempt
+	 */
+	@Accessor(COLUMN_REASON)
+	String getReason();
+}
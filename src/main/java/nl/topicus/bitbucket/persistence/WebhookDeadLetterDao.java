@@ -0,0 +1,150 @@
+package nl.topicus.bitbucket.persistence;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import net.java.ao.Query;
+import nl.topicus.bitbucket.delivery.WebhookDelivery;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static nl.topicus.bitbucket.persistence.WebhookDeadLetter.COLUMN_ATTEMPTS;
+import static nl.topicus.bitbucket.persistence.WebhookDeadLetter.COLUMN_BODY;
+import static nl.topicus.bitbucket.persistence.WebhookDeadLetter.COLUMN_COALESCING_KEY;
+import static nl.topicus.bitbucket.persistence.WebhookDeadLetter.COLUMN_CONFIG_ID;
+import static nl.topicus.bitbucket.persistence.WebhookDeadLetter.COLUMN_CREATED_DATE;
+import static nl.topicus.bitbucket.persistence.WebhookDeadLetter.COLUMN_EVENT_TYPE;
+import static nl.topicus.bitbucket.persistence.WebhookDeadLetter.COLUMN_PULL_REQUEST_ID;
+import static nl.topicus.bitbucket.persistence.WebhookDeadLetter.COLUMN_REASON;
+import static nl.topicus.bitbucket.persistence.WebhookDeadLetter.COLUMN_REPO_ID;
+
+@Component
+public class WebhookDeadLetterDao {
+    /**
+     * The length of the {@link WebhookDeadLetter#getReason() reason} column.
+     */
+    static final int MAX_REASON_LENGTH = 255;
+
+    private final ActiveObjects activeObjects;
+
+    @Autowired
+    public WebhookDeadLetterDao(@ComponentImport ActiveObjects activeObjects) {
+        this.activeObjects = activeObjects;
+    }
+
+    /**
+     * @param delivery the delivery which was given up on
+     * @param reason   the error or response code of its last attempt
+     * @return the created dead letter
+     */
+    public WebhookDeadLetter createDeadLetter(WebhookDelivery delivery, String reason) {
+        ImmutableMap.Builder<String, Object> values = ImmutableMap.<String, Object>builder()
+                .put(COLUMN_ATTEMPTS, delivery.getAttempt())
+                .put(COLUMN_BODY, delivery.getBody())
+                .put(COLUMN_CONFIG_ID, delivery.getConfiguration().getID())
+                .put(COLUMN_CREATED_DATE, System.currentTimeMillis())
+                .put(COLUMN_EVENT_TYPE, delivery.getEventType().name())
+                .put(COLUMN_REASON, StringUtils.abbreviate(reason, MAX_REASON_LENGTH))
+                .put(COLUMN_REPO_ID, delivery.getRepository().getId());
+        if (delivery.getCoalescingKey() != null) {
+            values.put(COLUMN_COALESCING_KEY, delivery.getCoalescingKey());
+        }
+        if (delivery.getPullRequestId() != null) {
+            values.put(COLUMN_PULL_REQUEST_ID, delivery.getPullRequestId());
+        }
+        return activeObjects.create(WebhookDeadLetter.class, values.build());
+    }
+
+    public WebhookDeadLetter getDeadLetter(int id) {
+        return activeObjects.get(WebhookDeadLetter.class, id);
+    }
+
+    /**
+     * Reads a dead letter together with its body, which is otherwise only read when it is first asked for.
+     *
+     * @param id the ID of the dead letter
+     * @return the dead letter, or {@code null} if it no longer exists
+     */
+    public WebhookDeadLetter getDeadLetterWithBody(int id) {
+        WebhookDeadLetter[] deadLetters = activeObjects.find(WebhookDeadLetter.class,
+                Query.select("ID, " + COLUMN_BODY).where("ID = ?", id));
+        return deadLetters.length == 0 ? null : deadLetters[0];
+    }
+
+    /**
+     * Finds the dead letters of a repository, most recent first.
+     *
+     * @param repo     the repository
+     * @param configId the webhook to limit the results to, or {@code null} for all webhooks
+     * @param since    the time from which to include dead letters, or {@code null} for all of them
+     * @param start    the number of matching dead letters to skip
+     * @param limit    the maximum number of dead letters to return
+     * @return the matching dead letters
+     */
+    public WebhookDeadLetter[] getDeadLetters(Repository repo, Integer configId, Long since, int start, int limit) {
+        return activeObjects.find(WebhookDeadLetter.class, select(repo, configId, since)
+                .order(COLUMN_CREATED_DATE + " DESC, ID DESC")
+                .offset(start)
+                .limit(limit));
+    }
+
+    /**
+     * Finds the dead letters of a repository, oldest first.
+     *
+     * @param repo     the repository
+     * @param configId the webhook to limit the results to, or {@code null} for all webhooks
+     * @param since    the time from which to include dead letters, or {@code null} for all of them
+     * @param limit    the maximum number of dead letters to return
+     * @return the matching dead letters
+     */
+    public WebhookDeadLetter[] getOldestDeadLetters(Repository repo, Integer configId, Long since, int limit) {
+        return activeObjects.find(WebhookDeadLetter.class, select(repo, configId, since)
+                .order(COLUMN_CREATED_DATE + ", ID")
+                .limit(limit));
+    }
+
+    /**
+     * Deletes the given dead letters in as few statements as possible.
+     *
+     * @param ids the IDs of the dead letters to delete
+     * @return the number of deleted dead letters
+     */
+    public int deleteDeadLetters(Collection<Integer> ids) {
+        return activeObjects.executeInTransaction(() -> {
+            int deleted = 0;
+            for (List<Integer> chunk : Iterables.partition(ids, WebhookOutboxDao.MAX_IN_SIZE)) {
+                deleted += activeObjects.deleteWithSQL(WebhookDeadLetter.class,
+                        "ID IN (" + String.join(", ", Collections.nCopies(chunk.size(), "?")) + ")",
+                        chunk.toArray());
+            }
+            return deleted;
+        });
+    }
+
+    public int deleteDeadLetters(Repository repo) {
+        return activeObjects.deleteWithSQL(WebhookDeadLetter.class, COLUMN_REPO_ID + " = ?", repo.getId());
+    }
+
+    private static Query select(Repository repo, Integer configId, Long since) {
+        StringBuilder where = new StringBuilder(COLUMN_REPO_ID + " = ?");
+        List<Object> parameters = new ArrayList<>();
+        parameters.add(repo.getId());
+        if (configId != null) {
+            where.append(" AND " + COLUMN_CONFIG_ID + " = ?");
+            parameters.add(configId);
+        }
+        if (since != null) {
+            where.append(" AND " + COLUMN_CREATED_DATE + " >= ?");
+            parameters.add(since);
+        }
+        return Query.select().where(where.toString(), parameters.toArray());
+    }
+}
@@ -0,0 +1,250 @@
+package nl.topicus.bitbucket.persistence;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import net.java.ao.ActiveObjectsException;
+import net.java.ao.DatabaseProvider;
+import net.java.ao.EntityManager;
+import net.java.ao.Query;
+import nl.topicus.bitbucket.delivery.WebhookDelivery;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static nl.topicus.bitbucket.persistence.WebhookOutboxEntry.COLUMN_ATTEMPT;
+import static nl.topicus.bitbucket.persistence.WebhookOutboxEntry.COLUMN_BODY;
+import static nl.topicus.bitbucket.persistence.WebhookOutboxEntry.COLUMN_CLAIM_EXPIRY;
+import static nl.topicus.bitbucket.persistence.WebhookOutboxEntry.COLUMN_COALESCING_KEY;
+import static nl.topicus.bitbucket.persistence.WebhookOutboxEntry.COLUMN_CONFIG_ID;
+import static nl.topicus.bitbucket.persistence.WebhookOutboxEntry.COLUMN_CREATED_DATE;
+import static nl.topicus.bitbucket.persistence.WebhookOutboxEntry.COLUMN_EVENT_TYPE;
+import static nl.topicus.bitbucket.persistence.WebhookOutboxEntry.COLUMN_PULL_REQUEST_ID;
+import static nl.topicus.bitbucket.persistence.WebhookOutboxEntry.COLUMN_REPO_ID;
+
+@Component
+public class WebhookOutboxDao {
+    /**
+     * The maximum number of IDs bound into a single {@code IN} clause. Oracle rejects lists of more than 1000, and
+     * other databases cap the number of bind parameters per statement.
+     */
+    static final int MAX_IN_SIZE = 500;
+
+    private final ActiveObjects activeObjects;
+
+    @Autowired
+    public WebhookOutboxDao(@ComponentImport ActiveObjects activeObjects) {
+        this.activeObjects = activeObjects;
+    }
+
+    /**
+     * Writes all deliveries in a single transaction, already claimed by the calling node.
+     *
+     * @param deliveries  the deliveries to write
+     * @param claimExpiry the time until which the calling node owns the deliveries
+     * @return the created entries, in the same order as {@code deliveries}
+     */
+    public WebhookOutboxEntry[] createEntries(List<WebhookDelivery> deliveries, long claimExpiry) {
+        long now = System.currentTimeMillis();
+        return activeObjects.executeInTransaction(() -> {
+            WebhookOutboxEntry[] entries = new WebhookOutboxEntry[deliveries.size()];
+            for (int i = 0; i < entries.length; i++) {
+                WebhookDelivery delivery = deliveries.get(i);
+                ImmutableMap.Builder<String, Object> values = ImmutableMap.<String, Object>builder()
+                        .put(COLUMN_ATTEMPT, delivery.getAttempt())
+                        .put(COLUMN_BODY, delivery.getBody())
+                        .put(COLUMN_CLAIM_EXPIRY, claimExpiry)
+                        .put(COLUMN_CONFIG_ID, delivery.getConfiguration().getID())
+                        .put(COLUMN_CREATED_DATE, now)
+                        .put(COLUMN_EVENT_TYPE, delivery.getEventType().name())
+                        .put(COLUMN_REPO_ID, delivery.getRepository().getId());
+                if (delivery.getCoalescingKey() != null) {
+                    values.put(COLUMN_COALESCING_KEY, delivery.getCoalescingKey());
+                }
+                if (delivery.getPullRequestId() != null) {
+                    values.put(COLUMN_PULL_REQUEST_ID, delivery.getPullRequestId());
+                }
+                entries[i] = activeObjects.create(WebhookOutboxEntry.class, values.build());
+            }
+            return entries;
+        });
+    }
+
+    /**
+     * Claims the oldest entries whose previous claim has expired.
+     * <p>
+     * Each entry is claimed with a conditional {@code UPDATE}, which only succeeds if its claim has still expired.
+     * Another node claiming the same entries at the same time either waits for this transaction, and then finds them
+     * claimed, or claims them first, in which case they are left out here. ActiveObjects itself only updates entities
+     * by ID, so the statement is run on its connection directly. The same goes for the other updates, which would
+     * otherwise have to load every entry, body and all.
+     *
+     * @param now         the current time
+     * @param claimExpiry the time until which the calling node will own the claimed entries
+     * @param limit       the maximum number of entries to claim
+     * @return the entries claimed by this call, oldest first
+     */
+    public WebhookOutboxEntry[] claimEntries(long now, long claimExpiry, int limit) {
+        return activeObjects.executeInTransaction(() -> {
+            // The body is not preloaded, but it is needed to send the claimed entries
+            WebhookOutboxEntry[] candidates = activeObjects.find(WebhookOutboxEntry.class,
+                    Query.select("ID, " + COLUMN_BODY)
+                    .where(COLUMN_CLAIM_EXPIRY + " < ?", now)
+                    .order("ID")
+                    .limit(limit));
+            if (candidates.length == 0) {
+                return candidates;
+            }
+
+            EntityManager entityManager = candidates[0].getEntityManager();
+            DatabaseProvider provider = entityManager.getProvider();
+            String sql = "UPDATE " + getTable(entityManager) +
+                    " SET " + provider.quote(COLUMN_CLAIM_EXPIRY) + " = ?" +
+                    " WHERE " + provider.quote("ID") + " = ? AND " + provider.quote(COLUMN_CLAIM_EXPIRY) + " < ?";
+
+            List<WebhookOutboxEntry> claimed = new ArrayList<>(candidates.length);
+            try (Connection connection = provider.getConnection();
+                 PreparedStatement statement = connection.prepareStatement(sql)) {
+                for (WebhookOutboxEntry entry : candidates) {
+                    statement.setLong(1, claimExpiry);
+                    statement.setInt(2, entry.getID());
+                    statement.setLong(3, now);
+                    if (statement.executeUpdate() == 1) {
+                        // Only keeps the loaded entity in line with the row, which has already been updated
+                        entry.setClaimExpiry(claimExpiry);
+                        claimed.add(entry);
+                    }
+                }
+            } catch (SQLException e) {
+                throw new ActiveObjectsException("Failed to claim webhook outbox entries", e);
+            }
+            return claimed.toArray(new WebhookOutboxEntry[0]);
+        });
+    }
+
+    /**
+     * Gives up the claim on the given entries, so that they can be claimed again straight away.
+     *
+     * @param ids the IDs of the entries to release
+     */
+    public void releaseEntries(Collection<Integer> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        activeObjects.executeInTransaction(() -> {
+            EntityManager entityManager = getEntityManager(ids.iterator().next());
+            DatabaseProvider provider = entityManager.getProvider();
+            String sql = "UPDATE " + getTable(entityManager) + " SET " + provider.quote(COLUMN_CLAIM_EXPIRY) + " = 0" +
+                    " WHERE " + provider.quote("ID") + " IN (";
+            try (Connection connection = provider.getConnection()) {
+                for (List<Integer> chunk : Iterables.partition(ids, MAX_IN_SIZE)) {
+                    try (PreparedStatement statement = connection.prepareStatement(
+                            sql + placeholders(chunk.size()) + ")")) {
+                        for (int i = 0; i < chunk.size(); i++) {
+                            statement.setInt(i + 1, chunk.get(i));
+                        }
+                        statement.executeUpdate();
+                    }
+                }
+            } catch (SQLException e) {
+                throw new ActiveObjectsException("Failed to release webhook outbox entries", e);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Extends the claim on the given entries, for deliveries which will not be attempted again until after their
+     * current claim has expired, and records the attempt each delivery has reached, so that it is resumed from there.
+     * The entries are updated in a batch, without loading them.
+     *
+     * @param claimExpiries the new claim expiry for each entry, by entry ID
+     * @param attempts      the attempt reached by each entry, by entry ID; entries missing from it keep theirs
+     */
+    public void extendClaims(Map<Integer, Long> claimExpiries, Map<Integer, Integer> attempts) {
+        if (claimExpiries.isEmpty()) {
+            return;
+        }
+        activeObjects.executeInTransaction(() -> {
+            EntityManager entityManager = getEntityManager(claimExpiries.keySet().iterator().next());
+            DatabaseProvider provider = entityManager.getProvider();
+            String update = "UPDATE " + getTable(entityManager) +
+                    " SET " + provider.quote(COLUMN_CLAIM_EXPIRY) + " = ?";
+            String where = " WHERE " + provider.quote("ID") + " = ?";
+            try (Connection connection = provider.getConnection();
+                 PreparedStatement extend = connection.prepareStatement(update + where);
+                 PreparedStatement extendAndCount = connection.prepareStatement(
+                         update + ", " + provider.quote(COLUMN_ATTEMPT) + " = ?" + where)) {
+                boolean counted = false;
+                boolean extended = false;
+                for (Map.Entry<Integer, Long> claimExpiry : claimExpiries.entrySet()) {
+                    Integer attempt = attempts.get(claimExpiry.getKey());
+                    if (attempt == null) {
+                        extend.setLong(1, claimExpiry.getValue());
+                        extend.setInt(2, claimExpiry.getKey());
+                        extend.addBatch();
+                        extended = true;
+                    } else {
+                        extendAndCount.setLong(1, claimExpiry.getValue());
+                        extendAndCount.setInt(2, attempt);
+                        extendAndCount.setInt(3, claimExpiry.getKey());
+                        extendAndCount.addBatch();
+                        counted = true;
+                    }
+                }
+                if (extended) {
+                    extend.executeBatch();
+                }
+                if (counted) {
+                    extendAndCount.executeBatch();
+                }
+            } catch (SQLException e) {
+                throw new ActiveObjectsException("Failed to extend the claim on webhook outbox entries", e);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Deletes the given entries in as few statements as possible.
+     *
+     * @param ids the IDs of the entries to delete
+     * @return the number of deleted entries
+     */
+    public int deleteEntries(Collection<Integer> ids) {
+        return activeObjects.executeInTransaction(() -> {
+            int deleted = 0;
+            for (List<Integer> chunk : Iterables.partition(ids, MAX_IN_SIZE)) {
+                deleted += activeObjects.deleteWithSQL(WebhookOutboxEntry.class,
+                        "ID IN (" + placeholders(chunk.size()) + ")", chunk.toArray());
+            }
+            return deleted;
+        });
+    }
+
+    /**
+     * Reaches the database through an entry looked up by ID. That only reads the preloaded columns, which leave out
+     * the body.
+     */
+    private EntityManager getEntityManager(int id) {
+        return activeObjects.get(WebhookOutboxEntry.class, id).getEntityManager();
+    }
+
+    private static String getTable(EntityManager entityManager) {
+        return entityManager.getProvider().withSchema(
+                entityManager.getNameConverters().getTableNameConverter().getName(WebhookOutboxEntry.class));
+    }
+
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+}
@@ -0,0 +1,87 @@
+package nl.topicus.bitbucket.persistence;
+
+import net.java.ao.Accessor;
+import net.java.ao.Entity;
+import net.java.ao.Mutator;
+import net.java.ao.Preload;
+import net.java.ao.schema.Default;
+import net.java.ao.schema.Indexed;
+import net.java.ao.schema.NotNull;
+import net.java.ao.schema.StringLength;
+import net.java.ao.schema.Table;
+
+/**
+ * A webhook delivery which has been accepted but not yet completed. Rows are removed once the delivery is done, so
+ * anything left in this table after a restart still has to be sent.
+ * <p>
+ * The body is not preloaded, so that looking up an entry to update or release it does not read the body as well; the
+ * body is only selected when entries are claimed to be sent.
+ */
+@Table("WHOutbox")
+@Preload({WebhookOutboxEntry.COLUMN_ATTEMPT, WebhookOutboxEntry.COLUMN_CLAIM_EXPIRY,
+		WebhookOutboxEntry.COLUMN_COALESCING_KEY, WebhookOutboxEntry.COLUMN_CONFIG_ID,
+		WebhookOutboxEntry.COLUMN_CREATED_DATE, WebhookOutboxEntry.COLUMN_EVENT_TYPE,
+		WebhookOutboxEntry.COLUMN_PULL_REQUEST_ID, WebhookOutboxEntry.COLUMN_REPO_ID})
+public interface WebhookOutboxEntry extends Entity
+{
+	String COLUMN_ATTEMPT = "ATTEMPT";
+	String COLUMN_BODY = "BODY";
+	String COLUMN_CLAIM_EXPIRY = "CLAIM_EXPIRY";
+	String COLUMN_COALESCING_KEY = "COALESCING_KEY";
+	String COLUMN_CONFIG_ID = "CONFIG_ID";
+	String COLUMN_CREATED_DATE = "CREATED_DATE";
+	String COLUMN_EVENT_TYPE = "EVENT_TYPE";
+	String COLUMN_PULL_REQUEST_ID = "PULL_REQUEST_ID";
+	String COLUMN_REPO_ID = "REPO_ID";
+
+	@Accessor(COLUMN_REPO_ID)
+	@NotNull
+	Integer getRepositoryId();
+
+	@Accessor(COLUMN_CONFIG_ID)
+	@Indexed
+	@NotNull
+	Integer getConfigurationId();
+
+	@Accessor(COLUMN_EVENT_TYPE)
+	@NotNull
+	String getEventType();
+
+	@Accessor(COLUMN_BODY)
+	@NotNull
+	@StringLength(StringLength.UNLIMITED)
+	String getBody();
+
+	@Accessor(COLUMN_CREATED_DATE)
+	@NotNull
+	long getCreatedDate();
+
+	@Accessor(COLUMN_COALESCING_KEY)
+	String getCoalescingKey();
+
+	@Accessor(COLUMN_PULL_REQUEST_ID)
+	String getPullRequestId();
+
+	/**
+	 * @return the number of the attempt the delivery had reached when it was last deferred, starting at 1
+	 */
+	@Accessor(COLUMN_ATTEMPT)
+	@Default("1")
+	@NotNull
+	int getAttempt();
+
+	@Mutator(COLUMN_ATTEMPT)
+	void setAttempt(int attempt);
+
+	/**
+	 * @return the time, in milliseconds since the epoch, until which a node owns this delivery; once it has passed
+	 *         the delivery is considered abandoned and may be claimed by any node
+	 */
+	@Accessor(COLUMN_CLAIM_EXPIRY)
+	@Indexed
+	@NotNull
+	long getClaimExpiry();
+
+	@Mutator(COLUMN_CLAIM_EXPIRY)
+	void setClaimExpiry(long claimExpiry);
+}
@@ -193,6 +193,52 @@ public class WebhookResourceTest extends BaseRetryingFuncTest {
                 .when().delete(getUrl(getProject1(), getProject1Repository1()) + "/9999");
     }
 
+    @Test
+    public void testGetWebhookStatus() {
+        JSONObject body = new JSONObject();
+        body.put("title", "Test Hook");
+        body.put("url", "https://example.com/webhook");
+        body.put("enabled", true);
+
+        int webhookId = RestAssured.given()
+                .auth().preemptive().basic(getAdminUser(), getAdminPassword())
+                .body(body)
+                .contentType(ContentType.JSON)
+                .expect().statusCode(200)
+                .log().ifValidationFails()
+                .when().put(getUrl(getProject1(), getProject1Repository1()))
+                .jsonPath()
+                .getInt("id");
+
+        try {
+            RestAssured.given()
+                    .auth().preemptive().basic(getAdminUser(), getAdminPassword())
+                    .expect().statusCode(200)
+                    .log().ifValidationFails()
+                    .body("id", equalTo(webhookId))
+                    .body("host", equalTo("https://example.com:443"))
+                    .body("circuitState", equalTo("CLOSED"))
+                    .body("consecutiveFailures", equalTo(0))
+                    .when().get(getUrl(getProject1(), getProject1Repository1()) + "/" + webhookId + "/status");
+        } finally {
+            RestAssured.given()
+                    .auth().preemptive().basic(getAdminUser(), getAdminPassword())
+                    .expect().statusCode(204)
+                    .log().ifValidationFails()
+                    .when().delete(getUrl(getProject1(), getProject1Repository1()) + "/" + webhookId);
+        }
+    }
+
+    @Test
+    public void testGetWebhookStatusWithNonexistentId() {
+        RestAssured.given()
+                .auth().preemptive().basic(getAdminUser(), getAdminPassword())
+                .expect().statusCode(404)
+                .log().ifValidationFails()
+                .body(equalTo("Webhook not found"))
+                .when().get(getUrl(getProject1(), getProject1Repository1()) + "/9999/status");
+    }
+
     private String getUrl(String projectKey, String repositorySlug) {
         return getRepositoryRestURL("webhook", "latest", projectKey, repositorySlug) + "/configurations";
     }
@@ -1,10 +1,17 @@
 package nl.topicus.bitbucket.api;
 
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import nl.topicus.bitbucket.delivery.DeliverySettings;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -13,12 +20,15 @@ import org.junit.Test;
 import java.net.InetAddress;
 import java.net.URI;
 import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.junit.Assert.assertThat;
+import static org.mockito.AdditionalAnswers.returnsArgAt;
+import static org.mockito.Mockito.mock;
 
 public class HttpClientFactoryTest {
     @Rule
@@ -38,7 +48,8 @@ public class HttpClientFactoryTest {
 
     @Before
     public void setUp() throws Exception {
-        httpClientFactory = new HttpClientFactory();
+        httpClientFactory = new HttpClientFactory(
+                new DeliverySettings(mock(ApplicationPropertiesService.class, returnsArgAt(1))));
         serverURI = new URIBuilder().setScheme("http").setHost(hostName).setPort(9999).build();
         server.stubFor(get(urlEqualTo("/"))
                 .willReturn(aResponse().withStatus(200)));
@@ -91,4 +102,37 @@ public class HttpClientFactoryTest {
         server.verify(getRequestedFor(urlEqualTo("/")));
     }
 
+    @Test
+    public void testThatAsyncClientUsesProxy() throws Exception {
+        System.setProperty("http.proxyHost", hostName);
+        System.setProperty("http.proxyPort", "8888");
+
+        try (CloseableHttpAsyncClient httpClient = httpClientFactory.createAsync("", 1)) {
+            assertThat(httpClient, is(notNullValue()));
+            httpClient.start();
+            HttpResponse execute = httpClient.execute(new HttpGet(serverURI), null).get(10, TimeUnit.SECONDS);
+            assertThat(execute.getStatusLine().getStatusCode(), is(200));
+        }
+
+        proxy.verify(getRequestedFor(urlEqualTo("/")));
+        server.verify(0, getRequestedFor(urlEqualTo("/")));
+    }
+
+    @Test
+    public void testKeepAliveIsCapped() throws Exception {
+        ConnectionKeepAliveStrategy strategy = HttpClientFactory.createKeepAliveStrategy(60);
+
+        assertThat(strategy.getKeepAliveDuration(keepAliveResponse(null), new BasicHttpContext()), is(60000L));
+        assertThat(strategy.getKeepAliveDuration(keepAliveResponse("timeout=5"), new BasicHttpContext()), is(5000L));
+        assertThat(strategy.getKeepAliveDuration(keepAliveResponse("timeout=600"), new BasicHttpContext()), is(60000L));
+    }
+
+    private static HttpResponse keepAliveResponse(String keepAlive) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        if (keepAlive != null) {
+            response.setHeader("Keep-Alive", keepAlive);
+        }
+        return response;
+    }
+
 }
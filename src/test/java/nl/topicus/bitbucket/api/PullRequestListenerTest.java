@@ -0,0 +1,138 @@
+package nl.topicus.bitbucket.api;
+
+import com.atlassian.bitbucket.event.pull.PullRequestMergedEvent;
+import com.atlassian.bitbucket.event.pull.PullRequestOpenedEvent;
+import com.atlassian.bitbucket.idx.CommitIndex;
+import com.atlassian.bitbucket.nav.NavBuilder;
+import com.atlassian.bitbucket.pull.PullRequest;
+import com.atlassian.bitbucket.pull.PullRequestRef;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.Command;
+import com.atlassian.bitbucket.scm.ScmService;
+import com.atlassian.bitbucket.scm.pull.ScmPullRequestCommandFactory;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.event.api.EventPublisher;
+import nl.topicus.bitbucket.delivery.DeliveryExecutor;
+import nl.topicus.bitbucket.delivery.DeliveryOrdering;
+import nl.topicus.bitbucket.delivery.DeliveryScheduler;
+import nl.topicus.bitbucket.delivery.DeliverySettings;
+import nl.topicus.bitbucket.delivery.EventCoalescer;
+import nl.topicus.bitbucket.delivery.RejectionPolicy;
+import nl.topicus.bitbucket.delivery.WebhookDispatcher;
+import nl.topicus.bitbucket.events.EventType;
+import nl.topicus.bitbucket.persistence.WebHookConfigurationDao;
+import nl.topicus.bitbucket.persistence.WebhookDeadLetterDao;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PullRequestListenerTest {
+
+    private final ScmPullRequestCommandFactory commandFactory = mock(ScmPullRequestCommandFactory.class);
+    private final PullRequest pullRequest = mock(PullRequest.class);
+    private final Repository repository = mock(Repository.class);
+    private final DeliveryScheduler scheduler = new DeliveryScheduler();
+    private final DeliverySettings settings = mock(DeliverySettings.class);
+    private final WebhookDispatcher webhookDispatcher = mock(WebhookDispatcher.class);
+
+    private DeliveryExecutor deliveryExecutor;
+    private PullRequestListener listener;
+
+    @Before
+    public void setup() {
+        when(settings.getThreads()).thenReturn(4);
+        when(settings.getQueueSize()).thenReturn(10);
+        when(settings.getRejectionPolicy()).thenReturn(RejectionPolicy.DISCARD);
+        when(settings.getShutdownTimeout()).thenReturn(5L);
+        when(settings.getDeliveryOrdering()).thenReturn(DeliveryOrdering.PULL_REQUEST);
+        deliveryExecutor = new DeliveryExecutor(settings);
+
+        PullRequestRef toRef = mock(PullRequestRef.class);
+        when(repository.getId()).thenReturn(1);
+        when(toRef.getRepository()).thenReturn(repository);
+        when(pullRequest.getId()).thenReturn(2L);
+        when(pullRequest.getToRef()).thenReturn(toRef);
+        when(pullRequest.isOpen()).thenReturn(true);
+
+        NavBuilder navBuilder = mock(NavBuilder.class);
+        NavBuilder.Repo repo = mock(NavBuilder.Repo.class);
+        NavBuilder.PullRequest pullRequestLink = mock(NavBuilder.PullRequest.class);
+        when(navBuilder.repo(repository)).thenReturn(repo);
+        when(repo.pullRequest(2L)).thenReturn(pullRequestLink);
+        when(pullRequestLink.buildAbsolute()).thenReturn("https://bitbucket.example.com/pull-requests/2");
+
+        ApplicationPropertiesService applicationPropertiesService = mock(ApplicationPropertiesService.class);
+        when(applicationPropertiesService.getBuildVersion()).thenReturn("5.16.0");
+        ScmService scmService = mock(ScmService.class);
+        when(scmService.getPullRequestCommandFactory(pullRequest)).thenReturn(commandFactory);
+        WebHookConfigurationDao webHookConfigurationDao = mock(WebHookConfigurationDao.class);
+        when(webHookConfigurationDao.hasSubscribers(any(Repository.class), any(EventType.class))).thenReturn(true);
+
+        listener = new PullRequestListener(applicationPropertiesService, mock(EventPublisher.class),
+                new EventCoalescer(deliveryExecutor, scheduler, settings), navBuilder, scmService,
+                mock(CommitIndex.class), webHookConfigurationDao, mock(WebhookDeadLetterDao.class),
+                webhookDispatcher);
+    }
+
+    @After
+    public void tearDown() {
+        deliveryExecutor.shutdown();
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testSlowMergeCheckIsNotOvertakenByLaterEvent() throws InterruptedException {
+        CountDownLatch checking = new CountDownLatch(1);
+        CountDownLatch checked = new CountDownLatch(1);
+        Command<Object> tryMerge = () -> {
+            checking.countDown();
+            await(checked);
+            return null;
+        };
+        doReturn(tryMerge).when(commandFactory).tryMerge(pullRequest);
+        PullRequestOpenedEvent opened = mock(PullRequestOpenedEvent.class);
+        when(opened.getPullRequest()).thenReturn(pullRequest);
+        PullRequestMergedEvent merged = mock(PullRequestMergedEvent.class);
+        when(merged.getPullRequest()).thenReturn(pullRequest);
+
+        listener.onPullRequestCreated(opened);
+        assertTrue(checking.await(5, TimeUnit.SECONDS));
+        listener.onPullRequestMerged(merged);
+
+        // There are idle delivery threads, which would have picked up the merge by now if it were not held back
+        Thread.sleep(200L);
+        verify(webhookDispatcher, never()).dispatch(any(Object.class), any(Repository.class), any(EventType.class));
+
+        checked.countDown();
+        deliveryExecutor.shutdown();
+        ArgumentCaptor<EventType> eventTypes = ArgumentCaptor.forClass(EventType.class);
+        verify(webhookDispatcher, times(2)).dispatch(any(Object.class), eq(repository), eventTypes.capture());
+        assertThat(eventTypes.getAllValues(),
+                is(Arrays.asList(EventType.PULL_REQUEST_CREATED, EventType.PULL_REQUEST_MERGED)));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
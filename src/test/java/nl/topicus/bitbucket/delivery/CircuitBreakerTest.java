@@ -0,0 +1,92 @@
+package nl.topicus.bitbucket.delivery;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker(3, 1000L);
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        assertFalse(circuitBreaker.onFailure(0L));
+        assertFalse(circuitBreaker.onFailure(0L));
+        assertThat(circuitBreaker.getState(), is(CircuitState.CLOSED));
+        assertTrue(circuitBreaker.tryAcquire(0L));
+
+        assertTrue(circuitBreaker.onFailure(100L));
+        assertThat(circuitBreaker.getState(), is(CircuitState.OPEN));
+        assertFalse(circuitBreaker.tryAcquire(500L));
+        assertThat(circuitBreaker.getRemainingOpenTime(500L), is(600L));
+    }
+
+    @Test
+    public void testSuccessResetsFailures() {
+        circuitBreaker.onFailure(0L);
+        circuitBreaker.onFailure(0L);
+        circuitBreaker.onSuccess();
+        circuitBreaker.onFailure(0L);
+
+        assertThat(circuitBreaker.getState(), is(CircuitState.CLOSED));
+        assertThat(circuitBreaker.getFailures(), is(1));
+    }
+
+    @Test
+    public void testSingleProbeWhenHalfOpen() {
+        open();
+
+        assertTrue(circuitBreaker.tryAcquire(1000L));
+        assertThat(circuitBreaker.getState(), is(CircuitState.HALF_OPEN));
+        assertFalse(circuitBreaker.tryAcquire(1001L));
+    }
+
+    @Test
+    public void testSuccessfulProbeClosesCircuit() {
+        open();
+        assertTrue(circuitBreaker.tryAcquire(1000L));
+
+        circuitBreaker.onSuccess();
+
+        assertThat(circuitBreaker.getState(), is(CircuitState.CLOSED));
+        assertTrue(circuitBreaker.tryAcquire(1001L));
+    }
+
+    @Test
+    public void testFailedProbeReopensCircuit() {
+        open();
+        assertTrue(circuitBreaker.tryAcquire(1000L));
+
+        assertTrue(circuitBreaker.onFailure(1200L));
+
+        assertThat(circuitBreaker.getState(), is(CircuitState.OPEN));
+        assertFalse(circuitBreaker.tryAcquire(2100L));
+        assertTrue(circuitBreaker.tryAcquire(2200L));
+    }
+
+    @Test
+    public void testLostProbeIsReplaced() {
+        open();
+        assertTrue(circuitBreaker.tryAcquire(1000L));
+
+        assertFalse(circuitBreaker.tryAcquire(1999L));
+        assertTrue(circuitBreaker.tryAcquire(2000L));
+    }
+
+    @Test
+    public void testCircuitsAreKeyedByHost() {
+        assertThat(CircuitBreakers.getHost("https://Jenkins.example.com/job/a/build"), is("https://jenkins.example.com:443"));
+        assertThat(CircuitBreakers.getHost("http://jenkins.example.com:8080/job/b"), is("http://jenkins.example.com:8080"));
+        assertThat(CircuitBreakers.getHost("not a url"), is("not a url"));
+    }
+
+    private void open() {
+        for (int i = 0; i < 3; i++) {
+            circuitBreaker.onFailure(0L);
+        }
+        assertThat(circuitBreaker.getState(), is(CircuitState.OPEN));
+    }
+}
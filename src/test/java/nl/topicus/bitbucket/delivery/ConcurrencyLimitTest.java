@@ -0,0 +1,96 @@
+package nl.topicus.bitbucket.delivery;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class ConcurrencyLimitTest {
+
+    private static final Runnable REQUEST = () -> {
+    };
+
+    @Test
+    public void testRequestsOverTheLimitWait() {
+        ConcurrencyLimit limit = new ConcurrencyLimit(2, 10, 10);
+        Runnable waiting = () -> {
+        };
+
+        assertThat(limit.tryAcquire(REQUEST), is(Admission.SEND));
+        assertThat(limit.tryAcquire(REQUEST), is(Admission.SEND));
+        assertThat(limit.tryAcquire(waiting), is(Admission.WAIT));
+        assertThat(limit.getWaiting(), is(1));
+
+        assertThat(limit.release(), is(sameInstance(waiting)));
+        assertThat(limit.getInFlight(), is(2));
+        assertThat(limit.getWaiting(), is(0));
+        assertThat(limit.release(), is(nullValue()));
+        assertThat(limit.getInFlight(), is(1));
+    }
+
+    @Test
+    public void testRejectsWhenTheLineIsFull() {
+        ConcurrencyLimit limit = new ConcurrencyLimit(1, 10, 1);
+
+        assertThat(limit.tryAcquire(REQUEST), is(Admission.SEND));
+        assertThat(limit.tryAcquire(REQUEST), is(Admission.WAIT));
+        assertThat(limit.tryAcquire(REQUEST), is(Admission.REJECT));
+        assertThat(limit.getInFlight(), is(1));
+        assertThat(limit.getWaiting(), is(1));
+    }
+
+    @Test
+    public void testGrowsWhileResponsesAreFast() {
+        ConcurrencyLimit limit = new ConcurrencyLimit(2, 4, 10);
+
+        for (int i = 0; i < 20; i++) {
+            assertThat(limit.tryAcquire(REQUEST), is(Admission.SEND));
+            assertThat(limit.tryAcquire(REQUEST), is(Admission.SEND));
+            limit.onSuccess(100L);
+            limit.onSuccess(100L);
+        }
+
+        assertThat(limit.getLimit(), is(4));
+    }
+
+    @Test
+    public void testDoesNotGrowWhenUnused() {
+        ConcurrencyLimit limit = new ConcurrencyLimit(4, 10, 10);
+
+        for (int i = 0; i < 20; i++) {
+            assertThat(limit.tryAcquire(REQUEST), is(Admission.SEND));
+            limit.onSuccess(100L);
+        }
+
+        assertThat(limit.getLimit(), is(4));
+    }
+
+    @Test
+    public void testShrinksWhenResponsesSlowDown() {
+        ConcurrencyLimit limit = new ConcurrencyLimit(10, 10, 10);
+        limit.tryAcquire(REQUEST);
+        limit.onSuccess(100L);
+
+        limit.tryAcquire(REQUEST);
+        limit.onSuccess(1000L);
+
+        assertThat(limit.getLimit(), is(9));
+    }
+
+    @Test
+    public void testHalvesOnFailure() {
+        ConcurrencyLimit limit = new ConcurrencyLimit(8, 10, 10);
+
+        limit.tryAcquire(REQUEST);
+        limit.onFailure();
+        assertThat(limit.getLimit(), is(4));
+
+        for (int i = 0; i < 5; i++) {
+            limit.tryAcquire(REQUEST);
+            limit.onFailure();
+        }
+        assertThat(limit.getLimit(), is(1));
+    }
+}
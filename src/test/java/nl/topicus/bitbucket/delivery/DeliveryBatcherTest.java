@@ -0,0 +1,99 @@
+package nl.topicus.bitbucket.delivery;
+
+import com.atlassian.bitbucket.repository.Repository;
+import nl.topicus.bitbucket.events.EventType;
+import nl.topicus.bitbucket.persistence.WebHookConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DeliveryBatcherTest {
+
+    private final List<List<WebhookDelivery>> batches = new ArrayList<>();
+    private final WebHookConfiguration configuration = mock(WebHookConfiguration.class);
+    private final DeliveryScheduler scheduler = mock(DeliveryScheduler.class);
+
+    private DeliveryBatcher batcher;
+
+    @Before
+    public void setup() {
+        when(configuration.getID()).thenReturn(1);
+        when(scheduler.schedule(any(Runnable.class), anyLong())).thenReturn(true);
+        batcher = new DeliveryBatcher(scheduler, 3, 500L, batches::add);
+    }
+
+    @Test
+    public void testFullBatchIsPassedOn() {
+        WebhookDelivery first = createDelivery(EventType.BUILD_STATUS);
+        WebhookDelivery second = createDelivery(EventType.BUILD_STATUS);
+        WebhookDelivery third = createDelivery(EventType.BUILD_STATUS);
+
+        batcher.add(first);
+        batcher.add(second);
+        assertThat(batches.isEmpty(), is(true));
+
+        batcher.add(third);
+        assertThat(batches, is(Arrays.asList(Arrays.asList(first, second, third))));
+        verify(scheduler, times(1)).schedule(any(Runnable.class), anyLong());
+    }
+
+    @Test
+    public void testBatchIsPassedOnWhenWindowPasses() {
+        WebhookDelivery first = createDelivery(EventType.REPO_PUSH);
+        WebhookDelivery second = createDelivery(EventType.REPO_PUSH);
+
+        batcher.add(first);
+        batcher.add(second);
+
+        ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(flush.capture(), anyLong());
+        flush.getValue().run();
+        assertThat(batches, is(Arrays.asList(Arrays.asList(first, second))));
+
+        // A later delivery opens a new batch
+        batcher.add(createDelivery(EventType.REPO_PUSH));
+        verify(scheduler, times(2)).schedule(any(Runnable.class), anyLong());
+        assertThat(batches.size(), is(1));
+    }
+
+    @Test
+    public void testEventKeysAreBatchedSeparately() {
+        WebhookDelivery push = createDelivery(EventType.REPO_PUSH);
+        WebhookDelivery status = createDelivery(EventType.BUILD_STATUS);
+
+        batcher.add(push);
+        batcher.add(status);
+        batcher.flushAll();
+
+        assertThat(batches.size(), is(2));
+        assertThat(batches.contains(Arrays.asList(push)), is(true));
+        assertThat(batches.contains(Arrays.asList(status)), is(true));
+    }
+
+    @Test
+    public void testBatchIsPassedOnWhenSchedulerIsShutDown() {
+        when(scheduler.schedule(any(Runnable.class), anyLong())).thenReturn(false);
+        WebhookDelivery delivery = createDelivery(EventType.REPO_PUSH);
+
+        batcher.add(delivery);
+
+        assertThat(batches, is(Arrays.asList(Arrays.asList(delivery))));
+    }
+
+    private WebhookDelivery createDelivery(EventType eventType) {
+        return new WebhookDelivery(mock(Repository.class), configuration, eventType, "{}");
+    }
+}
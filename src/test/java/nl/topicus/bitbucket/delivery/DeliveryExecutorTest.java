@@ -0,0 +1,140 @@
+package nl.topicus.bitbucket.delivery;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class DeliveryExecutorTest {
+
+    private DeliveryExecutor executor;
+
+    @After
+    public void tearDown() {
+        if (executor != null) {
+            executor.destroy();
+        }
+    }
+
+    @Test
+    public void testRunsOnPluginThreads() throws Exception {
+        executor = new DeliveryExecutor(1, 10, RejectionPolicy.DISCARD, 5);
+        AtomicReference<String> threadName = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+
+        executor.execute(() -> {
+            threadName.set(Thread.currentThread().getName());
+            done.countDown();
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertThat(threadName.get(), startsWith("webhooks-delivery-"));
+    }
+
+    @Test
+    public void testDiscardWhenQueueIsFull() throws Exception {
+        executor = new DeliveryExecutor(1, 1, RejectionPolicy.DISCARD, 5);
+        CountDownLatch blocker = new CountDownLatch(1);
+        AtomicInteger completed = new AtomicInteger();
+
+        executor.execute(() -> await(blocker));
+        executor.execute(completed::incrementAndGet);
+        executor.execute(completed::incrementAndGet);
+        blocker.countDown();
+        executor.shutdown();
+
+        assertThat(completed.get(), is(1));
+    }
+
+    @Test
+    public void testNewTaskIsDiscardedAfterShutdown() {
+        executor = new DeliveryExecutor(1, 1, RejectionPolicy.DISCARD_OLDEST, 5);
+        executor.shutdown();
+        AtomicInteger discarded = new AtomicInteger();
+
+        executor.execute(new DeliveryExecutor.Discardable() {
+            @Override
+            public void run() {
+            }
+
+            @Override
+            public void discarded() {
+                discarded.incrementAndGet();
+            }
+        });
+
+        assertThat(discarded.get(), is(1));
+    }
+
+    @Test
+    public void testFollowUpsAreNotDiscardedWhenQueueIsFull() throws Exception {
+        executor = new DeliveryExecutor(1, 1, RejectionPolicy.DISCARD_OLDEST, 5);
+        CountDownLatch blocker = new CountDownLatch(1);
+        AtomicInteger completed = new AtomicInteger();
+
+        executor.execute(() -> await(blocker));
+        for (int i = 0; i < 3; i++) {
+            executor.executeFollowUp(completed::incrementAndGet);
+        }
+        executor.execute(() -> {
+        });
+        executor.execute(() -> {
+        });
+        blocker.countDown();
+        executor.shutdown();
+
+        assertThat(completed.get(), is(3));
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void testFollowUpsAreRejectedAfterShutdown() {
+        executor = new DeliveryExecutor(1, 1, RejectionPolicy.DISCARD, 5);
+        executor.shutdown();
+
+        executor.executeFollowUp(() -> {
+        });
+    }
+
+    @Test
+    public void testShutdownDrainsQueuedTasks() throws Exception {
+        executor = new DeliveryExecutor(1, 10, RejectionPolicy.DISCARD, 5);
+        AtomicInteger completed = new AtomicInteger();
+        for (int i = 0; i < 5; i++) {
+            executor.execute(completed::incrementAndGet);
+        }
+
+        executor.shutdown();
+
+        assertThat(completed.get(), is(5));
+    }
+
+    @Test
+    public void testFailingTaskDoesNotStopDelivery() throws Exception {
+        executor = new DeliveryExecutor(1, 10, RejectionPolicy.DISCARD, 5);
+        CountDownLatch done = new CountDownLatch(1);
+
+        executor.execute(() -> {
+            throw new IllegalStateException("boom");
+        });
+        executor.execute(done::countDown);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package nl.topicus.bitbucket.delivery;
+
+import com.atlassian.bitbucket.repository.Repository;
+import nl.topicus.bitbucket.events.EventType;
+import nl.topicus.bitbucket.persistence.WebHookConfiguration;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class DeliveryMailboxesTest {
+
+    private final DeliveryMailboxes mailboxes = new DeliveryMailboxes(WebhookDelivery::getPullRequestId, 2, 60000L);
+
+    @Test
+    public void testSameKeyWaitsForEarlierDelivery() {
+        WebhookDelivery created = createDelivery("1");
+        WebhookDelivery updated = createDelivery("1");
+        WebhookDelivery merged = createDelivery("1");
+
+        assertThat(mailboxes.submit(created), is(Admission.SEND));
+        assertThat(mailboxes.submit(updated), is(Admission.WAIT));
+        assertThat(mailboxes.submit(merged), is(Admission.WAIT));
+
+        assertThat(mailboxes.settled(created), is(sameInstance(updated)));
+        assertThat(mailboxes.settled(updated), is(sameInstance(merged)));
+        assertThat(mailboxes.settled(merged), is(nullValue()));
+        assertThat(mailboxes.size(), is(0));
+    }
+
+    @Test
+    public void testDifferentKeysAreSentInParallel() {
+        assertThat(mailboxes.submit(createDelivery("1")), is(Admission.SEND));
+        assertThat(mailboxes.submit(createDelivery("2")), is(Admission.SEND));
+        assertThat(mailboxes.size(), is(2));
+    }
+
+    @Test
+    public void testDeliveriesWithoutKeyAreNotOrdered() {
+        WebhookDelivery push = createDelivery(null);
+
+        assertThat(mailboxes.submit(push), is(Admission.SEND));
+        assertThat(mailboxes.submit(createDelivery(null)), is(Admission.SEND));
+        assertThat(mailboxes.settled(push), is(nullValue()));
+        assertThat(mailboxes.size(), is(0));
+    }
+
+    @Test
+    public void testSettlingWaitingDeliveryDoesNotReleaseMailbox() {
+        WebhookDelivery current = createDelivery("1");
+        WebhookDelivery dropped = createDelivery("1");
+        mailboxes.submit(current);
+
+        assertThat(mailboxes.settled(dropped), is(nullValue()));
+        assertThat(mailboxes.submit(createDelivery("1")), is(Admission.WAIT));
+    }
+
+    @Test
+    public void testLaterDeliveriesFollowSpilledDelivery() {
+        WebhookDelivery created = createDelivery("1", 1);
+        WebhookDelivery updated = createDelivery("1", 2);
+        mailboxes.submit(created);
+        mailboxes.submit(updated);
+
+        assertThat(mailboxes.spilled(created), is(Collections.singletonList(updated)));
+        assertThat(mailboxes.submit(createDelivery("1", 3)), is(Admission.REJECT));
+        assertThat(mailboxes.size(), is(1));
+
+        // Resumed deliveries only go in the order they were written, after which new ones wait their turn again
+        WebhookDelivery first = createRecovered("1", 1);
+        WebhookDelivery second = createRecovered("1", 2);
+        assertThat(mailboxes.submit(createRecovered("1", 3)), is(Admission.REJECT));
+        assertThat(mailboxes.submit(first), is(Admission.SEND));
+        assertThat(mailboxes.submit(second), is(Admission.WAIT));
+        assertThat(mailboxes.submit(createDelivery("1", 4)), is(Admission.REJECT));
+        assertThat(mailboxes.submit(createRecovered("1", 3)), is(Admission.WAIT));
+
+        assertThat(mailboxes.settled(first), is(sameInstance(second)));
+        assertThat(mailboxes.submit(createRecovered("1", 4)), is(Admission.WAIT));
+        mailboxes.settled(second);
+        assertThat(mailboxes.submit(createDelivery("1", 5)), is(Admission.WAIT));
+    }
+
+    @Test
+    public void testStopsWaitingForDeliveryWhichIsNotResumed() {
+        DeliveryMailboxes mailboxes = new DeliveryMailboxes(WebhookDelivery::getPullRequestId, 2, 0L);
+        WebhookDelivery spilled = createDelivery("1", 1);
+        mailboxes.submit(spilled);
+        mailboxes.spilled(spilled);
+
+        assertThat(mailboxes.submit(createDelivery("1", 2)), is(Admission.SEND));
+    }
+
+    @Test
+    public void testSpillsOnceMailboxIsFull() {
+        WebhookDelivery current = createDelivery("1", 1);
+        mailboxes.submit(current);
+        mailboxes.submit(createDelivery("1", 2));
+        mailboxes.submit(createDelivery("1", 3));
+
+        assertThat(mailboxes.submit(createDelivery("1", 4)), is(Admission.REJECT));
+        mailboxes.settled(current);
+        assertThat(mailboxes.submit(createDelivery("1", 5)), is(Admission.REJECT));
+        assertThat(mailboxes.submit(createRecovered("1", 4)), is(Admission.WAIT));
+        assertThat(mailboxes.submit(createRecovered("1", 5)), is(Admission.REJECT));
+    }
+
+    @Test
+    public void testSpillingWaitingDeliveryDoesNotReleaseMailbox() {
+        WebhookDelivery current = createDelivery("1", 1);
+        WebhookDelivery waiting = createDelivery("1", 2);
+        mailboxes.submit(current);
+        mailboxes.submit(waiting);
+
+        assertThat(mailboxes.spilled(waiting).isEmpty(), is(true));
+        assertThat(mailboxes.settled(current), is(sameInstance(waiting)));
+    }
+
+    @Test
+    public void testWaitingDeliveryIsReplacedByOneSupersedingIt() {
+        List<WebhookDelivery> superseded = new ArrayList<>();
+        DeliveryMailboxes mailboxes = new DeliveryMailboxes(WebhookDelivery::getPullRequestId, 2, 60000L,
+                superseded::add);
+        WebhookDelivery current = createDelivery("1", "pr-1");
+        WebhookDelivery older = createDelivery("1", "pr-1");
+        WebhookDelivery comment = createDelivery("1", null);
+        WebhookDelivery newer = createDelivery("1", "pr-1");
+        mailboxes.submit(current);
+        mailboxes.submit(older);
+        mailboxes.submit(comment);
+
+        // The mailbox is full, but the newer delivery takes the place of the older one, behind the comment
+        assertThat(mailboxes.submit(newer), is(Admission.WAIT));
+        assertThat(superseded, is(Collections.singletonList(older)));
+        assertThat(mailboxes.settled(current), is(sameInstance(comment)));
+        assertThat(mailboxes.settled(comment), is(sameInstance(newer)));
+    }
+
+    @Test
+    public void testOrderIsKeptAcrossDeliveryThreads() throws InterruptedException {
+        int count = 2000;
+        DeliveryMailboxes mailboxes = new DeliveryMailboxes(WebhookDelivery::getPullRequestId, 16, 60000L);
+        ExecutorService deliveryThreads = Executors.newFixedThreadPool(8);
+        // Deliveries left in the outbox, by ID. Its lock stands in for the claim, which keeps a spilled delivery from
+        // being resumed until it has been left there along with those held back behind it
+        TreeMap<Integer, WebhookDelivery> outbox = new TreeMap<>();
+        List<Integer> sent = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(count);
+        Deliverer deliverer = new Deliverer(mailboxes, deliveryThreads, outbox, sent, done);
+
+        try {
+            // The calling thread is the outbox writer, which submits new deliveries and resumes spilled ones
+            for (int id = 1; id <= count; id++) {
+                deliverer.admit(createDelivery("1", id));
+                if (id % 100 == 0) {
+                    deliverer.recover();
+                }
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (!done.await(1, TimeUnit.MILLISECONDS) && System.nanoTime() < deadline) {
+                deliverer.recover();
+            }
+        } finally {
+            deliveryThreads.shutdownNow();
+        }
+
+        assertThat(done.getCount(), is(0L));
+        assertThat(sent, is(IntStream.rangeClosed(1, count).boxed().collect(Collectors.toList())));
+        assertTrue(deliverer.spills > 0);
+    }
+
+    private static WebhookDelivery createDelivery(String pullRequestId) {
+        return new WebhookDelivery(mock(Repository.class), mock(WebHookConfiguration.class),
+                EventType.PULL_REQUEST_UPDATED, new EventPayload("{}"), null, pullRequestId);
+    }
+
+    private static WebhookDelivery createDelivery(String pullRequestId, String coalescingKey) {
+        return new WebhookDelivery(mock(Repository.class), mock(WebHookConfiguration.class),
+                EventType.PULL_REQUEST_UPDATED, new EventPayload("{}"), coalescingKey, pullRequestId);
+    }
+
+    private static WebhookDelivery createDelivery(String pullRequestId, int outboxId) {
+        WebhookDelivery delivery = createDelivery(pullRequestId);
+        delivery.setOutboxId(outboxId);
+        return delivery;
+    }
+
+    private static WebhookDelivery createRecovered(String pullRequestId, int outboxId) {
+        WebhookDelivery delivery = createDelivery(pullRequestId, outboxId);
+        delivery.setRecovered();
+        return delivery;
+    }
+
+    /**
+     * Does what the dispatcher does with a mailbox, spilling every fifth new delivery as if the queue were full.
+     */
+    private static class Deliverer {
+
+        private final CountDownLatch done;
+        private final ExecutorService executor;
+        private final DeliveryMailboxes mailboxes;
+        private final TreeMap<Integer, WebhookDelivery> outbox;
+        private final List<Integer> sent;
+
+        private volatile int spills;
+
+        private Deliverer(DeliveryMailboxes mailboxes, ExecutorService executor,
+                          TreeMap<Integer, WebhookDelivery> outbox, List<Integer> sent, CountDownLatch done) {
+            this.done = done;
+            this.executor = executor;
+            this.mailboxes = mailboxes;
+            this.outbox = outbox;
+            this.sent = sent;
+        }
+
+        private void admit(WebhookDelivery delivery) {
+            switch (mailboxes.submit(delivery)) {
+                case SEND:
+                    send(delivery);
+                    break;
+                case REJECT:
+                    synchronized (outbox) {
+                        outbox.put(delivery.getOutboxId(), delivery);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void recover() {
+            List<WebhookDelivery> recovered;
+            synchronized (outbox) {
+                recovered = new ArrayList<>(outbox.values());
+                outbox.clear();
+            }
+            for (WebhookDelivery spilled : recovered) {
+                admit(createRecovered("1", spilled.getOutboxId()));
+            }
+        }
+
+        private void send(WebhookDelivery delivery) {
+            executor.execute(() -> {
+                if (!delivery.isRecovered() && delivery.getOutboxId() % 5 == 0) {
+                    synchronized (outbox) {
+                        spills++;
+                        outbox.put(delivery.getOutboxId(), delivery);
+                        for (WebhookDelivery held : mailboxes.spilled(delivery)) {
+                            outbox.put(held.getOutboxId(), held);
+                        }
+                    }
+                    return;
+                }
+
+                sent.add(delivery.getOutboxId());
+                done.countDown();
+                WebhookDelivery next = mailboxes.settled(delivery);
+                if (next != null) {
+                    send(next);
+                }
+            });
+        }
+    }
+}
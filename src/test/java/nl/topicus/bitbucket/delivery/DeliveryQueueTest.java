@@ -0,0 +1,311 @@
+package nl.topicus.bitbucket.delivery;
+
+import com.atlassian.bitbucket.repository.Repository;
+import nl.topicus.bitbucket.events.EventType;
+import nl.topicus.bitbucket.persistence.WebHookConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DeliveryQueueTest {
+
+    private final List<WebhookDelivery> delivered = new ArrayList<>();
+    private final List<WebhookDelivery> dropped = new ArrayList<>();
+    private final WebhookOutbox outbox = mock(WebhookOutbox.class);
+    private final List<WebhookDelivery> spilled = new ArrayList<>();
+    private final List<Runnable> tasks = new ArrayList<>();
+
+    @Before
+    public void setup() {
+        when(outbox.spill(any(WebhookDelivery.class))).thenReturn(true);
+    }
+
+    @Test
+    public void testDeliversInOrder() {
+        DeliveryQueue queue = createQueue(OverflowPolicy.SPILL);
+        WebhookDelivery first = createDelivery(1, null);
+        WebhookDelivery second = createDelivery(2, null);
+
+        queue.add(first);
+        queue.add(second);
+        assertThat(queue.getDepth(), is(2));
+
+        runTasks();
+        assertThat(delivered, is(Arrays.asList(first, second)));
+        assertThat(queue.getDepth(), is(0));
+    }
+
+    @Test
+    public void testSpillWhenFull() {
+        DeliveryQueue queue = createQueue(OverflowPolicy.SPILL);
+        queue.add(createDelivery(1, null));
+        queue.add(createDelivery(1, null));
+        WebhookDelivery overflow = createDelivery(1, null);
+
+        queue.add(overflow);
+
+        verify(outbox).spill(overflow);
+        assertThat(spilled, is(Arrays.asList(overflow)));
+        assertThat(queue.getSpilled(), is(1L));
+        assertThat(queue.getDepth(), is(2));
+    }
+
+    @Test
+    public void testDropWhenSpillIsNotPossible() {
+        when(outbox.spill(any(WebhookDelivery.class))).thenReturn(false);
+        DeliveryQueue queue = createQueue(OverflowPolicy.SPILL);
+        queue.add(createDelivery(1, null));
+        queue.add(createDelivery(1, null));
+        WebhookDelivery overflow = createDelivery(1, null);
+
+        queue.add(overflow);
+
+        assertThat(dropped, is(Arrays.asList(overflow)));
+        assertThat(queue.getDropped(), is(1L));
+        assertThat(spilled.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testDropOldestOfSameWebhook() {
+        DeliveryQueue queue = createQueue(OverflowPolicy.DROP_OLDEST);
+        WebhookDelivery other = createDelivery(1, null);
+        WebhookDelivery oldest = createDelivery(2, null);
+        WebhookDelivery newest = createDelivery(2, null);
+
+        queue.add(other);
+        queue.add(oldest);
+        queue.add(newest);
+
+        assertThat(dropped, is(Arrays.asList(oldest)));
+        assertThat(queue.getDropped(), is(1L));
+        runTasks();
+        assertThat(delivered, is(Arrays.asList(other, newest)));
+    }
+
+    @Test
+    public void testCoalesceSupersededDelivery() {
+        DeliveryQueue queue = createQueue(OverflowPolicy.COALESCE);
+        WebhookDelivery older = createDelivery(1, "pr-1");
+        WebhookDelivery other = createDelivery(1, "pr-2");
+        WebhookDelivery newer = createDelivery(1, "pr-1");
+
+        queue.add(older);
+        queue.add(other);
+        queue.add(newer);
+
+        verify(outbox).delivered(older);
+        verify(outbox, never()).spill(any(WebhookDelivery.class));
+        assertThat(queue.getCoalesced(), is(1L));
+        runTasks();
+        assertThat(delivered, is(Arrays.asList(other, newer)));
+    }
+
+    @Test
+    public void testCoalesceUpdateWithRescopeForSameWebhook() {
+        DeliveryQueue queue = createQueue(OverflowPolicy.COALESCE);
+        WebhookDelivery updated = createDelivery(1, EventType.PULL_REQUEST_UPDATED, "1:2");
+        WebhookDelivery otherWebhook = createDelivery(2, EventType.PULL_REQUEST_UPDATED, "1:2");
+        WebhookDelivery rescoped = createDelivery(1, EventType.PULL_REQUEST_RESCOPED, "1:2");
+
+        queue.add(updated);
+        queue.add(otherWebhook);
+        queue.add(rescoped);
+
+        verify(outbox).delivered(updated);
+        assertThat(queue.getCoalesced(), is(1L));
+        runTasks();
+        assertThat(delivered, is(Arrays.asList(otherWebhook, rescoped)));
+    }
+
+    @Test
+    public void testBlockWaitsForRoomWithoutHoldingTheThread() {
+        DeliveryQueue queue = new DeliveryQueue(tasks::add, outbox, 2, new EnumMap<>(DeliveryLane.class),
+                FairnessKey.REPOSITORY, 16384, OverflowPolicy.BLOCK, 60000L, delivered::add, dropped::add,
+                spilled::add);
+        WebhookDelivery first = createDelivery(1, null);
+        WebhookDelivery second = createDelivery(1, null);
+        WebhookDelivery overflow = createDelivery(1, null);
+        queue.add(first);
+        queue.add(second);
+
+        queue.add(overflow);
+        assertThat(queue.getBlocked(), is(1L));
+        assertThat(tasks.size(), is(2));
+
+        runTasks();
+        runTasks();
+        assertThat(delivered, is(Arrays.asList(first, second, overflow)));
+        verify(outbox, never()).spill(any(WebhookDelivery.class));
+    }
+
+    @Test
+    public void testBlockThenSpill() throws InterruptedException {
+        DeliveryQueue queue = createQueue(OverflowPolicy.BLOCK);
+        queue.add(createDelivery(1, null));
+        queue.add(createDelivery(1, null));
+        WebhookDelivery overflow = createDelivery(1, null);
+
+        queue.add(overflow);
+        Thread.sleep(20L);
+        runTasks();
+
+        assertThat(queue.getBlocked(), is(1L));
+        verify(outbox).spill(overflow);
+        assertThat(delivered.size(), is(2));
+    }
+
+    @Test
+    public void testBlockSpillsWhenTooManyWait() {
+        DeliveryQueue queue = createQueue(OverflowPolicy.BLOCK);
+        for (int i = 0; i < 4; i++) {
+            queue.add(createDelivery(1, null));
+        }
+        WebhookDelivery overflow = createDelivery(1, null);
+
+        queue.add(overflow);
+
+        assertThat(queue.getBlocked(), is(2L));
+        verify(outbox).spill(overflow);
+    }
+
+    @Test
+    public void testLanesAreServedByWeight() {
+        Map<DeliveryLane, Integer> weights = new EnumMap<>(DeliveryLane.class);
+        weights.put(DeliveryLane.INTERACTIVE, 2);
+        weights.put(DeliveryLane.PUSH, 1);
+        DeliveryQueue queue = new DeliveryQueue(tasks::add, outbox, 10, weights, FairnessKey.REPOSITORY, 2,
+                OverflowPolicy.SPILL, 10L, delivered::add, dropped::add, spilled::add);
+        WebhookDelivery push1 = createDelivery(1, EventType.REPO_PUSH, null);
+        WebhookDelivery push2 = createDelivery(1, EventType.REPO_PUSH, null);
+        WebhookDelivery push3 = createDelivery(1, EventType.REPO_PUSH, null);
+        WebhookDelivery build1 = createDelivery(2, EventType.BUILD_STATUS, null);
+        WebhookDelivery build2 = createDelivery(2, EventType.BUILD_STATUS, null);
+
+        queue.add(push1);
+        queue.add(push2);
+        queue.add(push3);
+        queue.add(build1);
+        queue.add(build2);
+        assertThat(queue.getDepth(DeliveryLane.PUSH), is(3));
+        assertThat(queue.getDepth(DeliveryLane.INTERACTIVE), is(2));
+
+        runTasks();
+        assertThat(delivered, is(Arrays.asList(build1, push1, build2, push2, push3)));
+        assertThat(queue.getDepth(), is(0));
+    }
+
+    @Test
+    public void testFullLaneDoesNotBlockOtherLanes() {
+        DeliveryQueue queue = createQueue(OverflowPolicy.SPILL);
+        queue.add(createDelivery(1, EventType.REPO_PUSH, null));
+        queue.add(createDelivery(1, EventType.REPO_PUSH, null));
+        WebhookDelivery build = createDelivery(1, EventType.BUILD_STATUS, null);
+
+        queue.add(build);
+
+        verify(outbox, never()).spill(build);
+        assertThat(queue.getDepth(), is(3));
+    }
+
+    @Test
+    public void testRepositoriesTakeTurns() {
+        DeliveryQueue queue = new DeliveryQueue(tasks::add, outbox, 10, new EnumMap<>(DeliveryLane.class),
+                FairnessKey.REPOSITORY, 2, OverflowPolicy.SPILL, 10L, delivered::add, dropped::add, spilled::add);
+        Repository monorepo = createRepository(1);
+        Repository other = createRepository(2);
+        WebhookDelivery busy1 = createDelivery(monorepo, "{}");
+        WebhookDelivery busy2 = createDelivery(monorepo, "{}");
+        WebhookDelivery busy3 = createDelivery(monorepo, "{}");
+        WebhookDelivery quiet = createDelivery(other, "{}");
+
+        queue.add(busy1);
+        queue.add(busy2);
+        queue.add(busy3);
+        queue.add(quiet);
+
+        runTasks();
+        assertThat(delivered, is(Arrays.asList(busy1, quiet, busy2, busy3)));
+    }
+
+    @Test
+    public void testLargeDeliveriesUseUpTheirTurn() {
+        DeliveryQueue queue = new DeliveryQueue(tasks::add, outbox, 10, new EnumMap<>(DeliveryLane.class),
+                FairnessKey.REPOSITORY, 4, OverflowPolicy.SPILL, 10L, delivered::add, dropped::add, spilled::add);
+        Repository monorepo = createRepository(1);
+        Repository other = createRepository(2);
+        WebhookDelivery large = createDelivery(monorepo, "[1,2,3,4,5,6]");
+        WebhookDelivery busy = createDelivery(monorepo, "{}");
+        WebhookDelivery quiet1 = createDelivery(other, "{}");
+        WebhookDelivery quiet2 = createDelivery(other, "{}");
+        WebhookDelivery quiet3 = createDelivery(other, "{}");
+
+        queue.add(large);
+        queue.add(busy);
+        queue.add(quiet1);
+        queue.add(quiet2);
+        queue.add(quiet3);
+
+        runTasks();
+        assertThat(delivered, is(Arrays.asList(quiet1, quiet2, quiet3, large, busy)));
+    }
+
+    @Test
+    public void testSpillWhenExecutorRejects() {
+        DeliveryQueue queue = new DeliveryQueue(task -> {
+            throw new RejectedExecutionException();
+        }, outbox, 2, new EnumMap<>(DeliveryLane.class), FairnessKey.REPOSITORY, 16384, OverflowPolicy.SPILL, 10L,
+                delivered::add, dropped::add, spilled::add);
+        WebhookDelivery delivery = createDelivery(1, null);
+
+        queue.add(delivery);
+
+        verify(outbox).spill(delivery);
+        assertThat(queue.getSpilled(), is(1L));
+        assertThat(queue.getDepth(), is(0));
+    }
+
+    private DeliveryQueue createQueue(OverflowPolicy policy) {
+        return new DeliveryQueue(tasks::add, outbox, 2, new EnumMap<>(DeliveryLane.class), FairnessKey.REPOSITORY,
+                16384, policy, 10L, delivered::add, dropped::add, spilled::add);
+    }
+
+    private void runTasks() {
+        List<Runnable> queued = new ArrayList<>(tasks);
+        tasks.clear();
+        queued.forEach(Runnable::run);
+    }
+
+    private static WebhookDelivery createDelivery(int configurationId, String coalescingKey) {
+        return createDelivery(configurationId, EventType.PULL_REQUEST_UPDATED, coalescingKey);
+    }
+
+    private static Repository createRepository(int id) {
+        Repository repository = mock(Repository.class);
+        when(repository.getId()).thenReturn(id);
+        return repository;
+    }
+
+    private static WebhookDelivery createDelivery(Repository repository, String body) {
+        return new WebhookDelivery(repository, mock(WebHookConfiguration.class), EventType.PULL_REQUEST_UPDATED, body);
+    }
+
+    private static WebhookDelivery createDelivery(int configurationId, EventType eventType, String coalescingKey) {
+        WebHookConfiguration configuration = mock(WebHookConfiguration.class);
+        when(configuration.getID()).thenReturn(configurationId);
+        return new WebhookDelivery(mock(Repository.class), configuration, eventType, "{}", coalescingKey);
+    }
+}
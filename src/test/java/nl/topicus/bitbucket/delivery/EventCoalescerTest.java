@@ -0,0 +1,159 @@
+package nl.topicus.bitbucket.delivery;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class EventCoalescerTest {
+
+    private final List<String> ran = new ArrayList<>();
+    private final DeliveryScheduler scheduler = mock(DeliveryScheduler.class);
+    private final List<Runnable> tasks = new ArrayList<>();
+
+    @Before
+    public void setup() {
+        when(scheduler.schedule(any(Runnable.class), anyLong())).thenReturn(true);
+    }
+
+    @Test
+    public void testLatestTaskWins() {
+        EventCoalescer coalescer = createCoalescer(1000L, DeliveryOrdering.NONE);
+
+        coalescer.submit(null, "pr-1", () -> ran.add("first"));
+        coalescer.submit(null, "pr-1", () -> ran.add("second"));
+        coalescer.submit(null, "pr-2", () -> ran.add("other"));
+        assertThat(ran.isEmpty(), is(true));
+
+        ArgumentCaptor<Runnable> release = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler, times(2)).schedule(release.capture(), anyLong());
+        release.getAllValues().forEach(Runnable::run);
+
+        assertThat(ran, is(Arrays.asList("second", "other")));
+    }
+
+    @Test
+    public void testNewWindowAfterRelease() {
+        EventCoalescer coalescer = createCoalescer(1000L, DeliveryOrdering.NONE);
+
+        coalescer.submit(null, "pr-1", () -> ran.add("first"));
+        ArgumentCaptor<Runnable> release = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(release.capture(), anyLong());
+        release.getValue().run();
+
+        coalescer.submit(null, "pr-1", () -> ran.add("second"));
+        verify(scheduler, times(2)).schedule(any(Runnable.class), anyLong());
+        coalescer.destroy();
+
+        assertThat(ran, is(Arrays.asList("first", "second")));
+    }
+
+    @Test
+    public void testDisabledRunsEveryTask() {
+        EventCoalescer coalescer = createCoalescer(0L, DeliveryOrdering.NONE);
+
+        coalescer.submit(null, "pr-1", () -> ran.add("first"));
+        coalescer.submit(null, "pr-1", () -> ran.add("second"));
+
+        assertThat(ran, is(Arrays.asList("first", "second")));
+        verify(scheduler, never()).schedule(any(Runnable.class), anyLong());
+    }
+
+    @Test
+    public void testLaterEventWaitsForEarlierOne() {
+        EventCoalescer coalescer = new EventCoalescer(tasks::add, tasks::add, scheduler, 0L,
+                DeliveryOrdering.PULL_REQUEST, 1L);
+        Object key = coalescer.getKey(1, 1L);
+
+        coalescer.submit(key, null, () -> ran.add("created"));
+        coalescer.submit(key, null, () -> ran.add("merged"));
+        coalescer.submit(coalescer.getKey(1, 2L), null, () -> ran.add("other"));
+        assertThat(tasks.size(), is(2));
+
+        runTasks();
+        assertThat(ran, is(Arrays.asList("created", "merged", "other")));
+    }
+
+    @Test
+    public void testLaterEventWaitsForHeldBackOne() {
+        EventCoalescer coalescer = createCoalescer(1000L, DeliveryOrdering.PULL_REQUEST);
+        Object key = coalescer.getKey(1, 1L);
+
+        coalescer.submit(key, "updated", () -> ran.add("updated"));
+        coalescer.submit(key, null, () -> ran.add("merged"));
+        assertThat(ran.isEmpty(), is(true));
+
+        ArgumentCaptor<Runnable> release = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(release.capture(), anyLong());
+        release.getValue().run();
+        assertThat(ran, is(Arrays.asList("updated", "merged")));
+    }
+
+    @Test
+    public void testCoalescingDoesNotSkipOverOtherEvents() {
+        EventCoalescer coalescer = createCoalescer(1000L, DeliveryOrdering.PULL_REQUEST);
+        Object key = coalescer.getKey(1, 1L);
+
+        coalescer.submit(key, "updated", () -> ran.add("first"));
+        coalescer.submit(key, "updated", () -> ran.add("second"));
+        coalescer.submit(key, null, () -> ran.add("comment"));
+        coalescer.submit(key, "updated", () -> ran.add("third"));
+        coalescer.destroy();
+
+        assertThat(ran, is(Arrays.asList("second", "comment", "third")));
+    }
+
+    @Test
+    public void testDiscardedEventDoesNotHoldUpLaterOnes() {
+        EventCoalescer coalescer = new EventCoalescer(tasks::add, Runnable::run, scheduler, 0L,
+                DeliveryOrdering.PULL_REQUEST, 1L);
+        Object key = coalescer.getKey(1, 1L);
+
+        coalescer.submit(key, null, () -> ran.add("discarded"));
+        coalescer.submit(key, null, () -> ran.add("next"));
+        ((DeliveryExecutor.Discardable) tasks.remove(0)).discarded();
+
+        assertThat(ran, is(Collections.singletonList("next")));
+    }
+
+    @Test
+    public void testDestroyWaitsForHeldBackWork() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            EventCoalescer coalescer = new EventCoalescer(executor, executor, scheduler, 1000L,
+                    DeliveryOrdering.PULL_REQUEST, 5L);
+            coalescer.submit(coalescer.getKey(1, 1L), "updated", () -> ran.add("updated"));
+
+            coalescer.destroy();
+            assertThat(ran, is(Collections.singletonList("updated")));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private EventCoalescer createCoalescer(long window, DeliveryOrdering ordering) {
+        return new EventCoalescer(Runnable::run, Runnable::run, scheduler, window, ordering, 1L);
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+    }
+}
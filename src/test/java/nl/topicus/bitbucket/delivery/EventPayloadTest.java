@@ -0,0 +1,39 @@
+package nl.topicus.bitbucket.delivery;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class EventPayloadTest {
+
+    @Test
+    public void testBytesAreNotCopied() {
+        byte[] bytes = "{\"name\":\"caf\u00e9\"}".getBytes(StandardCharsets.UTF_8);
+        EventPayload payload = new EventPayload(bytes);
+
+        assertThat(payload.getBytes(), sameInstance(bytes));
+        assertThat(payload.getLength(), is(bytes.length));
+        assertThat(payload.getText(), is("{\"name\":\"caf\u00e9\"}"));
+    }
+
+    @Test
+    public void testTextIsNotKept() {
+        EventPayload payload = new EventPayload("{\"name\":\"caf\u00e9\"}".getBytes(StandardCharsets.UTF_8));
+
+        assertThat(payload.getText(), not(sameInstance(payload.getText())));
+    }
+
+    @Test
+    public void testTextIsEncodedOnce() {
+        EventPayload payload = new EventPayload("{\"name\":\"caf\u00e9\"}");
+
+        assertThat(payload.getBytes(), is("{\"name\":\"caf\u00e9\"}".getBytes(StandardCharsets.UTF_8)));
+        assertThat(payload.getBytes(), sameInstance(payload.getBytes()));
+        assertThat(payload.getLength(), is(16));
+    }
+}
@@ -0,0 +1,71 @@
+package nl.topicus.bitbucket.delivery;
+
+import nl.topicus.bitbucket.persistence.WebHookConfiguration;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RateLimiterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testBurstGoesStraightThrough() {
+        RateLimiter limiter = new RateLimiter(60, 3);
+
+        assertThat(limiter.reserve(0L), is(0L));
+        assertThat(limiter.reserve(0L), is(0L));
+        assertThat(limiter.reserve(0L), is(0L));
+    }
+
+    @Test
+    public void testExcessRequestsQueueAtTheSustainedRate() {
+        RateLimiter limiter = new RateLimiter(60, 2);
+        limiter.reserve(0L);
+        limiter.reserve(0L);
+
+        assertThat(limiter.reserve(0L), is(SECOND));
+        assertThat(limiter.reserve(0L), is(2 * SECOND));
+        assertThat(limiter.reserve(SECOND), is(2 * SECOND));
+    }
+
+    @Test
+    public void testBucketRefillsWhileIdle() {
+        RateLimiter limiter = new RateLimiter(60, 2);
+        limiter.reserve(0L);
+        limiter.reserve(0L);
+
+        assertThat(limiter.reserve(10 * SECOND), is(0L));
+        assertThat(limiter.reserve(10 * SECOND), is(0L));
+        assertThat(limiter.reserve(10 * SECOND), is(SECOND));
+    }
+
+    @Test
+    public void testWorksWithNegativeNanoTime() {
+        RateLimiter limiter = new RateLimiter(60, 1);
+
+        assertThat(limiter.reserve(-5 * SECOND), is(0L));
+        assertThat(limiter.reserve(-5 * SECOND), is(SECOND));
+    }
+
+    @Test
+    public void testHostLimitAppliesAcrossWebhooks() {
+        RateLimiters rateLimiters = new RateLimiters(60, 1);
+
+        assertThat(rateLimiters.reserve(webhook(1, "https://ci.example.com/a"), 0L), is(0L));
+        assertThat(rateLimiters.reserve(webhook(2, "https://ci.example.com/b"), 0L), is(1000L));
+        assertThat(rateLimiters.reserve(webhook(3, "https://other.example.com/"), 0L), is(0L));
+    }
+
+    private static WebHookConfiguration webhook(int id, String url) {
+        WebHookConfiguration configuration = mock(WebHookConfiguration.class);
+        when(configuration.getID()).thenReturn(id);
+        when(configuration.getURL()).thenReturn(url);
+        return configuration;
+    }
+}
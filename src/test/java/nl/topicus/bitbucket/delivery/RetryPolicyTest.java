@@ -0,0 +1,91 @@
+package nl.topicus.bitbucket.delivery;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+import org.hamcrest.Matcher;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Date;
+
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+public class RetryPolicyTest {
+
+    private final RetryPolicy policy = new RetryPolicy(1000L, 60000L);
+
+    @Test
+    public void testBackoffGrowsExponentiallyWithJitter() {
+        for (int i = 0; i < 100; i++) {
+            assertThat(policy.getRetryDelay(1, 10, response(500), null), between(500L, 1000L));
+            assertThat(policy.getRetryDelay(3, 10, response(500), null), between(2000L, 4000L));
+        }
+    }
+
+    @Test
+    public void testBackoffIsCapped() {
+        assertThat(policy.getRetryDelay(9, 10, response(502), null), between(30000L, 60000L));
+        assertThat(new RetryPolicy(1000L, 60000L).getRetryDelay(100, 1000, response(502), null),
+                between(30000L, 60000L));
+    }
+
+    @Test
+    public void testNoRetryOnceAttemptsAreExhausted() {
+        assertThat(policy.getRetryDelay(3, 3, response(503), null), is(RetryPolicy.NO_RETRY));
+    }
+
+    @Test
+    public void testNoRetryForClientErrors() {
+        assertThat(policy.getRetryDelay(1, 5, response(400), null), is(RetryPolicy.NO_RETRY));
+        assertThat(policy.getRetryDelay(1, 5, response(404), null), is(RetryPolicy.NO_RETRY));
+        assertThat(policy.getRetryDelay(1, 5, null, new IllegalArgumentException("bad URL")), is(RetryPolicy.NO_RETRY));
+    }
+
+    @Test
+    public void testRetryForTransientFailures() {
+        assertThat(policy.getRetryDelay(1, 5, response(408), null), between(500L, 1000L));
+        assertThat(policy.getRetryDelay(1, 5, response(429), null), between(500L, 1000L));
+        assertThat(policy.getRetryDelay(1, 5, null, new SocketTimeoutException()), between(500L, 1000L));
+        assertThat(policy.getRetryDelay(1, 5, null, new IOException("Connection refused")), between(500L, 1000L));
+    }
+
+    @Test
+    public void testRetryAfterIsHonoured() {
+        HttpResponse tooManyRequests = response(429);
+        tooManyRequests.setHeader("Retry-After", "30");
+        assertThat(policy.getRetryDelay(1, 5, tooManyRequests, null), is(30000L));
+
+        HttpResponse unavailable = response(503);
+        unavailable.setHeader("Retry-After", DateUtils.formatDate(new Date(System.currentTimeMillis() + 20000L)));
+        assertThat(policy.getRetryDelay(1, 5, unavailable, null), between(18000L, 20000L));
+    }
+
+    @Test
+    public void testRetryAfterIsCapped() {
+        HttpResponse unavailable = response(503);
+        unavailable.setHeader("Retry-After", "3600");
+        assertThat(policy.getRetryDelay(1, 5, unavailable, null), is(60000L));
+    }
+
+    @Test
+    public void testRetryAfterIsIgnoredForOtherResponses() {
+        HttpResponse error = response(500);
+        error.setHeader("Retry-After", "30");
+        assertThat(policy.getRetryDelay(1, 5, error, null), between(500L, 1000L));
+    }
+
+    private static HttpResponse response(int statusCode) {
+        return new BasicHttpResponse(HttpVersion.HTTP_1_1, statusCode, null);
+    }
+
+    private static Matcher<Long> between(long min, long max) {
+        return allOf(greaterThanOrEqualTo(min), lessThanOrEqualTo(max));
+    }
+}
@@ -0,0 +1,443 @@
+package nl.topicus.bitbucket.delivery;
+
+import com.atlassian.bitbucket.repository.Repository;
+import nl.topicus.bitbucket.events.Event;
+import nl.topicus.bitbucket.events.EventSerializer;
+import nl.topicus.bitbucket.events.EventType;
+import nl.topicus.bitbucket.persistence.WebHookConfiguration;
+import nl.topicus.bitbucket.persistence.WebHookConfigurationDao;
+import nl.topicus.bitbucket.persistence.WebhookDeadLetter;
+import nl.topicus.bitbucket.persistence.WebhookDeadLetterDao;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.util.EntityUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.Consumer;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WebhookDispatcherTest {
+
+    private final WebhookDeadLetterDao deadLetterDao = mock(WebhookDeadLetterDao.class);
+    private final EventSerializer eventSerializer = mock(EventSerializer.class);
+    private final WebhookOutbox outbox = mock(WebhookOutbox.class);
+    private final Repository repository = mock(Repository.class);
+    private final ManualScheduler scheduler = new ManualScheduler();
+    private final DeliverySettings settings = mock(DeliverySettings.class);
+    private final StubTransport transport = new StubTransport();
+    private final WebHookConfigurationDao webHookConfigurationDao = mock(WebHookConfigurationDao.class);
+
+    private Consumer<WebhookDelivery> sink;
+
+    @Before
+    public void setup() {
+        when(settings.getBacklogSize()).thenReturn(10);
+        when(settings.getDeadline()).thenReturn(30L);
+        when(settings.getDeliveryOrdering()).thenReturn(DeliveryOrdering.PULL_REQUEST);
+        when(settings.getFairnessKey()).thenReturn(FairnessKey.REPOSITORY);
+        when(settings.getFairnessQuantum()).thenReturn(16384);
+        when(settings.getOverflowPolicy()).thenReturn(OverflowPolicy.SPILL);
+        when(settings.getRetryInitialDelay()).thenReturn(10L);
+        when(settings.getRetryMaxDelay()).thenReturn(600L);
+        when(outbox.spill(any(WebhookDelivery.class))).thenReturn(true);
+        when(deadLetterDao.createDeadLetter(any(WebhookDelivery.class), anyString()))
+                .thenReturn(mock(WebhookDeadLetter.class));
+    }
+
+    @Test
+    public void testDispatchFansOutToEveryRecipient() throws IOException {
+        Event event = mock(Event.class);
+        WebHookConfiguration first = createConfiguration(1, "https://example.com/first", 5);
+        WebHookConfiguration second = createConfiguration(2, "https://example.org/second", 5);
+        when(eventSerializer.serialize(event)).thenReturn("{}".getBytes());
+        when(webHookConfigurationDao.getRecipients(repository, EventType.REPO_PUSH, event))
+                .thenReturn(Arrays.asList(first, second));
+        createDispatcher(new CircuitBreakers(5, 60000L), new RateLimiters(0, 20))
+                .dispatch(event, repository, EventType.REPO_PUSH);
+
+        ArgumentCaptor<WebhookDelivery> added = ArgumentCaptor.forClass(WebhookDelivery.class);
+        verify(outbox, times(2)).add(added.capture());
+        List<WebhookDelivery> deliveries = added.getAllValues();
+        assertThat(deliveries.get(0).getConfiguration(), is(sameInstance(first)));
+        assertThat(deliveries.get(1).getConfiguration(), is(sameInstance(second)));
+        // The payload is serialized once, and shared by the deliveries
+        assertThat(deliveries.get(1).getPayload(), is(sameInstance(deliveries.get(0).getPayload())));
+
+        deliveries.forEach(sink);
+        assertThat(transport.requests.size(), is(2));
+        assertThat(transport.requests.get(0).getURI().toString(), is("https://example.com/first"));
+        assertThat(transport.requests.get(1).getURI().toString(), is("https://example.org/second"));
+        assertThat(transport.requests.get(0).getFirstHeader("X-Event-Key").getValue(),
+                is(EventType.REPO_PUSH.getHeaderValue()));
+    }
+
+    @Test
+    public void testDispatchWithoutRecipientsDoesNotSerialize() throws IOException {
+        Event event = mock(Event.class);
+        when(webHookConfigurationDao.getRecipients(repository, EventType.REPO_PUSH, event))
+                .thenReturn(Collections.emptyList());
+        createDispatcher().dispatch(event, repository, EventType.REPO_PUSH);
+
+        verify(eventSerializer, never()).serialize(any(Object.class));
+        verify(outbox, never()).add(any(WebhookDelivery.class));
+    }
+
+    @Test
+    public void testSuccessfulDeliveryIsDone() {
+        createDispatcher();
+        WebhookDelivery delivery = createDelivery(createConfiguration(1, "https://example.com/hook", 5), null);
+
+        sink.accept(delivery);
+        transport.respond(0, 200);
+
+        verify(outbox).delivered(delivery);
+        verify(outbox, never()).deferred(any(WebhookDelivery.class), anyLong());
+        verify(deadLetterDao, never()).createDeadLetter(any(WebhookDelivery.class), anyString());
+    }
+
+    @Test
+    public void testFailedDeliveryIsRetried() {
+        createDispatcher();
+        WebhookDelivery delivery = createDelivery(createConfiguration(1, "https://example.com/hook", 5), null);
+
+        sink.accept(delivery);
+        transport.respond(0, 500);
+
+        assertThat(delivery.getAttempt(), is(2));
+        verify(outbox).deferred(any(WebhookDelivery.class), anyLong());
+        verify(outbox, never()).delivered(delivery);
+        assertThat(transport.requests.size(), is(1));
+
+        scheduler.runAll();
+        assertThat(transport.requests.size(), is(2));
+        transport.respond(1, 200);
+        verify(outbox).delivered(delivery);
+    }
+
+    @Test
+    public void testFailedBatchIsRetriedAsAWhole() throws IOException {
+        when(settings.getBatchSize()).thenReturn(2);
+        when(settings.getBatchWindow()).thenReturn(1000L);
+        createDispatcher();
+        WebHookConfiguration configuration = createConfiguration(1, "https://example.com/hook", 5);
+        when(configuration.isBatchDelivery()).thenReturn(true);
+        WebhookDelivery first = createDelivery(configuration, null);
+        WebhookDelivery second = createDelivery(configuration, null);
+
+        sink.accept(first);
+        sink.accept(second);
+        assertThat(transport.requests.size(), is(1));
+        transport.respond(0, 500);
+        assertThat(first.getAttempt(), is(2));
+        assertThat(second.getAttempt(), is(2));
+
+        // A newer delivery opens a batch of its own, which the retry must not join
+        WebhookDelivery third = createDelivery(configuration, null);
+        sink.accept(third);
+        scheduler.runAll();
+        assertThat(transport.requests.size(), is(3));
+        assertThat(getBody(transport.requests.get(1)), is(getBody(transport.requests.get(0))));
+        transport.respond(1, 200);
+        transport.respond(2, 200);
+        verify(outbox).delivered(first);
+        verify(outbox).delivered(second);
+        verify(outbox).delivered(third);
+    }
+
+    @Test
+    public void testGivesUpAfterMaxAttempts() {
+        createDispatcher();
+        WebhookDelivery delivery = createDelivery(createConfiguration(1, "https://example.com/hook", 2), null);
+
+        sink.accept(delivery);
+        transport.respond(0, 500);
+        scheduler.runAll();
+        transport.respond(1, 503);
+
+        verify(deadLetterDao).createDeadLetter(delivery, "response code:503");
+        verify(outbox).delivered(delivery);
+        assertThat(transport.requests.size(), is(2));
+        assertThat(scheduler.getPending(), is(0));
+    }
+
+    @Test
+    public void testClientErrorIsNotRetried() {
+        createDispatcher();
+        WebhookDelivery delivery = createDelivery(createConfiguration(1, "https://example.com/hook", 5), null);
+
+        sink.accept(delivery);
+        transport.respond(0, 400);
+
+        verify(deadLetterDao).createDeadLetter(delivery, "response code:400");
+        verify(outbox).delivered(delivery);
+        verify(outbox, never()).deferred(any(WebhookDelivery.class), anyLong());
+        assertThat(delivery.getAttempt(), is(1));
+    }
+
+    @Test
+    public void testOpenCircuitDefersWithoutUsingAttempt() {
+        createDispatcher(new CircuitBreakers(1, 60000L), new RateLimiters(0, 20));
+        WebhookDelivery delivery = createDelivery(createConfiguration(1, "https://example.com/hook", 5), null);
+
+        sink.accept(delivery);
+        transport.respond(0, 500);
+        assertThat(delivery.getAttempt(), is(2));
+
+        // The retry finds the circuit open, so it is not sent, and waits for the circuit instead
+        scheduler.runAll();
+        assertThat(transport.requests.size(), is(1));
+        assertThat(delivery.getAttempt(), is(2));
+        verify(outbox, times(2)).deferred(any(WebhookDelivery.class), anyLong());
+        assertThat(scheduler.getPending(), is(1));
+        assertTrue(scheduler.delays.get(0) > 0L && scheduler.delays.get(0) <= 60000L);
+        verify(deadLetterDao, never()).createDeadLetter(any(WebhookDelivery.class), anyString());
+    }
+
+    @Test
+    public void testDeliveryOverRateLimitWaits() {
+        createDispatcher();
+        WebHookConfiguration configuration = createConfiguration(1, "https://example.com/hook", 5);
+        when(configuration.getRateLimit()).thenReturn(1);
+        when(configuration.getRateBurst()).thenReturn(1);
+        WebhookDelivery first = createDelivery(configuration, "1");
+        WebhookDelivery second = createDelivery(configuration, "2");
+
+        sink.accept(first);
+        sink.accept(second);
+
+        assertThat(transport.requests.size(), is(1));
+        verify(outbox).deferred(any(WebhookDelivery.class), anyLong());
+        // The first request has its deadline; the second delivery waits for its turn, a minute later
+        assertThat(scheduler.getPending(), is(2));
+        assertTrue(scheduler.delays.get(1) > 30000L && scheduler.delays.get(1) <= 60000L);
+
+        scheduler.run(1);
+        assertThat(transport.requests.size(), is(2));
+        assertThat(second.getAttempt(), is(1));
+    }
+
+    @Test
+    public void testRequestIsAbortedAtDeadline() {
+        createDispatcher();
+        WebhookDelivery delivery = createDelivery(createConfiguration(1, "https://example.com/hook", 1), null);
+
+        sink.accept(delivery);
+        assertThat(scheduler.delays.get(0), is(30000L));
+        scheduler.runAll();
+
+        HttpPost post = (HttpPost) transport.requests.get(0);
+        assertThat(post.isAborted(), is(true));
+        // The transport fails an aborted request, which is then reported as having run out of time
+        transport.responses.get(0).completeExceptionally(new IOException("Request aborted"));
+
+        ArgumentCaptor<String> reason = ArgumentCaptor.forClass(String.class);
+        verify(deadLetterDao).createDeadLetter(any(WebhookDelivery.class), reason.capture());
+        assertTrue(reason.getValue().startsWith(DeadlineExceededException.class.getName()));
+    }
+
+    @Test
+    public void testDeadlineIsCancelledWhenResponseArrives() {
+        createDispatcher();
+        sink.accept(createDelivery(createConfiguration(1, "https://example.com/hook", 5), null));
+
+        transport.respond(0, 200);
+
+        assertThat(scheduler.tasks.get(0).isCancelled(), is(true));
+        assertThat(((HttpPost) transport.requests.get(0)).isAborted(), is(false));
+    }
+
+    @Test
+    public void testSettledDeliveryLetsNextOneGo() {
+        createDispatcher();
+        WebHookConfiguration configuration = createConfiguration(1, "https://example.com/hook", 1);
+        WebhookDelivery created = createDelivery(configuration, "1");
+        WebhookDelivery updated = createDelivery(configuration, "1");
+        WebhookDelivery merged = createDelivery(configuration, "1");
+
+        sink.accept(created);
+        sink.accept(updated);
+        sink.accept(merged);
+        assertThat(transport.requests.size(), is(1));
+
+        transport.respond(0, 200);
+        assertThat(transport.requests.size(), is(2));
+        verify(outbox).delivered(created);
+
+        // Giving up on a delivery settles it as well
+        transport.respond(1, 400);
+        assertThat(transport.requests.size(), is(3));
+        verify(outbox).delivered(updated);
+    }
+
+    @Test
+    public void testCoalescesDeliveriesWaitingForTheirPullRequest() {
+        when(settings.getOverflowPolicy()).thenReturn(OverflowPolicy.COALESCE);
+        WebhookDispatcher dispatcher = createDispatcher();
+        WebHookConfiguration configuration = createConfiguration(1, "https://example.com/hook", 1);
+        WebhookDelivery created = createDelivery(configuration, "1");
+        WebhookDelivery older = createDelivery(configuration, "1", "1");
+        WebhookDelivery newer = createDelivery(configuration, "1", "1");
+
+        sink.accept(created);
+        sink.accept(older);
+        sink.accept(newer);
+        verify(outbox).delivered(older);
+        assertThat(dispatcher.getDeliveryQueue().getCoalesced(), is(1L));
+
+        transport.respond(0, 200);
+        assertThat(transport.requests.size(), is(2));
+        transport.respond(1, 200);
+        verify(outbox).delivered(newer);
+        assertThat(transport.requests.size(), is(2));
+    }
+
+    private WebhookDispatcher createDispatcher() {
+        return createDispatcher(new CircuitBreakers(5, 60000L), new RateLimiters(0, 20));
+    }
+
+    private WebhookDispatcher createDispatcher(CircuitBreakers circuitBreakers, RateLimiters rateLimiters) {
+        WebhookDispatcher dispatcher = new WebhookDispatcher(circuitBreakers, new ConcurrencyLimits(4, 4, 10),
+                deadLetterDao, new InlineExecutor(), scheduler, settings, eventSerializer, rateLimiters,
+                webHookConfigurationDao, outbox, transport, RequestConfig.DEFAULT);
+        dispatcher.afterPropertiesSet();
+
+        ArgumentCaptor<Consumer<WebhookDelivery>> captor = ArgumentCaptor.forClass(Consumer.class);
+        verify(outbox).start(captor.capture());
+        sink = captor.getValue();
+        return dispatcher;
+    }
+
+    private static byte[] getBody(HttpUriRequest request) throws IOException {
+        return EntityUtils.toByteArray(((HttpPost) request).getEntity());
+    }
+
+    private static WebHookConfiguration createConfiguration(int id, String url, int maxAttempts) {
+        WebHookConfiguration configuration = mock(WebHookConfiguration.class);
+        when(configuration.getID()).thenReturn(id);
+        when(configuration.getMaxAttempts()).thenReturn(maxAttempts);
+        when(configuration.getTitle()).thenReturn("hook" + id);
+        when(configuration.getURL()).thenReturn(url);
+        return configuration;
+    }
+
+    private WebhookDelivery createDelivery(WebHookConfiguration configuration, String pullRequestId) {
+        return createDelivery(configuration, pullRequestId, null);
+    }
+
+    private WebhookDelivery createDelivery(WebHookConfiguration configuration, String pullRequestId,
+                                           String coalescingKey) {
+        return new WebhookDelivery(repository, configuration, EventType.PULL_REQUEST_UPDATED,
+                new EventPayload("{}"), coalescingKey, pullRequestId);
+    }
+
+    /**
+     * Runs every task on the calling thread, so a test sees its effects straight away.
+     */
+    private static class InlineExecutor extends DeliveryExecutor {
+
+        private InlineExecutor() {
+            super(1, 10, RejectionPolicy.DISCARD, 0L);
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+
+        @Override
+        public void executeFollowUp(Runnable task) {
+            task.run();
+        }
+    }
+
+    /**
+     * Keeps scheduled tasks until the test runs them, whatever their delay.
+     */
+    private static class ManualScheduler extends DeliveryScheduler {
+
+        private final List<Long> delays = new ArrayList<>();
+        private final List<FutureTask<Void>> tasks = new ArrayList<>();
+
+        @Override
+        public Future<?> scheduleCancellable(Runnable task, long delay) {
+            FutureTask<Void> future = new FutureTask<>(task, null);
+            delays.add(delay);
+            tasks.add(future);
+            return future;
+        }
+
+        /**
+         * @return the number of tasks which are neither run nor cancelled
+         */
+        private int getPending() {
+            return (int) tasks.stream().filter(task -> !task.isDone()).count();
+        }
+
+        private void run(int index) {
+            delays.remove(index);
+            tasks.remove(index).run();
+        }
+
+        private void runAll() {
+            // Tasks scheduled by the tasks which run are left for the next call
+            List<FutureTask<Void>> due = new ArrayList<>(tasks);
+            delays.clear();
+            tasks.clear();
+            due.forEach(FutureTask::run);
+        }
+    }
+
+    /**
+     * Records the requests, which are only completed once the test responds to them.
+     */
+    private static class StubTransport implements WebhookTransport {
+
+        private final List<HttpUriRequest> requests = new ArrayList<>();
+        private final List<CompletableFuture<HttpResponse>> responses = new ArrayList<>();
+
+        @Override
+        public CompletableFuture<HttpResponse> send(HttpUriRequest request) {
+            CompletableFuture<HttpResponse> response = new CompletableFuture<>();
+            requests.add(request);
+            responses.add(response);
+            return response;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private void respond(int index, int statusCode) {
+            StatusLine statusLine = mock(StatusLine.class);
+            when(statusLine.getStatusCode()).thenReturn(statusCode);
+            HttpResponse response = mock(HttpResponse.class);
+            when(response.getStatusLine()).thenReturn(statusLine);
+            responses.get(index).complete(response);
+        }
+    }
+}
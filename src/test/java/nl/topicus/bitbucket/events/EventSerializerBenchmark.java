@@ -0,0 +1,49 @@
+package nl.topicus.bitbucket.events;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares the cost of writing an event with a new {@link ObjectMapper} and encoding it, as was done for every event,
+ * to writing it with the shared {@link EventSerializer}. This is not a unit test; run it by hand:
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;test classpath&gt; nl.topicus.bitbucket.events.EventSerializerBenchmark
+ * </pre>
+ */
+public class EventSerializerBenchmark {
+
+    private static final int ITERATIONS = 20_000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        BitbucketPushEvent event = EventSerializerTest.createPushEvent();
+        EventSerializer serializer = new EventSerializer();
+
+        // The first rounds give the JIT a chance to compile both paths, so only the later ones are representative
+        for (int round = 1; round <= ROUNDS; round++) {
+            long perMapper = measure(() ->
+                    new ObjectMapper().writeValueAsString(event).getBytes(StandardCharsets.UTF_8));
+            long shared = measure(() -> serializer.serialize(event));
+            System.out.printf("round %d: new ObjectMapper %,d ns/event, EventSerializer %,d ns/event (%.1fx)%n",
+                    round, perMapper, shared, (double) perMapper / shared);
+        }
+    }
+
+    private static long measure(Task task) throws Exception {
+        int length = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            length += task.run().length;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (length == 0) {
+            throw new IllegalStateException("Nothing was written");
+        }
+        return elapsed / ITERATIONS;
+    }
+
+    private interface Task {
+        byte[] run() throws Exception;
+    }
+}
@@ -0,0 +1,80 @@
+package nl.topicus.bitbucket.events;
+
+import nl.topicus.bitbucket.model.repository.BitbucketServerProject;
+import nl.topicus.bitbucket.model.repository.BitbucketServerRepository;
+import nl.topicus.bitbucket.model.repository.BitbucketServerRepositoryOwner;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class EventSerializerTest {
+
+    private final EventSerializer serializer = new EventSerializer();
+
+    @Test
+    public void testWritesSameJsonAsNewObjectMapper() throws Exception {
+        BitbucketPushEvent event = createPushEvent();
+
+        assertThat(serializer.serialize(event), is(new ObjectMapper().writeValueAsBytes(event)));
+    }
+
+    @Test
+    public void testWritesBuildStatusEvent() throws Exception {
+        BuildStatusEvent event = new BuildStatusEvent();
+        event.setCommit("abc123");
+        event.setStatus("SUCCESSFUL");
+        event.setUrl("https://ci.example.com/build/1");
+        event.setRepository(createRepository());
+
+        assertThat(serializer.serialize(event), is(new ObjectMapper().writeValueAsBytes(event)));
+    }
+
+    @Test
+    public void testReusesBufferWithoutLeftovers() throws Exception {
+        BitbucketPushEvent event = createPushEvent();
+        byte[] first = serializer.serialize(event);
+
+        serializer.serialize(createRepository());
+        assertThat(serializer.serialize(event), is(first));
+    }
+
+    @Test
+    public void testWritesOtherClasses() throws Exception {
+        assertThat(serializer.serialize(createRepository()),
+                is(new ObjectMapper().writeValueAsBytes(createRepository())));
+    }
+
+    static BitbucketPushEvent createPushEvent() {
+        BitbucketPushChange.State state = new BitbucketPushChange.State();
+        state.setType("branch");
+        state.setName("master");
+        state.setTarget(new BitbucketPushChange.State.Target("0123456789abcdef0123456789abcdef01234567"));
+        BitbucketPushChange change = new BitbucketPushChange();
+        change.setNew(state);
+        change.setCreated(true);
+        BitbucketPushDetail push = new BitbucketPushDetail();
+        push.setChanges(Collections.singletonList(change));
+
+        BitbucketPushEvent event = new BitbucketPushEvent();
+        event.setActor(new BitbucketServerRepositoryOwner("jdoe", "John Doe"));
+        event.setRepository(createRepository());
+        event.setPush(push);
+        return event;
+    }
+
+    private static BitbucketServerRepository createRepository() {
+        BitbucketServerProject project = new BitbucketServerProject();
+        project.setKey("PRJ");
+        project.setName("Project");
+        BitbucketServerRepository repository = new BitbucketServerRepository();
+        repository.setScmId("git");
+        repository.setSlug("repo");
+        repository.setProject(project);
+        repository.setPublic(false);
+        return repository;
+    }
+}
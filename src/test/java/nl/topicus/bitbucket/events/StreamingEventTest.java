@@ -0,0 +1,155 @@
+package nl.topicus.bitbucket.events;
+
+import com.atlassian.bitbucket.comment.Comment;
+import com.atlassian.bitbucket.event.pull.PullRequestCommentEvent;
+import com.atlassian.bitbucket.event.pull.PullRequestEvent;
+import com.atlassian.bitbucket.event.repository.RepositoryRefsChangedEvent;
+import com.atlassian.bitbucket.project.Project;
+import com.atlassian.bitbucket.project.ProjectVisitor;
+import com.atlassian.bitbucket.pull.PullRequest;
+import com.atlassian.bitbucket.pull.PullRequestParticipant;
+import com.atlassian.bitbucket.pull.PullRequestRef;
+import com.atlassian.bitbucket.repository.MinimalRef;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.RefChangeType;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.StandardRefType;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.bitbucket.user.ApplicationUser;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that the streaming events write the same JSON as the models they replace.
+ */
+public class StreamingEventTest {
+
+    private final ApplicationPropertiesService appPropSvc = mock(ApplicationPropertiesService.class);
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final EventSerializer serializer = new EventSerializer();
+
+    @Test
+    public void testPushEventIsWrittenLikeModel() throws Exception {
+        when(appPropSvc.getBaseUrl()).thenReturn(URI.create("https://bitbucket.example.com"));
+        // Mocks are created up front, as they cannot be created while another mock is being stubbed
+        ApplicationUser user = createUser();
+        Repository repository = createRepository();
+        List<RefChange> changes = Arrays.asList(
+                createChange(RefChangeType.ADD, StandardRefType.BRANCH, "feature/new"),
+                createChange(RefChangeType.UPDATE, StandardRefType.BRANCH, "master"),
+                createChange(RefChangeType.DELETE, StandardRefType.TAG, "v1.0"));
+        RepositoryRefsChangedEvent event = mock(RepositoryRefsChangedEvent.class);
+        when(event.getUser()).thenReturn(user);
+        when(event.getRepository()).thenReturn(repository);
+        when(event.getRefChanges()).thenReturn(changes);
+
+        StreamingPushEvent streamed = new StreamingPushEvent(event, appPropSvc);
+        BitbucketPushEvent model = Events.createPushEvent(event, appPropSvc);
+
+        assertThat(mapper.readTree(serializer.serialize(streamed)), is(mapper.readTree(serializer.serialize(model))));
+        assertThat(streamed.getUsername(), is(model.getUsername()));
+        assertThat(streamed.getBranches(), is(model.getBranches()));
+    }
+
+    @Test
+    public void testPullRequestEventIsWrittenLikeModel() throws Exception {
+        ApplicationUser user = createUser();
+        PullRequest pullRequest = createPullRequest();
+        PullRequestEvent event = mock(PullRequestEvent.class);
+        when(event.getUser()).thenReturn(user);
+        when(event.getPullRequest()).thenReturn(pullRequest);
+
+        assertWrittenLikeModel(event, pullRequest);
+    }
+
+    @Test
+    public void testPullRequestCommentEventIsWrittenLikeModel() throws Exception {
+        ApplicationUser user = createUser();
+        PullRequest pullRequest = createPullRequest();
+        Comment comment = mock(Comment.class);
+        when(comment.getText()).thenReturn("Looks good");
+        PullRequestCommentEvent event = mock(PullRequestCommentEvent.class);
+        when(event.getUser()).thenReturn(user);
+        when(event.getPullRequest()).thenReturn(pullRequest);
+        when(event.getComment()).thenReturn(comment);
+
+        assertWrittenLikeModel(event, pullRequest);
+    }
+
+    private void assertWrittenLikeModel(PullRequestEvent event, PullRequest pullRequest) throws Exception {
+        String link = "https://bitbucket.example.com/projects/PRJ/repos/repo/pull-requests/42";
+        StreamingPullRequestEvent streamed = new StreamingPullRequestEvent(event, link, appPropSvc);
+        BitbucketServerPullRequestEvent model = Events.createPullrequestEvent(event, appPropSvc);
+        model.getPullrequest().setLink(link);
+
+        assertThat(mapper.readTree(serializer.serialize(streamed)), is(mapper.readTree(serializer.serialize(model))));
+        assertThat(streamed.getPullRequestId(), is(model.getPullrequest().getId()));
+    }
+
+    private static RefChange createChange(RefChangeType type, StandardRefType refType, String name) {
+        MinimalRef ref = mock(MinimalRef.class);
+        when(ref.getDisplayId()).thenReturn(name);
+        when(ref.getType()).thenReturn(refType);
+        RefChange change = mock(RefChange.class);
+        when(change.getType()).thenReturn(type);
+        when(change.getRef()).thenReturn(ref);
+        when(change.getFromHash()).thenReturn("0123456789abcdef0123456789abcdef01234567");
+        when(change.getToHash()).thenReturn("89abcdef0123456789abcdef0123456789abcdef");
+        return change;
+    }
+
+    private static PullRequest createPullRequest() {
+        ApplicationUser user = createUser();
+        PullRequestRef fromRef = createPullRequestRef("feature/new", "89abcdef");
+        PullRequestRef toRef = createPullRequestRef("master", "01234567");
+        PullRequestParticipant author = mock(PullRequestParticipant.class);
+        when(author.getUser()).thenReturn(user);
+        PullRequest pullRequest = mock(PullRequest.class);
+        when(pullRequest.getId()).thenReturn(42L);
+        when(pullRequest.getTitle()).thenReturn("Add a feature");
+        when(pullRequest.getAuthor()).thenReturn(author);
+        when(pullRequest.getFromRef()).thenReturn(fromRef);
+        when(pullRequest.getToRef()).thenReturn(toRef);
+        return pullRequest;
+    }
+
+    private static PullRequestRef createPullRequestRef(String displayId, String latestCommit) {
+        Repository repository = createRepository();
+        PullRequestRef ref = mock(PullRequestRef.class);
+        when(ref.getDisplayId()).thenReturn(displayId);
+        when(ref.getLatestCommit()).thenReturn(latestCommit);
+        when(ref.getRepository()).thenReturn(repository);
+        return ref;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Repository createRepository() {
+        Project project = mock(Project.class);
+        when(project.getKey()).thenReturn("PRJ");
+        when(project.getName()).thenReturn("Project");
+        when(project.accept(any(ProjectVisitor.class)))
+                .thenReturn("https://bitbucket.example.com/projects/PRJ/repos/repo/browse");
+        Repository repository = mock(Repository.class);
+        when(repository.getProject()).thenReturn(project);
+        when(repository.getScmId()).thenReturn("git");
+        when(repository.getSlug()).thenReturn("repo");
+        return repository;
+    }
+
+    private static ApplicationUser createUser() {
+        ApplicationUser user = mock(ApplicationUser.class);
+        when(user.getName()).thenReturn("jdoe");
+        when(user.getDisplayName()).thenReturn("John Doe");
+        return user;
+    }
+}
@@ -0,0 +1,89 @@
+package nl.topicus.bitbucket.persistence;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class BranchMatcherTest {
+
+    private static final List<String> BRANCHES = Arrays.asList("", "master", "develop", "feature/develop",
+            "feature/foo", "feature", "release/1.0", "release/", "releases", "JIRA-123", "*", "feature/foo\nbar");
+
+    private static final String[] PATTERNS = {"master", "^master$", "feature/.*", "^release/.*$", ".*", "", "feature",
+            "feature/*", "\\*", "^(?!develop$).*", "JIRA-\\d+", "release/.*", "feature/.*"};
+
+    @Test
+    public void testMatchesLikeEachPattern() {
+        WebHookFilter[] filters = createFilters(PATTERNS);
+        BranchMatcher matcher = new BranchMatcher(filters);
+        int[] positions = allPositions(filters.length);
+
+        for (String branch : BRANCHES) {
+            BitSet ignoring = matcher.getIgnoringAll(Collections.singletonList(branch), positions);
+            for (int i = 0; i < PATTERNS.length; i++) {
+                assertThat(PATTERNS[i] + " against " + branch, ignoring.get(i), is(branch.matches(PATTERNS[i])));
+            }
+        }
+    }
+
+    @Test
+    public void testIgnoresOnlyWhenEveryBranchMatches() {
+        WebHookFilter[] filters = createFilters(PATTERNS);
+        BranchMatcher matcher = new BranchMatcher(filters);
+        int[] positions = allPositions(filters.length);
+
+        List<String> branches = Arrays.asList("feature/foo", "feature/develop", "master");
+        BitSet ignoring = matcher.getIgnoringAll(branches, positions);
+        for (int i = 0; i < PATTERNS.length; i++) {
+            String pattern = PATTERNS[i];
+            boolean allMatch = branches.stream().allMatch(branch -> branch.matches(pattern));
+            assertThat(pattern, ignoring.get(i), is(allMatch));
+        }
+    }
+
+    @Test
+    public void testOnlyChecksGivenPositions() {
+        WebHookFilter[] filters = createFilters("master", "master", ".*");
+        BranchMatcher matcher = new BranchMatcher(filters);
+
+        BitSet ignoring = matcher.getIgnoringAll(Collections.singletonList("master"), new int[]{1, 2});
+
+        assertThat(ignoring.get(0), is(false));
+        assertThat(ignoring.get(1), is(true));
+        assertThat(ignoring.get(2), is(true));
+    }
+
+    @Test
+    public void testNoBranchesAreIgnoredWithoutPatterns() {
+        WebHookFilter[] filters = createFilters(null, "feature/(*");
+        BranchMatcher matcher = new BranchMatcher(filters);
+
+        assertThat(matcher.getIgnoringAll(Collections.singletonList("master"), allPositions(2)).isEmpty(), is(true));
+    }
+
+    private static int[] allPositions(int count) {
+        int[] positions = new int[count];
+        for (int i = 0; i < count; i++) {
+            positions[i] = i;
+        }
+        return positions;
+    }
+
+    private static WebHookFilter[] createFilters(String... branchesToIgnore) {
+        WebHookFilter[] filters = new WebHookFilter[branchesToIgnore.length];
+        for (int i = 0; i < branchesToIgnore.length; i++) {
+            filters[i] = new WebHookFilter(new DummyWebHookConfiguration(1, "foo" + i, "https://example.com/foo",
+                    null, branchesToIgnore[i], true,
+                    false, false, false, true, false,
+                    false, false, false, false, false,
+                    false, false));
+        }
+        return filters;
+    }
+}
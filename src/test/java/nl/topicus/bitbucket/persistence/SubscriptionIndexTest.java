@@ -0,0 +1,40 @@
+package nl.topicus.bitbucket.persistence;
+
+import nl.topicus.bitbucket.events.EventType;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.arrayContaining;
+import static org.hamcrest.Matchers.emptyArray;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class SubscriptionIndexTest {
+
+    @Test
+    public void testConfigurationsAreIndexedByEventType() {
+        WebHookConfiguration pushOnly = createConfiguration("push", true, false);
+        WebHookConfiguration buildsOnly = createConfiguration("builds", false, true);
+        WebHookConfiguration both = createConfiguration("both", true, true);
+
+        SubscriptionIndex index = new SubscriptionIndex(new WebHookConfiguration[]{pushOnly, buildsOnly, both});
+
+        assertThat(index.get(EventType.REPO_PUSH), arrayContaining(pushOnly, both));
+        assertThat(index.get(EventType.BUILD_STATUS), arrayContaining(buildsOnly, both));
+        assertThat(index.get(EventType.PULL_REQUEST_CREATED), emptyArray());
+    }
+
+    @Test
+    public void testLookupsShareTheSameArray() {
+        SubscriptionIndex index = new SubscriptionIndex(new WebHookConfiguration[]{
+                createConfiguration("push", true, false)});
+
+        assertThat(index.get(EventType.REPO_PUSH), sameInstance(index.get(EventType.REPO_PUSH)));
+    }
+
+    private static WebHookConfiguration createConfiguration(String title, boolean isRepoPush, boolean isBuildStatus) {
+        return new DummyWebHookConfiguration(1, title, "https://example.com/" + title, null, null, true,
+                false, false, false, isRepoPush, false,
+                false, false, false, false, false,
+                false, isBuildStatus);
+    }
+}
@@ -62,6 +62,57 @@ public class WebHookConfigurationDaoTest extends AbstractAoDaoTest {
         assertEquals(!existing.isEnabled(), updated.isEnabled());
     }
 
+    @Test
+    public void testCreateOrUpdateWebHookConfigurationWithTimeouts() {
+        WebHookConfiguration created = dao.createOrUpdateWebHookConfiguration(mockRepository(3),
+                null, "Jenkins", "https://example.com/jenkins/webhook", null, null, true, 5, 10, 30);
+        assertNotNull(created);
+        assertEquals(5, created.getConnectTimeout());
+        assertEquals(10, created.getSocketTimeout());
+        assertEquals(30, created.getDeadline());
+
+        WebHookConfiguration updated = dao.createOrUpdateWebHookConfiguration(mockRepository(3),
+                String.valueOf(created.getID()), "Jenkins", "https://example.com/jenkins/webhook", null, null, true);
+        assertEquals(5, updated.getConnectTimeout());
+        assertEquals(10, updated.getSocketTimeout());
+        assertEquals(30, updated.getDeadline());
+
+        updated = dao.createOrUpdateWebHookConfiguration(mockRepository(3), String.valueOf(created.getID()),
+                "Jenkins", "https://example.com/jenkins/webhook", null, null, true, 0, null, null);
+        assertEquals(0, updated.getConnectTimeout());
+        assertEquals(10, updated.getSocketTimeout());
+        assertEquals(30, updated.getDeadline());
+    }
+
+    @Test
+    public void testCreateOrUpdateWebHookConfigurationKeepsDeliverySettings() {
+        WebHookConfiguration created = dao.createOrUpdateWebHookConfiguration(mockRepository(3),
+                null, "Jenkins", "https://example.com/jenkins/webhook", null, null, true, 3, 60, 5, true, 0, 0, 0);
+        assertEquals(3, created.getMaxAttempts());
+        assertEquals(60, created.getRateLimit());
+        assertEquals(5, created.getRateBurst());
+        assertTrue(created.isBatchDelivery());
+
+        WebHookConfiguration updated = dao.createOrUpdateWebHookConfiguration(mockRepository(3),
+                String.valueOf(created.getID()), "Jenkins", "https://example.com/jenkins/webhook", null, null, true,
+                null, 0, null, null, 5, 10, 30);
+        assertEquals(3, updated.getMaxAttempts());
+        assertEquals(0, updated.getRateLimit());
+        assertEquals(5, updated.getRateBurst());
+        assertTrue(updated.isBatchDelivery());
+        assertEquals(5, updated.getConnectTimeout());
+    }
+
+    @Test
+    public void testCreateOrUpdateWebHookConfigurationUsesDefaultDeliverySettings() {
+        WebHookConfiguration created = dao.createOrUpdateWebHookConfiguration(mockRepository(3),
+                null, "Jenkins", "https://example.com/jenkins/webhook", null, null, true);
+        assertEquals(WebHookConfiguration.DEFAULT_MAX_ATTEMPTS, created.getMaxAttempts());
+        assertEquals(0, created.getRateLimit());
+        assertEquals(WebHookConfiguration.DEFAULT_RATE_BURST, created.getRateBurst());
+        assertFalse(created.isBatchDelivery());
+    }
+
     @Test
     public void testDeleteWebhookConfiguration() {
         WebHookConfiguration[] configurations = activeObjects.find(WebHookConfiguration.class);
@@ -100,6 +151,66 @@ public class WebHookConfigurationDaoTest extends AbstractAoDaoTest {
         assertTrue(configuration.isEnabled());
     }
 
+    @Test
+    public void testGetEnabledWebHookConfigurationsAfterWrites() {
+        Repository repo = mockRepository(2);
+        assertEquals(1, dao.getEnabledWebHookConfigurations(repo, EventType.REPO_PUSH).length);
+
+        dao.createOrUpdateWebHookConfiguration(repo, null, "Jenkins", "https://example.com/jenkins/webhook",
+                null, null, true);
+        WebHookConfiguration[] configurations = dao.getEnabledWebHookConfigurations(repo, EventType.REPO_PUSH);
+        assertEquals(2, configurations.length);
+        assertEquals("HipChat", configurations[0].getTitle());
+        assertEquals("Jenkins", configurations[1].getTitle());
+
+        dao.deleteWebhookConfigurations(repo);
+        assertEquals(0, dao.getEnabledWebHookConfigurations(repo, EventType.REPO_PUSH).length);
+    }
+
+    @Test
+    public void testGetEnabledWebHookConfigurationsReturnsSnapshots() {
+        Repository repo = mockRepository(2);
+        WebHookConfiguration cached = dao.getEnabledWebHookConfigurations(repo, EventType.REPO_PUSH)[0];
+
+        WebHookConfiguration entity = dao.getWebHookConfiguration(String.valueOf(cached.getID()));
+        entity.setTitle("Renamed");
+        assertEquals("HipChat", cached.getTitle());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSnapshotsCannotBeChanged() {
+        dao.getEnabledWebHookConfigurations(mockRepository(2), EventType.REPO_PUSH)[0].setTitle("Renamed");
+    }
+
+    @Test
+    public void testHasSubscribers() {
+        // Not read from the database yet, so the event is built and its recipients are looked up when dispatched
+        assertTrue(dao.hasSubscribers(mockRepository(99), EventType.REPO_PUSH));
+
+        assertEquals(0, dao.getRecipients(mockRepository(99), EventType.REPO_PUSH, null).size());
+        assertFalse(dao.hasSubscribers(mockRepository(99), EventType.REPO_PUSH));
+    }
+
+    @Test
+    public void testReconcileReadsConfigurationsIntoMemory() {
+        dao.reconcile();
+
+        assertTrue(dao.hasSubscribers(mockRepository(2), EventType.REPO_PUSH));
+        assertFalse(dao.hasSubscribers(mockRepository(2), EventType.BUILD_STATUS));
+    }
+
+    @Test
+    public void testReconcilePicksUpChangesMadeElsewhere() {
+        Repository repo = mockRepository(1);
+        assertEquals(1, dao.getEnabledWebHookConfigurations(repo, EventType.REPO_PUSH).length);
+
+        activeObjects.deleteWithSQL(WebHookConfiguration.class, WebHookConfiguration.COLUMN_REPO_ID + " = ?", 1);
+        assertEquals(1, dao.getEnabledWebHookConfigurations(repo, EventType.REPO_PUSH).length);
+
+        dao.reconcile();
+        assertEquals(0, dao.getEnabledWebHookConfigurations(repo, EventType.REPO_PUSH).length);
+    }
+
     @Test
     public void testGetWebHookConfiguration() {
         WebHookConfiguration[] configurations = activeObjects.find(WebHookConfiguration.class);
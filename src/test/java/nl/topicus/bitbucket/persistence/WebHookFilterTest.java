@@ -1,4 +1,4 @@
-package nl.topicus.bitbucket.api;
+package nl.topicus.bitbucket.persistence;
 
 import com.google.common.collect.ImmutableList;
 import nl.topicus.bitbucket.events.BitbucketPushChange;
@@ -6,40 +6,73 @@ import nl.topicus.bitbucket.events.BitbucketPushDetail;
 import nl.topicus.bitbucket.events.BitbucketPushEvent;
 import nl.topicus.bitbucket.events.BitbucketServerPullRequestEvent;
 import nl.topicus.bitbucket.events.BuildStatusEvent;
+import nl.topicus.bitbucket.events.Event;
+import nl.topicus.bitbucket.events.Ignorable;
 import nl.topicus.bitbucket.model.repository.BitbucketServerRepository;
 import nl.topicus.bitbucket.model.repository.BitbucketServerRepositoryOwner;
-import nl.topicus.bitbucket.persistence.DummyWebHookConfiguration;
-import nl.topicus.bitbucket.persistence.WebHookConfiguration;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
 
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
 
-public class PushEventServiceTest {
+public class WebHookFilterTest {
+
+    @Test
+    public void testIgnoreCommitterFromList() {
+        WebHookFilter filter = new WebHookFilter(createConfiguration("alice, bob,carol", null));
+
+        assertThat(filter.accepts(new PushEvent("bob", "master")), is(false));
+        assertThat(filter.accepts(new PushEvent("carol", "master")), is(false));
+        assertThat(filter.accepts(new PushEvent("dave", "master")), is(true));
+    }
+
+    @Test
+    public void testIgnoreBranchesMatchingPattern() {
+        WebHookFilter filter = new WebHookFilter(createConfiguration(null, "feature/.*"));
+
+        assertThat(filter.accepts(new PushEvent("alice", "feature/foo", "feature/bar")), is(false));
+        assertThat(filter.accepts(new PushEvent("alice", "feature/foo", "master")), is(true));
+        assertThat(filter.accepts(new PushEvent("alice")), is(true));
+    }
+
+    @Test
+    public void testInvalidPatternIgnoresNoBranches() {
+        WebHookFilter filter = new WebHookFilter(createConfiguration(null, "feature/(*"));
+
+        assertThat(filter.accepts(new PushEvent("alice", "feature/foo")), is(true));
+    }
+
+    @Test
+    public void testEventsWhichCannotBeIgnored() {
+        WebHookFilter filter = new WebHookFilter(createConfiguration("alice", ".*"));
+
+        assertThat(filter.accepts(new BuildStatusEvent()), is(true));
+    }
 
     @Test
     public void testIgnoreSingleBranch() {
         WebHookConfiguration dummyConfiguration = createDummyConfiguration();
         dummyConfiguration.setBranchesToIgnore("master");
-
-        PushEventService pushEventService = new PushEventService(dummyConfiguration);
+        WebHookFilter filter = new WebHookFilter(dummyConfiguration);
 
         BitbucketPushEvent dummyEvent = createDummyEvent();
         ImmutableList<BitbucketPushChange> changes = ImmutableList.of(
                 createDummyChange("master"));
         dummyEvent.getPush().setChanges(changes);
 
-        assertThat(pushEventService.isValidEvent(dummyEvent, dummyConfiguration), is(false));
+        assertThat(filter.accepts(dummyEvent), is(false));
     }
 
     @Test
     public void testIgnoreMultipleBranches() {
         WebHookConfiguration dummyConfiguration = createDummyConfiguration();
         dummyConfiguration.setBranchesToIgnore("feature/.*");
-
-        PushEventService pushEventService = new PushEventService(dummyConfiguration);
+        WebHookFilter filter = new WebHookFilter(dummyConfiguration);
 
         BitbucketPushEvent dummyEvent = createDummyEvent();
         ImmutableList<BitbucketPushChange> changes = ImmutableList.of(
@@ -47,15 +80,14 @@ public class PushEventServiceTest {
                 createDummyChange("feature/bar"));
         dummyEvent.getPush().setChanges(changes);
 
-        assertThat(pushEventService.isValidEvent(dummyEvent, dummyConfiguration), is(false));
+        assertThat(filter.accepts(dummyEvent), is(false));
     }
 
     @Test
     public void testNegativeLookAheadIgnoreBranchesWithNoDevelopBranch() {
         WebHookConfiguration dummyConfiguration = createDummyConfiguration();
         dummyConfiguration.setBranchesToIgnore("^(?!develop$).*");
-
-        PushEventService pushEventService = new PushEventService(dummyConfiguration);
+        WebHookFilter filter = new WebHookFilter(dummyConfiguration);
 
         BitbucketPushEvent dummyEvent = createDummyEvent();
         ImmutableList<BitbucketPushChange> changes = ImmutableList.of(
@@ -65,15 +97,14 @@ public class PushEventServiceTest {
                 createDummyChange("feature/develop"));
         dummyEvent.getPush().setChanges(changes);
 
-        assertThat(pushEventService.isValidEvent(dummyEvent, dummyConfiguration), is(false));
+        assertThat(filter.accepts(dummyEvent), is(false));
     }
 
     @Test
     public void testNegativeLookAheadIgnoreBranchesWithDevelopBranch() {
         WebHookConfiguration dummyConfiguration = createDummyConfiguration();
         dummyConfiguration.setBranchesToIgnore("^(?!develop$).*");
-
-        PushEventService pushEventService = new PushEventService(dummyConfiguration);
+        WebHookFilter filter = new WebHookFilter(dummyConfiguration);
 
         BitbucketPushEvent dummyEvent = createDummyEvent();
         ImmutableList<BitbucketPushChange> changes = ImmutableList.of(
@@ -83,15 +114,14 @@ public class PushEventServiceTest {
                 createDummyChange("develop"));
         dummyEvent.getPush().setChanges(changes);
 
-        assertThat(pushEventService.isValidEvent(dummyEvent, dummyConfiguration), is(true));
+        assertThat(filter.accepts(dummyEvent), is(true));
     }
 
     @Test
     public void testValidWhenAtLeastOneBranchIsValid() {
         WebHookConfiguration dummyConfiguration = createDummyConfiguration();
         dummyConfiguration.setBranchesToIgnore("feature/*");
-
-        PushEventService pushEventService = new PushEventService(dummyConfiguration);
+        WebHookFilter filter = new WebHookFilter(dummyConfiguration);
 
         BitbucketPushEvent dummyEvent = createDummyEvent();
         ImmutableList<BitbucketPushChange> changes = ImmutableList.of(
@@ -100,41 +130,38 @@ public class PushEventServiceTest {
                 createDummyChange("feature/bar"));
         dummyEvent.getPush().setChanges(changes);
 
-        assertThat(pushEventService.isValidEvent(dummyEvent, dummyConfiguration), is(true));
+        assertThat(filter.accepts(dummyEvent), is(true));
     }
 
     @Test
     public void testNullChangeList() {
         WebHookConfiguration dummyConfiguration = createDummyConfiguration();
         dummyConfiguration.setBranchesToIgnore("");
-
-        PushEventService pushEventService = new PushEventService(dummyConfiguration);
+        WebHookFilter filter = new WebHookFilter(dummyConfiguration);
 
         BitbucketPushEvent dummyEvent = createDummyEvent();
         dummyEvent.getPush().setChanges(null);
 
-        assertThat(pushEventService.isValidEvent(dummyEvent, dummyConfiguration), is(true));
+        assertThat(filter.accepts(dummyEvent), is(true));
     }
 
     @Test
     public void testEmptyChangeList() {
         WebHookConfiguration dummyConfiguration = createDummyConfiguration();
         dummyConfiguration.setBranchesToIgnore("feature\\/*");
-
-        PushEventService pushEventService = new PushEventService(dummyConfiguration);
+        WebHookFilter filter = new WebHookFilter(dummyConfiguration);
 
         BitbucketPushEvent dummyEvent = createDummyEvent();
         dummyEvent.getPush().setChanges(new ArrayList<>());
 
-        assertThat(pushEventService.isValidEvent(dummyEvent, dummyConfiguration), is(true));
+        assertThat(filter.accepts(dummyEvent), is(true));
     }
 
     @Test
     public void testIgnoreAll() {
         WebHookConfiguration dummyConfiguration = createDummyConfiguration();
         dummyConfiguration.setBranchesToIgnore("\\*");
-
-        PushEventService pushEventService = new PushEventService(dummyConfiguration);
+        WebHookFilter filter = new WebHookFilter(dummyConfiguration);
 
         BitbucketPushEvent dummyEvent = createDummyEvent();
         ImmutableList<BitbucketPushChange> changes = ImmutableList.of(
@@ -150,7 +177,7 @@ public class PushEventServiceTest {
         );
         dummyEvent.getPush().setChanges(changes);
 
-        assertThat(pushEventService.isValidEvent(dummyEvent, dummyConfiguration), is(true));
+        assertThat(filter.accepts(dummyEvent), is(true));
     }
 
     @Test
@@ -158,8 +185,7 @@ public class PushEventServiceTest {
         WebHookConfiguration dummyConfiguration = createDummyConfiguration();
         dummyConfiguration.setBranchesToIgnore(null);
         dummyConfiguration.setCommittersToIgnore(null);
-
-        PushEventService pushEventService = new PushEventService(dummyConfiguration);
+        WebHookFilter filter = new WebHookFilter(dummyConfiguration);
 
         BitbucketPushEvent dummyEvent = createDummyEvent();
         ImmutableList<BitbucketPushChange> changes = ImmutableList.of(
@@ -168,15 +194,14 @@ public class PushEventServiceTest {
         );
         dummyEvent.getPush().setChanges(changes);
 
-        assertThat(pushEventService.isValidEvent(dummyEvent, dummyConfiguration), is(true));
+        assertThat(filter.accepts(dummyEvent), is(true));
     }
 
     @Test
     public void testEmptyConfig() {
         WebHookConfiguration dummyConfiguration = createDummyConfiguration();
         dummyConfiguration.setBranchesToIgnore("");
-
-        PushEventService pushEventService = new PushEventService(dummyConfiguration);
+        WebHookFilter filter = new WebHookFilter(dummyConfiguration);
 
         BitbucketPushEvent dummyEvent = createDummyEvent();
         ImmutableList<BitbucketPushChange> changes = ImmutableList.of(
@@ -185,15 +210,14 @@ public class PushEventServiceTest {
         );
         dummyEvent.getPush().setChanges(changes);
 
-        assertThat(pushEventService.isValidEvent(dummyEvent, dummyConfiguration), is(true));
+        assertThat(filter.accepts(dummyEvent), is(true));
     }
 
     @Test
     public void testIgnoreCommitter() {
         WebHookConfiguration dummyConfiguration = createDummyConfiguration();
         dummyConfiguration.setCommittersToIgnore("foo.mc.fooface");
-
-        PushEventService pushEventService = new PushEventService(dummyConfiguration);
+        WebHookFilter filter = new WebHookFilter(dummyConfiguration);
 
         BitbucketPushEvent dummyEvent = createDummyEvent();
         BitbucketServerRepositoryOwner owner = new BitbucketServerRepositoryOwner("foo.mc.fooface", "FOO");
@@ -205,15 +229,14 @@ public class PushEventServiceTest {
         );
         dummyEvent.getPush().setChanges(changes);
 
-        assertThat(pushEventService.isValidEvent(dummyEvent, dummyConfiguration), is(false));
+        assertThat(filter.accepts(dummyEvent), is(false));
     }
 
     @Test
     public void testNullAuthor() {
         WebHookConfiguration dummyConfiguration = createDummyConfiguration();
         dummyConfiguration.setCommittersToIgnore("foo");
-
-        PushEventService pushEventService = new PushEventService(dummyConfiguration);
+        WebHookFilter filter = new WebHookFilter(dummyConfiguration);
 
         BitbucketPushEvent dummyEvent = createDummyEvent();
         dummyEvent.setActor(null);
@@ -224,25 +247,25 @@ public class PushEventServiceTest {
         );
         dummyEvent.getPush().setChanges(changes);
 
-        assertThat(pushEventService.isValidEvent(dummyEvent, dummyConfiguration), is(true));
+        assertThat(filter.accepts(dummyEvent), is(true));
     }
 
     @Test
     public void testPullRequestEvent() {
         WebHookConfiguration dummyConfiguration = createDummyConfiguration();
-        PushEventService pushEventService = new PushEventService(dummyConfiguration);
+        WebHookFilter filter = new WebHookFilter(dummyConfiguration);
         BitbucketServerPullRequestEvent bitbucketServerPullRequestEvent = new BitbucketServerPullRequestEvent();
 
-        assertThat(pushEventService.isValidEvent(bitbucketServerPullRequestEvent, dummyConfiguration), is(true));
+        assertThat(filter.accepts(bitbucketServerPullRequestEvent), is(true));
     }
 
     @Test
     public void testBuildStatusEvent() {
         WebHookConfiguration dummyConfiguration = createDummyConfiguration();
-        PushEventService pushEventService = new PushEventService(dummyConfiguration);
+        WebHookFilter filter = new WebHookFilter(dummyConfiguration);
         BuildStatusEvent buildStatusEvent = new BuildStatusEvent();
 
-        assertThat(pushEventService.isValidEvent(buildStatusEvent, dummyConfiguration), is(true));
+        assertThat(filter.accepts(buildStatusEvent), is(true));
     }
 
     private WebHookConfiguration createDummyConfiguration() {
@@ -292,4 +315,32 @@ public class PushEventServiceTest {
         return bitbucketPushChange;
     }
 
+    private static WebHookConfiguration createConfiguration(String committersToIgnore, String branchesToIgnore) {
+        return new DummyWebHookConfiguration(1, "foo", "https://example.com/foo", committersToIgnore,
+                branchesToIgnore, true,
+                false, false, false, true, false,
+                false, false, false, false, false,
+                false, false);
+    }
+
+    private static class PushEvent implements Event, Ignorable {
+
+        private final List<String> branches;
+        private final String username;
+
+        private PushEvent(String username, String... branches) {
+            this.branches = Arrays.asList(branches);
+            this.username = username;
+        }
+
+        @Override
+        public List<String> getBranches() {
+            return branches;
+        }
+
+        @Override
+        public Optional<String> getUsername() {
+            return Optional.ofNullable(username);
+        }
+    }
 }
@@ -0,0 +1,129 @@
+package nl.topicus.bitbucket.persistence;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.activeobjects.test.TestActiveObjects;
+import com.atlassian.bitbucket.ao.AbstractAoDaoTest;
+import com.atlassian.bitbucket.repository.Repository;
+import net.java.ao.test.jdbc.Data;
+import nl.topicus.bitbucket.delivery.EventPayload;
+import nl.topicus.bitbucket.delivery.WebhookDelivery;
+import nl.topicus.bitbucket.events.EventType;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@Data(WebhookDeadLetterDatabaseUpdater.class)
+public class WebhookDeadLetterDaoTest extends AbstractAoDaoTest {
+
+    private ActiveObjects activeObjects;
+    private WebhookDeadLetterDao dao;
+
+    public WebhookDeadLetterDaoTest() {
+        super(WebhookDeadLetter.class);
+    }
+
+    @Before
+    public void setup() {
+        activeObjects = new TestActiveObjects(entityManager);
+        dao = new WebhookDeadLetterDao(activeObjects);
+    }
+
+    @Test
+    public void testCreateDeadLetter() {
+        Repository repository = repository(5);
+        WebHookConfiguration configuration = mock(WebHookConfiguration.class);
+        when(configuration.getID()).thenReturn(7);
+        char[] longReason = new char[WebhookDeadLetterDao.MAX_REASON_LENGTH * 2];
+        Arrays.fill(longReason, 'x');
+
+        WebhookDeadLetter created = dao.createDeadLetter(
+                new WebhookDelivery(repository, configuration, EventType.BUILD_STATUS, "{\"failed\":true}"),
+                new String(longReason));
+
+        WebhookDeadLetter deadLetter = dao.getDeadLetter(created.getID());
+        assertEquals(Integer.valueOf(5), deadLetter.getRepositoryId());
+        assertEquals(Integer.valueOf(7), deadLetter.getConfigurationId());
+        assertEquals("BUILD_STATUS", deadLetter.getEventType());
+        assertEquals("{\"failed\":true}", deadLetter.getBody());
+        assertEquals(1, deadLetter.getAttempts());
+        assertEquals(WebhookDeadLetterDao.MAX_REASON_LENGTH, deadLetter.getReason().length());
+        assertNull(deadLetter.getCoalescingKey());
+        assertNull(deadLetter.getPullRequestId());
+    }
+
+    @Test
+    public void testCreateDeadLetterForPullRequest() {
+        WebHookConfiguration configuration = mock(WebHookConfiguration.class);
+        when(configuration.getID()).thenReturn(7);
+
+        WebhookDeadLetter created = dao.createDeadLetter(new WebhookDelivery(repository(5), configuration,
+                EventType.PULL_REQUEST_UPDATED, new EventPayload("{}"), "5:3", "3"), "response code:500");
+
+        WebhookDeadLetter deadLetter = dao.getDeadLetterWithBody(created.getID());
+        assertEquals("5:3", deadLetter.getCoalescingKey());
+        assertEquals("3", deadLetter.getPullRequestId());
+    }
+
+    @Test
+    public void testGetDeadLetters() {
+        WebhookDeadLetter[] deadLetters = dao.getDeadLetters(repository(1), null, null, 0, 10);
+        assertEquals(3, deadLetters.length);
+        assertEquals("{\"dead\":3}", deadLetters[0].getBody());
+        assertEquals("{\"dead\":1}", deadLetters[2].getBody());
+
+        deadLetters = dao.getDeadLetters(repository(1), null, null, 1, 1);
+        assertEquals(1, deadLetters.length);
+        assertEquals("{\"dead\":2}", deadLetters[0].getBody());
+    }
+
+    @Test
+    public void testGetDeadLettersByConfigurationAndTime() {
+        assertEquals(2, dao.getDeadLetters(repository(1), 1, null, 0, 10).length);
+
+        WebhookDeadLetter[] deadLetters = dao.getDeadLetters(repository(1), 1, 2000L, 0, 10);
+        assertEquals(1, deadLetters.length);
+        assertEquals("{\"dead\":3}", deadLetters[0].getBody());
+    }
+
+    @Test
+    public void testGetOldestDeadLetters() {
+        WebhookDeadLetter[] deadLetters = dao.getOldestDeadLetters(repository(1), null, null, 2);
+        assertEquals(2, deadLetters.length);
+        assertEquals("{\"dead\":1}", deadLetters[0].getBody());
+        assertEquals("{\"dead\":2}", deadLetters[1].getBody());
+    }
+
+    @Test
+    public void testGetDeadLetterWithBody() {
+        WebhookDeadLetter oldest = dao.getOldestDeadLetters(repository(1), null, null, 1)[0];
+
+        WebhookDeadLetter deadLetter = dao.getDeadLetterWithBody(oldest.getID());
+        assertEquals("{\"dead\":1}", deadLetter.getBody());
+        assertEquals("REPO_PUSH", deadLetter.getEventType());
+
+        dao.deleteDeadLetters(Collections.singletonList(oldest.getID()));
+        assertNull(dao.getDeadLetterWithBody(oldest.getID()));
+    }
+
+    @Test
+    public void testDeleteDeadLetters() {
+        WebhookDeadLetter[] deadLetters = dao.getDeadLetters(repository(1), null, null, 0, 10);
+
+        assertEquals(1, dao.deleteDeadLetters(Collections.singletonList(deadLetters[0].getID())));
+        assertEquals(0, dao.deleteDeadLetters(Collections.singletonList(deadLetters[0].getID())));
+        assertEquals(2, dao.deleteDeadLetters(repository(1)));
+        assertEquals(1, activeObjects.find(WebhookDeadLetter.class).length);
+    }
+
+    private static Repository repository(int id) {
+        Repository repository = mock(Repository.class);
+        when(repository.getId()).thenReturn(id);
+        return repository;
+    }
+}
@@ -0,0 +1,34 @@
+package nl.topicus.bitbucket.persistence;
+
+import com.google.common.collect.ImmutableMap;
+import net.java.ao.EntityManager;
+import net.java.ao.test.jdbc.DatabaseUpdater;
+
+import static nl.topicus.bitbucket.persistence.WebhookDeadLetter.*;
+
+public class WebhookDeadLetterDatabaseUpdater implements DatabaseUpdater {
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void update(EntityManager entityManager) throws Exception {
+        entityManager.migrate(WebhookDeadLetter.class);
+
+        createDeadLetter(entityManager, 1, 1, 1000L, "{\"dead\":1}");
+        createDeadLetter(entityManager, 1, 2, 2000L, "{\"dead\":2}");
+        createDeadLetter(entityManager, 1, 1, 3000L, "{\"dead\":3}");
+        createDeadLetter(entityManager, 2, 3, 4000L, "{\"dead\":4}");
+    }
+
+    private static void createDeadLetter(EntityManager entityManager, int repositoryId, int configurationId,
+                                         long createdDate, String body) throws Exception {
+        entityManager.create(WebhookDeadLetter.class, ImmutableMap.<String, Object>builder()
+                .put(COLUMN_ATTEMPTS, 5)
+                .put(COLUMN_BODY, body)
+                .put(COLUMN_CONFIG_ID, configurationId)
+                .put(COLUMN_CREATED_DATE, createdDate)
+                .put(COLUMN_EVENT_TYPE, "REPO_PUSH")
+                .put(COLUMN_REASON, "response code:500")
+                .put(COLUMN_REPO_ID, repositoryId)
+                .build());
+    }
+}
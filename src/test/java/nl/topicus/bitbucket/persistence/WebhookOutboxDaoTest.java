@@ -0,0 +1,154 @@
+package nl.topicus.bitbucket.persistence;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.activeobjects.test.TestActiveObjects;
+import com.atlassian.bitbucket.ao.AbstractAoDaoTest;
+import com.atlassian.bitbucket.repository.Repository;
+import net.java.ao.test.jdbc.Data;
+import nl.topicus.bitbucket.delivery.EventPayload;
+import nl.topicus.bitbucket.delivery.WebhookDelivery;
+import nl.topicus.bitbucket.events.EventType;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@Data(WebhookOutboxDatabaseUpdater.class)
+public class WebhookOutboxDaoTest extends AbstractAoDaoTest {
+
+    private ActiveObjects activeObjects;
+    private WebhookOutboxDao dao;
+
+    public WebhookOutboxDaoTest() {
+        super(WebhookOutboxEntry.class);
+    }
+
+    @Before
+    public void setup() {
+        activeObjects = new TestActiveObjects(entityManager);
+        dao = new WebhookOutboxDao(activeObjects);
+    }
+
+    @Test
+    public void testCreateEntries() {
+        WebhookOutboxEntry[] entries = dao.createEntries(Arrays.asList(
+                delivery(5, 7, EventType.BUILD_STATUS, "{\"first\":true}"),
+                delivery(5, 8, EventType.REPO_PUSH, "{\"second\":true}")), 4000L);
+        assertEquals(2, entries.length);
+
+        WebhookOutboxEntry first = activeObjects.get(WebhookOutboxEntry.class, entries[0].getID());
+        assertEquals(Integer.valueOf(5), first.getRepositoryId());
+        assertEquals(Integer.valueOf(7), first.getConfigurationId());
+        assertEquals("BUILD_STATUS", first.getEventType());
+        assertEquals("{\"first\":true}", first.getBody());
+        assertEquals(4000L, first.getClaimExpiry());
+        assertEquals(1, first.getAttempt());
+        assertNull(first.getCoalescingKey());
+        assertNull(first.getPullRequestId());
+
+        WebhookOutboxEntry second = activeObjects.get(WebhookOutboxEntry.class, entries[1].getID());
+        assertEquals(Integer.valueOf(8), second.getConfigurationId());
+        assertEquals("REPO_PUSH", second.getEventType());
+    }
+
+    @Test
+    public void testCreateEntriesKeepsWhatIsNeededToResume() {
+        Repository repository = mock(Repository.class);
+        when(repository.getId()).thenReturn(5);
+        WebHookConfiguration configuration = mock(WebHookConfiguration.class);
+        when(configuration.getID()).thenReturn(7);
+
+        WebhookOutboxEntry[] entries = dao.createEntries(Collections.singletonList(new WebhookDelivery(repository,
+                configuration, EventType.PULL_REQUEST_UPDATED, new EventPayload("{}"), "pr-12", "12")), 4000L);
+
+        WebhookOutboxEntry entry = activeObjects.get(WebhookOutboxEntry.class, entries[0].getID());
+        assertEquals("pr-12", entry.getCoalescingKey());
+        assertEquals("12", entry.getPullRequestId());
+        assertEquals(1, entry.getAttempt());
+    }
+
+    @Test
+    public void testClaimEntries() {
+        WebhookOutboxEntry[] claimed = dao.claimEntries(5000L, 10000L, 10);
+        assertEquals(2, claimed.length);
+        assertEquals("{\"abandoned\":1}", claimed[0].getBody());
+        assertEquals("{\"abandoned\":2}", claimed[1].getBody());
+        assertEquals(10000L, activeObjects.get(WebhookOutboxEntry.class, claimed[0].getID()).getClaimExpiry());
+
+        assertEquals(0, dao.claimEntries(5000L, 10000L, 10).length);
+        assertEquals(2, dao.claimEntries(10001L, 20000L, 10).length);
+    }
+
+    @Test
+    public void testClaimEntriesInChunks() {
+        WebhookOutboxEntry[] claimed = dao.claimEntries(5000L, 10000L, 1);
+        assertEquals(1, claimed.length);
+        assertEquals("{\"abandoned\":1}", claimed[0].getBody());
+
+        claimed = dao.claimEntries(5000L, 10000L, 1);
+        assertEquals(1, claimed.length);
+        assertEquals("{\"abandoned\":2}", claimed[0].getBody());
+    }
+
+    @Test
+    public void testReleaseEntries() {
+        WebhookOutboxEntry[] claimed = dao.claimEntries(5000L, 10000L, 10);
+        assertEquals(2, claimed.length);
+
+        dao.releaseEntries(Collections.singletonList(claimed[1].getID()));
+
+        WebhookOutboxEntry[] reclaimed = dao.claimEntries(5000L, 10000L, 10);
+        assertEquals(1, reclaimed.length);
+        assertEquals(claimed[1].getID(), reclaimed[0].getID());
+    }
+
+    @Test
+    public void testExtendClaims() {
+        WebhookOutboxEntry[] claimed = dao.claimEntries(5000L, 10000L, 10);
+        assertEquals(2, claimed.length);
+
+        dao.extendClaims(Collections.singletonMap(claimed[0].getID(), 50000L),
+                Collections.singletonMap(claimed[0].getID(), 3));
+
+        WebhookOutboxEntry[] reclaimed = dao.claimEntries(20000L, 30000L, 10);
+        assertEquals(1, reclaimed.length);
+        assertEquals(claimed[1].getID(), reclaimed[0].getID());
+        assertEquals(1, reclaimed[0].getAttempt());
+
+        // Read back rather than taken from the entity cache, as the row was updated without loading the entity
+        WebhookOutboxEntry extended = activeObjects.find(WebhookOutboxEntry.class, "ID = ?", claimed[0].getID())[0];
+        assertEquals(50000L, extended.getClaimExpiry());
+        assertEquals(3, extended.getAttempt());
+    }
+
+    @Test
+    public void testDeleteEntries() {
+        List<WebhookDelivery> deliveries = new ArrayList<>();
+        for (int i = 0; i <= WebhookOutboxDao.MAX_IN_SIZE; i++) {
+            deliveries.add(delivery(1, 1, EventType.REPO_PUSH, "{}"));
+        }
+        List<Integer> ids = Arrays.stream(dao.createEntries(deliveries, 0L))
+                .map(WebhookOutboxEntry::getID)
+                .collect(Collectors.toList());
+
+        assertEquals(ids.size(), dao.deleteEntries(ids));
+        assertEquals(3, activeObjects.find(WebhookOutboxEntry.class).length);
+    }
+
+    private static WebhookDelivery delivery(int repositoryId, int configurationId, EventType eventType, String body) {
+        Repository repository = mock(Repository.class);
+        when(repository.getId()).thenReturn(repositoryId);
+        WebHookConfiguration configuration = mock(WebHookConfiguration.class);
+        when(configuration.getID()).thenReturn(configurationId);
+
+        return new WebhookDelivery(repository, configuration, eventType, body);
+    }
+}
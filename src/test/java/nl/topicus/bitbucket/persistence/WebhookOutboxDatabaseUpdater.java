@@ -0,0 +1,41 @@
+package nl.topicus.bitbucket.persistence;
+
+import com.google.common.collect.ImmutableMap;
+import net.java.ao.EntityManager;
+import net.java.ao.test.jdbc.DatabaseUpdater;
+
+import static nl.topicus.bitbucket.persistence.WebhookOutboxEntry.*;
+
+public class WebhookOutboxDatabaseUpdater implements DatabaseUpdater {
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void update(EntityManager entityManager) throws Exception {
+        entityManager.migrate(WebhookOutboxEntry.class);
+
+        entityManager.create(WebhookOutboxEntry.class, ImmutableMap.<String, Object>builder()
+                .put(COLUMN_BODY, "{\"abandoned\":1}")
+                .put(COLUMN_CLAIM_EXPIRY, 0L)
+                .put(COLUMN_CONFIG_ID, 1)
+                .put(COLUMN_CREATED_DATE, 1000L)
+                .put(COLUMN_EVENT_TYPE, "REPO_PUSH")
+                .put(COLUMN_REPO_ID, 1)
+                .build());
+        entityManager.create(WebhookOutboxEntry.class, ImmutableMap.<String, Object>builder()
+                .put(COLUMN_BODY, "{\"abandoned\":2}")
+                .put(COLUMN_CLAIM_EXPIRY, 0L)
+                .put(COLUMN_CONFIG_ID, 2)
+                .put(COLUMN_CREATED_DATE, 2000L)
+                .put(COLUMN_EVENT_TYPE, "PULL_REQUEST_CREATED")
+                .put(COLUMN_REPO_ID, 2)
+                .build());
+        entityManager.create(WebhookOutboxEntry.class, ImmutableMap.<String, Object>builder()
+                .put(COLUMN_BODY, "{\"claimed\":3}")
+                .put(COLUMN_CLAIM_EXPIRY, Long.MAX_VALUE)
+                .put(COLUMN_CONFIG_ID, 2)
+                .put(COLUMN_CREATED_DATE, 3000L)
+                .put(COLUMN_EVENT_TYPE, "REPO_PUSH")
+                .put(COLUMN_REPO_ID, 2)
+                .build());
+    }
+}